@@ -0,0 +1,27 @@
+package com.hypersocket.client.service.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.hypersocket.client.NetworkResource;
+
+/**
+ * The connection carrying batches of datagrams for a {@link UdpForwarder} to
+ * and from the server.
+ */
+public interface DatagramTunnel {
+
+	void send(ByteBuffer message) throws IOException;
+
+	void close();
+
+	public interface Connector {
+
+		/**
+		 * Open a tunnel for a resource. Messages received from the server must
+		 * be passed to {@link UdpForwarder#onMessage(ByteBuffer)}.
+		 */
+		DatagramTunnel connect(NetworkResource resource, UdpForwarder forwarder)
+				throws IOException;
+	}
+}
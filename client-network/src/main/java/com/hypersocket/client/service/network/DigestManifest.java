@@ -0,0 +1,111 @@
+package com.hypersocket.client.service.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the size, modification time and MD5 digest of each file in an
+ * application directory. The manifest is kept in a <code>.manifest</code>
+ * file next to <code>.installed</code>. A file whose size and modification
+ * time have not changed since it was recorded is not hashed again.
+ */
+public class DigestManifest {
+
+	static Logger log = LoggerFactory.getLogger(DigestManifest.class);
+
+	static final String MANIFEST_FILE = ".manifest";
+
+	final File directory;
+	final Properties entries = new Properties();
+	boolean dirty;
+
+	DigestManifest(File directory) {
+		this.directory = directory;
+	}
+
+	public static DigestManifest load(File directory) {
+		DigestManifest manifest = new DigestManifest(directory);
+		File file = new File(directory, MANIFEST_FILE);
+		if (file.exists()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				manifest.entries.load(in);
+			} catch (IOException e) {
+				log.warn("Could not read digest manifest " + file + ", files will be hashed again", e);
+				manifest.entries.clear();
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Get the digest of a file, hashing it only if it has changed since it was
+	 * last recorded.
+	 */
+	public synchronized String getDigest(File file) throws IOException {
+		String entry = entries.getProperty(file.getName());
+		if (entry != null) {
+			String[] values = entry.split(",");
+			if (values.length == 3 && Long.parseLong(values[0]) == file.length()
+					&& Long.parseLong(values[1]) == file.lastModified()) {
+				return values[2];
+			}
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Hashing " + file);
+		}
+		InputStream in = new FileInputStream(file);
+		String digest;
+		try {
+			digest = Hex.encodeHexString(DigestUtils.md5(in));
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		put(file, digest);
+		return digest;
+	}
+
+	/**
+	 * Record the digest of a file computed elsewhere, for example while it was
+	 * downloaded.
+	 */
+	public synchronized void put(File file, String digest) {
+		entries.setProperty(file.getName(),
+				file.length() + "," + file.lastModified() + "," + digest);
+		dirty = true;
+	}
+
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		File file = new File(directory, MANIFEST_FILE);
+		File tmp = new File(directory, MANIFEST_FILE + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			entries.store(out, "Launcher file digests");
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+}
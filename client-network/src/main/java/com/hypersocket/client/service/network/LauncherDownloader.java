@@ -0,0 +1,248 @@
+package com.hypersocket.client.service.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.client.rmi.FileMetaData;
+
+/**
+ * Downloads the files of a launcher concurrently. Each file is written to a
+ * <code>.part</code> file in the application directory and renamed into place
+ * once complete and verified, so an interrupted download never leaves a
+ * truncated file behind. A failed download is retried from the end of the
+ * partial file if the source can serve that range, and from the start
+ * otherwise.
+ */
+public class LauncherDownloader {
+
+	static Logger log = LoggerFactory.getLogger(LauncherDownloader.class);
+
+	public interface Source {
+		/**
+		 * Open the content of a file, asking for the bytes from the offset
+		 * on.
+		 * 
+		 * @param offset
+		 *            the number of bytes already downloaded
+		 * @return the content, which starts at the offset if the range could
+		 *         be served and at the start of the file if not
+		 */
+		Content open(FileMetaData file, long offset) throws IOException;
+	}
+
+	/**
+	 * The content of a file as opened by a {@link Source}.
+	 */
+	public static class Content {
+		final InputStream in;
+		final long offset;
+
+		public Content(InputStream in, long offset) {
+			this.in = in;
+			this.offset = offset;
+		}
+
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+	}
+
+	public interface Progress {
+		void onProgress(long bytes, long totalSoFar, long totalLength);
+	}
+
+	final ExecutorService executor;
+	final Source source;
+	final int retries;
+
+	public LauncherDownloader(ExecutorService executor, Source source, int retries) {
+		this.executor = executor;
+		this.source = source;
+		this.retries = retries;
+	}
+
+	/**
+	 * Download a set of files, returning when all have completed. The digest
+	 * of each file is recorded in the manifest, if one is given.
+	 */
+	public void download(Collection<FileMetaData> files, final File applicationDirectory,
+			final DigestManifest manifest, final long totalLength, final Progress progress) throws IOException {
+
+		final AtomicLong totalSoFar = new AtomicLong();
+		List<Future<Void>> downloads = new ArrayList<Future<Void>>();
+
+		for (final FileMetaData file : files) {
+			downloads.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					downloadWithRetry(file, applicationDirectory, manifest, totalSoFar, totalLength, progress);
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> download : downloads) {
+				download.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for downloads", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			for (Future<Void> download : downloads) {
+				download.cancel(true);
+			}
+		}
+	}
+
+	void downloadWithRetry(FileMetaData file, File applicationDirectory, DigestManifest manifest,
+			AtomicLong totalSoFar, long totalLength, Progress progress) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				// Bytes resumed on a retry were reported by the earlier attempt
+				downloadFile(file, applicationDirectory, manifest, totalSoFar, totalLength, progress,
+						attempt == 0);
+				return;
+			} catch (IOException e) {
+				if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				log.warn(String.format("Download of %s failed, resuming (attempt %d of %d)", file.getFileName(),
+						attempt + 1, retries), e);
+			}
+		}
+	}
+
+	void downloadFile(FileMetaData file, File applicationDirectory, DigestManifest manifest,
+			AtomicLong totalSoFar, long totalLength, Progress progress, boolean reportResumed) throws IOException {
+
+		File target = new File(applicationDirectory, file.getFileName());
+		File part = getPartFile(target);
+
+		long offset = part.exists() ? part.length() : 0;
+		if (offset > file.getFileSize()) {
+			part.delete();
+			offset = 0;
+		}
+		if (offset > 0) {
+			if (log.isInfoEnabled()) {
+				log.info(String.format("Resuming %s from %d of %d bytes", file.getFileName(), offset,
+						file.getFileSize()));
+			}
+			if (reportResumed) {
+				progress.onProgress(offset, totalSoFar.addAndGet(offset), totalLength);
+			}
+		}
+
+		/*
+		 * The digest is computed as the file is written. Only a resumed
+		 * download needs to read back the part it already has.
+		 */
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+
+		if (offset < file.getFileSize()) {
+			Content content = source.open(file, offset);
+			InputStream in = content.getInputStream();
+			try {
+				if (content.getOffset() != offset) {
+					if (content.getOffset() != 0) {
+						throw new IOException(String.format("Asked for %s from %d but got it from %d",
+								file.getFileName(), offset, content.getOffset()));
+					}
+					if (log.isInfoEnabled()) {
+						log.info(String.format("%s cannot be resumed, downloading it again", file.getFileName()));
+					}
+					totalSoFar.addAndGet(-offset);
+					offset = 0;
+				}
+				if (offset > 0) {
+					digest(part, md5);
+				}
+				OutputStream out = new FileOutputStream(part, offset > 0);
+				byte[] buf = new byte[65536];
+				try {
+					int r;
+					while ((r = in.read(buf)) != -1) {
+						out.write(buf, 0, r);
+						md5.update(buf, 0, r);
+						progress.onProgress(r, totalSoFar.addAndGet(r), totalLength);
+					}
+				} finally {
+					IOUtils.closeQuietly(out);
+				}
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		} else if (offset > 0) {
+			digest(part, md5);
+		} else {
+			// An empty file has nothing to download
+			new FileOutputStream(part).close();
+		}
+
+		if (part.length() != file.getFileSize()) {
+			throw new IOException(String.format("%s is incomplete, %d of %d bytes", file.getFileName(),
+					part.length(), file.getFileSize()));
+		}
+
+		String digest = Hex.encodeHexString(md5.digest());
+		if (!digest.equalsIgnoreCase(file.getMd5Sum())) {
+			part.delete();
+			throw new IOException(file.getFileName() + " is corrupt!");
+		}
+
+		Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		if (manifest != null) {
+			manifest.put(target, digest);
+		}
+	}
+
+	static void digest(File file, MessageDigest digest) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[65536];
+			int r;
+			while ((r = in.read(buf)) != -1) {
+				digest.update(buf, 0, r);
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	static File getPartFile(File target) {
+		return new File(target.getParentFile(), "." + target.getName() + ".part");
+	}
+}
@@ -0,0 +1,469 @@
+package com.hypersocket.client.service.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.client.NetworkResource;
+
+/**
+ * Holds the local ports of an endpoint's port range without starting their
+ * tunnels. All ports in the range are bound at login and served by a single
+ * selector thread. The server side forward for a port is only started when
+ * the first connection to that port is accepted. At that point the
+ * placeholder listener for the port is released, the real forward is started
+ * on the same address, and the connections accepted so far are relayed to it.
+ * <p>
+ * The real forward binds its own listener, so the early connections take one
+ * extra local hop. They are relayed by the same selector thread, which keeps
+ * running until the last of them closes. Each direction is shut down on its
+ * own, so a client that half-closes still gets the rest of the reply.
+ */
+public class LazyForward implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(LazyForward.class);
+
+	public enum State {
+		COLD, ACTIVATING, WARM, FAILED, STOPPED
+	}
+
+	public interface Activator {
+		/**
+		 * Start the real forward for one port of the range.
+		 * 
+		 * @return <code>true</code> if the forward was started
+		 */
+		boolean activate(LazyForward forward, NetworkResource resource)
+				throws IOException;
+	}
+
+	final InetAddress bindAddress;
+	final Activator activator;
+	final Map<Integer, Port> ports = new LinkedHashMap<Integer, Port>();
+	final Queue<Link> pendingLinks = new ConcurrentLinkedQueue<Link>();
+	final AtomicInteger activating = new AtomicInteger();
+	int links;
+
+	Selector selector;
+	Thread thread;
+	volatile boolean running;
+	long boundAt;
+
+	/**
+	 * @param resources
+	 *            one resource for each port of the range
+	 */
+	public LazyForward(Collection<NetworkResource> resources,
+			InetAddress bindAddress, Activator activator) {
+		this.bindAddress = bindAddress;
+		this.activator = activator;
+		for (NetworkResource resource : resources) {
+			ports.put(resource.getPort(), new Port(resource));
+		}
+	}
+
+	/**
+	 * Bind every port of the range. Ports that cannot be bound are marked as
+	 * failed, the rest are still served.
+	 * 
+	 * @return the number of ports bound
+	 */
+	public int bind() throws IOException {
+
+		selector = Selector.open();
+		int bound = 0;
+
+		for (Port port : ports.values()) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				channel.socket().setReuseAddress(true);
+				channel.socket().bind(new InetSocketAddress(bindAddress,
+						port.resource.getPort()));
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_ACCEPT, port);
+				port.channel = channel;
+				bound++;
+			} catch (IOException e) {
+				IOUtils.closeQuietly(channel);
+				port.state = State.FAILED;
+				log.warn(String.format("Could not bind %s:%d", bindAddress,
+						port.resource.getPort()), e);
+			}
+		}
+
+		if (bound == 0) {
+			IOUtils.closeQuietly(selector);
+			throw new IOException("Could not bind any port on " + bindAddress);
+		}
+
+		boundAt = System.currentTimeMillis();
+		running = true;
+		thread = new Thread(this, "LazyForward-" + bindAddress);
+		thread.setDaemon(true);
+		thread.start();
+		return bound;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				Link link;
+				while ((link = pendingLinks.poll()) != null) {
+					link.register();
+				}
+
+				selector.select();
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it
+						.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.attachment() instanceof Port) {
+						if (key.isAcceptable()) {
+							accept(key);
+						}
+					} else {
+						Side side = (Side) key.attachment();
+						try {
+							side.ready(key);
+						} catch (IOException e) {
+							side.link.close();
+						}
+					}
+				}
+
+				if (getColdCount() == 0 && activating.get() == 0
+						&& links == 0 && pendingLinks.isEmpty()) {
+					running = false;
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				log.error("Lazy forward on " + bindAddress + " failed", e);
+			}
+		} finally {
+			for (Port port : ports.values()) {
+				IOUtils.closeQuietly(port.channel);
+			}
+			for (SelectionKey key : selector.keys()) {
+				IOUtils.closeQuietly(key.channel());
+			}
+			Link link;
+			while ((link = pendingLinks.poll()) != null) {
+				IOUtils.closeQuietly(link.client.channel);
+				IOUtils.closeQuietly(link.forward.channel);
+			}
+			IOUtils.closeQuietly(selector);
+		}
+	}
+
+	void accept(SelectionKey key) {
+
+		final Port port = (Port) key.attachment();
+		final List<SocketChannel> accepted = new ArrayList<SocketChannel>();
+
+		try {
+			SocketChannel next;
+			while ((next = port.channel.accept()) != null) {
+				accepted.add(next);
+			}
+		} catch (IOException e) {
+			log.error("Failed to accept on " + bindAddress + ":"
+					+ port.resource.getPort(), e);
+		}
+
+		/*
+		 * The port is handed over to the real forward, release it now so it
+		 * can bind.
+		 */
+		key.cancel();
+		IOUtils.closeQuietly(port.channel);
+		port.state = State.ACTIVATING;
+		activating.incrementAndGet();
+
+		Thread activation = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					activate(port, accepted);
+				} finally {
+					activating.decrementAndGet();
+					selector.wakeup();
+				}
+			}
+		}, "LazyForwardActivation-" + bindAddress + ":" + port.resource.getPort());
+		activation.setDaemon(true);
+		activation.start();
+	}
+
+	void activate(Port port, List<SocketChannel> accepted) {
+
+		long started = System.currentTimeMillis();
+		boolean activated;
+		try {
+			activated = activator.activate(this, port.resource);
+		} catch (IOException e) {
+			log.error("Failed to activate forward for " + bindAddress + ":"
+					+ port.resource.getPort(), e);
+			activated = false;
+		}
+		port.activatedAt = System.currentTimeMillis();
+		port.activationTime = port.activatedAt - started;
+
+		if (!activated) {
+			port.state = State.FAILED;
+			closeAll(accepted);
+			return;
+		}
+
+		port.state = State.WARM;
+		if (log.isInfoEnabled()) {
+			log.info(String.format("Activated forward to %s:%d on %s after %dms, relaying %d connections",
+					port.resource.getDestinationHostname(), port.resource.getPort(),
+					bindAddress, port.activationTime, accepted.size()));
+		}
+
+		InetSocketAddress target = new InetSocketAddress(bindAddress,
+				port.resource.getLocalPort());
+		for (SocketChannel client : accepted) {
+			relay(port, client, target);
+		}
+	}
+
+	void relay(Port port, SocketChannel client, InetSocketAddress target) {
+		SocketChannel forward = null;
+		try {
+			forward = SocketChannel.open(target);
+			client.configureBlocking(false);
+			forward.configureBlocking(false);
+			port.relayedConnections++;
+			Link link = new Link(client, forward);
+			pendingLinks.add(link);
+			if (!running && pendingLinks.remove(link)) {
+				// Stopped before the selector thread could take it
+				IOUtils.closeQuietly(client);
+				IOUtils.closeQuietly(forward);
+			}
+		} catch (IOException e) {
+			log.error("Failed to relay connection to " + target, e);
+			IOUtils.closeQuietly(client);
+			IOUtils.closeQuietly(forward);
+		}
+	}
+
+	void closeAll(List<SocketChannel> channels) {
+		for (SocketChannel channel : channels) {
+			IOUtils.closeQuietly(channel);
+		}
+	}
+
+	public void stop() {
+		for (Port port : ports.values()) {
+			if (port.state == State.COLD) {
+				port.state = State.STOPPED;
+			}
+		}
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	public Collection<NetworkResource> getResources() {
+		List<NetworkResource> resources = new ArrayList<NetworkResource>();
+		for (Port port : ports.values()) {
+			resources.add(port.resource);
+		}
+		return resources;
+	}
+
+	public State getState(int port) {
+		Port p = ports.get(port);
+		return p == null ? null : p.state;
+	}
+
+	public int getColdCount() {
+		return count(State.COLD);
+	}
+
+	public int getWarmCount() {
+		return count(State.WARM);
+	}
+
+	public int getFailedCount() {
+		return count(State.FAILED);
+	}
+
+	int count(State state) {
+		int count = 0;
+		for (Port port : ports.values()) {
+			if (port.state == state) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Total time taken to start the real forwards of the warm ports.
+	 */
+	public long getActivationTime() {
+		long total = 0;
+		for (Port port : ports.values()) {
+			if (port.state == State.WARM) {
+				total += port.activationTime;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * How long a port stayed cold before it was first used, or <code>-1</code>
+	 * if it has not been used.
+	 */
+	public long getColdTime(int port) {
+		Port p = ports.get(port);
+		return p == null || p.activatedAt == 0 ? -1 : p.activatedAt - boundAt;
+	}
+
+	public int getRelayedConnections() {
+		int total = 0;
+		for (Port port : ports.values()) {
+			total += port.relayedConnections;
+		}
+		return total;
+	}
+
+	static class Port {
+		final NetworkResource resource;
+		ServerSocketChannel channel;
+		volatile State state = State.COLD;
+		long activatedAt;
+		long activationTime;
+		int relayedConnections;
+
+		Port(NetworkResource resource) {
+			this.resource = resource;
+		}
+	}
+
+	/**
+	 * A connection accepted before its port was activated, and the connection
+	 * to the real forward it is relayed to. Only used by the selector thread.
+	 */
+	class Link {
+		final Side client;
+		final Side forward;
+		boolean closed;
+
+		Link(SocketChannel client, SocketChannel forward) {
+			this.client = new Side(this, client);
+			this.forward = new Side(this, forward);
+			this.client.peer = this.forward;
+			this.forward.peer = this.client;
+		}
+
+		void register() throws IOException {
+			client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+			forward.key = forward.channel.register(selector, SelectionKey.OP_READ, forward);
+			links++;
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			links--;
+			IOUtils.closeQuietly(client.channel);
+			IOUtils.closeQuietly(forward.channel);
+		}
+	}
+
+	/**
+	 * One end of a link. Data read from this end is held in its buffer until
+	 * the peer's channel can take it.
+	 */
+	static class Side {
+		final Link link;
+		final SocketChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(16384);
+		Side peer;
+		SelectionKey key;
+		boolean eof;
+
+		Side(Link link, SocketChannel channel) {
+			this.link = link;
+			this.channel = channel;
+		}
+
+		void ready(SelectionKey key) throws IOException {
+			if (key.isReadable() && channel.read(buffer) == -1) {
+				eof = true;
+			}
+			flush();
+			if (key.isValid() && key.isWritable()) {
+				peer.flush();
+			}
+			if (eof && peer.eof && buffer.position() == 0
+					&& peer.buffer.position() == 0) {
+				link.close();
+			} else if (!link.closed) {
+				interest();
+				peer.interest();
+			}
+		}
+
+		/**
+		 * Write what has been read from this end to the peer, and pass on the
+		 * end of stream once everything before it has been written.
+		 */
+		void flush() throws IOException {
+			if (buffer.position() > 0) {
+				buffer.flip();
+				peer.channel.write(buffer);
+				buffer.compact();
+			}
+			if (eof && buffer.position() == 0
+					&& !peer.channel.socket().isOutputShutdown()) {
+				peer.channel.shutdownOutput();
+			}
+		}
+
+		void interest() {
+			int ops = 0;
+			if (!eof && buffer.hasRemaining()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (peer.buffer.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+	}
+}
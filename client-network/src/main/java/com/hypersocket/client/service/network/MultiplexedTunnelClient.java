@@ -0,0 +1,544 @@
+package com.hypersocket.client.service.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.client.NetworkResource;
+import com.hypersocket.tunnel.MultiplexedTunnel;
+import com.hypersocket.tunnel.TunnelFrame;
+import com.hypersocket.tunnel.TunnelStream;
+
+/**
+ * Carries every TCP forward of the session over one websocket to the server's
+ * "tunnel" handler, asked for with <code>multiplex=true</code>. Each local
+ * port is a {@link Forward} and each connection accepted on it is a stream of
+ * the {@link MultiplexedTunnel}. A single selector thread serves the
+ * listeners and the local sockets. A local socket is only read while its
+ * stream has room, and window is only returned to the server once data has
+ * been written to the local socket.
+ * <p>
+ * Servers that relay one connection per websocket do not answer with the
+ * <code>X-Tunnel-Multiplex</code> header, and {@link #connect()} returns
+ * <code>false</code> so the caller can start its forwards the old way. If the
+ * websocket is lost, the connections it carried are closed and a new one is
+ * opened for the next connection accepted; the listeners stay bound.
+ */
+public class MultiplexedTunnelClient implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(MultiplexedTunnelClient.class);
+
+	static final String MULTIPLEX_HEADER = "X-Tunnel-Multiplex";
+	static final int MAX_MESSAGE = TunnelFrame.HEADER_LENGTH + TunnelFrame.MAX_PAYLOAD;
+
+	final URI endpoint;
+	final String sessionId;
+	final SSLSocketFactory sslSocketFactory;
+	final Selector selector;
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	final ByteBuffer readBuffer = ByteBuffer.allocate(TunnelFrame.MAX_PAYLOAD);
+	int connectTimeout = 30000;
+
+	volatile Tunnel current;
+	volatile boolean running;
+	Thread thread;
+
+	/**
+	 * @param endpoint
+	 *            the http or https URL of the server's "tunnel" websocket
+	 * @param sessionId
+	 *            the session the forwards are authorized by
+	 */
+	public MultiplexedTunnelClient(URI endpoint, String sessionId) throws IOException {
+		this(endpoint, sessionId, null);
+	}
+
+	public MultiplexedTunnelClient(URI endpoint, String sessionId, SSLSocketFactory sslSocketFactory) throws IOException {
+		this.endpoint = endpoint;
+		this.sessionId = sessionId;
+		this.sslSocketFactory = sslSocketFactory;
+		this.selector = Selector.open();
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Open the websocket now, to find out whether the server multiplexes.
+	 *
+	 * @return <code>false</code> if the server relays one connection per
+	 *         websocket
+	 * @throws IOException
+	 *             if the server cannot be reached or refuses the websocket
+	 */
+	public synchronized boolean connect() throws IOException {
+		Tunnel tunnel = current;
+		if (tunnel != null && !tunnel.connection.isClosed()) {
+			return true;
+		}
+		WebsocketConnection connection = WebsocketConnection.open(endpoint, "multiplex=true", sessionId,
+				sslSocketFactory, connectTimeout, MAX_MESSAGE);
+		if (!"1".equals(connection.getHeader(MULTIPLEX_HEADER))) {
+			connection.close();
+			return false;
+		}
+		tunnel = new Tunnel(connection);
+		current = tunnel;
+		connection.start(tunnel, "MultiplexedTunnel-" + endpoint.getHost());
+		return true;
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(this, "MultiplexedTunnelClient-" + endpoint.getHost());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Listen on the resource's port. The resource's local port is set to the
+	 * port bound.
+	 */
+	public Forward listen(NetworkResource resource, InetAddress bindAddress) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(bindAddress, resource.getPort()));
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(channel);
+			throw e;
+		}
+		resource.setLocalPort(channel.socket().getLocalPort());
+
+		final Forward forward = new Forward(resource, channel);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				forward.register();
+			}
+		});
+		return forward;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				selector.select();
+
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.attachment() instanceof Forward) {
+						((Forward) key.attachment()).accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isWritable()) {
+							connection.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+					} catch (IOException e) {
+						if (log.isDebugEnabled()) {
+							log.debug("Connection to " + connection.forward.resource.getDestinationHostname() + ":"
+									+ connection.forward.resource.getPort() + " failed", e);
+						}
+						connection.stream.close();
+						connection.close();
+					}
+				}
+			}
+		} catch (Throwable e) {
+			if (running) {
+				log.error("Multiplexed tunnel to " + endpoint.getHost() + " failed", e);
+			}
+		} finally {
+			running = false;
+			Tunnel tunnel = current;
+			if (tunnel != null) {
+				tunnel.connection.close();
+			}
+			for (SelectionKey key : selector.keys()) {
+				IOUtils.closeQuietly(key.channel());
+			}
+			IOUtils.closeQuietly(selector);
+		}
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Get the websocket for a new connection, opening one if the last was
+	 * lost.
+	 */
+	Tunnel getTunnel() throws IOException {
+		if (!connect()) {
+			throw new IOException("Server at " + endpoint.getHost() + " no longer multiplexes tunnels");
+		}
+		return current;
+	}
+
+	/**
+	 * One local port forwarded over the tunnel.
+	 */
+	public class Forward {
+
+		final NetworkResource resource;
+		final ServerSocketChannel channel;
+		final List<Connection> connections = new ArrayList<Connection>();
+		SelectionKey key;
+		boolean closed;
+
+		Forward(NetworkResource resource, ServerSocketChannel channel) {
+			this.resource = resource;
+			this.channel = channel;
+		}
+
+		public NetworkResource getResource() {
+			return resource;
+		}
+
+		void register() {
+			if (closed) {
+				return;
+			}
+			try {
+				key = channel.register(selector, SelectionKey.OP_ACCEPT, this);
+			} catch (IOException e) {
+				log.error("Could not listen for " + resource.getDestinationHostname() + ":" + resource.getPort(), e);
+				IOUtils.closeQuietly(channel);
+			}
+		}
+
+		void accept() {
+			SocketChannel accepted;
+			try {
+				while ((accepted = channel.accept()) != null) {
+					open(accepted);
+				}
+			} catch (IOException e) {
+				log.error("Failed to accept on " + channel.socket().getLocalSocketAddress(), e);
+			}
+		}
+
+		void open(SocketChannel accepted) {
+			Connection connection = new Connection(this, accepted);
+			try {
+				accepted.configureBlocking(false);
+				accepted.socket().setTcpNoDelay(true);
+				connection.key = accepted.register(selector, SelectionKey.OP_READ, connection);
+				connection.stream = getTunnel().tunnel.openStream(resource.getParentResourceId(),
+						resource.getHostname(), resource.getPort(), connection);
+				connections.add(connection);
+			} catch (IOException e) {
+				log.error("Could not open a stream to " + resource.getDestinationHostname() + ":"
+						+ resource.getPort(), e);
+				IOUtils.closeQuietly(accepted);
+			}
+		}
+
+		/**
+		 * Stop listening and close the connections accepted so far.
+		 */
+		public void close() {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					closed = true;
+					if (key != null) {
+						key.cancel();
+					}
+					IOUtils.closeQuietly(channel);
+					for (Connection connection : new ArrayList<Connection>(connections)) {
+						connection.stream.close();
+						connection.close();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * One websocket and the streams it carries.
+	 */
+	class Tunnel implements MultiplexedTunnel.Listener, WebsocketConnection.Handler {
+
+		final WebsocketConnection connection;
+		final MultiplexedTunnel tunnel;
+		final Object sendLock = new Object();
+
+		Tunnel(WebsocketConnection connection) {
+			this.connection = connection;
+			this.tunnel = new MultiplexedTunnel(this, true);
+		}
+
+		@Override
+		public void onMessage(ByteBuffer message) throws IOException {
+			tunnel.onMessage(message);
+		}
+
+		@Override
+		public void onClose() {
+			if (log.isInfoEnabled()) {
+				log.info("Multiplexed tunnel to " + endpoint.getHost() + " closed with " + tunnel.getStreamCount()
+						+ " streams open");
+			}
+			tunnel.closeAll();
+		}
+
+		@Override
+		public void onOpen(TunnelStream stream, TunnelFrame.OpenRequest request) {
+			// The server does not open streams
+			stream.close();
+		}
+
+		@Override
+		public void onData(TunnelStream stream, ByteBuffer data) {
+			Connection connection = (Connection) stream.getAttachment();
+			if (connection != null) {
+				connection.write(data);
+			}
+		}
+
+		@Override
+		public void onClose(TunnelStream stream) {
+			final Connection connection = (Connection) stream.getAttachment();
+			if (connection != null) {
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						connection.closeWhenFlushed();
+					}
+				});
+			}
+		}
+
+		@Override
+		public void onWritable() {
+			/*
+			 * Frames are taken and sent under one lock so they reach the
+			 * server in the order the tunnel produced them.
+			 */
+			synchronized (sendLock) {
+				ByteBuffer frame;
+				while ((frame = tunnel.poll()) != null) {
+					try {
+						connection.send(frame);
+					} catch (IOException e) {
+						log.warn("Could not send to multiplexed tunnel", e);
+						connection.close();
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void onDrained(TunnelStream stream) {
+			final Connection connection = (Connection) stream.getAttachment();
+			if (connection != null) {
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						connection.resume();
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * One accepted local socket. Socket state is guarded by the connection's
+	 * monitor, as data from the server is written from the websocket's thread
+	 * while the selector thread reads and flushes.
+	 */
+	class Connection {
+
+		final Forward forward;
+		final SocketChannel channel;
+		final LinkedList<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+		TunnelStream stream;
+		SelectionKey key;
+		boolean reading = true;
+		boolean closing;
+		boolean closed;
+
+		Connection(Forward forward, SocketChannel channel) {
+			this.forward = forward;
+			this.channel = channel;
+		}
+
+		/**
+		 * Write data received from the server. Whatever the socket does not
+		 * take now is kept until it is writable; the server's window bounds
+		 * how much that can be.
+		 */
+		void write(ByteBuffer data) {
+			int written = 0;
+			IOException error = null;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				try {
+					if (pending.isEmpty()) {
+						written = channel.write(data);
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				if (error == null && data.hasRemaining()) {
+					ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+					copy.put(data);
+					copy.flip();
+					pending.add(copy);
+					updateInterest();
+				}
+			}
+			if (error != null) {
+				stream.close();
+				close();
+			} else if (written > 0) {
+				stream.consumed(written);
+			}
+		}
+
+		void flush() throws IOException {
+			int written = 0;
+			boolean drained;
+			synchronized (this) {
+				while (!pending.isEmpty()) {
+					ByteBuffer head = pending.getFirst();
+					written += channel.write(head);
+					if (head.hasRemaining()) {
+						break;
+					}
+					pending.removeFirst();
+				}
+				drained = pending.isEmpty();
+				updateInterest();
+			}
+			if (written > 0) {
+				stream.consumed(written);
+			}
+			if (drained && closing) {
+				close();
+			}
+		}
+
+		void read() throws IOException {
+			int room = stream.getWritable();
+			if (room <= 0) {
+				pause();
+				return;
+			}
+			readBuffer.clear();
+			readBuffer.limit(Math.min(room, readBuffer.capacity()));
+			int read = channel.read(readBuffer);
+			if (read < 0) {
+				stream.close();
+				close();
+				return;
+			}
+			readBuffer.flip();
+			try {
+				stream.write(readBuffer);
+			} catch (IllegalStateException e) {
+				// Closed by the server while reading
+				close();
+			}
+		}
+
+		synchronized void pause() {
+			reading = false;
+			updateInterest();
+		}
+
+		synchronized void resume() {
+			reading = true;
+			updateInterest();
+		}
+
+		private void updateInterest() {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			key.interestOps((reading && !closing ? SelectionKey.OP_READ : 0)
+					| (pending.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Close once the data the server sent before closing the stream has
+		 * been written.
+		 */
+		void closeWhenFlushed() {
+			synchronized (this) {
+				closing = true;
+				if (!pending.isEmpty()) {
+					updateInterest();
+					return;
+				}
+			}
+			close();
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				pending.clear();
+				IOUtils.closeQuietly(channel);
+			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					forward.connections.remove(Connection.this);
+				}
+			});
+		}
+	}
+}
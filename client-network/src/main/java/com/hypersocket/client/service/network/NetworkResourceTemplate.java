@@ -8,8 +8,10 @@
 package com.hypersocket.client.service.network;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.codec.digest.DigestUtils;
 
 import com.hypersocket.client.NetworkResource;
 import com.hypersocket.client.i18n.I18N;
@@ -27,7 +29,7 @@ public class NetworkResourceTemplate implements Serializable {
 	int endPort;
 	String transport;
 	String status;
-	List<NetworkResource> liveResources = new ArrayList<NetworkResource>();
+	List<NetworkResource> liveResources = new CopyOnWriteArrayList<NetworkResource>();
 	Long parentResourceId;
 
 	public NetworkResourceTemplate(Long parentResourceId, String name, String hostname,
@@ -76,6 +78,42 @@ public class NetworkResourceTemplate implements Serializable {
 		return transport;
 	}
 
+	/**
+	 * Get whether the protocol is forwarded over TCP, i.e. its transport is
+	 * TCP or BOTH.
+	 */
+	public boolean isTcp() {
+		return "TCP".equals(transport) || "BOTH".equals(transport);
+	}
+
+	/**
+	 * Get whether the protocol is forwarded over UDP, i.e. its transport is
+	 * UDP or BOTH.
+	 */
+	public boolean isUdp() {
+		return "UDP".equals(transport) || "BOTH".equals(transport);
+	}
+
+	/**
+	 * Get a hash of everything that decides how this is forwarded. Two
+	 * templates with the same hash need the same forwards, so a running forward
+	 * can be kept when the resource is reloaded.
+	 */
+	public String getStructuralHash() {
+		return DigestUtils.md5Hex(hostname + '\0' + destinationHostname + '\0'
+				+ transport + '\0' + startPort + '\0' + endPort);
+	}
+
+	/**
+	 * Take the fields of a reloaded template with the same structural hash,
+	 * keeping the live resources of this one.
+	 */
+	public void update(NetworkResourceTemplate template) {
+		this.name = template.name;
+		this.protocol = template.protocol;
+		this.parentResourceId = template.parentResourceId;
+	}
+
 	public String getStatus() {
 		if (liveResources.size() > 0) {
 			StringBuffer buf = new StringBuffer();
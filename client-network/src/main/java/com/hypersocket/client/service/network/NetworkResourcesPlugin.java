@@ -1,12 +1,16 @@
 package com.hypersocket.client.service.network;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -16,17 +20,29 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hypersocket.Version;
 import com.hypersocket.client.NetworkResource;
@@ -47,10 +63,20 @@ import com.hypersocket.client.service.ResourceMapper;
 
 public class NetworkResourcesPlugin extends AbstractServicePlugin {
 
+	/**
+	 * The forwards started for a resource. Lazy forwards add to these lists
+	 * from their activation threads, so they are safe to read while changing.
+	 * Changes that must be atomic with stopping the forwards are made while
+	 * holding the detail's lock.
+	 */
 	public class NetworkResourceDetail {
-		List<NetworkResource> networkResources = new ArrayList<>();
+		List<NetworkResource> networkResources = new CopyOnWriteArrayList<>();
+		List<UdpForwarder> udpForwarders = new CopyOnWriteArrayList<>();
+		List<LazyForward> lazyForwards = new CopyOnWriteArrayList<>();
+		List<MultiplexedTunnelClient.Forward> multiplexedForwards = new CopyOnWriteArrayList<>();
 		NetworkResourceTemplate networkResourceTemplate;
 		WebsiteResourceTemplate websiteResourceTemplate;
+		Resource resource;
 	}
 
 	static Logger log = LoggerFactory.getLogger(NetworkResourcesPlugin.class);
@@ -59,9 +85,33 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 	Map<Resource, NetworkResourceDetail> resourceDetails = new HashMap<Resource, NetworkResourceDetail>();
 	Map<Resource, NetworkResourceDetail> startedResourceDetails = new HashMap<Resource, NetworkResourceDetail>();
 	Map<Resource, List<Resource>> childResources = new HashMap<>();
+	Map<Resource, String> launcherHashes = new HashMap<>();
+	Map<Resource, String> startedLauncherHashes = new HashMap<>();
 
 	HostsFileManager mgr;
 	SocketRedirector redirector;
+	DatagramTunnel.Connector datagramConnector;
+	MultiplexedTunnelClient tunnelClient;
+	ExecutorService fetchExecutor;
+	ExecutorService installExecutor;
+	int installThreads = Integer.getInteger("hypersocket.client.installThreads", 1);
+	ExecutorService downloadExecutor;
+	LauncherDownloader.Source downloadSource;
+	int downloadThreads = Integer.getInteger("hypersocket.client.downloadThreads", 3);
+	int downloadRetries = Integer.getInteger("hypersocket.client.downloadRetries", 3);
+	int fetchRetries = Integer.getInteger("hypersocket.client.fetchRetries", 2);
+	ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	volatile boolean batchFileMetaData = true;
+	boolean lazyForwarding = !Boolean.getBoolean("hypersocket.client.disableLazyForwarding");
+	boolean multiplexing = !Boolean.getBoolean("hypersocket.client.disableMultiplexing");
+	long udpIdleTimeout = Long.getLong("hypersocket.client.udpIdleTimeout", 60) * 1000;
+	boolean deltaSync = !Boolean.getBoolean("hypersocket.client.disableDeltaSync");
+	ResourceCache networkResourceCache = new ResourceCache("networkResources/personal/compact", "networkResources/personal");
+	ResourceCache websiteCache = new ResourceCache("websites/myWebsites", null);
+	Map<String, String[]> launcherScripts = new ConcurrentHashMap<>();
+	ResourceChangeChannel.Listener changeListener;
+	ResourceChangeChannel changeChannel;
+	int pushTimeout = Integer.getInteger("hypersocket.client.pushTimeout", 90000);
 
 	String[] ALLOWED_SYSTEM_PROPERTIES = { "user.name", "user.home", "user.dir" };
 	
@@ -70,34 +120,565 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 	}
 
 	protected void reloadResources(List<Resource> realmResources) {
+
+		long started = System.currentTimeMillis();
+
+		/*
+		 * Both lists are fetched in parallel, and network resources are mapped
+		 * while the websites are still being fetched. Mapping stays on this
+		 * thread as the resource maps are not shared.
+		 */
+		ExecutorService executor = getFetchExecutor();
+		Future<String> networkResources = executor.submit(new TimedFetch(networkResourceCache));
+		Future<String> websites = executor.submit(new TimedFetch(websiteCache));
+
 		if (log.isInfoEnabled()) {
 			log.info("Loading Network Resources");
 		}
 
-		startNetworkResources(realmResources);
+		startNetworkResources(realmResources, networkResources);
 
 		if (log.isInfoEnabled()) {
 			log.info("Loading Websites");
 		}
 
-		startWebsites(realmResources);
+		startWebsites(realmResources, websites);
  
 		if (log.isInfoEnabled()) {
-			log.info("Loaded Resoruces");
+			log.info(String.format("Loaded Resoruces in %dms", System.currentTimeMillis() - started));
+		}
+
+		if (lazyForwarding) {
+			logForwardStatistics();
 		}
 	}
 
 	@Override
 	public boolean onStart() {
 
+		if ((lazyForwarding || multiplexing) && mgr == null) {
+			try {
+				mgr = HostsFileManager.getSystemHostsFile();
+			} catch (IOException e) {
+				log.warn("Could not open hosts file, forwards will be started at login by the VPN service", e);
+				lazyForwarding = false;
+				multiplexing = false;
+			}
+		}
+
+		if (multiplexing && tunnelClient == null) {
+			tunnelClient = startTunnelClient();
+		}
+
+		if (datagramConnector == null) {
+			try {
+				datagramConnector = new WebsocketDatagramConnector(new URI(serviceClient.getTransport().resolveUrl("udp")),
+						serviceClient.getSessionId());
+			} catch (URISyntaxException e) {
+				log.error("Could not resolve the UDP tunnel endpoint, UDP forwarding is disabled", e);
+			}
+		}
+
+		if (changeListener != null) {
+			changeChannel = new ResourceChangeChannel(new TransportChangeSource(), changeListener, 5000);
+			changeChannel.start();
+		}
 		return true;
 	}
 
-	protected void startWebsites(List<Resource> realmResources) {
+	/**
+	 * Set the listener told when the server pushes resource changes. Without
+	 * one, no push channel is opened.
+	 */
+	public void setResourceChangeListener(ResourceChangeChannel.Listener changeListener) {
+		this.changeListener = changeListener;
+	}
+
+	/**
+	 * Get whether resource changes are being pushed by the server, in which
+	 * case fingerprints need not be polled.
+	 */
+	public boolean isPushHealthy() {
+		ResourceChangeChannel channel = changeChannel;
+		return channel != null && channel.isHealthy();
+	}
+
+	/**
+	 * Waits for changes through the client transport, with a timeout longer
+	 * than the server holds the request.
+	 */
+	class TransportChangeSource implements ResourceChangeChannel.Source {
+
+		@Override
+		public String poll(String since) throws IOException {
+			InputStream in = serviceClient.getTransport().getContent(
+					"networkResources/push" + (since == null ? "" : "?since=" + URLEncoder.encode(since, "UTF-8")),
+					pushTimeout);
+			try {
+				return IOUtils.toString(in, "UTF-8");
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+	}
+
+	/**
+	 * Get the lazily started forwards, cold and warm.
+	 */
+	public List<LazyForward> getLazyForwards() {
+		List<LazyForward> forwards = new ArrayList<>();
+		for (NetworkResourceDetail detail : startedResourceDetails.values()) {
+			forwards.addAll(detail.lazyForwards);
+		}
+		return forwards;
+	}
+
+	public void logForwardStatistics() {
+		int warm = 0;
+		int cold = 0;
+		long activationTime = 0;
+		for (LazyForward forward : getLazyForwards()) {
+			warm += forward.getWarmCount();
+			cold += forward.getColdCount();
+			activationTime += forward.getActivationTime();
+		}
+		if (log.isInfoEnabled()) {
+			log.info(String.format("%d forwarded ports are warm, %d are cold, average activation time %dms", warm, cold,
+					warm == 0 ? 0 : activationTime / warm));
+		}
+	}
+
+	synchronized ExecutorService getFetchExecutor() {
+		if (fetchExecutor == null || fetchExecutor.isShutdown()) {
+			fetchExecutor = Executors.newFixedThreadPool(2, new NamedThreadFactory("NetworkResourcesFetch"));
+		}
+		return fetchExecutor;
+	}
+
+	synchronized LauncherDownloader getDownloader() {
+		if (downloadExecutor == null || downloadExecutor.isShutdown()) {
+			downloadExecutor = Executors.newFixedThreadPool(downloadThreads, new NamedThreadFactory(
+					"NetworkResourcesDownload"));
+		}
+		return new LauncherDownloader(downloadExecutor, downloadSource == null ? new TransportSource()
+				: downloadSource, downloadRetries);
+	}
+
+	/**
+	 * Set the source launcher files are downloaded from. A source that can
+	 * request a byte range lets interrupted downloads resume without reading
+	 * the downloaded part again.
+	 */
+	public void setDownloadSource(LauncherDownloader.Source downloadSource) {
+		this.downloadSource = downloadSource;
+	}
+
+	synchronized ExecutorService getInstallExecutor() {
+		if (installExecutor == null || installExecutor.isShutdown()) {
+			installExecutor = Executors.newFixedThreadPool(installThreads, new NamedThreadFactory(
+					"NetworkResourcesInstall"));
+		}
+		return installExecutor;
+	}
+
+	/**
+	 * Install a launcher's files in the background, so the resource list does
+	 * not wait for downloads.
+	 */
+	protected void scheduleInstall(final ApplicationLauncherTemplate launcherTemplate, final String[] files,
+			final String installScript) {
+		getInstallExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				long started = System.currentTimeMillis();
+				boolean installed = downloadAndInstall(launcherTemplate, files, installScript);
+				if (log.isInfoEnabled()) {
+					log.info(String.format("Install of %s %s in %dms", launcherTemplate.getName(),
+							installed ? "completed" : "failed", System.currentTimeMillis() - started));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Downloads through the client transport. The transport does not take
+	 * request headers, so a resumed download asks for the rest of the file
+	 * with its own range request on the same session. If the server does not
+	 * answer with that range, the whole file is downloaded again.
+	 */
+	class TransportSource implements LauncherDownloader.Source {
+
+		@Override
+		public LauncherDownloader.Content open(FileMetaData file, long offset) throws IOException {
+			String uri = "files/download/" + file.getName();
+			if (offset > 0) {
+				HttpURLConnection con = openConnection(uri);
+				con.setRequestProperty("Range", "bytes=" + offset + "-");
+				String range = con.getHeaderField("Content-Range");
+				if (con.getResponseCode() == HttpURLConnection.HTTP_PARTIAL && range != null
+						&& range.startsWith("bytes " + offset + "-")) {
+					return new LauncherDownloader.Content(con.getInputStream(), offset);
+				}
+				if (log.isInfoEnabled()) {
+					log.info(String.format("Range request for %s was answered with %d", file.getFileName(),
+							con.getResponseCode()));
+				}
+				con.disconnect();
+			}
+			return new LauncherDownloader.Content(serviceClient.getTransport().getContent(uri, 60000), 0);
+		}
+	}
+
+	/**
+	 * Open a request to the server on the client's session, for when the
+	 * transport's requests will not do because the headers or status of the
+	 * response are needed.
+	 */
+	HttpURLConnection openConnection(String uri) throws IOException {
+		URL url = new URL(serviceClient.getTransport().resolveUrl(uri));
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setConnectTimeout(60000);
+		con.setReadTimeout(60000);
+		try {
+			if (WebsocketConnection.getSessionCookies(url.toURI(), serviceClient.getSessionId()) != null) {
+				// Sent by the cookie handler under the name the server gave it
+				return con;
+			}
+		} catch (URISyntaxException e) {
+		}
+		con.setRequestProperty("Cookie", WebsocketConnection.SESSION_COOKIE + "=" + serviceClient.getSessionId());
+		return con;
+	}
+
+	/**
+	 * Get whether the server answers a request as one it does not have. A
+	 * request that fails any other way, including not reaching the server at
+	 * all, is not taken to be unsupported.
+	 */
+	boolean isUnsupported(String uri) {
+		try {
+			HttpURLConnection con = openConnection(uri);
+			try {
+				int status = con.getResponseCode();
+				return status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD
+						|| status == HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+			} finally {
+				con.disconnect();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	class TimedFetch implements Callable<String> {
+
+		final ResourceCache cache;
+
+		TimedFetch(ResourceCache cache) {
+			this.cache = cache;
+		}
+
+		@Override
+		public String call() throws IOException {
+			long started = System.currentTimeMillis();
+			try {
+				return cache.fetch();
+			} finally {
+				if (log.isInfoEnabled()) {
+					log.info(String.format("Fetched %s in %dms", cache.uri, System.currentTimeMillis() - started));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The resources last built from one of the server's lists, by server id,
+	 * and the change log token they are current to. Once there is a token only
+	 * the changes since are fetched; resources that did not change are handed
+	 * back as they are, so only changed resources are restarted.
+	 * <p>
+	 * A full list sent with an ETag is kept, and asked for again with
+	 * If-None-Match so that the server can answer 304 when it has not
+	 * changed.
+	 */
+	class ResourceCache {
+
+		volatile String uri;
+		volatile String legacyUri;
+		final Map<Long, List<Resource>> resources = new HashMap<>();
+		volatile String token;
+		volatile boolean supported = deltaSync;
+		volatile String listUri;
+		volatile String etag;
+		volatile String list;
+
+		/**
+		 * @param uri the list to fetch
+		 * @param legacyUri the list to fetch instead from servers without
+		 *            <code>uri</code>, or <code>null</code>
+		 */
+		ResourceCache(String uri, String legacyUri) {
+			this.uri = uri;
+			this.legacyUri = legacyUri;
+		}
+
+		String fetch() throws IOException {
+			try {
+				return fetchList();
+			} catch (IOException e) {
+				String legacy = legacyUri;
+				if (legacy == null || !isUnsupported(uri)) {
+					throw e;
+				}
+				String json = getList(legacy);
+				if (log.isInfoEnabled()) {
+					log.info(String.format("Server does not support %s, fetching %s", uri, legacy));
+				}
+				uri = legacy;
+				legacyUri = null;
+				supported = deltaSync;
+				token = null;
+				return json;
+			}
+		}
+
+		String fetchList() throws IOException {
+			if (supported) {
+				try {
+					return get(uri + "/changes" + (token == null ? "" : "?since=" + token));
+				} catch (IOException e) {
+					/*
+					 * Only give up on changes if the server does not have
+					 * them, a server that is failing keeps them for next time.
+					 */
+					if (!isUnsupported(uri + "/changes")) {
+						throw e;
+					}
+					if (log.isInfoEnabled()) {
+						log.info(String.format("Server does not support changes to %s, fetching the full list", uri));
+					}
+					supported = false;
+					token = null;
+				}
+			}
+			return getList(uri);
+		}
+
+		/**
+		 * Get a full list, sending the ETag of the copy held for it. The
+		 * transport does not take request headers, so the request is made with
+		 * {@link NetworkResourcesPlugin#openConnection(String)}; if that fails
+		 * the list is fetched through the transport.
+		 */
+		String getList(String uri) throws IOException {
+			String held = uri.equals(listUri) ? etag : null;
+			String json = list;
+			try {
+				HttpURLConnection con = openConnection(uri);
+				try {
+					if (held != null) {
+						con.setRequestProperty("If-None-Match", held);
+					}
+					int status = con.getResponseCode();
+					if (status == HttpURLConnection.HTTP_NOT_MODIFIED && held != null && json != null) {
+						if (log.isInfoEnabled()) {
+							log.info(String.format("%s has not changed", uri));
+						}
+						return json;
+					}
+					if (status == HttpURLConnection.HTTP_OK) {
+						json = IOUtils.toString(con.getInputStream(), "UTF-8");
+						String tag = con.getHeaderField("ETag");
+						listUri = uri;
+						etag = tag;
+						list = tag == null ? null : json;
+						return json;
+					}
+					if (log.isInfoEnabled()) {
+						log.info(String.format("Request for %s was answered with %d", uri, status));
+					}
+				} finally {
+					con.disconnect();
+				}
+			} catch (IOException e) {
+				log.warn(String.format("Could not request %s directly, fetching it through the transport", uri), e);
+			}
+			return get(uri);
+		}
+
+		/**
+		 * Get a list, retrying a failed request a few times before giving up.
+		 */
+		String get(String uri) throws IOException {
+			for (int attempt = 0;; attempt++) {
+				try {
+					return serviceClient.getTransport().get(uri);
+				} catch (IOException e) {
+					if (attempt >= fetchRetries) {
+						throw e;
+					}
+					log.warn(String.format("Fetch of %s failed, retrying (attempt %d of %d)", uri, attempt + 1,
+							fetchRetries), e);
+					try {
+						Thread.sleep(1000L * (attempt + 1));
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw e;
+					}
+				}
+			}
+		}
+
+		int process(final List<Resource> realmResources, String json, final ResourceMapper mapper, String type)
+				throws IOException {
+
+			JSONObject result;
+			try {
+				result = (JSONObject) new JSONParser().parse(json);
+			} catch (ParseException e) {
+				throw new IOException("Could not parse " + type, e);
+			}
+
+			if (!result.containsKey("token") || Boolean.TRUE.equals(result.get("full"))) {
+				for (Long id : new ArrayList<>(resources.keySet())) {
+					forget(id);
+				}
+			} else {
+				JSONArray removed = (JSONArray) result.get("removed");
+				JSONArray changed = (JSONArray) result.get("resources");
+				for (Object id : removed) {
+					forget(((Number) id).longValue());
+				}
+				for (Object resource : changed) {
+					forget(((Number) ((JSONObject) resource).get("id")).longValue());
+				}
+				for (List<Resource> unchanged : resources.values()) {
+					realmResources.addAll(unchanged);
+				}
+				if (log.isInfoEnabled()) {
+					log.info(String.format("%d %s changed, %d removed and %d unchanged", changed.size(), type,
+							removed.size(), resources.size()));
+				}
+			}
+
+			int errors = processResourceList(json, new ResourceMapper() {
+
+				@Override
+				public boolean processResource(JSONObject field) {
+					int from = realmResources.size();
+					boolean success = mapper.processResource(field);
+					resources.put(((Number) field.get("id")).longValue(),
+							new ArrayList<>(realmResources.subList(from, realmResources.size())));
+					return success;
+				}
+			}, type);
+
+			/*
+			 * Resources that failed are not sent again until they change, so
+			 * take the full list next time to retry them.
+			 */
+			token = errors == 0 ? (String) result.get("token") : null;
+			return errors;
+		}
+
+		void forget(Long id) {
+			List<Resource> built = resources.remove(id);
+			if (built != null) {
+				for (Resource resource : built) {
+					resourceDetails.remove(resource);
+					childResources.remove(resource);
+					launcherHashes.remove(resource);
+				}
+			}
+		}
+
+		void clear() {
+			resources.clear();
+			token = null;
+			etag = null;
+			list = null;
+		}
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+
+		final String name;
+		final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Set the connector used to carry UDP forwards to the server. By default
+	 * each forward opens its own websocket to the server's "udp" handler.
+	 */
+	public void setDatagramConnector(DatagramTunnel.Connector datagramConnector) {
+		this.datagramConnector = datagramConnector;
+	}
+
+	/**
+	 * Open the multiplexed tunnel that carries the TCP forwards. Servers that
+	 * relay one connection per websocket leave the forwards to the VPN
+	 * service.
+	 * 
+	 * @return the started client, or <code>null</code> if the forwards should
+	 *         be started by the VPN service
+	 */
+	MultiplexedTunnelClient startTunnelClient() {
+		try {
+			MultiplexedTunnelClient client = new MultiplexedTunnelClient(new URI(serviceClient.getTransport()
+					.resolveUrl("tunnel")), serviceClient.getSessionId());
+			if (!client.connect()) {
+				if (log.isInfoEnabled()) {
+					log.info("Server does not multiplex tunnels, forwards will open one websocket per connection");
+				}
+				return null;
+			}
+			client.start();
+			return client;
+		} catch (URISyntaxException | IOException e) {
+			log.warn("Could not open a multiplexed tunnel, forwards will open one websocket per connection", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start the forward for one port over the multiplexed tunnel.
+	 * 
+	 * @return the forward, or <code>null</code> if it should be started by
+	 *         the VPN service
+	 */
+	private MultiplexedTunnelClient.Forward startMultiplexedForward(NetworkResource netResource, InetAddress bindAddress) {
+		if (tunnelClient == null) {
+			return null;
+		}
 		try {
-			String json = serviceClient.getTransport().get("websites/myWebsites");
+			return tunnelClient.listen(netResource, bindAddress);
+		} catch (IOException e) {
+			log.warn(String.format("Could not listen on %s:%d, starting the forward through the VPN service",
+					bindAddress, netResource.getPort()), e);
+			return null;
+		}
+	}
 
+	protected void startWebsites(List<Resource> realmResources, Future<String> websites) {
+		try {
+			String json = getResult(websites);
+
+			long started = System.currentTimeMillis();
 			int errors = processWebsiteResources(realmResources, json);
+			if (log.isInfoEnabled()) {
+				log.info(String.format("Processed websites in %dms", System.currentTimeMillis() - started));
+			}
 
 			if (errors > 0) {
 				// Warn
@@ -113,7 +694,7 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 
 	protected int processWebsiteResources(final List<Resource> realmResources, String json) throws IOException {
 
-		return processResourceList(json, new ResourceMapper() {
+		return websiteCache.process(realmResources, json, new ResourceMapper() {
 
 			@Override
 			public boolean processResource(JSONObject resource) {
@@ -165,11 +746,15 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		}, "websites");
 	}
 
-	protected void startNetworkResources(List<Resource> realmResources) {
+	protected void startNetworkResources(List<Resource> realmResources, Future<String> networkResources) {
 		try {
-			String json = serviceClient.getTransport().get("networkResources/personal");
+			String json = getResult(networkResources);
 
+			long started = System.currentTimeMillis();
 			int errors = processNetworkResources(realmResources, json);
+			if (log.isInfoEnabled()) {
+				log.info(String.format("Processed network resources in %dms", System.currentTimeMillis() - started));
+			}
 
 			if (errors > 0) {
 				// Warn
@@ -183,12 +768,26 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		}
 	}
 
+	private String getResult(Future<String> fetch) throws IOException {
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for resources", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
 	protected int processNetworkResources(final List<Resource> realmResources, String json) throws IOException {
 
 		final Map<String, String> variables = serviceClient.getUserVariables();
 		final Set<Long> alreadyInstalled = new HashSet<Long>();
 
-		return processResourceList(json, new ResourceMapper() {
+		return networkResourceCache.process(realmResources, json, new ResourceMapper() {
 
 			@Override
 			public boolean processResource(JSONObject field) {
@@ -242,6 +841,7 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 					Number modifiedDateTime = (Number) field.get("modifiedDate");
 	
 					List<ApplicationLauncherTemplate> launcherTemplates = new ArrayList<ApplicationLauncherTemplate>();
+					Map<Long, String> launcherContent = new HashMap<Long, String>();
 					while (it3.hasNext()) {
 						JSONObject launcher = it3.next();
 	
@@ -261,9 +861,13 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 								String exe = (String) launcher.get("exe");
 								String logo = (String) launcher.get("logo");
 								String args = (String) launcher.get("args");
-								String startupScript = (String) launcher.get("startupScript");
-								String shutdownScript = (String) launcher.get("shutdownScript");
-								String installScript = (String) launcher.get("installScript");
+								String scriptDigest = (String) launcher.get("scriptDigest");
+								String[] scripts = scriptDigest == null ? new String[] {
+										(String) launcher.get("startupScript"), (String) launcher.get("shutdownScript"),
+										(String) launcher.get("installScript") } : getLauncherScripts(lid, scriptDigest);
+								String startupScript = scripts[0];
+								String shutdownScript = scripts[1];
+								String installScript = scripts[2];
 								String files = (String) launcher.get("files");
 								
 								Calendar launcherModifiedDate = Calendar.getInstance();
@@ -285,6 +889,8 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 										args.split("\\]\\|\\["));
 								
 								launcherTemplates.add(launcherTemplate);
+								launcherContent.put(lid, StringUtils.join(new Object[] { n, exe, args, startupScript,
+										shutdownScript, installScript, files }, '\0'));
 								
 								/*
 								 * We only want to do this ONCE per actual application, not launcher
@@ -294,13 +900,8 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 								 * are actually the latest date of all related resources), this behavior
 								 * will continue on every login.
 								 */
-								if(!alreadyInstalled.contains(lid)) {
-									try {
-										downloadAndInstall(launcherTemplate, files!=null ? files.split("\\]\\|\\[") : new String[] {}, installScript);
-									}
-									finally {
-										alreadyInstalled.add(lid);
-									}
+								if(alreadyInstalled.add(lid)) {
+									scheduleInstall(launcherTemplate, files!=null ? files.split("\\]\\|\\[") : new String[] {}, installScript);
 								}
 							} else {
 								if(log.isDebugEnabled()) {
@@ -339,6 +940,7 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 					}
 	
 					List<Resource> protocolResources = new ArrayList<>();
+					StringBuilder forwardHashes = new StringBuilder();
 					for (ProtocolTemplate protocol : protocolTemplates) {
 						NetworkResourceDetail detail = new NetworkResourceDetail();
 						/*
@@ -357,6 +959,7 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 						detail.networkResourceTemplate = template;
 						resourceDetails.put(res, detail);
 						protocolResources.add(res);
+						forwardHashes.append(template.getStructuralHash());
 					}
 	
 					for (ApplicationLauncherTemplate launcherTemplate : launcherTemplates) {
@@ -385,6 +988,8 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 						
 						/* This specifies that when THIS updates, we actually want ALL of the protocol resource as well */ 
 						childResources.put(res, protocolResources);
+						launcherHashes.put(res, DigestUtils.md5Hex(hostname + '\0'
+								+ launcherContent.get(launcherTemplate.getId()) + '\0' + forwardHashes));
 	
 						// The resource detail is shared across the launchable
 						// resources
@@ -401,6 +1006,30 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		}, "network resources");
 	}
 
+	/**
+	 * Get the startup, shutdown and install scripts of a launcher. The compact
+	 * resource list only carries a digest of them, so they are requested the
+	 * first time a launcher for this system is seen with that digest.
+	 */
+	protected String[] getLauncherScripts(Long id, String digest) throws IOException {
+
+		String[] scripts = launcherScripts.get(digest);
+		if (scripts != null) {
+			return scripts;
+		}
+
+		JsonNode result = objectMapper.readTree(serviceClient.getTransport().get(
+				"networkResources/personal/launcherScripts/" + id));
+		if (!result.path("success").asBoolean(true)) {
+			throw new IOException("Could not get launcher scripts: " + result.path("message").asText());
+		}
+		JsonNode resource = result.path("resource");
+		scripts = new String[] { resource.path("startupScript").asText(), resource.path("shutdownScript").asText(),
+				resource.path("installScript").asText() };
+		launcherScripts.put(resource.path("digest").asText(digest), scripts);
+		return scripts;
+	}
+
 	protected boolean downloadAndInstall(ApplicationLauncherTemplate launcherTemplate, String[] files, String installScript) {
 
 		
@@ -429,11 +1058,11 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 			if(log.isInfoEnabled()) {
 				log.info(String.format("%s is being %s", launcherTemplate.getName(), newInstall ? "installed" : "updated"));
 			}
+			DigestManifest manifest = DigestManifest.load(launcherTemplate.getApplicationDirectory());
 			Map<String,FileMetaData> downloadFiles = processDownloadRequirements(files,
-					launcherTemplate.getApplicationDirectory());
+					launcherTemplate.getApplicationDirectory(), manifest);
 			
 			long length = 0;
-			long totalSoFar = 0;
 			for(FileMetaData file : downloadFiles.values()) {
 				length += file.getFileSize();
 			}
@@ -441,10 +1070,17 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 			guiRegistry.onUpdateInit(1);
 			guiRegistry.getGUI().onUpdateStart(launcherTemplate.getName(), length, null);
 		
-			for(FileMetaData file : downloadFiles.values()) {
-				totalSoFar = downloadFile(file, launcherTemplate.getApplicationDirectory(), launcherTemplate.getName(), totalSoFar, length);
-				guiRegistry.getGUI().onUpdateProgress(launcherTemplate.getName(), file.getFileSize(), totalSoFar, length);
-			}
+			final String app = launcherTemplate.getName();
+			getDownloader().download(downloadFiles.values(), launcherTemplate.getApplicationDirectory(), manifest,
+					length, new LauncherDownloader.Progress() {
+						@Override
+						public void onProgress(long bytes, long totalSoFar, long totalLength) {
+							synchronized (guiRegistry) {
+								guiRegistry.onUpdateProgress(app, bytes, totalSoFar, totalLength);
+							}
+						}
+					});
+			manifest.save();
 		
 			int exitCode = 0;
 			if(StringUtils.isNotBlank(installScript)) {
@@ -493,71 +1129,102 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		return false;
 	}
 	
-	private Map<String,FileMetaData> processDownloadRequirements(String files[], File applicationDirectory) throws IOException {
+	private Map<String,FileMetaData> processDownloadRequirements(String files[], File applicationDirectory,
+			DigestManifest manifest) throws IOException {
 		
-		ObjectMapper objectMapper = new ObjectMapper();
 		Map<String,FileMetaData> data = new HashMap<String,FileMetaData>();
 		
-		for(String file : files) {
-			if(StringUtils.isBlank(file)) {
-				continue;
-			}
-			String fileJson = serviceClient.getTransport().get("files/file/" + file);
-			FileMetaDataResourceStatus meta = objectMapper.readValue(fileJson, FileMetaDataResourceStatus.class);
-			if(!meta.isSuccess()) {
-				throw new IOException("Could not find file " + file);
-			}
-			File metaFile = new File(applicationDirectory, meta.getResource().getFileName());
+		for(FileMetaData meta : getFileMetaData(files)) {
+			File metaFile = new File(applicationDirectory, meta.getFileName());
 			if(metaFile.exists()) {
-				if(checkMD5Sum(new FileInputStream(metaFile), 
-						meta.getResource().getMd5Sum(), 
-						meta.getResource().getFileName())) {
+				if(checkMD5Sum(manifest, metaFile, meta.getMd5Sum())) {
 					continue;
 				}
 			}
 			
-			data.put(file, meta.getResource());
+			data.put(meta.getName(), meta);
 		}
 		
 		return data;
 	}
 	
-	private long downloadFile(FileMetaData meta, File applicationDirectory, String app, long totalSoFar, long totalLength) throws IOException {
-
+	/**
+	 * Get the metadata of a launcher's files in a single request, falling back
+	 * to a request per file on servers without the batch request.
+	 */
+	private List<FileMetaData> getFileMetaData(String files[]) throws IOException {
 		
-		File metaFile = new File(applicationDirectory, meta.getFileName());
-
-		InputStream in = serviceClient.getTransport().getContent("files/download/" + meta.getName(), 60000);
-		OutputStream out = new FileOutputStream(metaFile);
+		List<String> uuids = new ArrayList<String>();
+		for(String file : files) {
+			if(StringUtils.isNotBlank(file)) {
+				uuids.add(file);
+			}
+		}
 		
-		byte[] buf = new byte[32768];
-		try {
-			while(true) {
-				int r = in.read(buf);
-				if(r==-1) {
-					break;
+		if(uuids.isEmpty()) {
+			return new ArrayList<FileMetaData>();
+		}
+		
+		if(batchFileMetaData) {
+			StringBuilder uri = new StringBuilder("launchers/files");
+			for(int i = 0; i < uuids.size(); i++) {
+				uri.append(i == 0 ? '?' : '&').append("uuid=").append(uuids.get(i));
+			}
+			
+			JsonNode result;
+			try {
+				result = objectMapper.readTree(serviceClient.getTransport().get(uri.toString()));
+			} catch(IOException e) {
+				if(!isUnsupported(uri.toString())) {
+					throw e;
+				}
+				if(log.isInfoEnabled()) {
+					log.info("Server does not support batch file metadata, requesting files individually");
+				}
+				batchFileMetaData = false;
+				return getFileMetaData(files);
+			}
+			
+			if(!result.path("success").asBoolean(true)) {
+				throw new IOException("Could not find launcher files: " + result.path("message").asText());
+			}
+			
+			Map<String,FileMetaData> found = new HashMap<String,FileMetaData>();
+			for(JsonNode node : result.path("resources")) {
+				FileMetaData meta = objectMapper.treeToValue(node, FileMetaData.class);
+				found.put(meta.getName(), meta);
+			}
+			
+			List<FileMetaData> metaData = new ArrayList<FileMetaData>();
+			for(String uuid : uuids) {
+				FileMetaData meta = found.get(uuid);
+				if(meta == null) {
+					throw new IOException("Could not find file " + uuid);
 				}
-				out.write(buf, 0, r);
-				guiRegistry.onUpdateProgress(app, r, totalSoFar += r, totalLength);
+				metaData.add(meta);
 			}
-		} finally {
-			IOUtils.closeQuietly(in);
-			IOUtils.closeQuietly(out);
+			return metaData;
 		}
 		
-		if(!checkMD5Sum(new FileInputStream(metaFile), meta.getMd5Sum(), meta.getFileName())) {
-			throw new IOException(meta.getFileName() + " is corrupt!");
+		List<FileMetaData> metaData = new ArrayList<FileMetaData>();
+		for(String file : uuids) {
+			String fileJson = serviceClient.getTransport().get("files/file/" + file);
+			FileMetaDataResourceStatus meta = objectMapper.readValue(fileJson, FileMetaDataResourceStatus.class);
+			if(!meta.isSuccess()) {
+				throw new IOException("Could not find file " + file);
+			}
+			metaData.add(meta.getResource());
 		}
-		
-		return totalSoFar;
+		return metaData;
 	}
-
-	private boolean checkMD5Sum(InputStream in, String expectedMd5Sum, String filename) {
+	
+	private boolean checkMD5Sum(DigestManifest manifest, File file, String expectedMd5Sum) {
+		String filename = file.getName();
 		if(log.isDebugEnabled()) {
 			log.debug("Checking " + filename + " digest");
 		}
 		try {
-			String localFileHash = Hex.encodeHexString(DigestUtils.md5(in));
+			String localFileHash = manifest.getDigest(file);
 			if(localFileHash.equalsIgnoreCase(expectedMd5Sum)) {
 				if(log.isDebugEnabled()) {
 					log.debug(filename + " exists and has not changed since last use");
@@ -573,8 +1240,6 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 				log.error("Failed to read file during digest calculation", ex);
 			}
 			return false;
-		} finally {
-			IOUtils.closeQuietly(in);
 		}
 	}
 	@Override
@@ -591,10 +1256,44 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		}
 
 		vpnService.stopAllForwarding(serviceClient);
+
+		if (tunnelClient != null) {
+			tunnelClient.stop();
+			tunnelClient = null;
+		}
+
+		if (changeChannel != null) {
+			changeChannel.stop();
+			changeChannel = null;
+		}
+
+		synchronized (this) {
+			if (installExecutor != null) {
+				installExecutor.shutdownNow();
+			}
+			if (downloadExecutor != null) {
+				downloadExecutor.shutdownNow();
+			}
+			if (fetchExecutor != null) {
+				fetchExecutor.shutdownNow();
+			}
+		}
 		
+		for (NetworkResourceDetail detail : startedResourceDetails.values()) {
+			for (UdpForwarder forwarder : detail.udpForwarders) {
+				forwarder.stop();
+			}
+			for (LazyForward forward : detail.lazyForwards) {
+				forward.stop();
+			}
+		}
 		startedResourceDetails.clear();
 		resourceDetails.clear();
 		childResources.clear();
+		launcherHashes.clear();
+		startedLauncherHashes.clear();
+		networkResourceCache.clear();
+		websiteCache.clear();
 
 	}
 
@@ -612,6 +1311,9 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		if (detail != null && detail.networkResourceTemplate != null) {
 			return startNetworkResource(resource, detail);
 		}
+		if (launcherHashes.containsKey(resource)) {
+			startedLauncherHashes.put(resource, launcherHashes.get(resource));
+		}
 		return true;
 	}
 
@@ -619,6 +1321,13 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 	protected boolean onUpdatedResource(Resource resource) {
 		List<Resource> children = childResources.get(resource);
 		if(children != null) {
+			String hash = launcherHashes.get(resource);
+			if(hash != null && hash.equals(startedLauncherHashes.put(resource, hash))) {
+				if(log.isDebugEnabled()) {
+					log.debug(String.format("%s has not changed, leaving its forwards running", resource.getName()));
+				}
+				return true;
+			}
 			for(Resource c : children) {
 				onUpdatedResource(c);
 			}
@@ -626,6 +1335,34 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 		}
 		
 		NetworkResourceDetail detail = resourceDetails.get(resource);
+		NetworkResourceDetail started = startedResourceDetails.get(resource);
+		if (detail != null && started != null) {
+			String hash = getStructuralHash(detail);
+			if (hash != null && hash.equals(getStructuralHash(started))) {
+				/*
+				 * Same forwards as before. Keep them running, and the detail
+				 * that holds them so the status stays right, but take the
+				 * reloaded fields. The reloaded resource replaces the live
+				 * one, so it gets the live one's protocols.
+				 */
+				if(log.isDebugEnabled()) {
+					log.debug(String.format("Forwards for %s have not changed, leaving them running", resource.getName()));
+				}
+				if (started.networkResourceTemplate != null) {
+					started.networkResourceTemplate.update(detail.networkResourceTemplate);
+				} else {
+					started.websiteResourceTemplate.update(detail.websiteResourceTemplate);
+				}
+				if (started.resource != null && started.resource != resource) {
+					resource.getProtocols().addAll(started.resource.getProtocols());
+				}
+				started.resource = resource;
+				resourceDetails.put(resource, started);
+				startedResourceDetails.remove(resource);
+				startedResourceDetails.put(resource, started);
+				return true;
+			}
+		}
 		stopAllNetworkResourcesForResource(resource);
 		if (detail != null && detail.websiteResourceTemplate != null) {
 			return startWebsiteResource(resource, detail);
@@ -637,56 +1374,212 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 
 	@Override
 	protected boolean onDeletedResource(Resource resource) {
+		startedLauncherHashes.remove(resource);
 		stopAllNetworkResourcesForResource(resource);
 		return true;
 	}
 
+	private String getStructuralHash(NetworkResourceDetail detail) {
+		if (detail.networkResourceTemplate != null) {
+			return detail.networkResourceTemplate.getStructuralHash();
+		}
+		if (detail.websiteResourceTemplate != null) {
+			return detail.websiteResourceTemplate.getStructuralHash();
+		}
+		return null;
+	}
+
 	private boolean startNetworkResource(Resource resource, NetworkResourceDetail detail) {
 		boolean success = false;
 		NetworkResourceTemplate templ = detail.networkResourceTemplate;
-		if (templ.getTransport().equals("TCP")) {
+		boolean tcp = templ.isTcp();
+		boolean udp = templ.isUdp();
+		
+		if (tcp) {
 
+			List<NetworkResource> ports = new ArrayList<>();
 			for (long port = templ.getStartPort(); port <= templ.getEndPort(); port++) {
+				ports.add(new NetworkResource(templ.getParentResourceId(), templ.getHostname(),
+						templ.getDestinationHostname(), (int) port, "tunnel"));
+			}
 
-				try {
-					NetworkResource netResource = new NetworkResource(templ.getParentResourceId(), templ.getHostname(),
-							templ.getDestinationHostname(), (int) port, "tunnel");
+			if (lazyForwarding) {
+				LazyForward forward = startLazyForward(ports, detail);
+				if (forward != null) {
+					resource.getProtocols().add(new ResourceProtocolImpl(templ.getProtocol()));
+					success = true;
+					// Start the ports that could not be held straight away
+					List<NetworkResource> unbound = new ArrayList<>();
+					for (NetworkResource netResource : ports) {
+						if (forward.getState(netResource.getPort()) == LazyForward.State.FAILED) {
+							unbound.add(netResource);
+						}
+					}
+					ports = unbound;
+				}
+			}
 
+			int failed = 0;
+			for (NetworkResource netResource : ports) {
+
+				try {
 					if (log.isInfoEnabled()) {
 						log.info(String.format("Starting forward for resource %s:%s", templ.getDestinationHostname(),
-								port));
+								netResource.getPort()));
 					}
 
-					boolean started = vpnService.startLocalForwarding(netResource, serviceClient);
+					MultiplexedTunnelClient.Forward multiplexed = null;
+					if (tunnelClient != null) {
+						multiplexed = startMultiplexedForward(netResource,
+								InetAddress.getByName(mgr.getAlias(templ.getHostname())));
+					}
+					boolean started = multiplexed != null || vpnService.startLocalForwarding(netResource, serviceClient);
 					if (started) {
-						detail.networkResources.add(netResource);
+						if (multiplexed != null) {
+							detail.multiplexedForwards.add(multiplexed);
+						} else {
+							detail.networkResources.add(netResource);
+						}
 						ResourceProtocolImpl proto = new ResourceProtocolImpl(templ.getProtocol());
 						resource.getProtocols().add(proto);
 						success = true;
 						templ.addLiveResource(netResource);
 					} else {
-						break;
+						failed++;
 					}
 
 				} catch (Exception e) {
+					failed++;
 					if (log.isErrorEnabled()) {
 						log.error("Failed to start local forwarding", e);
 					}
 				}
 			}
-			if(success)
-				startedResourceDetails.put(resource, detail);
+
+			if (failed > 0) {
+				log.warn(String.format("%d of %d ports of %s on %s could not be forwarded", failed, ports.size(),
+						templ.getProtocol(), templ.getDestinationHostname()));
+			}
+		}
+		
+		if (udp) {
+			if (datagramConnector == null) {
+				log.warn(String.format("UDP forwarding is not available, skipping %s on %s", templ.getProtocol(),
+						templ.getDestinationHostname()));
+			} else {
+				for (long port = templ.getStartPort(); port <= templ.getEndPort(); port++) {
+					try {
+						NetworkResource netResource = new NetworkResource(templ.getParentResourceId(),
+								templ.getHostname(), templ.getDestinationHostname(), (int) port, "udp");
+						UdpForwarder forwarder = new UdpForwarder(netResource,
+								new InetSocketAddress("127.0.0.1", (int) port), udpIdleTimeout);
+						forwarder.start(datagramConnector);
+						detail.udpForwarders.add(forwarder);
+						// With BOTH, the TCP forwards decide whether the resource started
+						if (!tcp) {
+							resource.getProtocols().add(new ResourceProtocolImpl(templ.getProtocol()));
+							success = true;
+						}
+					} catch (Exception e) {
+						if (log.isErrorEnabled()) {
+							log.error("Failed to start UDP forwarding", e);
+						}
+					}
+				}
+			}
+		}
+		
+		if(success) {
+			detail.resource = resource;
+			startedResourceDetails.put(resource, detail);
 		}
+
 		if (!success) {
 			// Stop any that did manage to start
+			stopForwarding(detail);
+			startedResourceDetails.remove(resource);
+		}
+
+		return success;
+	}
+
+	/**
+	 * Bind the local ports of a protocol's range now, and start the forward
+	 * for each port when it is first used.
+	 * 
+	 * @return the forward, or <code>null</code> if no port could be bound and
+	 *         the forwards should be started straight away
+	 */
+	private LazyForward startLazyForward(List<NetworkResource> ports, final NetworkResourceDetail detail) {
+		final NetworkResourceTemplate templ = detail.networkResourceTemplate;
+		try {
+			String alias = mgr.getAlias(templ.getHostname());
+			LazyForward forward = new LazyForward(ports, InetAddress.getByName(alias), new LazyForward.Activator() {
+				@Override
+				public boolean activate(LazyForward forward, NetworkResource netResource) {
+					MultiplexedTunnelClient.Forward multiplexed = startMultiplexedForward(netResource,
+							forward.getBindAddress());
+					if (multiplexed == null && !vpnService.startLocalForwarding(netResource, serviceClient)) {
+						return false;
+					}
+					synchronized (detail) {
+						if (!detail.lazyForwards.contains(forward)) {
+							// Stopped while the forward was starting
+							if (multiplexed != null) {
+								multiplexed.close();
+							} else {
+								vpnService.stopLocalForwarding(netResource, serviceClient);
+							}
+							return false;
+						}
+						if (multiplexed != null) {
+							detail.multiplexedForwards.add(multiplexed);
+						} else {
+							detail.networkResources.add(netResource);
+						}
+						templ.addLiveResource(netResource);
+					}
+					return true;
+				}
+			});
+			synchronized (detail) {
+				detail.lazyForwards.add(forward);
+			}
+			int bound = forward.bind();
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Bound %d cold ports for %s on %s", bound, templ.getDestinationHostname(),
+						alias));
+			}
+			return forward;
+		} catch (IOException e) {
+			synchronized (detail) {
+				detail.lazyForwards.clear();
+			}
+			log.warn(String.format("Could not bind cold ports for %s, starting them now",
+					templ.getDestinationHostname()), e);
+			return null;
+		}
+	}
+
+	private void stopForwarding(NetworkResourceDetail detail) {
+		synchronized (detail) {
+			for (LazyForward forward : detail.lazyForwards) {
+				forward.stop();
+			}
+			detail.lazyForwards.clear();
+			for (MultiplexedTunnelClient.Forward forward : detail.multiplexedForwards) {
+				forward.close();
+			}
+			detail.multiplexedForwards.clear();
 			for (NetworkResource nr : detail.networkResources) {
 				vpnService.stopLocalForwarding(nr, serviceClient);
 			}
+			for (UdpForwarder forwarder : detail.udpForwarders) {
+				forwarder.stop();
+			}
 			detail.networkResources.clear();
-			startedResourceDetails.remove(resource);
+			detail.udpForwarders.clear();
 		}
-
-		return success;
 	}
 
 	private boolean startWebsiteResource(Resource resource, NetworkResourceDetail detail) {
@@ -719,6 +1612,7 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 			detail.networkResources.clear();
 		}
 		else {
+			detail.resource = resource;
 			startedResourceDetails.put(resource, detail);
 		}
 		return success;
@@ -726,13 +1620,12 @@ public class NetworkResourcesPlugin extends AbstractServicePlugin {
 
 	private void stopAllNetworkResourcesForResource(Resource resource) {
 		NetworkResourceDetail detail = startedResourceDetails.get(resource);
-		if (detail == null || detail.networkResources.isEmpty()) {
+		if (detail == null || (detail.networkResources.isEmpty() && detail.udpForwarders.isEmpty()
+				&& detail.lazyForwards.isEmpty() && detail.multiplexedForwards.isEmpty())) {
 			log.warn(String.format("Could not find any started network resource for the resource %s",
 					resource.getName()));
 		} else {
-			for (NetworkResource r : detail.networkResources) {
-				vpnService.stopLocalForwarding(r, serviceClient);
-			}
+			stopForwarding(detail);
 			startedResourceDetails.remove(resource);
 		}
 	}
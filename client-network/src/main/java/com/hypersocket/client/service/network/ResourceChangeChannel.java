@@ -0,0 +1,132 @@
+package com.hypersocket.client.service.network;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits on the server's <code>networkResources/push</code> long-poll for
+ * changes to the user's resources. While the channel is healthy the caller
+ * can stop polling fingerprints and refresh only when told to.
+ */
+public class ResourceChangeChannel implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(ResourceChangeChannel.class);
+
+	public interface Listener {
+		/**
+		 * Resources changed on the server.
+		 *
+		 * @param categories the categories changed, for example
+		 *            <code>networkResources</code> or <code>websites</code>
+		 * @param all <code>true</code> if the server does not know what
+		 *            changed and everything should be refreshed
+		 */
+		void resourcesChanged(Set<String> categories, boolean all);
+	}
+
+	public interface Source {
+		/**
+		 * Wait for changes after a version.
+		 *
+		 * @param since the last version seen, or <code>null</code> for the
+		 *            current version without waiting. Versions are opaque,
+		 *            a version from before a server restart is answered with
+		 *            everything changed.
+		 */
+		String poll(String since) throws IOException;
+	}
+
+	final Source source;
+	final Listener listener;
+	final long retryInterval;
+	volatile boolean running;
+	volatile boolean healthy;
+	String version;
+	Thread thread;
+
+	public ResourceChangeChannel(Source source, Listener listener, long retryInterval) {
+		this.source = source;
+		this.listener = listener;
+		this.retryInterval = retryInterval;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "ResourceChangeChannel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		healthy = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Get whether the last wait on the server succeeded, so changes are being
+	 * pushed.
+	 */
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	@Override
+	public void run() {
+
+		int failures = 0;
+		while (running) {
+			try {
+				JSONObject result = (JSONObject) new JSONParser().parse(source.poll(version));
+				if (!Boolean.TRUE.equals(result.get("success"))) {
+					throw new IOException(String.valueOf(result.get("message")));
+				}
+
+				JSONObject changes = (JSONObject) result.get("resource");
+				boolean first = version == null;
+				version = (String) changes.get("version");
+				if (!healthy && log.isInfoEnabled()) {
+					log.info("Resource changes are being pushed");
+				}
+				healthy = true;
+				failures = 0;
+
+				boolean all = Boolean.TRUE.equals(changes.get("all"));
+				Set<String> categories = new HashSet<String>();
+				for (Object category : (JSONArray) changes.get("categories")) {
+					categories.add((String) category);
+				}
+				if (!first && (all || !categories.isEmpty())) {
+					listener.resourcesChanged(categories, all);
+				}
+			} catch (IOException | ParseException | RuntimeException e) {
+				if (!running) {
+					break;
+				}
+				if (healthy && log.isInfoEnabled()) {
+					log.info("Resource changes are no longer being pushed", e);
+				}
+				healthy = false;
+				try {
+					Thread.sleep(retryInterval * Math.min(++failures, 10));
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+}
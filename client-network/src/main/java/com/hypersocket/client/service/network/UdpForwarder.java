@@ -0,0 +1,206 @@
+package com.hypersocket.client.service.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.client.NetworkResource;
+import com.hypersocket.tunnel.DatagramBatch;
+
+/**
+ * Listens for datagrams on a local port and carries them over a
+ * {@link DatagramTunnel}. Each local source address is given a flow id, NAT
+ * style, so the server can keep a separate socket per source and replies are
+ * returned to the application that sent the request. Datagrams that arrive
+ * together are sent in a single {@link DatagramBatch}. Flows that are idle
+ * for longer than the timeout are forgotten.
+ */
+public class UdpForwarder implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(UdpForwarder.class);
+
+	final NetworkResource resource;
+	final InetSocketAddress listenAddress;
+	final long idleTimeout;
+
+	final Map<SocketAddress, Flow> sources = new ConcurrentHashMap<SocketAddress, Flow>();
+	final Map<Integer, Flow> flows = new ConcurrentHashMap<Integer, Flow>();
+	final AtomicInteger nextFlowId = new AtomicInteger();
+	final DatagramBatch batch = new DatagramBatch();
+	final ByteBuffer readBuffer = ByteBuffer.allocate(DatagramBatch.MAX_DATAGRAM);
+
+	DatagramChannel channel;
+	Selector selector;
+	DatagramTunnel tunnel;
+	Thread thread;
+	volatile boolean running;
+
+	public UdpForwarder(NetworkResource resource,
+			InetSocketAddress listenAddress, long idleTimeout) {
+		this.resource = resource;
+		this.listenAddress = listenAddress;
+		this.idleTimeout = idleTimeout;
+	}
+
+	public void start(DatagramTunnel.Connector connector) throws IOException {
+
+		channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(listenAddress);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			tunnel = connector.connect(resource, this);
+		} catch (IOException e) {
+			closeQuietly();
+			throw e;
+		}
+
+		running = true;
+		thread = new Thread(this, "UdpForwarder-" + listenAddress);
+		thread.setDaemon(true);
+		thread.start();
+
+		if (log.isInfoEnabled()) {
+			log.info(String.format("Forwarding UDP %s to %s:%d", listenAddress,
+					resource.getDestinationHostname(), resource.getPort()));
+		}
+	}
+
+	/**
+	 * Deliver a batch of replies received from the server.
+	 */
+	public void onMessage(ByteBuffer message) throws IOException {
+		DatagramBatch.decode(message, new DatagramBatch.Handler() {
+			@Override
+			public void onDatagram(int flowId, ByteBuffer datagram)
+					throws IOException {
+				Flow flow = flows.get(flowId);
+				if (flow != null) {
+					flow.lastActivity = System.currentTimeMillis();
+					channel.send(datagram, flow.source);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+
+		long lastExpiry = System.currentTimeMillis();
+
+		try {
+			while (running) {
+				selector.select(1000);
+				selector.selectedKeys().clear();
+
+				SocketAddress source;
+				readBuffer.clear();
+				while ((source = channel.receive(readBuffer)) != null) {
+					readBuffer.flip();
+					int flowId = getFlow(source).id;
+					if (!batch.add(flowId, readBuffer)) {
+						flush();
+						batch.add(flowId, readBuffer);
+					}
+					readBuffer.clear();
+				}
+				flush();
+
+				long now = System.currentTimeMillis();
+				if (now - lastExpiry >= 1000) {
+					expire(now);
+					lastExpiry = now;
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				log.error("UDP forwarding on " + listenAddress + " failed", e);
+			}
+		} finally {
+			running = false;
+			closeQuietly();
+		}
+	}
+
+	Flow getFlow(SocketAddress source) {
+		Flow flow = sources.get(source);
+		if (flow == null) {
+			flow = new Flow(nextFlowId.incrementAndGet(), source);
+			sources.put(source, flow);
+			flows.put(flow.id, flow);
+		}
+		flow.lastActivity = System.currentTimeMillis();
+		return flow;
+	}
+
+	void flush() throws IOException {
+		if (!batch.isEmpty()) {
+			tunnel.send(batch.flush());
+		}
+	}
+
+	void expire(long now) {
+		for (Iterator<Flow> it = flows.values().iterator(); it.hasNext();) {
+			Flow flow = it.next();
+			if (now - flow.lastActivity >= idleTimeout) {
+				it.remove();
+				sources.remove(flow.source);
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public NetworkResource getResource() {
+		return resource;
+	}
+
+	public int getFlowCount() {
+		return flows.size();
+	}
+
+	void closeQuietly() {
+		if (tunnel != null) {
+			tunnel.close();
+		}
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	static class Flow {
+		final int id;
+		final SocketAddress source;
+		volatile long lastActivity = System.currentTimeMillis();
+
+		Flow(int id, SocketAddress source) {
+			this.id = id;
+			this.source = source;
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,6 +63,24 @@ public class WebsiteResourceTemplate implements Serializable {
 		return additionalUrls;
 	}
 
+	/**
+	 * Get a hash of the URLs this forwards, see
+	 * {@link NetworkResourceTemplate#getStructuralHash()}.
+	 */
+	public String getStructuralHash() {
+		return DigestUtils.md5Hex(launchUrl + '\0' + StringUtils.join(additionalUrls, '\0'));
+	}
+
+	/**
+	 * Take the fields of a reloaded template with the same structural hash,
+	 * see {@link NetworkResourceTemplate#update(NetworkResourceTemplate)}.
+	 */
+	public void update(WebsiteResourceTemplate template) {
+		this.id = template.id;
+		this.name = template.name;
+		this.logo = template.logo;
+	}
+
 	public String getStatus() {
 		if(liveResources.size() > 0) {
 			StringBuffer buf = new StringBuffer();
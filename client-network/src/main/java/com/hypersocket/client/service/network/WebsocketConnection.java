@@ -0,0 +1,427 @@
+package com.hypersocket.client.service.network;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A websocket to one of the server's handlers. The client transport only
+ * relays HTTP requests, so this speaks just enough of RFC 6455 to exchange
+ * binary messages: the upgrade handshake, masked binary frames to the server,
+ * and binary, ping and close frames from it. Messages from the server are
+ * read on the connection's own thread.
+ * <p>
+ * The socket is opened the way the transport's own requests are: through the
+ * proxy the JVM's {@link ProxySelector} picks for the endpoint, with TLS from
+ * the default {@link HttpsURLConnection} socket factory, and with the session
+ * cookie held by the JVM's {@link CookieHandler}. The server's certificate
+ * must match its host name.
+ */
+public class WebsocketConnection implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(WebsocketConnection.class);
+
+	static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	static final String SESSION_COOKIE = "HYPERSOCKET_API_SESSION";
+
+	static final int OP_CONTINUATION = 0x0;
+	static final int OP_BINARY = 0x2;
+	static final int OP_CLOSE = 0x8;
+	static final int OP_PING = 0x9;
+	static final int OP_PONG = 0xA;
+
+	public interface Handler {
+
+		/**
+		 * Called with each message from the server. A failure closes the
+		 * websocket.
+		 */
+		void onMessage(ByteBuffer message) throws IOException;
+
+		/**
+		 * Called once the websocket has been closed by either side or has
+		 * failed.
+		 */
+		void onClose();
+	}
+
+	final Socket socket;
+	final DataInputStream in;
+	final OutputStream out;
+	final int maxMessage;
+	final SecureRandom random = new SecureRandom();
+	final Map<String, String> headers = new HashMap<String, String>();
+	Handler handler;
+	volatile boolean closed;
+
+	WebsocketConnection(Socket socket, int maxMessage) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = socket.getOutputStream();
+		this.maxMessage = maxMessage;
+	}
+
+	/**
+	 * Open a websocket and complete the upgrade. Nothing is read until
+	 * {@link #start(Handler, String)} is called.
+	 *
+	 * @param endpoint
+	 *            the http or https URL of the handler
+	 * @param query
+	 *            the raw query to request the handler with, or
+	 *            <code>null</code>
+	 * @param sessionId
+	 *            the session the websocket is authorized by
+	 * @param sslSocketFactory
+	 *            the factory for https endpoints, or <code>null</code> for
+	 *            the {@link HttpsURLConnection} default
+	 * @param maxMessage
+	 *            the largest message the server may send
+	 * @throws IOException
+	 *             if the server cannot be reached or refuses the upgrade
+	 */
+	public static WebsocketConnection open(URI endpoint, String query, String sessionId,
+			SSLSocketFactory sslSocketFactory, int connectTimeout, int maxMessage) throws IOException {
+
+		boolean secure = "https".equalsIgnoreCase(endpoint.getScheme());
+		int port = endpoint.getPort() == -1 ? (secure ? 443 : 80) : endpoint.getPort();
+
+		Socket socket = connect(endpoint, port, connectTimeout);
+		try {
+			socket.setTcpNoDelay(true);
+			if (secure) {
+				SSLSocket ssl = (SSLSocket) (sslSocketFactory == null ? HttpsURLConnection
+						.getDefaultSSLSocketFactory() : sslSocketFactory).createSocket(socket, endpoint.getHost(),
+						port, true);
+				SSLParameters parameters = ssl.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(parameters);
+				ssl.startHandshake();
+				socket = ssl;
+			}
+			WebsocketConnection connection = new WebsocketConnection(socket, maxMessage);
+			connection.handshake(endpoint, port, query, sessionId);
+			return connection;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connect to the endpoint through the proxy chosen for it. HTTP proxies
+	 * are asked to tunnel with CONNECT.
+	 */
+	static Socket connect(URI endpoint, int port, int connectTimeout) throws IOException {
+
+		ProxySelector selector = ProxySelector.getDefault();
+		List<Proxy> proxies = selector == null ? null : selector.select(endpoint);
+		Proxy proxy = proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+
+		Socket socket;
+		switch (proxy.type()) {
+		case SOCKS:
+			socket = new Socket(proxy);
+			try {
+				socket.connect(InetSocketAddress.createUnresolved(endpoint.getHost(), port), connectTimeout);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		case HTTP:
+			socket = new Socket();
+			try {
+				socket.connect(proxy.address(), connectTimeout);
+				String target = endpoint.getHost() + ":" + port;
+				OutputStream out = socket.getOutputStream();
+				out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes("US-ASCII"));
+				out.flush();
+				InputStream in = socket.getInputStream();
+				String status = readLine(in);
+				while (!readLine(in).isEmpty()) {
+				}
+				if (!status.matches("HTTP/1\\.[01] 200.*")) {
+					throw new IOException("Proxy " + proxy.address() + " refused to connect to " + target + ": "
+							+ status);
+				}
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		default:
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(endpoint.getHost(), port), connectTimeout);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		}
+	}
+
+	/**
+	 * Get the cookies the JVM's cookie handler holds for an endpoint, if they
+	 * carry the session.
+	 * 
+	 * @return the value of a Cookie header, or <code>null</code>
+	 */
+	public static String getSessionCookies(URI endpoint, String sessionId) {
+		CookieHandler handler = CookieHandler.getDefault();
+		if (handler == null || sessionId == null) {
+			return null;
+		}
+		try {
+			Map<String, List<String>> headers = handler.get(endpoint, Collections.<String, List<String>> emptyMap());
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (!"Cookie".equalsIgnoreCase(header.getKey())) {
+					continue;
+				}
+				StringBuilder cookies = new StringBuilder();
+				for (String cookie : header.getValue()) {
+					if (cookies.length() > 0) {
+						cookies.append("; ");
+					}
+					cookies.append(cookie);
+				}
+				if (cookies.indexOf(sessionId) != -1) {
+					return cookies.toString();
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Could not get the cookies for " + endpoint, e);
+		}
+		return null;
+	}
+
+	void handshake(URI endpoint, int port, String query, String sessionId) throws IOException {
+
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		String key = Base64.encodeBase64String(nonce);
+		String path = endpoint.getRawPath() == null || endpoint.getRawPath().isEmpty() ? "/" : endpoint.getRawPath();
+
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(path);
+		if (query != null) {
+			request.append('?').append(query);
+		}
+		request.append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(endpoint.getHost()).append(':').append(port).append("\r\n");
+		request.append("Upgrade: websocket\r\n");
+		request.append("Connection: Upgrade\r\n");
+		request.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+		request.append("Sec-WebSocket-Version: 13\r\n");
+		String cookies = getSessionCookies(endpoint, sessionId);
+		if (cookies == null && sessionId != null) {
+			// Not held by the cookie handler, so assume the server's default name
+			cookies = SESSION_COOKIE + "=" + sessionId;
+		}
+		if (cookies != null) {
+			request.append("Cookie: ").append(cookies).append("\r\n");
+		}
+		request.append("\r\n");
+		out.write(request.toString().getBytes("US-ASCII"));
+		out.flush();
+
+		String status = readLine(in);
+		if (!status.startsWith("HTTP/1.1 101")) {
+			throw new IOException("Websocket to " + path + " was refused: " + status);
+		}
+
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int idx = line.indexOf(':');
+			if (idx > 0) {
+				headers.put(line.substring(0, idx).trim().toLowerCase(Locale.ENGLISH), line.substring(idx + 1).trim());
+			}
+		}
+		if (!Base64.encodeBase64String(DigestUtils.sha1(key + ACCEPT_GUID)).equals(
+				getHeader("Sec-WebSocket-Accept"))) {
+			throw new IOException("Server did not accept the websocket upgrade");
+		}
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new EOFException("Connection closed during websocket upgrade");
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Get a header of the server's upgrade response.
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Start reading messages from the server on a thread of the given name.
+	 */
+	public void start(Handler handler, String name) {
+		this.handler = handler;
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void send(ByteBuffer message) throws IOException {
+		writeFrame(OP_BINARY, message);
+	}
+
+	synchronized void writeFrame(int opcode, ByteBuffer payload) throws IOException {
+		int length = payload.remaining();
+		byte[] mask = new byte[4];
+		random.nextBytes(mask);
+
+		ByteBuffer frame = ByteBuffer.allocate(14 + length);
+		frame.put((byte) (0x80 | opcode));
+		if (length < 126) {
+			frame.put((byte) (0x80 | length));
+		} else if (length <= 0xFFFF) {
+			frame.put((byte) (0x80 | 126));
+			frame.putShort((short) length);
+		} else {
+			frame.put((byte) (0x80 | 127));
+			frame.putLong(length);
+		}
+		frame.put(mask);
+		for (int i = 0; i < length; i++) {
+			frame.put((byte) (payload.get() ^ mask[i & 3]));
+		}
+		out.write(frame.array(), 0, frame.position());
+		out.flush();
+	}
+
+	@Override
+	public void run() {
+		try {
+			ByteBuffer message = null;
+			while (!closed) {
+				int b0 = in.readUnsignedByte();
+				int b1 = in.readUnsignedByte();
+				boolean fin = (b0 & 0x80) != 0;
+				int opcode = b0 & 0x0F;
+				long length = b1 & 0x7F;
+				if (length == 126) {
+					length = in.readUnsignedShort();
+				} else if (length == 127) {
+					length = in.readLong();
+				}
+				if (length < 0 || length > maxMessage) {
+					throw new IOException("Websocket frame of " + length + " bytes is too large");
+				}
+				byte[] mask = null;
+				if ((b1 & 0x80) != 0) {
+					mask = new byte[4];
+					in.readFully(mask);
+				}
+				byte[] payload = new byte[(int) length];
+				in.readFully(payload);
+				if (mask != null) {
+					for (int i = 0; i < payload.length; i++) {
+						payload[i] ^= mask[i & 3];
+					}
+				}
+
+				switch (opcode) {
+				case OP_BINARY:
+					if (fin) {
+						handler.onMessage(ByteBuffer.wrap(payload));
+					} else {
+						message = ByteBuffer.allocate(maxMessage);
+						message.put(payload);
+					}
+					break;
+				case OP_CONTINUATION:
+					if (message == null) {
+						throw new IOException("Unexpected continuation frame");
+					}
+					if (message.remaining() < payload.length) {
+						throw new IOException("Websocket message is too large");
+					}
+					message.put(payload);
+					if (fin) {
+						message.flip();
+						handler.onMessage(message);
+						message = null;
+					}
+					break;
+				case OP_PING:
+					writeFrame(OP_PONG, ByteBuffer.wrap(payload));
+					break;
+				case OP_CLOSE:
+					return;
+				case OP_PONG:
+					break;
+				default:
+					throw new IOException("Unexpected websocket opcode " + opcode);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				log.warn("Websocket to " + socket.getRemoteSocketAddress() + " failed", e);
+			}
+		} finally {
+			close();
+			handler.onClose();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				writeFrame(OP_CLOSE, ByteBuffer.allocate(0));
+			} catch (IOException e) {
+			}
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
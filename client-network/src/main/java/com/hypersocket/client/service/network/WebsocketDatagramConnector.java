@@ -0,0 +1,92 @@
+package com.hypersocket.client.service.network;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import com.hypersocket.client.NetworkResource;
+import com.hypersocket.tunnel.DatagramBatch;
+
+/**
+ * Opens each UDP forward's tunnel as a {@link WebsocketConnection} to the
+ * server's "udp" handler.
+ */
+public class WebsocketDatagramConnector implements DatagramTunnel.Connector {
+
+	static final int MAX_MESSAGE = DatagramBatch.DEFAULT_BATCH_SIZE;
+
+	final URI endpoint;
+	final String sessionId;
+	final SSLSocketFactory sslSocketFactory;
+	int connectTimeout = 30000;
+
+	/**
+	 * @param endpoint
+	 *            the http or https URL of the server's "udp" websocket
+	 * @param sessionId
+	 *            the session the forwards are authorized by
+	 */
+	public WebsocketDatagramConnector(URI endpoint, String sessionId) {
+		this(endpoint, sessionId, null);
+	}
+
+	public WebsocketDatagramConnector(URI endpoint, String sessionId, SSLSocketFactory sslSocketFactory) {
+		this.endpoint = endpoint;
+		this.sessionId = sessionId;
+		this.sslSocketFactory = sslSocketFactory;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	@Override
+	public DatagramTunnel connect(NetworkResource resource, UdpForwarder forwarder) throws IOException {
+
+		String query = "resourceId=" + resource.getParentResourceId() + "&hostname="
+				+ URLEncoder.encode(resource.getHostname(), "UTF-8") + "&port=" + resource.getPort();
+		WebsocketConnection connection = WebsocketConnection.open(endpoint, query, sessionId, sslSocketFactory,
+				connectTimeout, MAX_MESSAGE);
+		Tunnel tunnel = new Tunnel(connection, forwarder);
+		connection.start(tunnel, "DatagramTunnel-" + resource.getDestinationHostname() + ":" + resource.getPort());
+		return tunnel;
+	}
+
+	/**
+	 * One websocket carrying the batches of a single forward. A closed or
+	 * failed websocket stops the forwarder.
+	 */
+	static class Tunnel implements DatagramTunnel, WebsocketConnection.Handler {
+
+		final WebsocketConnection connection;
+		final UdpForwarder forwarder;
+
+		Tunnel(WebsocketConnection connection, UdpForwarder forwarder) {
+			this.connection = connection;
+			this.forwarder = forwarder;
+		}
+
+		@Override
+		public void send(ByteBuffer message) throws IOException {
+			connection.send(message);
+		}
+
+		@Override
+		public void onMessage(ByteBuffer message) throws IOException {
+			forwarder.onMessage(message);
+		}
+
+		@Override
+		public void onClose() {
+			forwarder.stop();
+		}
+
+		@Override
+		public void close() {
+			connection.close();
+		}
+	}
+}
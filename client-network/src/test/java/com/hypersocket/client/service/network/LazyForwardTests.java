@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.client.service.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.client.NetworkResource;
+
+public class LazyForwardTests {
+
+	/**
+	 * Stands in for the real forward. It reads each request to the end before
+	 * replying, so a relay that closes the connection when the client
+	 * half-closes loses the reply.
+	 */
+	static class ReplyAfterRequest extends Thread {
+
+		final ServerSocket server;
+
+		ReplyAfterRequest(ServerSocket server) {
+			this.server = server;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket socket = server.accept();
+					byte[] request = readAll(socket.getInputStream());
+					socket.getOutputStream().write(("reply to " + new String(request)).getBytes());
+					socket.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) > -1) {
+			out.write(buf, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	LazyForward forward;
+	ServerSocket server;
+
+	@After
+	public void tearDown() throws IOException {
+		if (forward != null) {
+			forward.stop();
+		}
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	void bindOne(final InetAddress loopback, final int port) throws IOException {
+		NetworkResource resource = new NetworkResource(1L, "app.internal", "10.0.0.1", port, "tunnel");
+		forward = new LazyForward(Collections.singletonList(resource), loopback, new LazyForward.Activator() {
+			@Override
+			public boolean activate(LazyForward forward, NetworkResource resource) throws IOException {
+				server = new ServerSocket();
+				server.setReuseAddress(true);
+				server.bind(new InetSocketAddress(loopback, port));
+				resource.setLocalPort(port);
+				new ReplyAfterRequest(server).start();
+				return true;
+			}
+		});
+		Assert.assertEquals(1, forward.bind());
+	}
+
+	static int freePort(InetAddress address) throws IOException {
+		ServerSocket probe = new ServerSocket(0, 50, address);
+		int port = probe.getLocalPort();
+		probe.close();
+		return port;
+	}
+
+	String request(InetAddress address, int port, String request) throws IOException {
+		Socket socket = new Socket(address, port);
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(request.getBytes());
+			socket.shutdownOutput();
+			return new String(readAll(socket.getInputStream()));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void earlyConnectionIsRelayedWithHalfClose() throws Exception {
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		int port = freePort(loopback);
+		bindOne(loopback, port);
+
+		Assert.assertEquals("reply to hello", request(loopback, port, "hello"));
+		Assert.assertEquals(LazyForward.State.WARM, forward.getState(port));
+		Assert.assertEquals(1, forward.getRelayedConnections());
+	}
+
+	@Test
+	public void largeTransfersAreRelayedInFull() throws Exception {
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		int port = freePort(loopback);
+		bindOne(loopback, port);
+
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 1024 * 1024) {
+			large.append("0123456789abcdef");
+		}
+		Assert.assertEquals("reply to " + large, request(loopback, port, large.toString()));
+	}
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.client.service.network;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hypersocket.client.NetworkResource;
+import com.hypersocket.tunnel.MultiplexedTunnel;
+import com.hypersocket.tunnel.TunnelFrame;
+import com.hypersocket.tunnel.TunnelStream;
+
+public class MultiplexedTunnelClientTests {
+
+	/**
+	 * Accepts one websocket and echoes every stream opened over it, prefixed
+	 * with the host the stream was opened for.
+	 */
+	class EchoServer extends Thread implements MultiplexedTunnel.Listener {
+
+		final boolean multiplex;
+		final MultiplexedTunnel tunnel = new MultiplexedTunnel(this, false);
+		volatile String requestLine;
+		OutputStream out;
+
+		EchoServer(boolean multiplex) {
+			this.multiplex = multiplex;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				Socket socket = server.accept();
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				out = socket.getOutputStream();
+
+				requestLine = WebsocketConnection.readLine(in);
+				String key = null;
+				String line;
+				while (!(line = WebsocketConnection.readLine(in)).isEmpty()) {
+					if (line.startsWith("Sec-WebSocket-Key:")) {
+						key = line.substring(18).trim();
+					}
+				}
+				out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+						+ (multiplex ? "X-Tunnel-Multiplex: 1\r\n" : "") + "Sec-WebSocket-Accept: "
+						+ Base64.encodeBase64String(DigestUtils.sha1(key + WebsocketConnection.ACCEPT_GUID))
+						+ "\r\n\r\n").getBytes("US-ASCII"));
+
+				while (true) {
+					int opcode = in.readUnsignedByte() & 0x0F;
+					int length = in.readUnsignedByte() & 0x7F;
+					if (length == 126) {
+						length = in.readUnsignedShort();
+					}
+					byte[] mask = new byte[4];
+					in.readFully(mask);
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					for (int i = 0; i < length; i++) {
+						payload[i] ^= mask[i & 3];
+					}
+					if (opcode == WebsocketConnection.OP_CLOSE) {
+						break;
+					}
+					tunnel.onMessage(ByteBuffer.wrap(payload));
+				}
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public void onOpen(TunnelStream stream, TunnelFrame.OpenRequest request) {
+			stream.setAttachment(request.getHostname());
+			stream.write(ByteBuffer.wrap((request.getHostname() + ":").getBytes()));
+		}
+
+		@Override
+		public void onData(TunnelStream stream, ByteBuffer data) {
+			int length = data.remaining();
+			stream.write(data);
+			stream.consumed(length);
+		}
+
+		@Override
+		public void onClose(TunnelStream stream) {
+		}
+
+		@Override
+		public synchronized void onWritable() {
+			ByteBuffer frame;
+			try {
+				while ((frame = tunnel.poll()) != null) {
+					int length = frame.remaining();
+					out.write(0x80 | WebsocketConnection.OP_BINARY);
+					if (length < 126) {
+						out.write(length);
+					} else {
+						out.write(126);
+						out.write(length >> 8);
+						out.write(length & 0xFF);
+					}
+					out.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+				}
+				out.flush();
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public void onDrained(TunnelStream stream) {
+		}
+	}
+
+	ServerSocket server;
+	MultiplexedTunnelClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (client != null) {
+			client.stop();
+		}
+		server.close();
+	}
+
+	MultiplexedTunnelClient createClient() throws Exception {
+		return new MultiplexedTunnelClient(new URI("http://127.0.0.1:" + server.getLocalPort()
+				+ "/hypersocket/api/tunnel"), "abc123");
+	}
+
+	@Test
+	public void connectionsAreCarriedAsStreams() throws Exception {
+
+		EchoServer echo = new EchoServer(true);
+		echo.start();
+
+		client = createClient();
+		Assert.assertTrue(client.connect());
+		client.start();
+		Assert.assertEquals("GET /hypersocket/api/tunnel?multiplex=true HTTP/1.1", echo.requestLine);
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		NetworkResource resource = new NetworkResource(1L, "app.internal", "10.0.0.1",
+				LazyForwardTests.freePort(loopback), "tunnel");
+		client.listen(resource, loopback);
+		Assert.assertEquals(resource.getPort(), resource.getLocalPort());
+
+		for (int i = 0; i < 2; i++) {
+			Socket socket = new Socket(loopback, resource.getLocalPort());
+			try {
+				socket.setSoTimeout(5000);
+				socket.getOutputStream().write(("hello " + i).getBytes());
+				String expected = "app.internal:hello " + i;
+				byte[] reply = new byte[expected.length()];
+				new DataInputStream(socket.getInputStream()).readFully(reply);
+				Assert.assertEquals(expected, new String(reply));
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	@Test
+	public void serversThatDoNotMultiplexAreRecognised() throws Exception {
+
+		new EchoServer(false).start();
+
+		client = createClient();
+		Assert.assertFalse(client.connect());
+	}
+}
@@ -0,0 +1,253 @@
+package com.hypersocket.client.service.network;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hypersocket.client.NetworkResource;
+import com.hypersocket.tunnel.DatagramBatch;
+
+public class WebsocketDatagramConnectorTests {
+
+	static class RecordingForwarder extends UdpForwarder {
+
+		BlockingQueue<ByteBuffer> messages = new LinkedBlockingQueue<ByteBuffer>();
+		CountDownLatch stopped = new CountDownLatch(1);
+
+		RecordingForwarder(NetworkResource resource) {
+			super(resource, null, 60000);
+		}
+
+		@Override
+		public void onMessage(ByteBuffer message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void stop() {
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * Accepts one websocket, echoes its first binary message and then closes
+	 * it. A CONNECT ahead of the upgrade is answered as a proxy would.
+	 */
+	class EchoServer extends Thread {
+
+		volatile String connectLine;
+		volatile String requestLine;
+		volatile String cookie;
+
+		EchoServer() {
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				Socket socket = server.accept();
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+
+				requestLine = WebsocketConnection.readLine(in);
+				if (requestLine.startsWith("CONNECT ")) {
+					connectLine = requestLine;
+					while (!WebsocketConnection.readLine(in).isEmpty()) {
+					}
+					out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes("US-ASCII"));
+					requestLine = WebsocketConnection.readLine(in);
+				}
+				String key = null;
+				String line;
+				while (!(line = WebsocketConnection.readLine(in)).isEmpty()) {
+					if (line.startsWith("Sec-WebSocket-Key:")) {
+						key = line.substring(18).trim();
+					} else if (line.startsWith("Cookie:")) {
+						cookie = line.substring(7).trim();
+					}
+				}
+				out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+						+ "Sec-WebSocket-Accept: "
+						+ Base64.encodeBase64String(DigestUtils.sha1(key + WebsocketConnection.ACCEPT_GUID))
+						+ "\r\n\r\n").getBytes("US-ASCII"));
+
+				int opcode = in.readUnsignedByte() & 0x0F;
+				int length = in.readUnsignedByte() & 0x7F;
+				byte[] mask = new byte[4];
+				in.readFully(mask);
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				for (int i = 0; i < length; i++) {
+					payload[i] ^= mask[i & 3];
+				}
+
+				out.write(0x80 | opcode);
+				out.write(length);
+				out.write(payload);
+				out.write(0x80 | WebsocketConnection.OP_CLOSE);
+				out.write(0);
+				out.flush();
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	ServerSocket server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void messagesAreExchangedOverTheWebsocket() throws Exception {
+
+		EchoServer echo = new EchoServer();
+		echo.start();
+
+		NetworkResource resource = new NetworkResource(5L, "dns.internal", "10.0.0.53", 53, "udp");
+		RecordingForwarder forwarder = new RecordingForwarder(resource);
+		WebsocketDatagramConnector connector = new WebsocketDatagramConnector(new URI("http://127.0.0.1:"
+				+ server.getLocalPort() + "/hypersocket/api/udp"), "abc123");
+
+		DatagramTunnel tunnel = connector.connect(resource, forwarder);
+		DatagramBatch batch = new DatagramBatch();
+		batch.add(1, ByteBuffer.wrap("query".getBytes()));
+		tunnel.send(batch.flush());
+
+		ByteBuffer reply = forwarder.messages.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(reply);
+		Assert.assertEquals(4 + 2 + 5, reply.remaining());
+		Assert.assertEquals(1, reply.getInt());
+
+		Assert.assertEquals("GET /hypersocket/api/udp?resourceId=5&hostname=dns.internal&port=53 HTTP/1.1",
+				echo.requestLine);
+		Assert.assertEquals("HYPERSOCKET_API_SESSION=abc123", echo.cookie);
+
+		// The server closing the websocket stops the forwarder
+		Assert.assertTrue(forwarder.stopped.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void httpProxiesAreAskedToConnect() throws Exception {
+
+		EchoServer echo = new EchoServer();
+		echo.start();
+
+		final Proxy proxy = new Proxy(Proxy.Type.HTTP, server.getLocalSocketAddress());
+		ProxySelector selector = ProxySelector.getDefault();
+		ProxySelector.setDefault(new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return Collections.singletonList(proxy);
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			}
+		});
+		try {
+			NetworkResource resource = new NetworkResource(5L, "dns.internal", "10.0.0.53", 53, "udp");
+			RecordingForwarder forwarder = new RecordingForwarder(resource);
+			WebsocketDatagramConnector connector = new WebsocketDatagramConnector(new URI(
+					"http://vpn.example.invalid:8080/hypersocket/api/udp"), "abc123");
+
+			DatagramTunnel tunnel = connector.connect(resource, forwarder);
+			tunnel.send(ByteBuffer.wrap("query".getBytes()));
+			Assert.assertNotNull(forwarder.messages.poll(5, TimeUnit.SECONDS));
+
+			Assert.assertEquals("CONNECT vpn.example.invalid:8080 HTTP/1.1", echo.connectLine);
+			Assert.assertEquals("GET /hypersocket/api/udp?resourceId=5&hostname=dns.internal&port=53 HTTP/1.1",
+					echo.requestLine);
+		} finally {
+			ProxySelector.setDefault(selector);
+		}
+	}
+
+	@Test
+	public void theSessionCookieIsTakenFromTheCookieHandler() throws Exception {
+
+		EchoServer echo = new EchoServer();
+		echo.start();
+
+		URI endpoint = new URI("http://127.0.0.1:" + server.getLocalPort() + "/hypersocket/api/udp");
+		CookieManager cookies = new CookieManager();
+		HttpCookie session = new HttpCookie("JSESSIONID", "abc123");
+		session.setVersion(0);
+		session.setPath("/");
+		cookies.getCookieStore().add(endpoint, session);
+
+		CookieHandler handler = CookieHandler.getDefault();
+		CookieHandler.setDefault(cookies);
+		try {
+			NetworkResource resource = new NetworkResource(5L, "dns.internal", "10.0.0.53", 53, "udp");
+			RecordingForwarder forwarder = new RecordingForwarder(resource);
+			DatagramTunnel tunnel = new WebsocketDatagramConnector(endpoint, "abc123").connect(resource, forwarder);
+			tunnel.send(ByteBuffer.wrap("query".getBytes()));
+			Assert.assertNotNull(forwarder.messages.poll(5, TimeUnit.SECONDS));
+
+			Assert.assertEquals("JSESSIONID=abc123", echo.cookie);
+		} finally {
+			CookieHandler.setDefault(handler);
+		}
+	}
+
+	@Test
+	public void refusedUpgradeFailsTheConnect() throws Exception {
+
+		Thread refuse = new Thread() {
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					while (!WebsocketConnection.readLine(in).isEmpty()) {
+					}
+					socket.getOutputStream().write("HTTP/1.1 403 Forbidden\r\n\r\n".getBytes("US-ASCII"));
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		refuse.setDaemon(true);
+		refuse.start();
+
+		NetworkResource resource = new NetworkResource(5L, "dns.internal", "10.0.0.53", 53, "udp");
+		WebsocketDatagramConnector connector = new WebsocketDatagramConnector(new URI("http://127.0.0.1:"
+				+ server.getLocalPort() + "/hypersocket/api/udp"), "abc123");
+		try {
+			connector.connect(resource, new RecordingForwarder(resource));
+			Assert.fail("A refused upgrade was accepted");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -4,11 +4,15 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Index;
+
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.hypersocket.resource.RealmResource;
 
 @Entity
 @Table(name="launchers")
+@org.hibernate.annotations.Table(appliesTo="launchers", indexes={ @Index(name="launchers_realm_name", columnNames={
+		"realm_id", "deleted", "name" }) })
 @JsonDeserialize(using = ApplicationLauncherResourceDeserializer.class)
 public class ApplicationLauncherResource extends RealmResource {
 
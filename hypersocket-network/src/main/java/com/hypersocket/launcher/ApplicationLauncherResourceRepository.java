@@ -1,12 +1,32 @@
 package com.hypersocket.launcher;
 
+import java.util.Collection;
+import java.util.List;
+
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractResourceRepository;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.upload.FileUpload;
 
 
 public interface ApplicationLauncherResourceRepository extends
-		AbstractResourceRepository<ApplicationLauncherResource> {
+		AbstractResourceRepository<ApplicationLauncherResource>, ResourceSearchIndex.Source {
 
 	/**
 	 * TODO rename this interface to match your entity.
 	 */
+
+	List<LauncherScripts> getScripts(Collection<Long> ids);
+
+	List<ApplicationLauncherResource> seek(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting);
+
+	List<ApplicationLauncherResource> getResourcesById(Collection<Long> ids);
+
+	void saveResources(Collection<ApplicationLauncherResource> resources);
+
+	List<ApplicationLauncherResource> getResourcesByName(Realm realm, Collection<String> names);
+
+	List<FileUpload> getFilesByUuid(Realm realm, Collection<String> uuids);
 }
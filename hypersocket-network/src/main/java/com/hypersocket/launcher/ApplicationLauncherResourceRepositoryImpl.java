@@ -1,14 +1,131 @@
 package com.hypersocket.launcher;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.hypersocket.network.KeysetCriteria;
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.repository.CriteriaConfiguration;
 import com.hypersocket.resource.AbstractResourceRepositoryImpl;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.upload.FileUpload;
 
 @Repository
 public class ApplicationLauncherResourceRepositoryImpl extends
 		AbstractResourceRepositoryImpl<ApplicationLauncherResource> implements
 		ApplicationLauncherResourceRepository {
 
+	@Override
+	@Transactional(readOnly=true)
+	@SuppressWarnings("unchecked")
+	public List<LauncherScripts> getScripts(Collection<Long> ids) {
+
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		Criteria criteria = createCriteria(ApplicationLauncherResource.class);
+		criteria.add(Restrictions.in("id", ids));
+		criteria.setProjection(Projections.projectionList()
+				.add(Projections.property("id"))
+				.add(Projections.property("modifiedDate"))
+				.add(Projections.property("startupScript"))
+				.add(Projections.property("shutdownScript"))
+				.add(Projections.property("installScript")));
+
+		List<LauncherScripts> scripts = new ArrayList<LauncherScripts>();
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			scripts.add(new LauncherScripts((Long) row[0],
+					row[1] == null ? null : ((Date) row[1]).getTime(),
+					(String) row[2], (String) row[3], (String) row[4]));
+		}
+		return scripts;
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ApplicationLauncherResource> seek(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting) {
+		return super.search(realm, searchColumn, searchPattern, 0, length,
+				KeysetCriteria.UNSORTED, KeysetCriteria.after(
+						createCriteria(ApplicationLauncherResource.class), after, sorting, null));
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ApplicationLauncherResource> getResourcesById(final Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(ApplicationLauncherResource.class, new CriteriaConfiguration() {
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.in("id", ids));
+				criteria.add(Restrictions.eq("deleted", false));
+			}
+		});
+	}
+
+	@Override
+	@Transactional
+	public void saveResources(Collection<ApplicationLauncherResource> resources) {
+		for (ApplicationLauncherResource resource : resources) {
+			saveResource(resource, new HashMap<String, String>());
+		}
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ApplicationLauncherResource> getResourcesByName(final Realm realm,
+			final Collection<String> names) {
+		if (names.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(ApplicationLauncherResource.class, new CriteriaConfiguration() {
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.eq("realm", realm));
+				criteria.add(Restrictions.in("name", names));
+				criteria.add(Restrictions.eq("deleted", false));
+			}
+		});
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<FileUpload> getFilesByUuid(final Realm realm,
+			final Collection<String> uuids) {
+		if (uuids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(FileUpload.class, new CriteriaConfiguration() {
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.eq("realm", realm));
+				criteria.add(Restrictions.in("name", uuids));
+				criteria.add(Restrictions.eq("deleted", false));
+			}
+		});
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ResourceSearchIndex.Entry> getSearchEntries(Realm realm) {
+		return ResourceSearchIndex.getEntries(
+				createCriteria(ApplicationLauncherResource.class), realm);
+	}
+
 	@Override
 	protected Class<ApplicationLauncherResource> getResourceClass() {
 		return ApplicationLauncherResource.class;
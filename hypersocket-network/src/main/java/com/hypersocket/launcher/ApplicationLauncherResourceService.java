@@ -1,18 +1,26 @@
 package com.hypersocket.launcher;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.hypersocket.network.ResourceImportJob;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractResourceService;
 import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.resource.ResourceException;
+import com.hypersocket.resource.ResourceNotFoundException;
 import com.hypersocket.tables.BootstrapTableResult;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.upload.FileUpload;
 
 
 public interface ApplicationLauncherResourceService extends
@@ -34,4 +42,28 @@ public interface ApplicationLauncherResourceService extends
 	ApplicationLauncherResource createResource(String name, Realm realm, Map<String, String> properties)
 			throws ResourceCreationException, AccessDeniedException;
 
+	/**
+	 * Get the uploads of a realm by uuid, in the order asked for.
+	 */
+	List<FileUpload> getLauncherFiles(Realm realm, Collection<String> uuids) throws ResourceNotFoundException;
+
+	Map<Long, String> getScriptDigests(Map<Long, Long> modifiedDates);
+
+	LauncherScripts getScripts(Long id) throws ResourceNotFoundException;
+
+	List<ApplicationLauncherResource> seekResources(Realm realm,
+			String searchColumn, String searchPattern, Long after, int length,
+			ColumnSort[] sorting) throws AccessDeniedException;
+
+	void exportAllResources(Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException;
+
+	ResourceImportJob startImport(File file, Realm realm, boolean dropExisting)
+			throws AccessDeniedException;
+
+	ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException;
+
+	List<ApplicationLauncherResource> getResourcesByName(Realm realm, Collection<String> names);
+
 }
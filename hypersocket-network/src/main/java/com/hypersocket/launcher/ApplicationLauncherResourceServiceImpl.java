@@ -1,8 +1,16 @@
 package com.hypersocket.launcher;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PostConstruct;
 import javax.script.Bindings;
@@ -31,7 +39,15 @@ import com.hypersocket.launcher.events.ApplicationLauncherUpdatedEvent;
 import com.hypersocket.menus.MenuRegistration;
 import com.hypersocket.menus.MenuService;
 import com.hypersocket.netty.HttpRequestDispatcherHandler;
+import com.hypersocket.network.KeysetCriteria;
 import com.hypersocket.network.NetworkResourceServiceImpl;
+import com.hypersocket.network.ResourceCountCache;
+import com.hypersocket.network.ResourceExporter;
+import com.hypersocket.network.ResourceFingerprints;
+import com.hypersocket.network.ResourceImportJob;
+import com.hypersocket.network.ResourceImportJobs;
+import com.hypersocket.network.ResourceImporter;
+import com.hypersocket.network.ResourceSearchIndex;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.PermissionCategory;
 import com.hypersocket.permissions.PermissionService;
@@ -42,8 +58,11 @@ import com.hypersocket.resource.AbstractResourceServiceImpl;
 import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.resource.ResourceException;
+import com.hypersocket.resource.ResourceNotFoundException;
 import com.hypersocket.tables.BootstrapTableResult;
+import com.hypersocket.tables.ColumnSort;
 import com.hypersocket.transactions.TransactionService;
+import com.hypersocket.upload.FileUpload;
 
 import net.sf.ehcache.transaction.TransactionException;
 
@@ -84,6 +103,24 @@ public class ApplicationLauncherResourceServiceImpl extends
 	
 	@Autowired
 	HttpUtilsImpl httpUtils;
+
+	@Autowired
+	ResourceFingerprints fingerprints;
+
+	@Autowired
+	ResourceImportJobs importJobs;
+
+	ResourceFingerprints.Fingerprint fingerprint;
+
+	final ResourceCountCache counts = new ResourceCountCache();
+
+	final ResourceSearchIndex searchIndex = new ResourceSearchIndex();
+
+	/*
+	 * Launchers are shared by many resources, so digests are kept until the
+	 * launcher is modified rather than reading the scripts for every list.
+	 */
+	ConcurrentMap<Long, LauncherScripts> scriptDigests = new ConcurrentHashMap<Long, LauncherScripts>();
 	
 	public ApplicationLauncherResourceServiceImpl() {
 		super("applicationLauncher");
@@ -94,6 +131,8 @@ public class ApplicationLauncherResourceServiceImpl extends
 
 		i18nService.registerBundle(RESOURCE_BUNDLE);
 
+		fingerprint = fingerprints.register("applicationLaunchers");
+
 		PermissionCategory cat = permissionService.registerPermissionCategory(
 				RESOURCE_BUNDLE, "category.lauchers");
 
@@ -146,9 +185,148 @@ public class ApplicationLauncherResourceServiceImpl extends
 		return ApplicationLauncherResource.class;
 	}
 
+	@Override
+	public String getFingerprint() {
+		return fingerprint.getFingerprint(getCurrentRealm());
+	}
+
+	@Override
+	public List<ApplicationLauncherResource> searchResources(Realm realm,
+			String searchColumn, String searchPattern, int start, int length,
+			ColumnSort[] sorting) throws AccessDeniedException {
+
+		assertPermission(ApplicationLauncherResourcePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn,
+				searchPattern, sorting, repository);
+		if (ids == null) {
+			return super.searchResources(realm, searchColumn, searchPattern,
+					start, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.page(ids, start, length));
+	}
+
+	@Override
+	public List<ApplicationLauncherResource> seekResources(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting)
+			throws AccessDeniedException {
+
+		assertPermission(ApplicationLauncherResourcePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn,
+				searchPattern, sorting, repository);
+		if (ids == null) {
+			return repository.seek(realm, searchColumn, searchPattern, after,
+					length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.pageAfter(ids, after, length));
+	}
+
+	@Override
+	public void exportAllResources(final Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException {
+
+		assertPermission(ApplicationLauncherResourcePermission.READ);
+
+		ResourceExporter.export(out, new ResourceExporter.Source<ApplicationLauncherResource>() {
+			@Override
+			public List<ApplicationLauncherResource> getBatch(Long after, int size) {
+				return repository.seek(realm, "", "", after, size,
+						KeysetCriteria.UNSORTED);
+			}
+
+			@Override
+			public void prepare(ApplicationLauncherResource resource) {
+				prepareExport(resource, true);
+			}
+		});
+	}
+
+	@Override
+	public ResourceImportJob startImport(File file, final Realm realm,
+			boolean dropExisting) throws AccessDeniedException {
+
+		assertPermission(ApplicationLauncherResourcePermission.CREATE);
+		if (dropExisting) {
+			assertPermission(ApplicationLauncherResourcePermission.DELETE);
+		}
+
+		return importJobs.submit(this, realm, getResourceCategory(), file,
+				dropExisting, new ResourceImporter<ApplicationLauncherResource>(
+						ApplicationLauncherResource.class, realm) {
+
+					@Override
+					protected void dropExisting() throws Exception {
+						for (ApplicationLauncherResource resource : repository.getResources(realm)) {
+							deleteResource(resource);
+						}
+					}
+
+					@Override
+					protected Collection<String> getExistingNames() {
+						return ResourceSearchIndex.getNames(repository
+								.getSearchEntries(realm));
+					}
+
+					@Override
+					protected void save(List<ApplicationLauncherResource> batch) {
+						repository.saveResources(batch);
+					}
+
+					@Override
+					protected void saved(ApplicationLauncherResource resource) {
+						fireResourceCreationEvent(resource);
+					}
+				});
+	}
+
+	@Override
+	public ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException {
+
+		assertPermission(ApplicationLauncherResourcePermission.CREATE);
+
+		return importJobs.getJob(realm, getResourceCategory(), id);
+	}
+
+	@Override
+	public List<ApplicationLauncherResource> getResourcesByName(Realm realm,
+			Collection<String> names) {
+		return repository.getResourcesByName(realm, names);
+	}
+
+	List<ApplicationLauncherResource> loadPage(List<Long> ids) {
+		return ResourceSearchIndex.inOrder(ids,
+				repository.getResourcesById(ids));
+	}
+
+	@Override
+	public Long getResourceCount(Realm realm, String searchColumn,
+			String searchPattern) throws AccessDeniedException {
+
+		assertPermission(ApplicationLauncherResourcePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn,
+				searchPattern, null, repository);
+		if (ids != null) {
+			return (long) ids.size();
+		}
+
+		String version = fingerprint.getFingerprint(realm);
+		Long count = counts.get(version, searchColumn, searchPattern);
+		if (count == null) {
+			count = super.getResourceCount(realm, searchColumn, searchPattern);
+			counts.put(version, searchColumn, searchPattern, count);
+		}
+		return count;
+	}
+
 	@Override
 	protected void fireResourceCreationEvent(
 			ApplicationLauncherResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(),
+				resource.getName());
 		eventService.publishEvent(new ApplicationLauncherCreatedEvent(this,
 				getCurrentSession(), resource));
 	}
@@ -162,6 +340,9 @@ public class ApplicationLauncherResourceServiceImpl extends
 
 	@Override
 	protected void fireResourceUpdateEvent(ApplicationLauncherResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(),
+				resource.getName());
 		eventService.publishEvent(new ApplicationLauncherUpdatedEvent(this,
 				getCurrentSession(), resource));
 	}
@@ -176,6 +357,8 @@ public class ApplicationLauncherResourceServiceImpl extends
 	@Override
 	protected void fireResourceDeletionEvent(
 			ApplicationLauncherResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.remove(resource.getRealm(), resource.getId());
 		eventService.publishEvent(new ApplicationLauncherDeletedEvent(this,
 				getCurrentSession(), resource));
 	}
@@ -312,4 +495,56 @@ public class ApplicationLauncherResourceServiceImpl extends
 		return result;
 
 	}
+
+	@Override
+	public List<FileUpload> getLauncherFiles(Realm realm, Collection<String> uuids) throws ResourceNotFoundException {
+
+		Map<String, FileUpload> found = new HashMap<String, FileUpload>();
+		for (FileUpload file : repository.getFilesByUuid(realm, uuids)) {
+			found.put(file.getName(), file);
+		}
+
+		List<FileUpload> files = new ArrayList<FileUpload>();
+		for (String uuid : uuids) {
+			FileUpload file = found.get(uuid);
+			if (file == null) {
+				throw new ResourceNotFoundException(RESOURCE_BUNDLE, "error.invalidFileUuid", uuid);
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	@Override
+	public Map<Long, String> getScriptDigests(Map<Long, Long> modifiedDates) {
+
+		Map<Long, String> digests = new HashMap<Long, String>();
+		List<Long> stale = new ArrayList<Long>();
+		for (Map.Entry<Long, Long> launcher : modifiedDates.entrySet()) {
+			LauncherScripts scripts = scriptDigests.get(launcher.getKey());
+			if (scripts != null && launcher.getValue() != null
+					&& launcher.getValue().equals(scripts.getModifiedDate())) {
+				digests.put(launcher.getKey(), scripts.getDigest());
+			} else {
+				stale.add(launcher.getKey());
+			}
+		}
+
+		for (LauncherScripts scripts : repository.getScripts(stale)) {
+			scriptDigests.put(scripts.getId(), scripts);
+			digests.put(scripts.getId(), scripts.getDigest());
+		}
+		return digests;
+	}
+
+	@Override
+	public LauncherScripts getScripts(Long id) throws ResourceNotFoundException {
+
+		List<LauncherScripts> scripts = repository.getScripts(Collections.singleton(id));
+		if (scripts.isEmpty()) {
+			throw new ResourceNotFoundException(RESOURCE_BUNDLE, "error.invalidLauncherId", id);
+		}
+		scriptDigests.put(id, scripts.get(0));
+		return scripts.get(0);
+	}
 }
@@ -0,0 +1,69 @@
+package com.hypersocket.launcher;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The scripts of a launcher, sent only to clients that are going to run them.
+ */
+public class LauncherScripts {
+
+	Long id;
+	Long modifiedDate;
+	String startupScript;
+	String shutdownScript;
+	String installScript;
+	String digest;
+
+	public LauncherScripts() {
+	}
+
+	public LauncherScripts(Long id, Long modifiedDate, String startupScript,
+			String shutdownScript, String installScript) {
+		this.id = id;
+		this.modifiedDate = modifiedDate;
+		this.startupScript = startupScript == null ? "" : startupScript;
+		this.shutdownScript = shutdownScript == null ? "" : shutdownScript;
+		this.installScript = installScript == null ? "" : installScript;
+		this.digest = digest(this.startupScript + '\0' + this.shutdownScript
+				+ '\0' + this.installScript);
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getModifiedDate() {
+		return modifiedDate;
+	}
+
+	public String getStartupScript() {
+		return startupScript;
+	}
+
+	public String getShutdownScript() {
+		return shutdownScript;
+	}
+
+	public String getInstallScript() {
+		return installScript;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	static String digest(String scripts) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			return String.format("%032x",
+					new BigInteger(1, md5.digest(scripts.getBytes("UTF-8"))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,16 +1,16 @@
 package com.hypersocket.launcher.json;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
@@ -35,6 +35,8 @@ import com.hypersocket.launcher.ApplicationLauncherResource;
 import com.hypersocket.launcher.ApplicationLauncherResourceColumns;
 import com.hypersocket.launcher.ApplicationLauncherResourceService;
 import com.hypersocket.launcher.ApplicationLauncherResourceServiceImpl;
+import com.hypersocket.network.NetworkResourceService;
+import com.hypersocket.network.ResourceImportJob;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.properties.PropertyCategory;
 import com.hypersocket.properties.json.PropertyItem;
@@ -47,7 +49,7 @@ import com.hypersocket.tables.Column;
 import com.hypersocket.tables.ColumnSort;
 import com.hypersocket.tables.BootstrapTableResult;
 import com.hypersocket.tables.json.BootstrapTablePageProcessor;
-import com.hypersocket.utils.HypersocketUtils;
+import com.hypersocket.upload.FileUpload;
 
 @Controller
 public class ApplicationLauncherResourceController extends ResourceController {
@@ -55,6 +57,9 @@ public class ApplicationLauncherResourceController extends ResourceController {
 	@Autowired
 	ApplicationLauncherResourceService resourceService;
 
+	@Autowired
+	NetworkResourceService networkService;
+
 	@AuthenticationRequired
 	@RequestMapping(value = "launchers/table", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
@@ -81,6 +86,13 @@ public class ApplicationLauncherResourceController extends ResourceController {
 								int length, ColumnSort[] sorting)
 								throws UnauthorizedException,
 								AccessDeniedException {
+							String after = request.getParameter("after");
+							if (after != null) {
+								return resourceService.seekResources(
+										sessionUtils.getCurrentRealm(request), searchColumn, searchPattern,
+										after.length() == 0 ? null : Long.valueOf(after),
+										length, sorting);
+							}
 							return resourceService.searchResources(
 									sessionUtils.getCurrentRealm(request),
 									searchColumn, searchPattern, start, length, sorting);
@@ -342,6 +354,30 @@ public class ApplicationLauncherResourceController extends ResourceController {
 		}
 	}
 
+	@AuthenticationRequired
+	@RequestMapping(value = "launchers/files", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceList<FileUpload> getLauncherFiles(
+			HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(value = "uuid") String[] uuids)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return new ResourceList<FileUpload>(
+					networkService.getPersonalLauncherFiles(
+							sessionUtils.getPrincipal(request),
+							new LinkedHashSet<String>(Arrays.asList(uuids))));
+		} catch (ResourceNotFoundException e) {
+			return new ResourceList<FileUpload>(false, e.getMessage());
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
 	@RequestMapping(value = "launchers/os", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
 	@ResponseStatus(value = HttpStatus.OK)
@@ -364,10 +400,6 @@ public class ApplicationLauncherResourceController extends ResourceController {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ resourceService.getResourceCategory() + "-"
@@ -381,23 +413,19 @@ public class ApplicationLauncherResourceController extends ResourceController {
 
 	@AuthenticationRequired
 	@RequestMapping(value = "launchers/export", method = RequestMethod.GET, produces = { "text/plain" })
-	@ResponseStatus(value = HttpStatus.OK)
-	@ResponseBody
-	public String exportLauncher(HttpServletRequest request,
+	public void exportLauncher(HttpServletRequest request,
 			HttpServletResponse response) throws AccessDeniedException,
 			UnauthorizedException, SessionTimeoutException,
-			ResourceNotFoundException, ResourceExportException {
+			ResourceNotFoundException, ResourceExportException, IOException {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ resourceService.getResourceCategory() + ".json\"");
-			return resourceService.exportAllResoures();
+			response.setContentType("text/plain; charset=UTF-8");
+			resourceService.exportAllResources(getCurrentRealm(),
+					response.getOutputStream());
 		} finally {
 			clearAuthenticatedContext();
 		}
@@ -408,7 +436,7 @@ public class ApplicationLauncherResourceController extends ResourceController {
 	@RequestMapping(value = "launchers/import", method = { RequestMethod.POST }, produces = { "application/json" })
 	@ResponseBody
 	@ResponseStatus(value = HttpStatus.OK)
-	public ResourceStatus<ApplicationLauncherResource> importLaunchers(
+	public ResourceStatus<ResourceImportJob> importLaunchers(
 			HttpServletRequest request, HttpServletResponse response,
 			@RequestParam(value = "file") MultipartFile jsonFile,
 			@RequestParam(required=false) boolean dropExisting)
@@ -417,34 +445,47 @@ public class ApplicationLauncherResourceController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
-			Thread.sleep(2000);
+			File file = File.createTempFile("import", ".json");
+			ResourceImportJob job;
+			try {
+				jsonFile.transferTo(file);
+				job = resourceService.startImport(file, getCurrentRealm(),
+						dropExisting);
+			} catch (Exception e) {
+				file.delete();
+				throw e;
+			}
+			return new ResourceStatus<ResourceImportJob>(job, I18N.getResource(
+					sessionUtils.getLocale(request),
+					ApplicationLauncherResourceServiceImpl.RESOURCE_BUNDLE, "import.started"));
 		} catch (Exception e) {
+			return new ResourceStatus<ResourceImportJob>(false, I18N.getResource(
+					sessionUtils.getLocale(request),
+					I18NServiceImpl.USER_INTERFACE_BUNDLE,
+					"resource.import.failure", e.getMessage()));
+		} finally {
+			clearAuthenticatedContext();
 		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "launchers/import/{id}", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceStatus<ResourceImportJob> getImportJob(
+			HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("id") String id) throws AccessDeniedException,
+			UnauthorizedException, SessionTimeoutException {
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
 		try {
-			String json = IOUtils.toString(jsonFile.getInputStream());
-			if (!HypersocketUtils.isValidJSON(json)) {
-				throw new ResourceException(I18NServiceImpl.USER_INTERFACE_BUNDLE,
-						"error.incorrectJSON");
+			ResourceImportJob job = resourceService.getImportJob(getCurrentRealm(), id);
+			if (job == null) {
+				return new ResourceStatus<ResourceImportJob>(false,
+						I18N.getResource(sessionUtils.getLocale(request),
+								ApplicationLauncherResourceServiceImpl.RESOURCE_BUNDLE, "import.notFound", id));
 			}
-			Collection<ApplicationLauncherResource> collects = resourceService
-					.importResources(json, getCurrentRealm(), dropExisting);
-			return new ResourceStatus<ApplicationLauncherResource>(
-					true,
-					I18N.getResource(
-							sessionUtils.getLocale(request),
-							I18NServiceImpl.USER_INTERFACE_BUNDLE,
-							"resource.import.success", collects.size()));
-		} catch (ResourceException e) {
-			return new ResourceStatus<ApplicationLauncherResource>(false,
-					e.getMessage());
-		} catch (Exception e) {
-			return new ResourceStatus<ApplicationLauncherResource>(
-					false,
-					I18N.getResource(
-							sessionUtils.getLocale(request),
-							I18NServiceImpl.USER_INTERFACE_BUNDLE,
-							"resource.import.failure",
-							e.getMessage()));
+			return new ResourceStatus<ResourceImportJob>(job, "");
 		} finally {
 			clearAuthenticatedContext();
 		}
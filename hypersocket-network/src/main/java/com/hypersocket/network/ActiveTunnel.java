@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.session.Session;
+
+/**
+ * Live state of one open tunnel. Byte counters are updated from the relay
+ * threads, while the rates are recalculated by {@link NetworkTunnelMonitor}
+ * on each sample. Tunnels that are not counted only learn their totals when
+ * they close, so until then they have no totals or rates.
+ */
+public class ActiveTunnel {
+
+	final long id;
+	final NetworkResource resource;
+	final Session session;
+	final String hostname;
+	final int port;
+	final ForwardingTransport transport;
+	final boolean counted;
+	final long opened = System.currentTimeMillis();
+
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong bytesOut = new AtomicLong();
+
+	long lastSample = opened;
+	long lastBytesIn;
+	long lastBytesOut;
+	long lastProgress = opened;
+	volatile long bytesInPerSecond;
+	volatile long bytesOutPerSecond;
+
+	ActiveTunnel(long id, NetworkResource resource, Session session,
+			String hostname, int port, ForwardingTransport transport,
+			boolean counted) {
+		this.id = id;
+		this.resource = resource;
+		this.session = session;
+		this.hostname = hostname;
+		this.port = port;
+		this.transport = transport;
+		this.counted = counted;
+	}
+
+	public void addBytesIn(long bytes) {
+		bytesIn.addAndGet(bytes);
+	}
+
+	public void addBytesOut(long bytes) {
+		bytesOut.addAndGet(bytes);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Long getResourceId() {
+		return resource.getId();
+	}
+
+	public String getResourceName() {
+		return resource.getName();
+	}
+
+	public String getPrincipalName() {
+		return session.getCurrentPrincipal().getName();
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public ForwardingTransport getTransport() {
+		return transport;
+	}
+
+	public long getOpened() {
+		return opened;
+	}
+
+	/**
+	 * Get whether the byte counters and rates are updated while the tunnel is
+	 * open.
+	 */
+	public boolean isCounted() {
+		return counted;
+	}
+
+	public long getTotalBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getTotalBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getBytesInPerSecond() {
+		return bytesInPerSecond;
+	}
+
+	public long getBytesOutPerSecond() {
+		return bytesOutPerSecond;
+	}
+
+	@JsonIgnore
+	public NetworkResource getResource() {
+		return resource;
+	}
+
+	@JsonIgnore
+	public Session getSession() {
+		return session;
+	}
+}
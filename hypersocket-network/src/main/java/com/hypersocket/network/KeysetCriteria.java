@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Collection;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import com.hypersocket.repository.CriteriaConfiguration;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.tables.Sort;
+
+/**
+ * Seeks a page of a resource table from the last row of the previous page,
+ * ordering by the sort column and then by id. Unlike an offset, the database
+ * can go straight to the page through the index, so a deep page costs the
+ * same as the first.
+ * <p>
+ * Nulls are taken to sort first, as they do on MySQL.
+ * <p>
+ * A page after a row that no longer exists fails with a
+ * {@link PageAnchorNotFoundException}, as its sort value, and so where the
+ * page starts, is gone with it. Seeking in id order needs no anchor row.
+ */
+public class KeysetCriteria implements CriteriaConfiguration {
+
+	/**
+	 * Pass as the sorting of a search that is configured with a
+	 * {@link KeysetCriteria}, which does its own ordering. Passed as the
+	 * sorting of a keyset page, pages in id order.
+	 */
+	public static final ColumnSort[] UNSORTED = new ColumnSort[0];
+
+	static final String DEFAULT_COLUMN = "name";
+	static final String ID_COLUMN = "id";
+
+	final String column;
+	final boolean descending;
+	final Long id;
+	final Object value;
+	final Collection<Long> ids;
+
+	KeysetCriteria(String column, boolean descending, Long id, Object value,
+			Collection<Long> ids) {
+		this.column = column;
+		this.descending = descending;
+		this.id = id;
+		this.value = value;
+		this.ids = ids;
+	}
+
+	/**
+	 * Create the criteria for the page after a row.
+	 *
+	 * @param anchor an empty criteria of the resource class, used to read the
+	 *            sort value of the row
+	 * @param after the id of the last row of the previous page, or
+	 *            <code>null</code> for the first page
+	 * @param sorting the sorting of the table, or {@link #UNSORTED} for id
+	 *            order
+	 * @param ids restrict the page to these resources, or <code>null</code>
+	 * @throws PageAnchorNotFoundException if the row no longer exists
+	 */
+	public static KeysetCriteria after(Criteria anchor, Long after,
+			ColumnSort[] sorting, Collection<Long> ids) {
+
+		String column = sorting == UNSORTED ? ID_COLUMN : DEFAULT_COLUMN;
+		boolean descending = false;
+		if (sorting != null && sorting.length > 0) {
+			column = sorting[0].getColumn().getColumnName();
+			descending = sorting[0].getSort() == Sort.DESC;
+		}
+
+		if (after == null || column.equals(ID_COLUMN)) {
+			return new KeysetCriteria(column, descending, after, after, ids);
+		}
+
+		anchor.add(Restrictions.eq("id", after));
+		anchor.setProjection(Projections.projectionList()
+				.add(Projections.id()).add(Projections.property(column)));
+		Object[] row = (Object[]) anchor.uniqueResult();
+		if (row == null) {
+			throw new PageAnchorNotFoundException(after);
+		}
+		return new KeysetCriteria(column, descending, after, row[1], ids);
+	}
+
+	@Override
+	public void configure(Criteria criteria) {
+
+		if (ids != null) {
+			criteria.add(Restrictions.in("id", ids));
+		}
+		if (id != null) {
+			criteria.add(descending ? before() : after());
+		}
+		if (!column.equals(ID_COLUMN)) {
+			criteria.addOrder(descending ? Order.desc(column) : Order.asc(column));
+		}
+		criteria.addOrder(descending ? Order.desc("id") : Order.asc("id"));
+	}
+
+	Criterion after() {
+		if (column.equals(ID_COLUMN)) {
+			return Restrictions.gt("id", id);
+		}
+		if (value == null) {
+			return Restrictions.or(Restrictions.isNotNull(column),
+					Restrictions.gt("id", id));
+		}
+		return Restrictions.or(Restrictions.gt(column, value), Restrictions
+				.and(Restrictions.eq(column, value), Restrictions.gt("id", id)));
+	}
+
+	Criterion before() {
+		if (column.equals(ID_COLUMN)) {
+			return Restrictions.lt("id", id);
+		}
+		if (value == null) {
+			return Restrictions.and(Restrictions.isNull(column),
+					Restrictions.lt("id", id));
+		}
+		return Restrictions.or(Restrictions.or(Restrictions.lt(column, value),
+				Restrictions.isNull(column)), Restrictions.and(
+				Restrictions.eq(column, value), Restrictions.lt("id", id)));
+	}
+}
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.network.events.NetworkResourceDeletedEvent;
+import com.hypersocket.network.events.NetworkResourceEvent;
+
+/**
+ * Network resources assigned to each principal. Protocols and launchers do
+ * not decide who a resource is assigned to, so changes to them leave the
+ * cache alone.
+ */
+@Component
+public class NetworkPersonalResourceCache extends PersonalResourceCache {
+
+	@Override
+	protected void onResourceEvent(SystemEvent event) {
+
+		if (event instanceof NetworkResourceDeletedEvent) {
+			removed(((NetworkResourceEvent) event).getNetworkResource());
+		} else if (event instanceof NetworkResourceEvent) {
+			changed(((NetworkResourceEvent) event).getNetworkResource());
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.server.forward.ForwardingTransport;
+
+/**
+ * Immutable index of the port ranges covered by a set of
+ * {@link NetworkProtocol}s. Ranges are compiled into sorted, non-overlapping
+ * intervals for each transport so a lookup is a binary search that does not
+ * allocate. Protocols using {@link ForwardingTransport#BOTH} are merged into the
+ * TCP and UDP intervals. Where protocols overlap, the one with the narrowest
+ * range owns the overlapping ports.
+ */
+public final class NetworkPortIndex {
+
+	public static final NetworkPortIndex EMPTY = new NetworkPortIndex(
+			Intervals.EMPTY, Intervals.EMPTY, Intervals.EMPTY);
+
+	final Intervals tcp;
+	final Intervals udp;
+	final Intervals both;
+
+	private NetworkPortIndex(Intervals tcp, Intervals udp, Intervals both) {
+		this.tcp = tcp;
+		this.udp = udp;
+		this.both = both;
+	}
+
+	public static NetworkPortIndex compile(Collection<NetworkProtocol> protocols) {
+
+		if (protocols == null || protocols.isEmpty()) {
+			return EMPTY;
+		}
+
+		List<NetworkProtocol> tcp = new ArrayList<NetworkProtocol>();
+		List<NetworkProtocol> udp = new ArrayList<NetworkProtocol>();
+		List<NetworkProtocol> both = new ArrayList<NetworkProtocol>();
+
+		for (NetworkProtocol protocol : protocols) {
+			if (protocol == null || protocol.getTransport() == null
+					|| protocol.getStartPort() == null) {
+				continue;
+			}
+			switch (protocol.getTransport()) {
+			case TCP:
+				tcp.add(protocol);
+				break;
+			case UDP:
+				udp.add(protocol);
+				break;
+			default:
+				tcp.add(protocol);
+				udp.add(protocol);
+				both.add(protocol);
+				break;
+			}
+		}
+
+		return new NetworkPortIndex(Intervals.compile(tcp),
+				Intervals.compile(udp), Intervals.compile(both));
+	}
+
+	/**
+	 * Find the protocol that authorizes a port on a transport.
+	 *
+	 * @return the protocol or <code>null</code> if the port is not covered
+	 */
+	public NetworkProtocol getProtocol(int port, ForwardingTransport transport) {
+		switch (transport) {
+		case TCP:
+			return tcp.find(port);
+		case UDP:
+			return udp.find(port);
+		default:
+			return both.find(port);
+		}
+	}
+
+	public boolean isEmpty() {
+		return tcp.size() == 0 && udp.size() == 0;
+	}
+
+	/**
+	 * Number of compiled intervals for a transport.
+	 */
+	public int getIntervalCount(ForwardingTransport transport) {
+		switch (transport) {
+		case TCP:
+			return tcp.size();
+		case UDP:
+			return udp.size();
+		default:
+			return both.size();
+		}
+	}
+
+	static final class Intervals {
+
+		static final Intervals EMPTY = new Intervals(new int[0], new int[0],
+				new NetworkProtocol[0]);
+
+		final int[] starts;
+		final int[] ends;
+		final NetworkProtocol[] protocols;
+
+		Intervals(int[] starts, int[] ends, NetworkProtocol[] protocols) {
+			this.starts = starts;
+			this.ends = ends;
+			this.protocols = protocols;
+		}
+
+		int size() {
+			return starts.length;
+		}
+
+		NetworkProtocol find(int port) {
+			int low = 0;
+			int high = starts.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (port < starts[mid]) {
+					high = mid - 1;
+				} else if (port > ends[mid]) {
+					low = mid + 1;
+				} else {
+					return protocols[mid];
+				}
+			}
+			return null;
+		}
+
+		static Intervals compile(List<NetworkProtocol> protocols) {
+
+			if (protocols.isEmpty()) {
+				return EMPTY;
+			}
+
+			/*
+			 * Every start and every (end + 1) is a boundary. Between two
+			 * adjacent boundaries the set of covering protocols cannot change,
+			 * so each elementary segment resolves to a single owner.
+			 */
+			int[] bounds = new int[protocols.size() * 2];
+			int n = 0;
+			for (NetworkProtocol protocol : protocols) {
+				bounds[n++] = startOf(protocol);
+				bounds[n++] = endOf(protocol) + 1;
+			}
+			Arrays.sort(bounds);
+
+			int[] starts = new int[bounds.length];
+			int[] ends = new int[bounds.length];
+			NetworkProtocol[] owners = new NetworkProtocol[bounds.length];
+			int count = 0;
+
+			for (int i = 0; i < bounds.length - 1; i++) {
+				if (bounds[i] == bounds[i + 1]) {
+					continue;
+				}
+				int segmentStart = bounds[i];
+				int segmentEnd = bounds[i + 1] - 1;
+				NetworkProtocol owner = ownerOf(protocols, segmentStart);
+				if (owner == null) {
+					continue;
+				}
+				if (count > 0 && owners[count - 1] == owner
+						&& ends[count - 1] + 1 == segmentStart) {
+					ends[count - 1] = segmentEnd;
+				} else {
+					starts[count] = segmentStart;
+					ends[count] = segmentEnd;
+					owners[count] = owner;
+					count++;
+				}
+			}
+
+			return new Intervals(Arrays.copyOf(starts, count), Arrays.copyOf(
+					ends, count), Arrays.copyOf(owners, count));
+		}
+
+		static NetworkProtocol ownerOf(List<NetworkProtocol> protocols, int port) {
+			NetworkProtocol owner = null;
+			for (NetworkProtocol protocol : protocols) {
+				if (port < startOf(protocol) || port > endOf(protocol)) {
+					continue;
+				}
+				if (owner == null || isPreferred(protocol, owner)) {
+					owner = protocol;
+				}
+			}
+			return owner;
+		}
+
+		static boolean isPreferred(NetworkProtocol protocol, NetworkProtocol owner) {
+			int width = endOf(protocol) - startOf(protocol);
+			int ownerWidth = endOf(owner) - startOf(owner);
+			if (width != ownerWidth) {
+				return width < ownerWidth;
+			}
+			/*
+			 * Equal ranges; fall back to the id so the owner does not depend on
+			 * the iteration order of the protocol set.
+			 */
+			if (protocol.getId() == null) {
+				return false;
+			}
+			return owner.getId() == null
+					|| protocol.getId().longValue() < owner.getId().longValue();
+		}
+
+		static int startOf(NetworkProtocol protocol) {
+			return protocol.getStartPort().intValue();
+		}
+
+		static int endOf(NetworkProtocol protocol) {
+			Integer end = protocol.getEndPort();
+			if (end == null || end.intValue() < protocol.getStartPort().intValue()) {
+				return protocol.getStartPort().intValue();
+			}
+			return end.intValue();
+		}
+	}
+}
@@ -17,9 +17,17 @@ import javax.persistence.FetchType;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+import org.hibernate.annotations.Index;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
@@ -30,6 +38,10 @@ import com.hypersocket.server.forward.ForwardingTransport;
 
 @Entity
 @Table(name = "network_resources")
+@org.hibernate.annotations.Table(appliesTo = "network_resources", indexes = {
+		@Index(name = "network_resources_realm_name", columnNames = { "realm_id", "deleted", "name" }),
+		@Index(name = "network_resources_realm_hostname", columnNames = { "realm_id", "deleted", "hostname" }),
+		@Index(name = "network_resources_realm_destination", columnNames = { "realm_id", "deleted", "destination" }) })
 @JsonDeserialize(using=NetworkResourceDeserializer.class)
 public class NetworkResource extends ForwardingResource {
 
@@ -41,17 +53,27 @@ public class NetworkResource extends ForwardingResource {
 
 	@ManyToMany(fetch = FetchType.EAGER, cascade = { CascadeType.PERSIST,
 			CascadeType.MERGE })
+	@Fetch(FetchMode.SELECT)
+	@BatchSize(size = NetworkResourceFetch.BATCH_SIZE)
 	@JoinTable(name = "network_resource_protocols", joinColumns = { @JoinColumn(name = "resource_id") }, inverseJoinColumns = { @JoinColumn(name = "protocol_id") })
 	Set<NetworkProtocol> protocols = new HashSet<NetworkProtocol>();
 
 	@ManyToMany(fetch = FetchType.EAGER, cascade = { CascadeType.PERSIST,
 			CascadeType.MERGE })
+	@Fetch(FetchMode.SELECT)
+	@BatchSize(size = NetworkResourceFetch.BATCH_SIZE)
 	@JoinTable(name = "network_resource_launchers", joinColumns = { @JoinColumn(name = "resource_id") }, inverseJoinColumns = { @JoinColumn(name = "launcher_id") })
 	Set<ApplicationLauncherResource> launchers = new HashSet<ApplicationLauncherResource>();
 	
 	@Column(name = "logo")
 	String logo;
 
+	@Transient
+	transient volatile NetworkPortIndex portIndex;
+
+	@Transient
+	transient int portIndexSize;
+
 	public String getHostname() {
 		return hostname;
 	}
@@ -88,6 +110,7 @@ public class NetworkResource extends ForwardingResource {
 
 	public void setProtocols(Set<NetworkProtocol> protocols) {
 		this.protocols = protocols;
+		this.portIndex = null;
 	}
 
 	public Set<ApplicationLauncherResource> getLaunchers() {
@@ -111,24 +134,32 @@ public class NetworkResource extends ForwardingResource {
 
 	public NetworkProtocol getNetworkProtocol(Integer port,
 			ForwardingTransport transport) {
-		for (NetworkProtocol protocol : getProtocols()) {
-
-			if (protocol.getTransport() == transport
-					|| protocol.getTransport() == ForwardingTransport.BOTH) {
-				if (protocol.getEndPort() != null) {
-					if (protocol.getStartPort().intValue() >= port.intValue()
-							&& port.intValue() <= protocol.getEndPort()
-									.intValue()) {
-						return protocol;
-					}
-				} else {
-					if (protocol.getStartPort().equals(port)) {
-						return protocol;
-					}
-				}
-			}
+		return getPortIndex().getProtocol(port.intValue(), transport);
+	}
+
+	/**
+	 * The compiled port index of this resource's protocols. This is built on
+	 * first use after the entity is loaded or saved, its protocols are set, or
+	 * protocols are added to or removed from the set in place. Replacing one
+	 * protocol with another in place should be followed by
+	 * {@link #setProtocols(Set)}.
+	 */
+	@JsonIgnore
+	public NetworkPortIndex getPortIndex() {
+		NetworkPortIndex index = portIndex;
+		int size = protocols == null ? 0 : protocols.size();
+		if (index == null || size != portIndexSize) {
+			portIndexSize = size;
+			portIndex = index = NetworkPortIndex.compile(protocols);
 		}
-		return null;
+		return index;
+	}
+
+	@PostLoad
+	@PostPersist
+	@PostUpdate
+	void resetPortIndex() {
+		portIndex = null;
 	}
 
 }
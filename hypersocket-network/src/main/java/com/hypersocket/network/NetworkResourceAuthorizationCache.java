@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.network.events.NetworkResourceEvent;
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.protocols.events.NetworkProtocolEvent;
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.events.GroupEvent;
+import com.hypersocket.realm.events.UserEvent;
+import com.hypersocket.role.events.RoleEvent;
+import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.session.Session;
+import com.hypersocket.session.events.SessionClosedEvent;
+
+/**
+ * Holds a snapshot of the endpoints each session is authorized to tunnel to,
+ * so that tunnel admission does not have to resolve role assignments on every
+ * open. A snapshot is computed on the first tunnel request of a session, for
+ * the principal the session is acting as, and dropped when the session closes
+ * or when any endpoint, protocol, role, group or user changes.
+ */
+@Component
+public class NetworkResourceAuthorizationCache implements
+		ApplicationListener<SystemEvent> {
+
+	static Logger log = LoggerFactory
+			.getLogger(NetworkResourceAuthorizationCache.class);
+
+	ConcurrentMap<String, AuthorizedEndpoints> sessions = new ConcurrentHashMap<String, AuthorizedEndpoints>();
+	/*
+	 * Incremented on every invalidation so a snapshot computed while an
+	 * invalidation happened is not stored.
+	 */
+	long generation;
+
+	public AuthorizedEndpoints getAuthorizedEndpoints(Session session,
+			NetworkResourceService networkService) {
+
+		Principal principal = session.getCurrentPrincipal();
+		AuthorizedEndpoints endpoints = sessions.get(session.getId());
+		if (endpoints == null || !endpoints.principalId.equals(principal.getId())) {
+			long stamp = getStamp();
+			endpoints = new AuthorizedEndpoints(principal.getId(),
+					networkService.getResources(principal));
+			install(session.getId(), endpoints, stamp);
+			if (log.isDebugEnabled()) {
+				log.debug("Compiled " + endpoints.size()
+						+ " authorized endpoints for session " + session.getId());
+			}
+		}
+		return endpoints;
+	}
+
+	synchronized long getStamp() {
+		return generation;
+	}
+
+	synchronized void install(String sessionId, AuthorizedEndpoints endpoints,
+			long stamp) {
+		if (stamp == generation) {
+			sessions.put(sessionId, endpoints);
+		}
+	}
+
+	public synchronized void invalidate() {
+		generation++;
+		sessions.clear();
+	}
+
+	void remove(String sessionId) {
+		sessions.remove(sessionId);
+	}
+
+	@Override
+	public void onApplicationEvent(SystemEvent event) {
+
+		if (event instanceof SessionClosedEvent) {
+			remove(((SessionClosedEvent) event).getSession().getId());
+		} else if (event.isSuccess()
+				&& (event instanceof NetworkResourceEvent
+						|| event instanceof NetworkProtocolEvent
+						|| event instanceof RoleEvent
+						|| event instanceof GroupEvent
+						|| event instanceof UserEvent)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Invalidating authorized endpoints after "
+						+ event.getResourceKey());
+			}
+			invalidate();
+		}
+	}
+
+	/**
+	 * Immutable map of resource id to the compiled port index of an endpoint
+	 * the session's principal is assigned to.
+	 */
+	public static final class AuthorizedEndpoints {
+
+		final Long principalId;
+		final Map<Long, NetworkResource> resources;
+		final Map<Long, NetworkPortIndex> ports;
+
+		AuthorizedEndpoints(Long principalId, Iterable<NetworkResource> resources) {
+			this.principalId = principalId;
+			Map<Long, NetworkResource> byId = new HashMap<Long, NetworkResource>();
+			Map<Long, NetworkPortIndex> ports = new HashMap<Long, NetworkPortIndex>();
+			for (NetworkResource resource : resources) {
+				byId.put(resource.getId(), resource);
+				ports.put(resource.getId(), resource.getPortIndex());
+			}
+			this.resources = Collections.unmodifiableMap(byId);
+			this.ports = Collections.unmodifiableMap(ports);
+		}
+
+		public boolean isAuthorized(Long resourceId) {
+			return ports.containsKey(resourceId);
+		}
+
+		/**
+		 * Get an authorized endpoint, or <code>null</code> if the session may
+		 * not tunnel to it.
+		 */
+		public NetworkResource getResource(Long resourceId) {
+			return resources.get(resourceId);
+		}
+
+		public NetworkProtocol getProtocol(Long resourceId, int port,
+				ForwardingTransport transport) {
+			NetworkPortIndex index = ports.get(resourceId);
+			return index == null ? null : index.getProtocol(port, transport);
+		}
+
+		public int size() {
+			return ports.size();
+		}
+	}
+}
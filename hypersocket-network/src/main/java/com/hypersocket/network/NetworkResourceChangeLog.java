@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.launcher.events.ApplicationLauncherCreatedEvent;
+import com.hypersocket.launcher.events.ApplicationLauncherEvent;
+import com.hypersocket.network.events.NetworkResourceEvent;
+import com.hypersocket.protocols.events.NetworkProtocolCreatedEvent;
+import com.hypersocket.protocols.events.NetworkProtocolEvent;
+import com.hypersocket.role.events.RoleEvent;
+
+/**
+ * Change log of network resources. A protocol or launcher is shared by any
+ * number of resources and a role change alters who is assigned what, so
+ * those reset the log rather than being traced to the resources affected.
+ */
+@Component
+public class NetworkResourceChangeLog extends ResourceChangeLog {
+
+	@Override
+	protected void onResourceEvent(SystemEvent event) {
+
+		if (event instanceof NetworkResourceEvent) {
+			NetworkResource resource = ((NetworkResourceEvent) event)
+					.getNetworkResource();
+			changed(resource.getRealm(), resource.getId());
+		} else if ((event instanceof NetworkProtocolEvent && !(event instanceof NetworkProtocolCreatedEvent))
+				|| (event instanceof ApplicationLauncherEvent && !(event instanceof ApplicationLauncherCreatedEvent))
+				|| event instanceof RoleEvent) {
+			reset();
+		}
+	}
+
+	@Override
+	protected String getResourceCategory() {
+		return "networkResources";
+	}
+}
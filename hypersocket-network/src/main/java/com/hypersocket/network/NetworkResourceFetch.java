@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+
+import com.hypersocket.repository.CriteriaConfiguration;
+
+/**
+ * How the protocols and launchers of network resources are fetched by a
+ * query. Both collections are batch fetched by default, {@link #BATCH_SIZE}
+ * resources to a statement, so a query of resources costs one statement for
+ * the resources and one per collection, rather than one per resource.
+ */
+public class NetworkResourceFetch implements CriteriaConfiguration {
+
+	/**
+	 * Resources whose collections are loaded by one statement. At least the
+	 * largest page the resource table shows.
+	 */
+	public static final int BATCH_SIZE = 100;
+
+	/**
+	 * A page of the resource table. Nothing is joined, as a joined collection
+	 * would be counted against the page size.
+	 */
+	public static final NetworkResourceFetch TABLE = new NetworkResourceFetch(
+			FetchMode.SELECT, FetchMode.SELECT);
+
+	/**
+	 * A principal's resources for a client. Protocols are joined, launchers
+	 * batch fetched, so the two collections do not multiply the rows.
+	 */
+	public static final NetworkResourceFetch SYNC = new NetworkResourceFetch(
+			FetchMode.JOIN, FetchMode.SELECT);
+
+	/**
+	 * A single resource, with everything joined.
+	 */
+	public static final NetworkResourceFetch DETAIL = new NetworkResourceFetch(
+			FetchMode.JOIN, FetchMode.JOIN);
+
+	final FetchMode protocols;
+	final FetchMode launchers;
+
+	NetworkResourceFetch(FetchMode protocols, FetchMode launchers) {
+		this.protocols = protocols;
+		this.launchers = launchers;
+	}
+
+	@Override
+	public void configure(Criteria criteria) {
+		criteria.setFetchMode("protocols", protocols);
+		criteria.setFetchMode("launchers", launchers);
+		if (protocols == FetchMode.JOIN || launchers == FetchMode.JOIN) {
+			criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+		}
+	}
+}
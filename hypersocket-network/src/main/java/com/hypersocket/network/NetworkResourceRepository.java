@@ -7,9 +7,22 @@
  ******************************************************************************/
 package com.hypersocket.network;
 
+import java.util.Collection;
+import java.util.List;
+
+import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractAssignableResourceRepository;
+import com.hypersocket.tables.ColumnSort;
 
 public interface NetworkResourceRepository extends
-		AbstractAssignableResourceRepository<NetworkResource> {
+		AbstractAssignableResourceRepository<NetworkResource>, ResourceSearchIndex.Source {
+
+	List<NetworkResource> getResourcesById(Collection<Long> ids);
+
+	void saveResources(Collection<NetworkResource> resources);
+
+	List<PersonalNetworkResource> getPersonalResources(Collection<Long> ids);
 
+	List<NetworkResource> seek(Realm realm, Collection<Long> ids, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting);
 }
@@ -7,13 +7,23 @@
  ******************************************************************************/
 package com.hypersocket.network;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Criteria;
-import org.hibernate.FetchMode;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.hypersocket.launcher.ApplicationLauncherOS;
 import com.hypersocket.realm.Realm;
 import com.hypersocket.repository.CriteriaConfiguration;
 import com.hypersocket.resource.AbstractAssignableResourceRepositoryImpl;
@@ -24,19 +34,142 @@ public class NetworkResourceRepositoryImpl extends
 		AbstractAssignableResourceRepositoryImpl<NetworkResource> implements
 		NetworkResourceRepository {
 
+	static final String DEFAULT_LOGO = "logo://100_autotype_autotype_auto.png";
+
 	@Override
 	@Transactional(readOnly=true)
 	public List<NetworkResource> search(Realm realm, String searchColumn, String searchPattern,
 			int start, int length, ColumnSort[] sorting, CriteriaConfiguration... configs) {
-		return super.search(realm, searchColumn, searchPattern, start, length, sorting, new CriteriaConfiguration() {
+		return super.search(realm, searchColumn, searchPattern, start, length, sorting, NetworkResourceFetch.TABLE);
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<NetworkResource> seek(Realm realm, Collection<Long> ids, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting) {
+		return super.search(realm, searchColumn, searchPattern, 0, length, KeysetCriteria.UNSORTED,
+				NetworkResourceFetch.TABLE,
+				KeysetCriteria.after(createCriteria(NetworkResource.class), after, sorting, ids));
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ResourceSearchIndex.Entry> getSearchEntries(Realm realm) {
+		return ResourceSearchIndex.getEntries(createCriteria(NetworkResource.class), realm, "hostname",
+				"destinationHostname");
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public NetworkResource getResourceById(Long id) {
+		Criteria criteria = createCriteria(NetworkResource.class);
+		criteria.add(Restrictions.eq("id", id));
+		NetworkResourceFetch.DETAIL.configure(criteria);
+		return (NetworkResource) criteria.uniqueResult();
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<NetworkResource> getResourcesById(final Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(NetworkResource.class, NetworkResourceFetch.SYNC, new CriteriaConfiguration() {
 			@Override
 			public void configure(Criteria criteria) {
-				criteria.setFetchMode("protocols", FetchMode.SELECT);
+				criteria.add(Restrictions.in("id", ids));
+				criteria.add(Restrictions.eq("deleted", false));
 			}
 		});
 	}
 
-	
+	@Override
+	@Transactional
+	public void saveResources(Collection<NetworkResource> resources) {
+		for (NetworkResource resource : resources) {
+			saveResource(resource, new HashMap<String, String>());
+		}
+	}
+
+	/**
+	 * Three queries of columns, one each for the resources, their protocols and
+	 * their launchers, so no entity or launcher script is loaded.
+	 */
+	@Override
+	@Transactional(readOnly=true)
+	@SuppressWarnings("unchecked")
+	public List<PersonalNetworkResource> getPersonalResources(Collection<Long> ids) {
+
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		Map<Long, PersonalNetworkResource> resources = new LinkedHashMap<Long, PersonalNetworkResource>();
+
+		Criteria criteria = createCriteria(NetworkResource.class);
+		criteria.add(Restrictions.in("id", ids));
+		criteria.add(Restrictions.eq("deleted", false));
+		criteria.addOrder(Order.asc("name"));
+		criteria.setProjection(Projections.projectionList()
+				.add(Projections.property("id"))
+				.add(Projections.property("name"))
+				.add(Projections.property("hostname"))
+				.add(Projections.property("destinationHostname"))
+				.add(Projections.property("logo"))
+				.add(Projections.property("modifiedDate")));
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			resources.put((Long) row[0], new PersonalNetworkResource((Long) row[0], (String) row[1],
+					(String) row[2], (String) row[3], row[4] == null ? DEFAULT_LOGO : (String) row[4], getTime(row[5])));
+		}
+
+		if (resources.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		criteria = createCriteria(NetworkResource.class);
+		criteria.createAlias("protocols", "p");
+		criteria.add(Restrictions.in("id", resources.keySet()));
+		criteria.setProjection(Projections.projectionList()
+				.add(Projections.property("id"))
+				.add(Projections.property("p.id"))
+				.add(Projections.property("p.name"))
+				.add(Projections.property("p.transport"))
+				.add(Projections.property("p.startPort"))
+				.add(Projections.property("p.endPort"))
+				.add(Projections.property("p.modifiedDate")));
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			resources.get(row[0]).getProtocols().add(new PersonalNetworkResource.Protocol((Long) row[1],
+					(String) row[2], String.valueOf(row[3]), (Integer) row[4], (Integer) row[5], getTime(row[6])));
+		}
+
+		criteria = createCriteria(NetworkResource.class);
+		criteria.createAlias("launchers", "l");
+		criteria.add(Restrictions.in("id", resources.keySet()));
+		criteria.setProjection(Projections.projectionList()
+				.add(Projections.property("id"))
+				.add(Projections.property("l.id"))
+				.add(Projections.property("l.name"))
+				.add(Projections.property("l.exe"))
+				.add(Projections.property("l.args"))
+				.add(Projections.property("l.logo"))
+				.add(Projections.property("l.os"))
+				.add(Projections.property("l.files"))
+				.add(Projections.property("l.modifiedDate")));
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			ApplicationLauncherOS os = (ApplicationLauncherOS) row[6];
+			resources.get(row[0]).getLaunchers().add(new PersonalNetworkResource.Launcher((Long) row[1],
+					(String) row[2], (String) row[3], (String) row[4],
+					row[5] == null ? DEFAULT_LOGO : (String) row[5],
+					os == null ? "" : os.getFamily(), os == null ? "" : os.getVersion(), (String) row[7],
+					getTime(row[8])));
+		}
+
+		return new ArrayList<PersonalNetworkResource>(resources.values());
+	}
+
+	static Long getTime(Object date) {
+		return date == null ? null : ((Date) date).getTime();
+	}
 
 	@Override
 	protected Class<NetworkResource> getResourceClass() {
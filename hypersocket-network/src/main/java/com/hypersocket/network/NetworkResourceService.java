@@ -7,18 +7,27 @@
  ******************************************************************************/
 package com.hypersocket.network;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import com.hypersocket.launcher.ApplicationLauncherResource;
+import com.hypersocket.launcher.LauncherScripts;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.Role;
 import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.realm.Principal;
 import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractAssignableResourceService;
 import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.resource.ResourceNotFoundException;
 import com.hypersocket.server.forward.ForwardingService;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.upload.FileUpload;
 
 public interface NetworkResourceService extends
 		ForwardingService<NetworkResource>,
@@ -38,4 +47,56 @@ public interface NetworkResourceService extends
 	
 	NetworkResource getResourceById(Long id) throws ResourceNotFoundException, AccessDeniedException;
 
+	Collection<ActiveTunnel> getActiveTunnels() throws AccessDeniedException;
+
+	/**
+	 * Get the page of the resource table after a row, ordered by the sort
+	 * column and then id.
+	 *
+	 * @param after the id of the last row of the previous page, or
+	 *            <code>null</code> for the first page
+	 */
+	List<NetworkResource> seekResources(Realm realm, String searchColumn, String searchPattern, Long after,
+			int length, ColumnSort[] sorting) throws AccessDeniedException;
+
+	/**
+	 * Write every resource of a realm to a stream as a JSON export, a batch at a
+	 * time.
+	 */
+	void exportAllResources(Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException;
+
+	/**
+	 * Start importing a JSON export in the background. The file is deleted
+	 * once it has been imported.
+	 */
+	ResourceImportJob startImport(File file, Realm realm, boolean dropExisting)
+			throws AccessDeniedException;
+
+	ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException;
+
+	List<NetworkResource> seekPersonalResources(Principal principal, String searchColumn, String searchPattern,
+			Long after, int length, ColumnSort[] sorting);
+
+	ResourceChanges<NetworkResource> getPersonalChanges(Principal principal,
+			String token) throws AccessDeniedException;
+
+	String getPersonalETag(Principal principal);
+
+	Collection<PersonalNetworkResource> getPersonalResources(Principal principal);
+
+	ResourceChanges<PersonalNetworkResource> getPersonalResourceChanges(
+			Principal principal, String token);
+
+	LauncherScripts getPersonalLauncherScripts(Principal principal, Long id)
+			throws ResourceNotFoundException;
+
+	/**
+	 * Get the uploads of the launchers assigned to a principal, failing if
+	 * any uuid is not a file of one of them.
+	 */
+	List<FileUpload> getPersonalLauncherFiles(Principal principal,
+			Collection<String> uuids) throws ResourceNotFoundException;
+
 }
@@ -7,8 +7,17 @@
  ******************************************************************************/
 package com.hypersocket.network;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -23,13 +32,16 @@ import com.hypersocket.i18n.I18N;
 import com.hypersocket.i18n.I18NService;
 import com.hypersocket.launcher.ApplicationLauncherResource;
 import com.hypersocket.launcher.ApplicationLauncherResourceService;
+import com.hypersocket.launcher.LauncherScripts;
 import com.hypersocket.menus.MenuRegistration;
 import com.hypersocket.menus.MenuService;
+import com.hypersocket.network.NetworkResourceAuthorizationCache.AuthorizedEndpoints;
 import com.hypersocket.network.events.NetworkResourceCreatedEvent;
 import com.hypersocket.network.events.NetworkResourceDeletedEvent;
 import com.hypersocket.network.events.NetworkResourceEvent;
 import com.hypersocket.network.events.NetworkResourceSessionClosed;
 import com.hypersocket.network.events.NetworkResourceSessionOpened;
+import com.hypersocket.network.events.NetworkResourceSessionProgress;
 import com.hypersocket.network.events.NetworkResourceUpdatedEvent;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.PermissionCategory;
@@ -37,6 +49,7 @@ import com.hypersocket.permissions.PermissionService;
 import com.hypersocket.permissions.Role;
 import com.hypersocket.protocols.NetworkProtocol;
 import com.hypersocket.protocols.NetworkProtocolService;
+import com.hypersocket.realm.Principal;
 import com.hypersocket.realm.Realm;
 import com.hypersocket.realm.RealmService;
 import com.hypersocket.resource.AbstractAssignableResourceRepository;
@@ -46,6 +59,8 @@ import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.resource.ResourceNotFoundException;
 import com.hypersocket.server.forward.ForwardingTransport;
 import com.hypersocket.session.Session;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.upload.FileUpload;
 import com.hypersocket.ui.IndexPageFilter;
 
 @Service
@@ -85,6 +100,34 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 	@Autowired
 	IndexPageFilter indexPageFilter;
 
+	@Autowired
+	NetworkResourceAuthorizationCache authorizationCache;
+
+	@Autowired
+	NetworkTunnelMonitor tunnelMonitor;
+
+	@Autowired
+	NetworkResourceChangeLog changeLog;
+
+	@Autowired
+	ResourceFingerprints fingerprints;
+
+	@Autowired
+	NetworkPersonalResourceCache personalCache;
+
+	@Autowired
+	ResourceChangeNotifier changeNotifier;
+
+	@Autowired
+	ResourceImportJobs importJobs;
+
+	ResourceFingerprints.Fingerprint fingerprint;
+
+	final ResourceCountCache counts = new ResourceCountCache();
+
+	final ResourceSearchIndex searchIndex = new ResourceSearchIndex("hostname",
+			"destinationHostname");
+
 	public NetworkResourceServiceImpl() {
 		super("networkResource");
 	}
@@ -98,6 +141,15 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 
 		i18nService.registerBundle(RESOURCE_BUNDLE);
 
+		fingerprint = fingerprints.register("networkResources");
+
+		changeNotifier.registerAssignments("networkResources", new ResourceChangeNotifier.Assignments() {
+			@Override
+			public Set<Long> getResourceIds(Principal principal) {
+				return getPersonalResourceIds(principal);
+			}
+		});
+
 		PermissionCategory cat = permissionService
 				.registerPermissionCategory(NetworkResourceServiceImpl.RESOURCE_BUNDLE, "category.networkResources");
 
@@ -120,8 +172,7 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 		menuService.registerMenu(
 				new MenuRegistration(RESOURCE_BUNDLE, "myNetworks", "fa-sitemap", "myNetworkResources", 200) {
 					public boolean canRead() {
-						return resourceRepository.getAssignableResourceCount(
-								realmService.getAssociatedPrincipals(getCurrentPrincipal())) > 0;
+						return getPersonalResourceCount(getCurrentPrincipal()) > 0;
 					}
 				}, MenuService.MENU_MY_RESOURCES);
 
@@ -132,6 +183,7 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 
 		eventService.registerEvent(NetworkResourceSessionOpened.class, NetworkResourceServiceImpl.RESOURCE_BUNDLE);
 		eventService.registerEvent(NetworkResourceSessionClosed.class, NetworkResourceServiceImpl.RESOURCE_BUNDLE);
+		eventService.registerEvent(NetworkResourceSessionProgress.class, NetworkResourceServiceImpl.RESOURCE_BUNDLE);
 
 		if (log.isDebugEnabled()) {
 			log.debug("NetworkResourceService constructed");
@@ -149,30 +201,22 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 					+ session.getId());
 		}
 
-		verifyPort(resource, port, transport);
-
-		if (log.isDebugEnabled()) {
-			log.debug("Verified NetworkResource, creating resource session for resource " + resource.getName()
-					+ " on session " + session.getId());
-		}
-	}
-
-	public NetworkProtocol verifyPort(NetworkResource resource, Integer port, ForwardingTransport transport)
-			throws AccessDeniedException {
+		AuthorizedEndpoints endpoints = authorizationCache.getAuthorizedEndpoints(session, this);
 
-		if (log.isDebugEnabled()) {
-			log.debug("Verifying port " + port + " for resource " + resource.getName());
+		if (!endpoints.isAuthorized(resource.getId())) {
+			throw new AccessDeniedException(I18N.getResource(getCurrentLocale(), RESOURCE_BUNDLE,
+					"error.resourceNotAuthorized", resource.getName()));
 		}
 
-		NetworkProtocol protocol = resource.getNetworkProtocol(port, transport);
-
-		if (protocol == null) {
+		if (endpoints.getProtocol(resource.getId(), port, transport) == null) {
 			throw new AccessDeniedException(I18N.getResource(getCurrentLocale(), RESOURCE_BUNDLE,
 					"error.portNoAuthorized", port, resource.getName()));
 		}
 
-		return protocol;
-
+		if (log.isDebugEnabled()) {
+			log.debug("Verified NetworkResource, creating resource session for resource " + resource.getName()
+					+ " on session " + session.getId());
+		}
 	}
 
 	@Override
@@ -218,6 +262,351 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 
 	}
 
+	@Override
+	public Collection<ActiveTunnel> getActiveTunnels() throws AccessDeniedException {
+
+		assertPermission(NetworkResourcePermission.READ);
+
+		Realm realm = getCurrentRealm();
+		Collection<ActiveTunnel> tunnels = new ArrayList<ActiveTunnel>();
+		for (ActiveTunnel tunnel : tunnelMonitor.getActiveTunnels()) {
+			if (realm.getId().equals(tunnel.getResource().getRealm().getId())) {
+				tunnels.add(tunnel);
+			}
+		}
+		return tunnels;
+	}
+
+	@Override
+	public ResourceChanges<NetworkResource> getPersonalChanges(Principal principal, String token)
+			throws AccessDeniedException {
+
+		String assignments = fingerprints.getAssignmentHash(realmService.getAssociatedPrincipals(principal));
+		String next = changeLog.getToken(principal.getRealm(), assignments);
+		Set<Long> changed = changeLog.getChanges(principal.getRealm(), token, assignments);
+		if (changed != null && changed.isEmpty()) {
+			return ResourceChanges.of(next, Collections.<NetworkResource> emptyList(), changed);
+		}
+		if (changed != null) {
+			Set<Long> ids = personalCache.getResourceIds(principal);
+			if (ids != null) {
+				ids.retainAll(changed);
+				return ResourceChanges.of(next, resourceRepository.getResourcesById(ids), changed);
+			}
+			return ResourceChanges.of(next, loadResources(principal), changed);
+		}
+		return ResourceChanges.of(next, getResources(principal), changed);
+	}
+
+	@Override
+	public Collection<PersonalNetworkResource> getPersonalResources(Principal principal) {
+		return getPersonalResources(getPersonalResourceIds(principal));
+	}
+
+	@Override
+	public ResourceChanges<PersonalNetworkResource> getPersonalResourceChanges(Principal principal, String token) {
+
+		String assignments = fingerprints.getAssignmentHash(realmService.getAssociatedPrincipals(principal));
+		String next = changeLog.getToken(principal.getRealm(), assignments);
+		Set<Long> changed = changeLog.getChanges(principal.getRealm(), token, assignments);
+		if (changed == null) {
+			return new ResourceChanges<PersonalNetworkResource>(next, true, getPersonalResources(principal),
+					Collections.<Long> emptySet());
+		}
+		Set<Long> current = getPersonalResourceIds(principal);
+		current.retainAll(changed);
+		Set<Long> removed = new HashSet<Long>(changed);
+		removed.removeAll(current);
+		return new ResourceChanges<PersonalNetworkResource>(next, false, getPersonalResources(current), removed);
+	}
+
+	@Override
+	public LauncherScripts getPersonalLauncherScripts(Principal principal, Long id) throws ResourceNotFoundException {
+
+		for (PersonalNetworkResource resource : resourceRepository
+				.getPersonalResources(getPersonalResourceIds(principal))) {
+			for (PersonalNetworkResource.Launcher launcher : resource.getLaunchers()) {
+				if (launcher.getId().equals(id)) {
+					return applicationLauncherResourceService.getScripts(id);
+				}
+			}
+		}
+		throw new ResourceNotFoundException(RESOURCE_BUNDLE, "error.invalidLauncherId", id);
+	}
+
+	@Override
+	public List<FileUpload> getPersonalLauncherFiles(Principal principal, Collection<String> uuids)
+			throws ResourceNotFoundException {
+
+		Set<String> assigned = new HashSet<String>();
+		for (PersonalNetworkResource resource : resourceRepository
+				.getPersonalResources(getPersonalResourceIds(principal))) {
+			for (PersonalNetworkResource.Launcher launcher : resource.getLaunchers()) {
+				if (launcher.getFiles() != null) {
+					assigned.addAll(Arrays.asList(launcher.getFiles().split("\\]\\|\\[")));
+				}
+			}
+		}
+		for (String uuid : uuids) {
+			if (!assigned.contains(uuid)) {
+				throw new ResourceNotFoundException(RESOURCE_BUNDLE, "error.invalidFileUuid", uuid);
+			}
+		}
+		return applicationLauncherResourceService.getLauncherFiles(principal.getRealm(), uuids);
+	}
+
+	List<PersonalNetworkResource> getPersonalResources(Set<Long> ids) {
+
+		List<PersonalNetworkResource> resources = resourceRepository.getPersonalResources(ids);
+		Map<Long, Long> launchers = new HashMap<Long, Long>();
+		for (PersonalNetworkResource resource : resources) {
+			for (PersonalNetworkResource.Launcher launcher : resource.getLaunchers()) {
+				launchers.put(launcher.getId(), launcher.getModifiedDate());
+			}
+		}
+		if (!launchers.isEmpty()) {
+			Map<Long, String> digests = applicationLauncherResourceService.getScriptDigests(launchers);
+			for (PersonalNetworkResource resource : resources) {
+				for (PersonalNetworkResource.Launcher launcher : resource.getLaunchers()) {
+					launcher.setScriptDigest(digests.get(launcher.getId()));
+				}
+			}
+		}
+		return resources;
+	}
+
+	Set<Long> getPersonalResourceIds(Principal principal) {
+
+		Set<Long> ids = personalCache.getResourceIds(principal);
+		if (ids == null) {
+			ids = new HashSet<Long>();
+			for (NetworkResource resource : loadResources(principal)) {
+				ids.add(resource.getId());
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public Collection<NetworkResource> getResources(Principal principal) {
+
+		Set<Long> ids = personalCache.getResourceIds(principal);
+		if (ids != null) {
+			return resourceRepository.getResourcesById(ids);
+		}
+		return loadResources(principal);
+	}
+
+	Collection<NetworkResource> loadResources(Principal principal) {
+
+		long stamp = personalCache.getStamp();
+		Collection<NetworkResource> resources = super.getResources(principal);
+		personalCache.put(principal, resources, stamp);
+		return resources;
+	}
+
+	@Override
+	public List<NetworkResource> searchResources(Realm realm, String searchColumn, String searchPattern, int start,
+			int length, ColumnSort[] sorting) throws AccessDeniedException {
+
+		assertPermission(NetworkResourcePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn, searchPattern, sorting, resourceRepository);
+		if (ids == null) {
+			return super.searchResources(realm, searchColumn, searchPattern, start, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.page(ids, start, length));
+	}
+
+	@Override
+	public Collection<NetworkResource> searchPersonalResources(Principal principal, String searchColumn,
+			String searchPattern, int start, int length, ColumnSort[] sorting) {
+
+		List<Long> ids = searchPersonalIndex(principal, searchColumn, searchPattern, sorting);
+		if (ids == null) {
+			return super.searchPersonalResources(principal, searchColumn, searchPattern, start, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.page(ids, start, length));
+	}
+
+	@Override
+	public List<NetworkResource> seekResources(Realm realm, String searchColumn, String searchPattern, Long after,
+			int length, ColumnSort[] sorting) throws AccessDeniedException {
+
+		assertPermission(NetworkResourcePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn, searchPattern, sorting, resourceRepository);
+		if (ids == null) {
+			return resourceRepository.seek(realm, null, searchColumn, searchPattern, after, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.pageAfter(ids, after, length));
+	}
+
+	@Override
+	public void exportAllResources(final Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException {
+
+		assertPermission(NetworkResourcePermission.READ);
+
+		ResourceExporter.export(out, new ResourceExporter.Source<NetworkResource>() {
+			@Override
+			public List<NetworkResource> getBatch(Long after, int size) {
+				return resourceRepository.seek(realm, null, "", "", after, size,
+						KeysetCriteria.UNSORTED);
+			}
+
+			@Override
+			public void prepare(NetworkResource resource) {
+				prepareExport(resource, true);
+			}
+		});
+	}
+
+	@Override
+	public ResourceImportJob startImport(File file, final Realm realm,
+			boolean dropExisting) throws AccessDeniedException {
+
+		assertPermission(NetworkResourcePermission.CREATE);
+		if (dropExisting) {
+			assertPermission(NetworkResourcePermission.DELETE);
+		}
+
+		return importJobs.submit(this, realm, getResourceCategory(), file,
+				dropExisting, new ResourceImporter<NetworkResource>(
+						NetworkResource.class, realm) {
+
+					final Map<String, NetworkProtocol> protocols = new HashMap<String, NetworkProtocol>();
+					final Map<String, ApplicationLauncherResource> launchers = new HashMap<String, ApplicationLauncherResource>();
+
+					@Override
+					protected void dropExisting() throws Exception {
+						for (NetworkResource resource : resourceRepository.getResources(realm)) {
+							deleteResource(resource);
+						}
+					}
+
+					@Override
+					protected Collection<String> getExistingNames() {
+						return ResourceSearchIndex.getNames(resourceRepository
+								.getSearchEntries(realm));
+					}
+
+					@Override
+					protected void prepare(List<NetworkResource> batch)
+							throws Exception {
+						prepareImport(batch, realm, protocols, launchers);
+					}
+
+					@Override
+					protected void save(List<NetworkResource> batch) {
+						resourceRepository.saveResources(batch);
+					}
+
+					@Override
+					protected void saved(NetworkResource resource) {
+						fireResourceCreationEvent(resource);
+					}
+				});
+	}
+
+	@Override
+	public ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException {
+
+		assertPermission(NetworkResourcePermission.CREATE);
+
+		return importJobs.getJob(realm, getResourceCategory(), id);
+	}
+
+	@Override
+	public List<NetworkResource> seekPersonalResources(Principal principal, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting) {
+
+		List<Long> matches = searchPersonalIndex(principal, searchColumn, searchPattern, sorting);
+		if (matches != null) {
+			return loadPage(ResourceSearchIndex.pageAfter(matches, after, length));
+		}
+		Set<Long> ids = getPersonalResourceIds(principal);
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return resourceRepository.seek(principal.getRealm(), ids, searchColumn, searchPattern, after, length,
+				sorting);
+	}
+
+	List<Long> searchPersonalIndex(Principal principal, String searchColumn, String searchPattern,
+			ColumnSort[] sorting) {
+
+		List<Long> ids = searchIndex.search(principal.getRealm(), searchColumn, searchPattern, sorting,
+				resourceRepository);
+		if (ids != null) {
+			ids.retainAll(getPersonalResourceIds(principal));
+		}
+		return ids;
+	}
+
+	List<NetworkResource> loadPage(List<Long> ids) {
+		return ResourceSearchIndex.inOrder(ids, resourceRepository.getResourcesById(ids));
+	}
+
+	@Override
+	public Long getResourceCount(Realm realm, String searchColumn, String searchPattern)
+			throws AccessDeniedException {
+
+		assertPermission(NetworkResourcePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn, searchPattern, null, resourceRepository);
+		if (ids != null) {
+			return (long) ids.size();
+		}
+
+		String version = fingerprint.getFingerprint(realm);
+		Long count = counts.get(version, searchColumn, searchPattern);
+		if (count == null) {
+			count = super.getResourceCount(realm, searchColumn, searchPattern);
+			counts.put(version, searchColumn, searchPattern, count);
+		}
+		return count;
+	}
+
+	@Override
+	public Long getPersonalResourceCount(Principal principal, String searchColumn, String searchPattern) {
+
+		List<Long> ids = searchPersonalIndex(principal, searchColumn, searchPattern, null);
+		if (ids != null) {
+			return (long) ids.size();
+		}
+
+		/*
+		 * Also keyed on the principals the resources are assigned through, as
+		 * joining or leaving a group does not change the fingerprint.
+		 */
+		String version = fingerprint.getFingerprint(principal.getRealm()) + "-" + principal.getId() + "-"
+				+ fingerprints.getAssignmentHash(realmService.getAssociatedPrincipals(principal));
+		Long count = counts.get(version, searchColumn, searchPattern);
+		if (count == null) {
+			count = super.getPersonalResourceCount(principal, searchColumn, searchPattern);
+			counts.put(version, searchColumn, searchPattern, count);
+		}
+		return count;
+	}
+
+	long getPersonalResourceCount(Principal principal) {
+
+		Long count = personalCache.getResourceCount(principal);
+		if (count == null) {
+			long stamp = personalCache.getStamp();
+			count = resourceRepository.getAssignableResourceCount(realmService.getAssociatedPrincipals(principal));
+			personalCache.putCount(principal, count, stamp);
+		}
+		return count;
+	}
+
+	@Override
+	public String getPersonalETag(Principal principal) {
+		return fingerprints.getETag(principal.getRealm(), realmService.getAssociatedPrincipals(principal));
+	}
+
 	@Override
 	protected AbstractAssignableResourceRepository<NetworkResource> getRepository() {
 		return resourceRepository;
@@ -233,8 +622,16 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 		return NetworkResourcePermission.class;
 	}
 
+	@Override
+	public String getFingerprint() {
+		return fingerprint.getFingerprint(getCurrentRealm());
+	}
+
 	@Override
 	protected void fireResourceCreationEvent(NetworkResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(), resource.getName(), resource.getHostname(),
+				resource.getDestinationHostname());
 		eventService.publishEvent(new NetworkResourceCreatedEvent(this, resource, getCurrentSession()));
 	}
 
@@ -246,6 +643,9 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 
 	@Override
 	protected void fireResourceUpdateEvent(NetworkResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(), resource.getName(), resource.getHostname(),
+				resource.getDestinationHostname());
 		eventService.publishEvent(new NetworkResourceUpdatedEvent(this, resource, getCurrentSession()));
 
 	}
@@ -257,6 +657,8 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 
 	@Override
 	protected void fireResourceDeletionEvent(NetworkResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.remove(resource.getRealm(), resource.getId());
 		eventService.publishEvent(new NetworkResourceDeletedEvent(this, resource, getCurrentSession()));
 	}
 
@@ -287,48 +689,74 @@ public class NetworkResourceServiceImpl extends AbstractAssignableResourceServic
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	protected void prepareImport(NetworkResource resource, Realm realm)
 			throws ResourceCreationException, AccessDeniedException {
+		prepareImport(Collections.singletonList(resource), realm,
+				new HashMap<String, NetworkProtocol>(),
+				new HashMap<String, ApplicationLauncherResource>());
+	}
 
-		Set<NetworkProtocol> networkProtocolList = new HashSet<NetworkProtocol>();
-		for (NetworkProtocol networkProtocol : resource.getProtocols()) {
-			try {
-				NetworkProtocol existingProtocol = networkProtocolService.getResourceByName(networkProtocol.getName(),
-						realm);
-				networkProtocolList.add(existingProtocol);
-			} catch (ResourceNotFoundException e) {
-				networkProtocol.setRealm(realm);
-				networkProtocolService.createResource(networkProtocol);
-
-				try {
-					networkProtocolList.add(networkProtocolService.getResourceByName(networkProtocol.getName(), realm));
-				} catch (ResourceNotFoundException e1) {
-					log.error("Failed to find resource: " + networkProtocol.getName(), e1);
-					throw new AccessDeniedException();
+	/**
+	 * Point imported resources at the realm's protocols and launchers of the
+	 * same names, creating any that do not exist. Those not already in the
+	 * maps are read with one query for each type, and every protocol and
+	 * launcher found or created is added to the maps for the next batch.
+	 */
+	@SuppressWarnings("unchecked")
+	void prepareImport(Collection<NetworkResource> resources, Realm realm,
+			Map<String, NetworkProtocol> protocols,
+			Map<String, ApplicationLauncherResource> launchers)
+			throws ResourceCreationException, AccessDeniedException {
+
+		Set<String> protocolNames = new HashSet<String>();
+		Set<String> launcherNames = new HashSet<String>();
+		for (NetworkResource resource : resources) {
+			for (NetworkProtocol networkProtocol : resource.getProtocols()) {
+				if (!protocols.containsKey(networkProtocol.getName())) {
+					protocolNames.add(networkProtocol.getName());
+				}
+			}
+			for (ApplicationLauncherResource launcher : resource.getLaunchers()) {
+				if (!launchers.containsKey(launcher.getName())) {
+					launcherNames.add(launcher.getName());
 				}
 			}
 		}
-		resource.setProtocols(networkProtocolList);
+		for (NetworkProtocol networkProtocol : networkProtocolService
+				.getResourcesByName(realm, protocolNames)) {
+			protocols.put(networkProtocol.getName(), networkProtocol);
+		}
+		for (ApplicationLauncherResource launcher : applicationLauncherResourceService
+				.getResourcesByName(realm, launcherNames)) {
+			launchers.put(launcher.getName(), launcher);
+		}
 
-		Set<ApplicationLauncherResource> launcherList = new HashSet<ApplicationLauncherResource>();
-		for (ApplicationLauncherResource launcher : resource.getLaunchers()) {
-			try {
-				ApplicationLauncherResource existingLauncher = applicationLauncherResourceService
-						.getResourceByName(launcher.getName(), realm);
-				launcherList.add(existingLauncher);
-			} catch (ResourceNotFoundException e) {
-				launcher.setRealm(realm);
-				applicationLauncherResourceService.createResource(launcher);
-
-				try {
-					launcherList.add(applicationLauncherResourceService.getResourceByName(launcher.getName(), realm));
-				} catch (ResourceNotFoundException e1) {
-					log.error("Failed to find resource: " + launcher.getName(), e1);
-					throw new AccessDeniedException();
+		for (NetworkResource resource : resources) {
+			Set<NetworkProtocol> networkProtocolList = new HashSet<NetworkProtocol>();
+			for (NetworkProtocol networkProtocol : resource.getProtocols()) {
+				NetworkProtocol existingProtocol = protocols.get(networkProtocol.getName());
+				if (existingProtocol == null) {
+					networkProtocol.setRealm(realm);
+					networkProtocolService.createResource(networkProtocol);
+					protocols.put(networkProtocol.getName(), networkProtocol);
+					existingProtocol = networkProtocol;
+				}
+				networkProtocolList.add(existingProtocol);
+			}
+			resource.setProtocols(networkProtocolList);
+
+			Set<ApplicationLauncherResource> launcherList = new HashSet<ApplicationLauncherResource>();
+			for (ApplicationLauncherResource launcher : resource.getLaunchers()) {
+				ApplicationLauncherResource existingLauncher = launchers.get(launcher.getName());
+				if (existingLauncher == null) {
+					launcher.setRealm(realm);
+					applicationLauncherResourceService.createResource(launcher);
+					launchers.put(launcher.getName(), launcher);
+					existingLauncher = launcher;
 				}
+				launcherList.add(existingLauncher);
 			}
+			resource.setLaunchers(launcherList);
 		}
-		resource.setLaunchers(launcherList);
 	}
 }
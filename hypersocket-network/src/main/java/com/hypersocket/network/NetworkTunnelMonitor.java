@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.network.events.NetworkResourceSessionProgress;
+import com.hypersocket.network.handlers.NetworkResourceSessionEventPublisher;
+import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.session.Session;
+
+/**
+ * Tracks open tunnels and their throughput. Every sample interval the rate of
+ * each counted tunnel is recalculated. Every progress interval a
+ * {@link NetworkResourceSessionProgress} event is published for each counted
+ * tunnel that has been open that long, so long-lived sessions are accounted
+ * for before they close. Tunnels that only learn their totals when they close
+ * get no rates or progress events, rather than ones reporting zero.
+ * <p>
+ * The intervals are set in seconds with the
+ * <code>hypersocket.network.sampleInterval</code> (default 5) and
+ * <code>hypersocket.network.progressInterval</code> (default 300, 0 disables
+ * progress events) system properties.
+ */
+@Component
+public class NetworkTunnelMonitor implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(NetworkTunnelMonitor.class);
+
+	@Autowired
+	NetworkResourceSessionEventPublisher eventPublisher;
+
+	ConcurrentMap<Long, ActiveTunnel> tunnels = new ConcurrentHashMap<Long, ActiveTunnel>();
+	AtomicLong nextId = new AtomicLong();
+	ScheduledExecutorService scheduler;
+	long progressInterval;
+
+	@PostConstruct
+	private void postConstruct() {
+		long sampleInterval = Long.getLong("hypersocket.network.sampleInterval", 5);
+		progressInterval = TimeUnit.SECONDS.toMillis(Long.getLong(
+				"hypersocket.network.progressInterval", 300));
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NetworkTunnelMonitor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleAtFixedRate(this, sampleInterval, sampleInterval,
+				TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	private void preDestroy() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Open a tunnel whose byte counters the caller updates as data flows.
+	 */
+	public ActiveTunnel open(Session session, NetworkResource resource,
+			String hostname, int port, ForwardingTransport transport) {
+		return open(session, resource, hostname, port, transport, true);
+	}
+
+	/**
+	 * @param counted
+	 *            <code>false</code> if the caller only learns the totals when
+	 *            the tunnel closes
+	 */
+	public ActiveTunnel open(Session session, NetworkResource resource,
+			String hostname, int port, ForwardingTransport transport,
+			boolean counted) {
+		ActiveTunnel tunnel = new ActiveTunnel(nextId.incrementAndGet(),
+				resource, session, hostname, port, transport, counted);
+		tunnels.put(tunnel.getId(), tunnel);
+		return tunnel;
+	}
+
+	public void close(ActiveTunnel tunnel) {
+		tunnels.remove(tunnel.getId());
+	}
+
+	/**
+	 * Close a tunnel with the totals its caller learnt as it closed.
+	 */
+	public void close(ActiveTunnel tunnel, long totalBytesIn, long totalBytesOut) {
+		tunnel.bytesIn.set(totalBytesIn);
+		tunnel.bytesOut.set(totalBytesOut);
+		close(tunnel);
+	}
+
+	public Collection<ActiveTunnel> getActiveTunnels() {
+		return new ArrayList<ActiveTunnel>(tunnels.values());
+	}
+
+	@Override
+	public void run() {
+
+		long now = System.currentTimeMillis();
+
+		for (Iterator<ActiveTunnel> it = tunnels.values().iterator(); it.hasNext();) {
+			ActiveTunnel tunnel = it.next();
+			try {
+				sample(tunnel, now);
+			} catch (Throwable e) {
+				log.error("Failed to sample tunnel " + tunnel.getId(), e);
+			}
+		}
+	}
+
+	void sample(ActiveTunnel tunnel, long now) {
+
+		if (!tunnel.isCounted()) {
+			return;
+		}
+
+		long in = tunnel.getTotalBytesIn();
+		long out = tunnel.getTotalBytesOut();
+		long elapsed = Math.max(1, now - tunnel.lastSample);
+
+		tunnel.bytesInPerSecond = (in - tunnel.lastBytesIn) * 1000 / elapsed;
+		tunnel.bytesOutPerSecond = (out - tunnel.lastBytesOut) * 1000 / elapsed;
+		tunnel.lastBytesIn = in;
+		tunnel.lastBytesOut = out;
+		tunnel.lastSample = now;
+
+		if (progressInterval > 0 && now - tunnel.lastProgress >= progressInterval) {
+			tunnel.lastProgress = now;
+			eventPublisher.sessionProgress(this, tunnel.getResource(),
+					tunnel.getSession(), tunnel.getPort(), tunnel.getTransport(),
+					in, out, tunnel.getBytesInPerSecond(),
+					tunnel.getBytesOutPerSecond());
+		}
+	}
+}
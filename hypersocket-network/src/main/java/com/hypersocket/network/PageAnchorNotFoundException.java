@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The row a page was asked to start after no longer exists, or no longer
+ * matches the search, so where the page starts cannot be known. The client
+ * should start again from the first page.
+ */
+@ResponseStatus(value = HttpStatus.CONFLICT, reason = "The row the page starts after no longer exists")
+public class PageAnchorNotFoundException extends RuntimeException {
+
+	private static final long serialVersionUID = 4815902227318865102L;
+
+	final Long anchor;
+
+	public PageAnchorNotFoundException(Long anchor) {
+		super("Row " + anchor + " no longer exists");
+		this.anchor = anchor;
+	}
+
+	public Long getAnchor() {
+		return anchor;
+	}
+}
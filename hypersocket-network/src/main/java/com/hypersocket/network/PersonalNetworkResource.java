@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of a network resource a client needs to start its forwards and
+ * launchers. Built from a projection rather than the entities, and without
+ * the launcher scripts, which a client fetches by id when the
+ * {@link Launcher#getScriptDigest() digest} is one it has not seen.
+ */
+public class PersonalNetworkResource {
+
+	Long id;
+	String name;
+	String hostname;
+	String destinationHostname;
+	String logo;
+	Long modifiedDate;
+	List<Protocol> protocols = new ArrayList<Protocol>();
+	List<Launcher> launchers = new ArrayList<Launcher>();
+
+	public PersonalNetworkResource() {
+	}
+
+	public PersonalNetworkResource(Long id, String name, String hostname,
+			String destinationHostname, String logo, Long modifiedDate) {
+		this.id = id;
+		this.name = name;
+		this.hostname = hostname;
+		this.destinationHostname = destinationHostname;
+		this.logo = logo;
+		this.modifiedDate = modifiedDate;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public String getDestinationHostname() {
+		return destinationHostname;
+	}
+
+	public String getLogo() {
+		return logo;
+	}
+
+	public Long getModifiedDate() {
+		return modifiedDate;
+	}
+
+	public List<Protocol> getProtocols() {
+		return protocols;
+	}
+
+	public List<Launcher> getLaunchers() {
+		return launchers;
+	}
+
+	public static class Protocol {
+
+		Long id;
+		String name;
+		String transport;
+		Integer startPort;
+		Integer endPort;
+		Long modifiedDate;
+
+		public Protocol() {
+		}
+
+		public Protocol(Long id, String name, String transport,
+				Integer startPort, Integer endPort, Long modifiedDate) {
+			this.id = id;
+			this.name = name;
+			this.transport = transport;
+			this.startPort = startPort;
+			this.endPort = endPort;
+			this.modifiedDate = modifiedDate;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getTransport() {
+			return transport;
+		}
+
+		public Integer getStartPort() {
+			return startPort;
+		}
+
+		public Integer getEndPort() {
+			return endPort;
+		}
+
+		public Long getModifiedDate() {
+			return modifiedDate;
+		}
+	}
+
+	public static class Launcher {
+
+		Long id;
+		String name;
+		String exe;
+		String args;
+		String logo;
+		String osFamily;
+		String osVersion;
+		String files;
+		Long modifiedDate;
+		String scriptDigest;
+
+		public Launcher() {
+		}
+
+		public Launcher(Long id, String name, String exe, String args,
+				String logo, String osFamily, String osVersion, String files,
+				Long modifiedDate) {
+			this.id = id;
+			this.name = name;
+			this.exe = exe;
+			this.args = args;
+			this.logo = logo;
+			this.osFamily = osFamily;
+			this.osVersion = osVersion;
+			this.files = files;
+			this.modifiedDate = modifiedDate;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getExe() {
+			return exe;
+		}
+
+		public String getArgs() {
+			return args;
+		}
+
+		public String getLogo() {
+			return logo;
+		}
+
+		public String getOsFamily() {
+			return osFamily;
+		}
+
+		public String getOsVersion() {
+			return osVersion;
+		}
+
+		public String getFiles() {
+			return files;
+		}
+
+		public Long getModifiedDate() {
+			return modifiedDate;
+		}
+
+		public String getScriptDigest() {
+			return scriptDigest;
+		}
+
+		public void setScriptDigest(String scriptDigest) {
+			this.scriptDigest = scriptDigest;
+		}
+	}
+}
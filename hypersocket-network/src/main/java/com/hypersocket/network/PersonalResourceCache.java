@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.realm.events.GroupEvent;
+import com.hypersocket.realm.events.UserEvent;
+import com.hypersocket.resource.Resource;
+import com.hypersocket.role.events.RoleEvent;
+
+/**
+ * Remembers, per principal, the ids of the resources of one type assigned to
+ * it, so that the personal resource list and the "my resources" menus do not
+ * have to resolve role assignments on every request.
+ * <p>
+ * The cache holds at most <code>hypersocket.network.personalCacheSize</code>
+ * principals (10000 by default), evicting the least recently used. A deleted
+ * resource is removed from the entries that hold it; any other change to a
+ * resource, role or group drops the entries of its realm, and a change to a
+ * user drops that user's entry.
+ */
+public abstract class PersonalResourceCache implements
+		ApplicationListener<SystemEvent> {
+
+	static Logger log = LoggerFactory.getLogger(PersonalResourceCache.class);
+
+	final int capacity;
+	final Map<Long, Assignment> entries;
+	/*
+	 * Incremented on every invalidation so a result resolved while an
+	 * invalidation happened is not stored.
+	 */
+	long generation;
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong invalidations = new AtomicLong();
+
+	protected PersonalResourceCache() {
+		this(Integer.getInteger("hypersocket.network.personalCacheSize", 10000));
+	}
+
+	@SuppressWarnings("serial")
+	protected PersonalResourceCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Long, Assignment>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Assignment> eldest) {
+				if (size() > PersonalResourceCache.this.capacity) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the ids of the resources assigned to a principal.
+	 *
+	 * @return the ids, or <code>null</code> if they are not cached and must be
+	 *         resolved and {@link #put(Principal, Collection, long)}
+	 */
+	public Set<Long> getResourceIds(Principal principal) {
+		return getResourceIds(principal.getId());
+	}
+
+	/**
+	 * Get the number of resources assigned to a principal.
+	 *
+	 * @return the count, or <code>null</code> if it is not cached and must be
+	 *         counted and {@link #putCount(Principal, long, long)}
+	 */
+	public Long getResourceCount(Principal principal) {
+		return getResourceCount(principal.getId());
+	}
+
+	/**
+	 * Get the stamp to pass to <code>put</code>. Take it before resolving the
+	 * resources, so that a change made meanwhile is not cached.
+	 */
+	public synchronized long getStamp() {
+		return generation;
+	}
+
+	public void put(Principal principal, Collection<? extends Resource> resources,
+			long stamp) {
+		Set<Long> ids = new HashSet<Long>();
+		for (Resource resource : resources) {
+			ids.add(resource.getId());
+		}
+		put(principal.getRealm().getId(), principal.getId(), ids, ids.size(),
+				stamp);
+	}
+
+	public void putCount(Principal principal, long count, long stamp) {
+		put(principal.getRealm().getId(), principal.getId(), null, count, stamp);
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public void onApplicationEvent(SystemEvent event) {
+
+		if (!event.isSuccess()) {
+			return;
+		}
+		if (event instanceof UserEvent) {
+			invalidatePrincipal(((UserEvent) event).getTargetPrincipal().getId());
+		} else if (event instanceof GroupEvent || event instanceof RoleEvent) {
+			invalidateRealm(event.getCurrentRealm());
+		} else {
+			onResourceEvent(event);
+		}
+	}
+
+	/**
+	 * Apply a successful event to the resources this cache covers, calling
+	 * {@link #removed(Resource)} or {@link #changed(Resource)}.
+	 */
+	protected abstract void onResourceEvent(SystemEvent event);
+
+	protected void removed(Resource resource) {
+		removed(resource.getRealm().getId(), resource.getId());
+	}
+
+	protected void changed(Resource resource) {
+		invalidateRealm(resource.getRealm());
+	}
+
+	protected void invalidateRealm(Realm realm) {
+		if (realm == null) {
+			invalidateAll();
+		} else {
+			invalidateRealm(realm.getId());
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidations.incrementAndGet();
+		entries.clear();
+		logStatistics();
+	}
+
+	synchronized Set<Long> getResourceIds(Long principalId) {
+		Assignment entry = entries.get(principalId);
+		if (entry == null || entry.ids == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new HashSet<Long>(entry.ids);
+	}
+
+	synchronized Long getResourceCount(Long principalId) {
+		Assignment entry = entries.get(principalId);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.count;
+	}
+
+	synchronized void put(Long realmId, Long principalId, Set<Long> ids,
+			long count, long stamp) {
+		if (stamp != generation) {
+			return;
+		}
+		Assignment entry = entries.get(principalId);
+		if (ids == null && entry != null) {
+			return;
+		}
+		entries.put(principalId, new Assignment(realmId, ids, count));
+	}
+
+	synchronized void invalidatePrincipal(Long principalId) {
+		generation++;
+		if (entries.remove(principalId) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	synchronized void invalidateRealm(Long realmId) {
+		generation++;
+		invalidations.incrementAndGet();
+		for (Iterator<Assignment> it = entries.values().iterator(); it.hasNext();) {
+			if (realmId.equals(it.next().realmId)) {
+				it.remove();
+			}
+		}
+		logStatistics();
+	}
+
+	synchronized void removed(Long realmId, Long resourceId) {
+		generation++;
+		for (Iterator<Assignment> it = entries.values().iterator(); it.hasNext();) {
+			Assignment entry = it.next();
+			if (!realmId.equals(entry.realmId)) {
+				continue;
+			}
+			if (entry.ids == null) {
+				/*
+				 * Only counted, so we cannot tell if it held the resource
+				 */
+				it.remove();
+			} else if (entry.ids.remove(resourceId)) {
+				entry.count = entry.ids.size();
+			}
+		}
+	}
+
+	void logStatistics() {
+		if (log.isDebugEnabled()) {
+			log.debug(getClass().getSimpleName() + " hits=" + hits.get()
+					+ " misses=" + misses.get() + " evictions="
+					+ evictions.get() + " invalidations="
+					+ invalidations.get() + " size=" + entries.size());
+		}
+	}
+
+	static final class Assignment {
+
+		final Long realmId;
+		final Set<Long> ids;
+		long count;
+
+		Assignment(Long realmId, Set<Long> ids, long count) {
+			this.realmId = realmId;
+			this.ids = ids;
+			this.count = count;
+		}
+	}
+}
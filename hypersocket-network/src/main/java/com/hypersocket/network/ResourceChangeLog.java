@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.realm.Realm;
+
+/**
+ * Records, per realm, which resources of one type have changed so that a
+ * client can ask for only the resources changed since it last synchronised.
+ * <p>
+ * A client holds a token naming the position in the log it has seen. The log
+ * keeps the most recent <code>hypersocket.network.changeLogSize</code>
+ * changes of each realm (1000 by default); a token older than that, from
+ * before a restart, or from before a change the log cannot attribute to
+ * individual resources (for example a role or protocol change) cannot be
+ * answered and the client must take the full list.
+ * <p>
+ * Each change is also passed to the {@link ResourceChangeNotifier} so waiting
+ * clients learn of it without polling.
+ */
+public abstract class ResourceChangeLog implements
+		ApplicationListener<SystemEvent> {
+
+	static Logger log = LoggerFactory.getLogger(ResourceChangeLog.class);
+
+	final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	final int capacity;
+	final ConcurrentMap<Long, RealmLog> realms = new ConcurrentHashMap<Long, RealmLog>();
+
+	@Autowired(required = false)
+	ResourceChangeNotifier notifier;
+
+	protected ResourceChangeLog() {
+		this(Integer.getInteger("hypersocket.network.changeLogSize", 1000));
+	}
+
+	protected ResourceChangeLog(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the token for the current position in a realm's log. Take it before
+	 * reading the resources it is returned with, so a change made during the
+	 * read is sent again rather than lost.
+	 */
+	public String getToken(Realm realm) {
+		return getToken(realm.getId());
+	}
+
+	/**
+	 * Get the ids of the resources changed in a realm since a token was
+	 * issued.
+	 *
+	 * @return the changed ids, or <code>null</code> if the token cannot be
+	 *         answered from the log and the full list must be sent
+	 */
+	public Set<Long> getChanges(Realm realm, String token) {
+		return getChanges(realm.getId(), token);
+	}
+
+	/**
+	 * Get a token that is also bound to the assignments of the principal it
+	 * is issued to, see {@link ResourceFingerprints#getAssignmentHash}.
+	 */
+	public String getToken(Realm realm, String assignments) {
+		return getToken(realm) + "." + assignments;
+	}
+
+	/**
+	 * Get the changes since a token bound to a principal's assignments. If
+	 * the assignments have changed since, so may the principal's resources,
+	 * and the full list must be sent.
+	 */
+	public Set<Long> getChanges(Realm realm, String token, String assignments) {
+		if (token == null || !token.endsWith("." + assignments)) {
+			return null;
+		}
+		return getChanges(realm, token.substring(0, token.length()
+				- assignments.length() - 1));
+	}
+
+	@Override
+	public void onApplicationEvent(SystemEvent event) {
+		if (event.isSuccess()) {
+			onResourceEvent(event);
+		}
+	}
+
+	/**
+	 * Record the change, if any, a successful event makes to the resources
+	 * this log covers.
+	 */
+	protected abstract void onResourceEvent(SystemEvent event);
+
+	/**
+	 * The category clients are notified of when these resources change.
+	 */
+	protected abstract String getResourceCategory();
+
+	protected void changed(Realm realm, Long resourceId) {
+		changed(realm.getId(), resourceId);
+	}
+
+	/**
+	 * Invalidate every issued token, in all realms.
+	 */
+	protected void reset() {
+		if (log.isDebugEnabled()) {
+			log.debug("Resetting " + getClass().getSimpleName());
+		}
+		for (RealmLog realmLog : realms.values()) {
+			realmLog.reset();
+		}
+		if (notifier != null) {
+			notifier.changedAll(getResourceCategory());
+		}
+	}
+
+	String getToken(Long realmId) {
+		return epoch + "-" + getLog(realmId).getVersion();
+	}
+
+	Set<Long> getChanges(Long realmId, String token) {
+
+		if (token == null) {
+			return null;
+		}
+		int idx = token.lastIndexOf('-');
+		if (idx == -1 || !epoch.equals(token.substring(0, idx))) {
+			return null;
+		}
+		long since;
+		try {
+			since = Long.parseLong(token.substring(idx + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return getLog(realmId).getChanges(since);
+	}
+
+	void changed(Long realmId, Long resourceId) {
+		getLog(realmId).add(resourceId);
+		if (notifier != null) {
+			notifier.changed(realmId, getResourceCategory(), resourceId);
+		}
+	}
+
+	RealmLog getLog(Long realmId) {
+		RealmLog realmLog = realms.get(realmId);
+		if (realmLog == null) {
+			realmLog = new RealmLog();
+			RealmLog existing = realms.putIfAbsent(realmId, realmLog);
+			if (existing != null) {
+				realmLog = existing;
+			}
+		}
+		return realmLog;
+	}
+
+	class RealmLog {
+
+		final Deque<Change> changes = new ArrayDeque<Change>();
+		long version;
+		/*
+		 * The oldest version changes can be answered from. Everything after it
+		 * is still in the deque.
+		 */
+		long floor;
+
+		synchronized long getVersion() {
+			return version;
+		}
+
+		synchronized void add(Long resourceId) {
+			changes.addLast(new Change(++version, resourceId));
+			if (changes.size() > capacity) {
+				floor = changes.removeFirst().version;
+			}
+		}
+
+		synchronized void reset() {
+			changes.clear();
+			floor = ++version;
+		}
+
+		synchronized Set<Long> getChanges(long since) {
+			if (since < floor || since > version) {
+				return null;
+			}
+			Set<Long> ids = new HashSet<Long>();
+			Iterator<Change> it = changes.descendingIterator();
+			while (it.hasNext()) {
+				Change change = it.next();
+				if (change.version <= since) {
+					break;
+				}
+				ids.add(change.resourceId);
+			}
+			return ids;
+		}
+	}
+
+	static final class Change {
+
+		final long version;
+		final Long resourceId;
+
+		Change(long version, Long resourceId) {
+			this.version = version;
+			this.resourceId = resourceId;
+		}
+	}
+}
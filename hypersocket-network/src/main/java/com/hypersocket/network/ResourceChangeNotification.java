@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Set;
+
+/**
+ * What changed in a realm up to a version: the categories of resources
+ * changed, for example <code>networkResources</code> or
+ * <code>websites</code>, or <code>all</code> when the notifier no longer
+ * knows and the client should refresh everything.
+ */
+public class ResourceChangeNotification {
+
+	String version;
+	Set<String> categories;
+	boolean all;
+
+	public ResourceChangeNotification(String version, Set<String> categories,
+			boolean all) {
+		this.version = version;
+		this.categories = categories;
+		this.all = all;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public Set<String> getCategories() {
+		return categories;
+	}
+
+	public boolean isAll() {
+		return all;
+	}
+
+	public boolean isChanged() {
+		return all || !categories.isEmpty();
+	}
+}
@@ -0,0 +1,541 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.Realm;
+
+/**
+ * Pushes resource changes to waiting clients by long-poll. A client asks to
+ * wait for changes after the last version it was told about and is answered
+ * as soon as a change is made in its realm, or with no changes when the wait
+ * times out. Changes made within the coalesce window of the first are
+ * answered together, so a bulk edit wakes each client once.
+ * <p>
+ * A principal's wait is only answered for changes that may concern it: a
+ * change to a resource assigned to it when it started waiting or when the
+ * change is answered, or a change that cannot be attributed to one resource.
+ * Assignments are looked up through the {@link Assignments} registered for
+ * each category; a category without one, or a lookup that fails, wakes the
+ * principal for every change. Other changes move the wait on to the current
+ * version without answering it.
+ * <p>
+ * Waits are answered through a callback from the notifier's own thread, so
+ * no request thread is held while a client waits. Versions start with an
+ * epoch chosen when the notifier is created; a version from before a restart
+ * is answered at once with everything changed.
+ * <p>
+ * The wait, coalesce window and maximum number of waiting clients are set
+ * with the <code>hypersocket.network.pushTimeout</code> (default 60000ms),
+ * <code>hypersocket.network.pushCoalesce</code> (default 2000ms) and
+ * <code>hypersocket.network.pushWaiters</code> (default 500) system
+ * properties. Each waiting client holds an open HTTP connection but no
+ * thread, so the limit should be sized for the number of clients expected to
+ * be connected at once and kept below the number of connections the server
+ * will accept, leaving room for other requests. Clients turned away when the
+ * limit is reached keep polling.
+ */
+@Component
+public class ResourceChangeNotifier {
+
+	static Logger log = LoggerFactory.getLogger(ResourceChangeNotifier.class);
+
+	static final int HISTORY = 64;
+
+	public interface Callback {
+		void changed(ResourceChangeNotification changes);
+	}
+
+	/**
+	 * Looks up the resources of one category assigned to a principal.
+	 */
+	public interface Assignments {
+		Set<Long> getResourceIds(Principal principal);
+	}
+
+	final long timeout;
+	final long coalesce;
+	final int maxWaiters;
+	final String epoch;
+	final AtomicInteger waiters = new AtomicInteger();
+	final ConcurrentMap<Long, Channel> channels = new ConcurrentHashMap<Long, Channel>();
+	final ConcurrentMap<String, Assignments> assignments = new ConcurrentHashMap<String, Assignments>();
+	final ScheduledThreadPoolExecutor scheduler;
+
+	public ResourceChangeNotifier() {
+		this(Long.getLong("hypersocket.network.pushTimeout", 60000), Long
+				.getLong("hypersocket.network.pushCoalesce", 2000), Integer
+				.getInteger("hypersocket.network.pushWaiters", 10000));
+	}
+
+	ResourceChangeNotifier(long timeout, long coalesce, int maxWaiters) {
+		this(timeout, coalesce, maxWaiters, Long.toString(
+				System.currentTimeMillis(), 36));
+	}
+
+	ResourceChangeNotifier(long timeout, long coalesce, int maxWaiters,
+			String epoch) {
+		this.timeout = timeout;
+		this.coalesce = coalesce;
+		this.maxWaiters = maxWaiters;
+		this.epoch = epoch;
+		scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ResourceChangeNotifier");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	@PreDestroy
+	void close() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Register how the resources of a category assigned to a principal are
+	 * found, so that principals are only woken by changes that concern them.
+	 */
+	public void registerAssignments(String category, Assignments resolver) {
+		assignments.put(category, resolver);
+	}
+
+	public void changed(Realm realm, String category) {
+		changed(realm.getId(), category, null);
+	}
+
+	public void changed(Realm realm, String category, Long resourceId) {
+		changed(realm.getId(), category, resourceId);
+	}
+
+	/**
+	 * Notify every realm of a change that cannot be attributed to one.
+	 */
+	public void changedAll(String category) {
+		for (Channel channel : channels.values()) {
+			channel.changed(category, null);
+		}
+	}
+
+	/**
+	 * Wait for changes made in the principal's realm after a version that
+	 * concern it. The callback is told once, with the changes or with none if
+	 * the wait timed out.
+	 *
+	 * @param since the version the client last saw, or <code>null</code> to
+	 *        get the current version without waiting
+	 * @return the wait, which should be cancelled if the client goes away, or
+	 *         <code>null</code> if too many clients are already waiting
+	 */
+	public Waiter await(final Principal principal, String since,
+			Callback callback) {
+		return await(principal.getRealm().getId(), new Lookup() {
+			@Override
+			public Set<Long> getResourceIds(String category) {
+				return ResourceChangeNotifier.this.getResourceIds(category,
+						principal);
+			}
+		}, since, callback);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public int getWaiterCount() {
+		return waiters.get();
+	}
+
+	void changed(Long realmId, String category, Long resourceId) {
+		getChannel(realmId).changed(category, resourceId);
+	}
+
+	Waiter await(Long realmId, String since, Callback callback) {
+		return await(realmId, null, since, callback);
+	}
+
+	Waiter await(Long realmId, Lookup lookup, String since, Callback callback) {
+
+		Channel channel = getChannel(realmId);
+		if (since == null) {
+			Waiter waiter = new Waiter(channel, null, 0, callback);
+			waiter.answer(channel.current());
+			return waiter;
+		}
+		if (waiters.incrementAndGet() > maxWaiters) {
+			waiters.decrementAndGet();
+			if (log.isDebugEnabled()) {
+				log.debug("Too many clients waiting for resource changes");
+			}
+			return null;
+		}
+
+		Waiter waiter = new Waiter(channel, lookup, parseVersion(since),
+				callback);
+		waiter.counted = true;
+		if (lookup != null) {
+			for (String category : assignments.keySet()) {
+				Set<Long> ids = lookup.getResourceIds(category);
+				if (ids != null) {
+					waiter.assigned.put(category, ids);
+				}
+			}
+		}
+		channel.await(waiter);
+		return waiter;
+	}
+
+	/**
+	 * Get the resources of a category assigned to a principal, or
+	 * <code>null</code> if they cannot be told.
+	 */
+	Set<Long> getResourceIds(String category, Principal principal) {
+		Assignments resolver = assignments.get(category);
+		if (resolver == null) {
+			return null;
+		}
+		try {
+			return resolver.getResourceIds(principal);
+		} catch (Throwable e) {
+			log.warn("Could not get the " + category + " assigned to "
+					+ principal.getName(), e);
+			return null;
+		}
+	}
+
+	String formatVersion(long version) {
+		return epoch + "-" + version;
+	}
+
+	/**
+	 * Get the number of a version, or -1 if it is from another epoch and so
+	 * cannot be compared with the versions of this one.
+	 */
+	long parseVersion(String version) {
+		int idx = version.lastIndexOf('-');
+		if (idx == -1 || !version.substring(0, idx).equals(epoch)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(version.substring(idx + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	Channel getChannel(Long realmId) {
+		Channel channel = channels.get(realmId);
+		if (channel == null) {
+			channel = new Channel();
+			Channel existing = channels.putIfAbsent(realmId, channel);
+			if (existing != null) {
+				channel = existing;
+			}
+		}
+		return channel;
+	}
+
+	/**
+	 * Looks up the resources of each category assigned to one principal.
+	 */
+	interface Lookup {
+		Set<Long> getResourceIds(String category);
+	}
+
+	/**
+	 * A client waiting for changes.
+	 */
+	public class Waiter {
+
+		final Channel channel;
+		final Lookup lookup;
+		final Callback callback;
+		final AtomicBoolean answered = new AtomicBoolean();
+		/*
+		 * The principal's resources when it started waiting, by category
+		 */
+		final Map<String, Set<Long>> assigned = new HashMap<String, Set<Long>>();
+		/*
+		 * Guarded by the channel
+		 */
+		long since;
+		long registered;
+		boolean counted;
+		volatile ScheduledFuture<?> expiry;
+
+		Waiter(Channel channel, Lookup lookup, long since, Callback callback) {
+			this.channel = channel;
+			this.lookup = lookup;
+			this.since = since;
+			this.callback = callback;
+		}
+
+		/**
+		 * Stop waiting without an answer.
+		 */
+		public void cancel() {
+			channel.remove(this);
+			done();
+		}
+
+		void answer(ResourceChangeNotification changes) {
+			if (done()) {
+				callback.changed(changes);
+			}
+		}
+
+		/**
+		 * Get whether any of the changes may concern the principal.
+		 *
+		 * @param notices the changes, or <code>null</code> if they are no
+		 *        longer all known
+		 */
+		boolean isAffected(List<Notice> notices) {
+			if (lookup == null || notices == null) {
+				return true;
+			}
+			Map<String, Set<Long>> current = new HashMap<String, Set<Long>>();
+			for (Notice notice : notices) {
+				if (notice.resourceId == null || notice.version <= registered) {
+					/*
+					 * Not attributable, or made before the assignments were
+					 * taken so they may not show it
+					 */
+					return true;
+				}
+				Set<Long> before = assigned.get(notice.category);
+				if (before == null || before.contains(notice.resourceId)) {
+					return true;
+				}
+				if (!current.containsKey(notice.category)) {
+					current.put(notice.category,
+							lookup.getResourceIds(notice.category));
+				}
+				Set<Long> after = current.get(notice.category);
+				if (after == null || after.contains(notice.resourceId)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean done() {
+			if (!answered.compareAndSet(false, true)) {
+				return false;
+			}
+			if (counted) {
+				waiters.decrementAndGet();
+			}
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+			return true;
+		}
+	}
+
+	class Channel {
+
+		final Deque<Notice> history = new ArrayDeque<Notice>();
+		final List<Waiter> waiting = new ArrayList<Waiter>();
+		long version;
+		boolean flushing;
+
+		synchronized void changed(String category, Long resourceId) {
+			history.addLast(new Notice(++version, category, resourceId));
+			if (history.size() > HISTORY) {
+				history.removeFirst();
+			}
+			if (!waiting.isEmpty()) {
+				scheduleFlush();
+			}
+		}
+
+		synchronized ResourceChangeNotification current() {
+			return new ResourceChangeNotification(formatVersion(version),
+					new TreeSet<String>(), false);
+		}
+
+		void await(final Waiter waiter) {
+
+			ResourceChangeNotification answer = null;
+			synchronized (this) {
+				if (waiter.since < 0 || waiter.since > version) {
+					/*
+					 * The client's version is from before a restart, it cannot
+					 * know what it missed.
+					 */
+					answer = new ResourceChangeNotification(
+							formatVersion(version), new TreeSet<String>(), true);
+				} else {
+					waiter.registered = version;
+					waiting.add(waiter);
+					waiter.expiry = scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							remove(waiter);
+							waiter.answer(current());
+						}
+					}, timeout, TimeUnit.MILLISECONDS);
+					if (version > waiter.since) {
+						scheduleFlush();
+					}
+				}
+			}
+			if (answer != null) {
+				waiter.answer(answer);
+			}
+		}
+
+		synchronized void remove(Waiter waiter) {
+			waiting.remove(waiter);
+		}
+
+		void scheduleFlush() {
+			if (!flushing) {
+				flushing = true;
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				}, coalesce, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Answer the waiters the changes since their version concern. The
+		 * assignments are looked up outside the lock, so changes are not held
+		 * up while they are.
+		 */
+		void flush() {
+
+			List<Waiter> woken = new ArrayList<Waiter>();
+			List<List<Notice>> notices = new ArrayList<List<Notice>>();
+			long flushed;
+			synchronized (this) {
+				flushing = false;
+				flushed = version;
+				for (Iterator<Waiter> it = waiting.iterator(); it.hasNext();) {
+					Waiter waiter = it.next();
+					if (waiter.answered.get()) {
+						it.remove();
+					} else if (waiter.since < version) {
+						it.remove();
+						woken.add(waiter);
+						notices.add(noticesSince(waiter.since));
+					}
+				}
+			}
+			for (int i = 0; i < woken.size(); i++) {
+				Waiter waiter = woken.get(i);
+				if (waiter.isAffected(notices.get(i))) {
+					waiter.answer(changesSince(waiter));
+				} else {
+					rewait(waiter, flushed);
+				}
+			}
+		}
+
+		/**
+		 * Keep a waiter none of the changes up to a version concerned waiting
+		 * from that version.
+		 */
+		synchronized void rewait(Waiter waiter, long seen) {
+			if (waiter.answered.get()) {
+				return;
+			}
+			waiter.since = seen;
+			waiting.add(waiter);
+			if (version > seen) {
+				scheduleFlush();
+			}
+		}
+
+		/**
+		 * Get the changes after a version, or <code>null</code> if some have
+		 * already been dropped from the history.
+		 */
+		List<Notice> noticesSince(long since) {
+			if (history.isEmpty() || history.peekFirst().version > since + 1) {
+				return null;
+			}
+			List<Notice> notices = new ArrayList<Notice>();
+			Iterator<Notice> it = history.descendingIterator();
+			while (it.hasNext()) {
+				Notice notice = it.next();
+				if (notice.version <= since) {
+					break;
+				}
+				notices.add(notice);
+			}
+			return notices;
+		}
+
+		synchronized ResourceChangeNotification changesSince(Waiter waiter) {
+			return changesSince(waiter.since);
+		}
+
+		ResourceChangeNotification changesSince(long since) {
+			TreeSet<String> categories = new TreeSet<String>();
+			if (history.isEmpty() || history.peekFirst().version > since + 1) {
+				return new ResourceChangeNotification(formatVersion(version),
+						categories, true);
+			}
+			Iterator<Notice> it = history.descendingIterator();
+			while (it.hasNext()) {
+				Notice notice = it.next();
+				if (notice.version <= since) {
+					break;
+				}
+				categories.add(notice.category);
+			}
+			return new ResourceChangeNotification(formatVersion(version),
+					categories, false);
+		}
+	}
+
+	static final class Notice {
+
+		final long version;
+		final String category;
+		final Long resourceId;
+
+		Notice(long version, String category, Long resourceId) {
+			this.version = version;
+			this.category = category;
+			this.resourceId = resourceId;
+		}
+	}
+}
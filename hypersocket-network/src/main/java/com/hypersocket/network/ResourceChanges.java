@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.hypersocket.resource.Resource;
+
+/**
+ * The resources of a principal that changed since a {@link ResourceChangeLog}
+ * token. When the token could not be answered the response is
+ * <code>full</code> and carries every resource; otherwise it carries the
+ * resources that were added or changed and the ids of those the principal no
+ * longer has.
+ */
+public class ResourceChanges<T> {
+
+	String token;
+	boolean full;
+	List<T> resources = new ArrayList<T>();
+	Set<Long> removed = new HashSet<Long>();
+
+	public ResourceChanges() {
+	}
+
+	/**
+	 * Build the changes from resources already chosen.
+	 *
+	 * @param token the token the client should send next time
+	 * @param full whether <code>resources</code> is everything
+	 * @param resources the resources added or changed, or all of them
+	 * @param removed the ids the principal no longer has
+	 */
+	public ResourceChanges(String token, boolean full, Collection<T> resources,
+			Set<Long> removed) {
+		this.token = token;
+		this.full = full;
+		this.resources.addAll(resources);
+		this.removed.addAll(removed);
+	}
+
+	/**
+	 * Build the changes from a principal's current resources.
+	 *
+	 * @param token the token the client should send next time
+	 * @param resources all of the principal's current resources
+	 * @param changed the ids changed since the client's token, or
+	 *        <code>null</code> to send everything
+	 */
+	public static <T extends Resource> ResourceChanges<T> of(String token,
+			Collection<T> resources, Set<Long> changed) {
+		if (changed == null) {
+			return new ResourceChanges<T>(token, true, resources,
+					Collections.<Long> emptySet());
+		}
+		Set<Long> removed = new HashSet<Long>(changed);
+		List<T> current = new ArrayList<T>();
+		for (T resource : resources) {
+			if (removed.remove(resource.getId())) {
+				current.add(resource);
+			}
+		}
+		return new ResourceChanges<T>(token, false, current, removed);
+	}
+
+	public boolean isSuccess() {
+		return true;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public boolean isFull() {
+		return full;
+	}
+
+	public List<T> getResources() {
+		return resources;
+	}
+
+	public Set<Long> getRemoved() {
+		return removed;
+	}
+}
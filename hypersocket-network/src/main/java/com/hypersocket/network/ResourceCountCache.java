@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts of the rows a table search matched, cached against the fingerprint
+ * the count was taken at. A create, update or delete bumps the fingerprint of
+ * its realm, after which the old counts are never asked for again and age out,
+ * so a table is counted once per change rather than once per page.
+ * <p>
+ * At most <code>hypersocket.network.countCacheSize</code> counts (1000 by
+ * default) are kept, evicting the least recently used.
+ */
+public class ResourceCountCache {
+
+	final int capacity;
+	final Map<String, Long> counts;
+
+	long hits;
+	long misses;
+
+	public ResourceCountCache() {
+		this(Integer.getInteger("hypersocket.network.countCacheSize", 1000));
+	}
+
+	@SuppressWarnings("serial")
+	public ResourceCountCache(int capacity) {
+		this.capacity = capacity;
+		this.counts = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > ResourceCountCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Get a count.
+	 *
+	 * @param fingerprint the fingerprint of the rows being counted, taken
+	 *            before counting them
+	 * @return the count, or <code>null</code> if it must be counted and
+	 *         {@link #put(String, String, String, long)}
+	 */
+	public synchronized Long get(String fingerprint, String searchColumn,
+			String searchPattern) {
+		Long count = counts.get(getKey(fingerprint, searchColumn, searchPattern));
+		if (count == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return count;
+	}
+
+	public synchronized void put(String fingerprint, String searchColumn,
+			String searchPattern, long count) {
+		counts.put(getKey(fingerprint, searchColumn, searchPattern), count);
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return counts.size();
+	}
+
+	static String getKey(String fingerprint, String searchColumn,
+			String searchPattern) {
+		return fingerprint + '\0' + (searchColumn == null ? "" : searchColumn)
+				+ '\0' + (searchPattern == null ? "" : searchPattern);
+	}
+}
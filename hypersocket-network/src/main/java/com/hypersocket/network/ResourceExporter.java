@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hypersocket.resource.Resource;
+
+/**
+ * Writes an export of resources as a JSON array, reading them
+ * {@link #BATCH_SIZE} at a time and writing each batch before the next is
+ * read, so an export of any size holds one batch in memory. The output is the
+ * same as serializing the whole list at once, so it imports as before.
+ */
+public class ResourceExporter {
+
+	public static final int BATCH_SIZE = 100;
+
+	static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Reads the resources to export in a stable order.
+	 */
+	public interface Source<T extends Resource> {
+
+		/**
+		 * @param after the last resource of the previous batch, or
+		 *            <code>null</code> for the first
+		 */
+		List<T> getBatch(Long after, int size);
+
+		/**
+		 * Prepare a resource to be written, as the service's
+		 * <code>prepareExport</code> does. It may clear the id.
+		 */
+		void prepare(T resource);
+	}
+
+	/**
+	 * Write the resources of a source.
+	 *
+	 * @return the number of resources written
+	 */
+	public static <T extends Resource> int export(OutputStream out,
+			Source<T> source) throws IOException {
+
+		JsonGenerator json = mapper.getFactory().createGenerator(out,
+				JsonEncoding.UTF8);
+		json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		int count = 0;
+		json.writeStartArray();
+		List<T> batch;
+		Long after = null;
+		do {
+			batch = source.getBatch(after, BATCH_SIZE);
+			if (!batch.isEmpty()) {
+				after = batch.get(batch.size() - 1).getId();
+			}
+			for (T resource : batch) {
+				source.prepare(resource);
+				mapper.writeValue(json, resource);
+				count++;
+			}
+			json.flush();
+		} while (batch.size() == BATCH_SIZE);
+		json.writeEndArray();
+		json.close();
+		return count;
+	}
+}
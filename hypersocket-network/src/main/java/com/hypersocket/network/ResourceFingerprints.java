@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.role.events.RoleEvent;
+
+/**
+ * Fingerprints of the resources clients poll for changes, kept as a version
+ * per realm that the owning service bumps whenever it fires a successful
+ * create, update or delete event. Reading one costs a map lookup instead of a
+ * pass over the resources. Role changes alter who is assigned what, so they
+ * bump every fingerprint.
+ * <p>
+ * Each fingerprint carries the time the server started, so a restart is seen
+ * as a change.
+ */
+@Component
+public class ResourceFingerprints implements ApplicationListener<SystemEvent> {
+
+	final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	final ConcurrentSkipListMap<String, Fingerprint> fingerprints = new ConcurrentSkipListMap<String, Fingerprint>();
+
+	/**
+	 * Get the fingerprint of a category of resources, creating it on first
+	 * use.
+	 */
+	public Fingerprint register(String category) {
+		Fingerprint fingerprint = new Fingerprint();
+		Fingerprint existing = fingerprints.putIfAbsent(category, fingerprint);
+		return existing == null ? fingerprint : existing;
+	}
+
+	/**
+	 * Get the combined fingerprint of every category in a realm.
+	 */
+	public String getFingerprint(Realm realm) {
+		StringBuilder buf = new StringBuilder(epoch);
+		for (Map.Entry<String, Fingerprint> entry : fingerprints.entrySet()) {
+			buf.append('-').append(entry.getValue().getVersion(realm.getId()));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Get a strong entity tag for a principal's resources in a realm, from the
+	 * realm's fingerprint and the principals the resources are assigned
+	 * through.
+	 *
+	 * @param principals the principal and the groups it belongs to
+	 */
+	public String getETag(Realm realm, Collection<? extends Principal> principals) {
+		return "\"" + getFingerprint(realm) + "-" + getAssignmentHash(principals)
+				+ "\"";
+	}
+
+	/**
+	 * Get whether an If-None-Match header matches an entity tag, by the weak
+	 * comparison RFC 7232 asks for. The header is either <code>*</code>, which
+	 * matches any tag, or a comma separated list of tags, each of which may be
+	 * marked weak. A malformed list matches nothing.
+	 *
+	 * @param ifNoneMatch the header, or <code>null</code>
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		if (ifNoneMatch.trim().equals("*")) {
+			return true;
+		}
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		int idx = 0;
+		int length = ifNoneMatch.length();
+		while (idx < length) {
+			char ch = ifNoneMatch.charAt(idx);
+			if (ch == ',' || ch == ' ' || ch == '\t') {
+				idx++;
+				continue;
+			}
+			if (ifNoneMatch.startsWith("W/", idx)) {
+				idx += 2;
+			}
+			if (idx >= length || ifNoneMatch.charAt(idx) != '"') {
+				return false;
+			}
+			int end = ifNoneMatch.indexOf('"', idx + 1);
+			if (end == -1) {
+				return false;
+			}
+			if (ifNoneMatch.regionMatches(idx, opaque, 0, opaque.length())
+					&& end + 1 - idx == opaque.length()) {
+				return true;
+			}
+			idx = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Get a hash of the principals a user's resources are assigned through,
+	 * which changes when the user joins or leaves a group.
+	 */
+	public String getAssignmentHash(Collection<? extends Principal> principals) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Principal principal : principals) {
+			ids.add(principal.getId());
+		}
+		Collections.sort(ids);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return new BigInteger(1, digest.digest(ids.toString().getBytes(
+					"UTF-8"))).toString(36);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void onApplicationEvent(SystemEvent event) {
+		if (event.isSuccess() && event instanceof RoleEvent) {
+			for (Fingerprint fingerprint : fingerprints.values()) {
+				fingerprint.changedAll();
+			}
+		}
+	}
+
+	public class Fingerprint {
+
+		final ConcurrentMap<Long, AtomicLong> versions = new ConcurrentHashMap<Long, AtomicLong>();
+		final AtomicLong global = new AtomicLong();
+
+		public void changed(Realm realm) {
+			getCounter(realm.getId()).incrementAndGet();
+		}
+
+		public void changedAll() {
+			global.incrementAndGet();
+		}
+
+		public String getFingerprint(Realm realm) {
+			return epoch + "-" + getVersion(realm.getId());
+		}
+
+		long getVersion(Long realmId) {
+			return global.get() + getCounter(realmId).get();
+		}
+
+		AtomicLong getCounter(Long realmId) {
+			AtomicLong counter = versions.get(realmId);
+			if (counter == null) {
+				counter = new AtomicLong();
+				AtomicLong existing = versions.putIfAbsent(realmId, counter);
+				if (existing != null) {
+					counter = existing;
+				}
+			}
+			return counter;
+		}
+	}
+}
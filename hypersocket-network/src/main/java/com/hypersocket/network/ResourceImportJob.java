@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.hypersocket.realm.Realm;
+
+/**
+ * The progress of an import running in the background, returned when the
+ * import is started and by its status endpoint until it is done.
+ * <p>
+ * The file is counted before anything is imported, so <code>total</code> is
+ * known once the job is running. Every resource read is then either imported
+ * or failed, and the reasons for the first {@link #MAX_ERRORS} failures are
+ * kept.
+ */
+public class ResourceImportJob {
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETE, FAILED
+	}
+
+	public static final int MAX_ERRORS = 100;
+
+	final String id;
+	final Long realmId;
+	final String resourceCategory;
+	final long created = System.currentTimeMillis();
+
+	Status status = Status.QUEUED;
+	String message;
+	int total = -1;
+	int read;
+	int imported;
+	int failed;
+	final List<String> errors = new ArrayList<String>();
+	Long finished;
+
+	ResourceImportJob(Realm realm, String resourceCategory) {
+		this.id = UUID.randomUUID().toString();
+		this.realmId = realm.getId();
+		this.resourceCategory = resourceCategory;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getResourceCategory() {
+		return resourceCategory;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public synchronized Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the reason the job failed, if it did
+	 */
+	public synchronized String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the number of resources in the file, or -1 until it is counted
+	 */
+	public synchronized int getTotal() {
+		return total;
+	}
+
+	public synchronized int getRead() {
+		return read;
+	}
+
+	public synchronized int getImported() {
+		return imported;
+	}
+
+	public synchronized int getFailed() {
+		return failed;
+	}
+
+	public synchronized List<String> getErrors() {
+		return new ArrayList<String>(errors);
+	}
+
+	public synchronized Long getFinished() {
+		return finished;
+	}
+
+	public synchronized boolean isDone() {
+		return status == Status.COMPLETE || status == Status.FAILED;
+	}
+
+	public boolean belongsTo(Realm realm) {
+		return realmId.equals(realm.getId());
+	}
+
+	synchronized void started() {
+		status = Status.RUNNING;
+	}
+
+	synchronized void counted(int total) {
+		this.total = total;
+	}
+
+	synchronized void read() {
+		read++;
+	}
+
+	synchronized void imported(int count) {
+		imported += count;
+	}
+
+	synchronized void failed(String name, String reason) {
+		failed++;
+		if (errors.size() < MAX_ERRORS) {
+			errors.add(name + ": " + reason);
+		}
+	}
+
+	synchronized void completed() {
+		status = Status.COMPLETE;
+		finished = System.currentTimeMillis();
+	}
+
+	synchronized void failed(String message) {
+		status = Status.FAILED;
+		this.message = message;
+		finished = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.auth.AuthenticatedService;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.resource.Resource;
+import com.hypersocket.session.Session;
+
+/**
+ * Runs resource imports in the background, so that a large file does not
+ * hold the upload request open until it times out, and keeps their progress
+ * for the import status endpoints.
+ * <p>
+ * Imports run as the session that started them, on a pool of
+ * <code>hypersocket.network.importThreads</code> threads (1 by default, so one
+ * import at a time). The
+ * last <code>hypersocket.network.importHistory</code> jobs (100 by default)
+ * are kept once done.
+ */
+@Component
+public class ResourceImportJobs {
+
+	static Logger log = LoggerFactory.getLogger(ResourceImportJobs.class);
+
+	final Map<String, ResourceImportJob> jobs = new LinkedHashMap<String, ResourceImportJob>();
+	ExecutorService executor;
+	int history;
+
+	@PostConstruct
+	private void postConstruct() {
+		history = Integer.getInteger("hypersocket.network.importHistory", 100);
+		executor = Executors.newFixedThreadPool(
+				Integer.getInteger("hypersocket.network.importThreads", 1),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ResourceImport");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	@PreDestroy
+	private void preDestroy() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Queue the import of a file, which is deleted when the import is done.
+	 *
+	 * @param service the service importing, whose current session the import
+	 *            runs as
+	 */
+	public <T extends Resource> ResourceImportJob submit(
+			final AuthenticatedService service, Realm realm,
+			String resourceCategory, final File file,
+			final boolean dropExisting, final ResourceImporter<T> importer) {
+
+		final Session session = service.getCurrentSession();
+		final Locale locale = service.getCurrentLocale();
+		final ResourceImportJob job = new ResourceImportJob(realm,
+				resourceCategory);
+		add(job);
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				job.started();
+				service.setCurrentSession(session, locale);
+				try {
+					importer.importFile(file, dropExisting, job);
+					job.completed();
+					if (log.isInfoEnabled()) {
+						log.info("Imported " + job.getImported() + " of "
+								+ job.getTotal() + " "
+								+ job.getResourceCategory() + ", "
+								+ job.getFailed() + " failed");
+					}
+				} catch (Throwable e) {
+					log.error("Import of " + job.getResourceCategory()
+							+ " failed", e);
+					job.failed(ResourceImporter.getReason(e));
+				} finally {
+					service.clearPrincipalContext();
+					file.delete();
+				}
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * Get a job importing one category of resource into a realm.
+	 *
+	 * @return the job, or <code>null</code> if there is no such job or it is
+	 *         no longer kept
+	 */
+	public synchronized ResourceImportJob getJob(Realm realm,
+			String resourceCategory, String id) {
+		ResourceImportJob job = jobs.get(id);
+		if (job == null || !job.belongsTo(realm)
+				|| !job.getResourceCategory().equals(resourceCategory)) {
+			return null;
+		}
+		return job;
+	}
+
+	synchronized void add(ResourceImportJob job) {
+		jobs.put(job.getId(), job);
+		int done = 0;
+		for (ResourceImportJob existing : jobs.values()) {
+			if (existing.isDone()) {
+				done++;
+			}
+		}
+		for (Iterator<ResourceImportJob> it = jobs.values().iterator(); done > history
+				&& it.hasNext();) {
+			if (it.next().isDone()) {
+				it.remove();
+				done--;
+			}
+		}
+	}
+}
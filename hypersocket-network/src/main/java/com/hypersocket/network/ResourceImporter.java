@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.resource.Resource;
+
+/**
+ * Imports a JSON export of resources into a realm, reading the file one
+ * resource at a time and saving {@link #BATCH_SIZE} at once.
+ * <p>
+ * The file is read twice. The first pass only checks that it is an array of
+ * objects and counts them, so a malformed file fails the job before existing
+ * resources are dropped or anything is saved. The second pass parses each
+ * resource, skips those without a name or whose name is taken, and saves the
+ * rest a batch at a time. If a batch cannot be saved it is saved again one
+ * resource at a time through the same method, so that one bad resource fails
+ * alone.
+ * <p>
+ * The rest of the server is told of the saved resources only once their
+ * transaction has committed. A failure to tell it is logged; it does not fail
+ * the resources, which are saved, and does not cause them to be saved again.
+ */
+public abstract class ResourceImporter<T extends Resource> {
+
+	static Logger log = LoggerFactory.getLogger(ResourceImporter.class);
+
+	public static final int BATCH_SIZE = 100;
+
+	static final ObjectMapper mapper = new ObjectMapper();
+
+	final Class<T> resourceClass;
+	final Realm realm;
+
+	protected ResourceImporter(Class<T> resourceClass, Realm realm) {
+		this.resourceClass = resourceClass;
+		this.realm = realm;
+	}
+
+	/**
+	 * Delete the realm's resources before importing.
+	 */
+	protected abstract void dropExisting() throws Exception;
+
+	/**
+	 * Get the names already used in the realm.
+	 */
+	protected abstract Collection<String> getExistingNames();
+
+	/**
+	 * Resolve what the resources of a batch refer to before they are saved.
+	 */
+	protected void prepare(List<T> batch) throws Exception {
+	}
+
+	/**
+	 * Save new resources in one transaction, which has committed when this
+	 * returns.
+	 */
+	protected abstract void save(List<T> batch) throws Exception;
+
+	/**
+	 * Tell the rest of the server about a resource that has been saved, as
+	 * creating it would.
+	 */
+	protected void saved(T resource) throws Exception {
+	}
+
+	public void importFile(File file, boolean dropExisting,
+			ResourceImportJob job) throws Exception {
+
+		job.counted(count(file));
+
+		if (dropExisting) {
+			dropExisting();
+		}
+
+		Set<String> names = new HashSet<String>(getExistingNames());
+		List<T> batch = new ArrayList<T>(BATCH_SIZE);
+
+		JsonParser json = mapper.getFactory().createParser(file);
+		try {
+			json.nextToken();
+			while (json.nextToken() == JsonToken.START_OBJECT) {
+				T resource = mapper.readValue(json, resourceClass);
+				job.read();
+
+				String name = resource.getName();
+				if (name == null || name.trim().length() == 0) {
+					job.failed(String.valueOf(job.getRead()), "No name");
+					continue;
+				}
+				if (!names.add(name)) {
+					job.failed(name, "A resource with this name already exists");
+					continue;
+				}
+
+				resource.setId(null);
+				resource.setRealm(realm);
+				batch.add(resource);
+				if (batch.size() == BATCH_SIZE) {
+					importBatch(batch, job);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				importBatch(batch, job);
+			}
+		} finally {
+			json.close();
+		}
+	}
+
+	void importBatch(List<T> batch, ResourceImportJob job) {
+
+		try {
+			prepare(batch);
+		} catch (Exception e) {
+			log.error("Failed to prepare " + batch.size() + " "
+					+ resourceClass.getSimpleName() + " for import", e);
+			for (T resource : batch) {
+				job.failed(resource.getName(), getReason(e));
+			}
+			return;
+		}
+
+		try {
+			save(batch);
+			job.imported(batch.size());
+			notifySaved(batch);
+			return;
+		} catch (Exception e) {
+			log.warn("Failed to save a batch of " + batch.size() + " "
+					+ resourceClass.getSimpleName()
+					+ ", saving them one at a time", e);
+		}
+
+		for (T resource : batch) {
+			List<T> single = Collections.singletonList(resource);
+			try {
+				resource.setId(null);
+				save(single);
+			} catch (Exception e) {
+				job.failed(resource.getName(), getReason(e));
+				continue;
+			}
+			job.imported(1);
+			notifySaved(single);
+		}
+	}
+
+	void notifySaved(List<T> saved) {
+		for (T resource : saved) {
+			try {
+				saved(resource);
+			} catch (Exception e) {
+				log.error("Imported " + resourceClass.getSimpleName() + " "
+						+ resource.getName()
+						+ " but failed to fire its creation event", e);
+			}
+		}
+	}
+
+	/**
+	 * Check a file is an array of objects and count them.
+	 */
+	static int count(File file) throws IOException {
+
+		JsonParser json = mapper.getFactory().createParser(file);
+		try {
+			if (json.nextToken() != JsonToken.START_ARRAY) {
+				throw new JsonParseException("Expected an array of resources",
+						json.getCurrentLocation());
+			}
+			int count = 0;
+			JsonToken token;
+			while ((token = json.nextToken()) == JsonToken.START_OBJECT) {
+				json.skipChildren();
+				count++;
+			}
+			if (token != JsonToken.END_ARRAY || json.nextToken() != null) {
+				throw new JsonParseException("Expected an array of resources",
+						json.getCurrentLocation());
+			}
+			return count;
+		} finally {
+			json.close();
+		}
+	}
+
+	static String getReason(Throwable e) {
+		return e.getMessage() == null ? e.getClass().getSimpleName() : e
+				.getMessage();
+	}
+}
@@ -0,0 +1,488 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import com.hypersocket.realm.Realm;
+import com.hypersocket.resource.Resource;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.tables.Sort;
+
+/**
+ * In memory index of the searchable text of one type of resource, used to
+ * answer table searches and their counts without a <code>LIKE</code> scan of
+ * the table.
+ * <p>
+ * Each realm is loaded from the database the first time it is searched, then
+ * kept up to date by {@link #put(Realm, Long, String, String...)} and
+ * {@link #remove(Realm, Long)} as the owning service fires its events. Every
+ * value is broken into the trigrams it contains; a search takes the candidates
+ * from the rarest trigram of its pattern and checks each against the pattern,
+ * so it reads a few rows however large the realm.
+ * <p>
+ * Patterns follow <code>LIKE</code>, with <code>%</code> or <code>*</code> as
+ * wildcards. A pattern without a wildcard matches anywhere in a value. A
+ * search matches only the column it names, the name if it names none, and is
+ * left to the database when the column is not indexed. Results are ordered by
+ * name, then id, as the tables are.
+ */
+public class ResourceSearchIndex {
+
+	static final int GRAM = 3;
+	static final String NAME_COLUMN = "name";
+
+	/**
+	 * Reads the searchable text of a realm's resources.
+	 */
+	public interface Source {
+
+		List<Entry> getSearchEntries(Realm realm);
+	}
+
+	final ConcurrentMap<Long, RealmIndex> realms = new ConcurrentHashMap<Long, RealmIndex>();
+	/*
+	 * Incremented by every change, so that a realm loaded while a change was
+	 * made is not kept.
+	 */
+	long generation;
+	final List<String> columns;
+
+	/**
+	 * @param columns the properties other than the name whose values are
+	 *            indexed, in the order the source and
+	 *            {@link #put(Realm, Long, String, String...)} give them
+	 */
+	public ResourceSearchIndex(String... columns) {
+		this.columns = Arrays.asList(columns);
+	}
+
+	/**
+	 * Search a realm.
+	 *
+	 * @param searchColumn the property to search, or <code>null</code> for the
+	 *            name
+	 * @return the ids of the matching resources in table order, or
+	 *         <code>null</code> if the search cannot be answered from the index
+	 *         because there is no pattern, the column is not indexed or the
+	 *         table is not sorted by name
+	 */
+	public List<Long> search(Realm realm, String searchColumn,
+			String searchPattern, ColumnSort[] sorting, Source source) {
+
+		if (!isIndexed(searchPattern)) {
+			return null;
+		}
+		int column = getColumn(searchColumn);
+		if (column == -1) {
+			return null;
+		}
+		boolean descending = false;
+		if (sorting != null && sorting.length > 0) {
+			if (!KeysetCriteria.DEFAULT_COLUMN.equals(sorting[0].getColumn()
+					.getColumnName())) {
+				return null;
+			}
+			descending = sorting[0].getSort() == Sort.DESC;
+		}
+
+		RealmIndex index = realms.get(realm.getId());
+		if (index == null) {
+			long stamp = getStamp();
+			index = new RealmIndex(source.getSearchEntries(realm));
+			install(realm.getId(), index, stamp);
+		}
+		return index.search(column, searchPattern, descending);
+	}
+
+	/**
+	 * Get the position of a column in the entries, or -1 if it is not
+	 * indexed.
+	 */
+	int getColumn(String searchColumn) {
+		if (searchColumn == null || searchColumn.length() == 0
+				|| NAME_COLUMN.equals(searchColumn)) {
+			return 0;
+		}
+		int idx = columns.indexOf(searchColumn);
+		return idx == -1 ? -1 : idx + 1;
+	}
+
+	/**
+	 * Index a created or updated resource.
+	 *
+	 * @param values text other than the name the resource can be found by
+	 */
+	public void put(Realm realm, Long id, String name, String... values) {
+		changed();
+		RealmIndex index = realms.get(realm.getId());
+		if (index != null) {
+			index.put(new Entry(id, name, values));
+		}
+	}
+
+	public void remove(Realm realm, Long id) {
+		changed();
+		RealmIndex index = realms.get(realm.getId());
+		if (index != null) {
+			index.remove(id);
+		}
+	}
+
+	/**
+	 * Drop every realm, to be loaded again when next searched.
+	 */
+	public void invalidateAll() {
+		changed();
+		realms.clear();
+	}
+
+	public boolean isLoaded(Realm realm) {
+		return realms.containsKey(realm.getId());
+	}
+
+	synchronized long getStamp() {
+		return generation;
+	}
+
+	synchronized void changed() {
+		generation++;
+	}
+
+	synchronized void install(Long realmId, RealmIndex index, long stamp) {
+		if (stamp == generation) {
+			realms.put(realmId, index);
+		}
+	}
+
+	/**
+	 * Whether a search pattern is answered by the index rather than the
+	 * database.
+	 */
+	public static boolean isIndexed(String searchPattern) {
+		return searchPattern != null
+				&& searchPattern.replace("%", "").replace("*", "").trim()
+						.length() > 0;
+	}
+
+	/**
+	 * Get a page of search results by offset.
+	 */
+	public static List<Long> page(List<Long> ids, int start, int length) {
+		if (start >= ids.size()) {
+			return Collections.emptyList();
+		}
+		return ids.subList(Math.max(0, start),
+				Math.min(ids.size(), start + length));
+	}
+
+	/**
+	 * Get the page of search results after a row.
+	 *
+	 * @param after the id of the last row of the previous page, or
+	 *            <code>null</code> for the first page
+	 * @throws PageAnchorNotFoundException if the row is not in the results
+	 */
+	public static List<Long> pageAfter(List<Long> ids, Long after, int length) {
+		if (after == null) {
+			return page(ids, 0, length);
+		}
+		int idx = ids.indexOf(after);
+		if (idx == -1) {
+			throw new PageAnchorNotFoundException(after);
+		}
+		return page(ids, idx + 1, length);
+	}
+
+	/**
+	 * Put resources loaded by id into the order of the ids.
+	 */
+	public static <T extends Resource> List<T> inOrder(List<Long> ids,
+			Collection<T> resources) {
+		Map<Long, T> byId = new HashMap<Long, T>();
+		for (T resource : resources) {
+			byId.put(resource.getId(), resource);
+		}
+		List<T> ordered = new ArrayList<T>(byId.size());
+		for (Long id : ids) {
+			T resource = byId.get(id);
+			if (resource != null) {
+				ordered.add(resource);
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Read the searchable text of a realm's resources with one query of
+	 * columns.
+	 *
+	 * @param criteria an empty criteria of the resource class
+	 * @param properties the properties other than the name to index
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Entry> getEntries(Criteria criteria, Realm realm,
+			String... properties) {
+
+		criteria.add(Restrictions.eq("realm", realm));
+		criteria.add(Restrictions.eq("deleted", false));
+		ProjectionList projection = Projections.projectionList()
+				.add(Projections.id()).add(Projections.property("name"));
+		for (String property : properties) {
+			projection.add(Projections.property(property));
+		}
+		criteria.setProjection(projection);
+
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			String[] values = new String[properties.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (String) row[i + 2];
+			}
+			entries.add(new Entry((Long) row[0], (String) row[1], values));
+		}
+		return entries;
+	}
+
+	/**
+	 * Get the names of the resources read by
+	 * {@link #getEntries(Criteria, Realm, String...)}, as they were stored.
+	 */
+	public static Set<String> getNames(Collection<Entry> entries) {
+		Set<String> names = new HashSet<String>();
+		for (Entry entry : entries) {
+			names.add(entry.name);
+		}
+		return names;
+	}
+
+	public static final class Entry {
+
+		final Long id;
+		final String name;
+		final String[] values;
+
+		public Entry(Long id, String name, String... values) {
+			this.id = id;
+			this.name = name == null ? "" : name;
+			this.values = new String[values.length + 1];
+			this.values[0] = this.name.toLowerCase(Locale.ENGLISH);
+			for (int i = 0; i < values.length; i++) {
+				this.values[i + 1] = values[i] == null ? "" : values[i]
+						.toLowerCase(Locale.ENGLISH);
+			}
+		}
+
+		boolean matches(int column, String[] segments, boolean anchorStart,
+				boolean anchorEnd) {
+			return column < values.length
+					&& matches(values[column], segments, anchorStart, anchorEnd);
+		}
+
+		static boolean matches(String value, String[] segments,
+				boolean anchorStart, boolean anchorEnd) {
+			int from = 0;
+			for (int i = 0; i < segments.length; i++) {
+				String segment = segments[i];
+				if (i == 0 && anchorStart) {
+					if (!value.startsWith(segment)) {
+						return false;
+					}
+					from = segment.length();
+				} else if (i == segments.length - 1 && anchorEnd) {
+					return value.length() - segment.length() >= from
+							&& value.endsWith(segment);
+				} else {
+					int idx = value.indexOf(segment, from);
+					if (idx < 0) {
+						return false;
+					}
+					from = idx + segment.length();
+				}
+			}
+			return !anchorEnd || from == value.length();
+		}
+	}
+
+	static final Comparator<Entry> TABLE_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			int c = String.CASE_INSENSITIVE_ORDER.compare(o1.name, o2.name);
+			return c != 0 ? c : o1.id.compareTo(o2.id);
+		}
+	};
+
+	/**
+	 * The index of one realm. Entries are numbered as they are added, and the
+	 * trigrams map to the numbers of the entries holding them. A changed or
+	 * removed entry leaves its number behind, to be dropped when enough have
+	 * built up to rebuild the index.
+	 */
+	static final class RealmIndex {
+
+		final List<Entry> entries = new ArrayList<Entry>();
+		final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+		final Map<String, Postings> grams = new HashMap<String, Postings>();
+		int dead;
+
+		RealmIndex(Collection<Entry> entries) {
+			for (Entry entry : entries) {
+				add(entry);
+			}
+		}
+
+		synchronized void put(Entry entry) {
+			discard(entry.id);
+			add(entry);
+			compact();
+		}
+
+		synchronized void remove(Long id) {
+			discard(id);
+			compact();
+		}
+
+		synchronized int size() {
+			return positions.size();
+		}
+
+		synchronized List<Long> search(int column, String searchPattern,
+				boolean descending) {
+
+			String pattern = searchPattern.toLowerCase(Locale.ENGLISH)
+					.replace('*', '%');
+			if (pattern.indexOf('%') < 0) {
+				pattern = "%" + pattern + "%";
+			}
+			boolean anchorStart = pattern.charAt(0) != '%';
+			boolean anchorEnd = pattern.charAt(pattern.length() - 1) != '%';
+
+			List<String> segments = new ArrayList<String>();
+			for (String segment : pattern.split("%")) {
+				if (segment.length() > 0) {
+					segments.add(segment);
+				}
+			}
+
+			Postings candidates = null;
+			for (String segment : segments) {
+				for (int i = 0; i + GRAM <= segment.length(); i++) {
+					Postings postings = grams.get(segment.substring(i, i + GRAM));
+					if (postings == null) {
+						return new ArrayList<Long>();
+					}
+					if (candidates == null || postings.size < candidates.size) {
+						candidates = postings;
+					}
+				}
+			}
+
+			String[] parts = segments.toArray(new String[segments.size()]);
+			List<Entry> matches = new ArrayList<Entry>();
+			if (candidates == null) {
+				for (Entry entry : entries) {
+					if (entry != null && entry.matches(column, parts, anchorStart, anchorEnd)) {
+						matches.add(entry);
+					}
+				}
+			} else {
+				for (int i = 0; i < candidates.size; i++) {
+					Entry entry = entries.get(candidates.positions[i]);
+					if (entry != null && entry.matches(column, parts, anchorStart, anchorEnd)) {
+						matches.add(entry);
+					}
+				}
+			}
+
+			Collections.sort(matches, descending ? Collections
+					.reverseOrder(TABLE_ORDER) : TABLE_ORDER);
+			List<Long> ids = new ArrayList<Long>(matches.size());
+			for (Entry entry : matches) {
+				ids.add(entry.id);
+			}
+			return ids;
+		}
+
+		void add(Entry entry) {
+			int position = entries.size();
+			entries.add(entry);
+			positions.put(entry.id, position);
+			Set<String> seen = new HashSet<String>();
+			for (String value : entry.values) {
+				for (int i = 0; i + GRAM <= value.length(); i++) {
+					String gram = value.substring(i, i + GRAM);
+					if (seen.add(gram)) {
+						Postings postings = grams.get(gram);
+						if (postings == null) {
+							postings = new Postings();
+							grams.put(gram, postings);
+						}
+						postings.add(position);
+					}
+				}
+			}
+		}
+
+		void discard(Long id) {
+			Integer position = positions.remove(id);
+			if (position != null) {
+				entries.set(position, null);
+				dead++;
+			}
+		}
+
+		void compact() {
+			if (dead < 1000 || dead < positions.size()) {
+				return;
+			}
+			List<Entry> live = new ArrayList<Entry>(positions.size());
+			for (Entry entry : entries) {
+				if (entry != null) {
+					live.add(entry);
+				}
+			}
+			entries.clear();
+			positions.clear();
+			grams.clear();
+			dead = 0;
+			for (Entry entry : live) {
+				add(entry);
+			}
+		}
+	}
+
+	static final class Postings {
+
+		int[] positions = new int[4];
+		int size;
+
+		void add(int position) {
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			positions[size++] = position;
+		}
+	}
+}
@@ -14,10 +14,12 @@ public class NetworkResourceEvent extends AssignableResourceEvent {
 	public static final String ATTR_HOSTNAME = "attr.destinationHost";
 	public static final String ATTR_DESTINATION_HOST = "attr.destinationHost";
 	
+	NetworkResource resource;
 	
 	public NetworkResourceEvent(Object source, String resourceKey,
 			boolean success, NetworkResource resource, Session session) {
 		super(source, resourceKey, success, session, resource);
+		this.resource = resource;
 		addAttribute(ATTR_HOSTNAME, resource.getHostname());
 		addAttribute(ATTR_DESTINATION_HOST, resource.getDestinationHostname());
 		addAttribute(ATTR_PROTOCOLS, resource.getProtocolsDesc());
@@ -26,11 +28,16 @@ public class NetworkResourceEvent extends AssignableResourceEvent {
 	public NetworkResourceEvent(Object source, String resourceKey, NetworkResource resource, Throwable e,
 			Session session) {
 		super(source, resourceKey, resource, e, session);
+		this.resource = resource;
 		addAttribute(ATTR_HOSTNAME, resource.getHostname());
 		addAttribute(ATTR_DESTINATION_HOST, resource.getDestinationHostname());
 		addAttribute(ATTR_PROTOCOLS, resource.getProtocolsDesc());
 	}
 
+	public NetworkResource getNetworkResource() {
+		return resource;
+	}
+
 	@Override
 	public String getResourceBundle() {
 		return NetworkResourceServiceImpl.RESOURCE_BUNDLE;
@@ -20,7 +20,7 @@ public class NetworkResourceSessionClosed extends NetworkResourceSessionEvent {
 			long totalBytesOut, int actualPort) {
 		super(source, EVENT_RESOURCE_KEY, true, resource, protocol, actualPort, session);
 		addAttribute(ATTR_BYTES_IN, String.valueOf(totalBytesIn));
-		addAttribute(ATTR_BYTES_OUT, String.valueOf(totalBytesIn));
+		addAttribute(ATTR_BYTES_OUT, String.valueOf(totalBytesOut));
 	}
 
 	public String[] getResourceKeys() {
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.events;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+import com.hypersocket.network.NetworkResource;
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.session.Session;
+
+public class NetworkResourceSessionProgress extends NetworkResourceSessionEvent {
+
+	private static final long serialVersionUID = 3381569215306950254L;
+
+	public static final String EVENT_RESOURCE_KEY = "networkResource.sessionProgress";
+
+	public static final String ATTR_BYTES_IN = "attr.totalBytesIn";
+	public static final String ATTR_BYTES_OUT = "attr.totalBytesOut";
+	public static final String ATTR_BYTES_IN_PER_SECOND = "attr.bytesInPerSecond";
+	public static final String ATTR_BYTES_OUT_PER_SECOND = "attr.bytesOutPerSecond";
+
+	public NetworkResourceSessionProgress(Object source,
+			NetworkResource resource, NetworkProtocol protocol, Session session,
+			long totalBytesIn, long totalBytesOut, long bytesInPerSecond,
+			long bytesOutPerSecond, int actualPort) {
+		super(source, EVENT_RESOURCE_KEY, true, resource, protocol, actualPort, session);
+		addAttribute(ATTR_BYTES_IN, String.valueOf(totalBytesIn));
+		addAttribute(ATTR_BYTES_OUT, String.valueOf(totalBytesOut));
+		addAttribute(ATTR_BYTES_IN_PER_SECOND, String.valueOf(bytesInPerSecond));
+		addAttribute(ATTR_BYTES_OUT_PER_SECOND, String.valueOf(bytesOutPerSecond));
+	}
+
+	public String[] getResourceKeys() {
+		return ArrayUtils.add(super.getResourceKeys(), EVENT_RESOURCE_KEY);
+	}
+}
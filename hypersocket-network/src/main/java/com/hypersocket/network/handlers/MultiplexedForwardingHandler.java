@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.handlers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.auth.json.UnauthorizedException;
+import com.hypersocket.network.ActiveTunnel;
+import com.hypersocket.network.NetworkResource;
+import com.hypersocket.network.NetworkResourceAuthorizationCache;
+import com.hypersocket.network.NetworkResourceService;
+import com.hypersocket.network.NetworkTunnelMonitor;
+import com.hypersocket.network.tunnel.DirectBufferPool;
+import com.hypersocket.network.tunnel.TcpTunnel;
+import com.hypersocket.network.tunnel.TunnelRelay;
+import com.hypersocket.permissions.AccessDeniedException;
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.server.websocket.WebsocketClientCallback;
+import com.hypersocket.session.Session;
+import com.hypersocket.session.json.SessionTimeoutException;
+import com.hypersocket.session.json.SessionUtils;
+import com.hypersocket.tunnel.TunnelFrame;
+import com.hypersocket.tunnel.TunnelStream;
+
+/**
+ * Relays the streams of multiplexed tunnels to their destinations. A client
+ * asks for a multiplexed tunnel by opening the "tunnel" websocket with
+ * <code>multiplex=true</code>; {@link TCPForwardingHandler} hands such
+ * websockets here and keeps relaying one connection per websocket otherwise.
+ * <p>
+ * Each websocket is served by a {@link TcpTunnel}. Streams are admitted
+ * against the session's authorized endpoints and relayed in the relay mode of
+ * their protocol.
+ */
+@Component
+public class MultiplexedForwardingHandler {
+
+	static Logger log = LoggerFactory
+			.getLogger(MultiplexedForwardingHandler.class);
+
+	@Autowired
+	NetworkResourceService networkService;
+
+	@Autowired
+	NetworkResourceAuthorizationCache authorizationCache;
+
+	@Autowired
+	NetworkResourceSessionEventPublisher eventPublisher;
+
+	@Autowired
+	NetworkTunnelMonitor tunnelMonitor;
+
+	@Autowired
+	SessionUtils sessionUtils;
+
+	final DirectBufferPool pool = new DirectBufferPool(
+			TunnelRelay.DEFAULT_BUFFER_SIZE, Integer.getInteger(
+					"hypersocket.network.relayPoolSize", 256));
+
+	/**
+	 * Accept a websocket that will carry a multiplexed tunnel for the
+	 * request's session.
+	 */
+	public void acceptWebsocket(HttpServletRequest request,
+			WebsocketClientCallback callback) throws UnauthorizedException {
+
+		final Session session;
+		try {
+			session = sessionUtils.getSession(request);
+		} catch (SessionTimeoutException e) {
+			throw new UnauthorizedException();
+		}
+
+		final TunnelWebsocketClient client = new TunnelWebsocketClient(
+				callback);
+		final TcpTunnel tunnel;
+		try {
+			tunnel = new TcpTunnel(new TcpTunnel.Sink() {
+				@Override
+				public void send(ByteBuffer frame) throws IOException {
+					client.send(frame);
+				}
+
+				@Override
+				public void closed(TcpTunnel tunnel) {
+					client.close();
+				}
+			}, new Admission(session), pool);
+		} catch (IOException e) {
+			log.error("Could not open multiplexed tunnel for session "
+					+ session.getId(), e);
+			callback.websocketRejected(e, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		client.setReceiver(new TunnelWebsocketClient.Receiver() {
+			@Override
+			public void onMessage(ByteBuffer message) throws IOException {
+				tunnel.onMessage(message);
+			}
+
+			@Override
+			public void closed() {
+				tunnel.close();
+			}
+		});
+		tunnel.start();
+
+		if (log.isInfoEnabled()) {
+			log.info("Accepted multiplexed tunnel for session "
+					+ session.getId());
+		}
+
+		callback.websocketAccepted(client);
+	}
+
+	/**
+	 * Admits the streams of one session's tunnel.
+	 */
+	class Admission implements TcpTunnel.Handler {
+
+		final Session session;
+
+		Admission(Session session) {
+			this.session = session;
+		}
+
+		@Override
+		public TcpTunnel.Endpoint admit(TunnelStream stream,
+				TunnelFrame.OpenRequest request) {
+
+			NetworkResource resource = authorizationCache
+					.getAuthorizedEndpoints(session, networkService)
+					.getResource(request.getResourceId());
+			if (resource == null) {
+				if (log.isInfoEnabled()) {
+					log.info("Session " + session.getId()
+							+ " is not authorized for resource "
+							+ request.getResourceId());
+				}
+				return null;
+			}
+
+			try {
+				networkService.verifyResourceSession(resource,
+						request.getHostname(), request.getPort(),
+						ForwardingTransport.TCP, session);
+			} catch (AccessDeniedException e) {
+				eventPublisher.sessionOpenFailed(
+						MultiplexedForwardingHandler.this, e, resource,
+						session, request.getPort());
+				return null;
+			}
+
+			NetworkProtocol protocol = resource.getNetworkProtocol(
+					request.getPort(), ForwardingTransport.TCP);
+			return new TcpTunnel.Endpoint(new InetSocketAddress(
+					resource.resolveHostname(), request.getPort()),
+					protocol.resolveRelayMode(), new Target(resource,
+							request.getHostname(), request.getPort()));
+		}
+
+		@Override
+		public ActiveTunnel opened(TcpTunnel.Endpoint endpoint) {
+			Target target = (Target) endpoint.getAttachment();
+			eventPublisher.sessionOpened(MultiplexedForwardingHandler.this,
+					target.resource, session, target.port,
+					ForwardingTransport.TCP);
+			return tunnelMonitor.open(session, target.resource,
+					target.hostname, target.port, ForwardingTransport.TCP);
+		}
+
+		@Override
+		public void openFailed(TcpTunnel.Endpoint endpoint, IOException cause) {
+			Target target = (Target) endpoint.getAttachment();
+			eventPublisher.sessionOpenFailed(MultiplexedForwardingHandler.this,
+					cause, target.resource, session, target.port);
+		}
+
+		@Override
+		public void closed(TcpTunnel.Endpoint endpoint) {
+			Target target = (Target) endpoint.getAttachment();
+			ActiveTunnel activeTunnel = endpoint.getActiveTunnel();
+			if (activeTunnel != null) {
+				tunnelMonitor.close(activeTunnel);
+			}
+			eventPublisher.sessionClosed(MultiplexedForwardingHandler.this,
+					target.resource, session, target.port,
+					ForwardingTransport.TCP, endpoint.getTotalBytesIn(),
+					endpoint.getTotalBytesOut());
+		}
+	}
+
+	static class Target {
+		final NetworkResource resource;
+		final String hostname;
+		final int port;
+
+		Target(NetworkResource resource, String hostname, int port) {
+			this.resource = resource;
+			this.hostname = hostname;
+			this.port = port;
+		}
+	}
+}
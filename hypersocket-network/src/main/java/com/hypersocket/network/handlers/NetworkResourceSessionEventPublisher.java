@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import com.hypersocket.events.EventService;
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.network.NetworkResource;
+import com.hypersocket.network.events.NetworkResourceSessionClosed;
+import com.hypersocket.network.events.NetworkResourceSessionOpened;
+import com.hypersocket.network.events.NetworkResourceSessionProgress;
+import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.session.Session;
+import com.hypersocket.transactions.TransactionService;
+
+/**
+ * Publishes tunnel session events off the I/O path. Events are captured as
+ * lightweight records on a bounded queue and drained in batches by a single
+ * publisher thread, which builds, publishes and persists each batch in one
+ * transaction. If that transaction rolls back, the batch is published again
+ * one event per transaction, so one bad event cannot lose the others.
+ * <p>
+ * When the queue is full the overflow policy applies. It is set with the
+ * <code>hypersocket.network.eventOverflow</code> system property:
+ * <code>DROP</code> (the default) discards the event, counts it and warns;
+ * <code>BLOCK</code> makes the I/O thread wait for space.
+ */
+@Component
+public class NetworkResourceSessionEventPublisher implements Runnable {
+
+	static Logger log = LoggerFactory
+			.getLogger(NetworkResourceSessionEventPublisher.class);
+
+	public enum OverflowPolicy {
+		BLOCK, DROP
+	}
+
+	static final int MAX_BATCH = 256;
+
+	@Autowired
+	EventService eventService;
+
+	@Autowired
+	TransactionService transactionService;
+
+	BlockingQueue<PendingEvent> queue;
+	OverflowPolicy overflowPolicy;
+	AtomicLong dropped = new AtomicLong();
+	AtomicLong published = new AtomicLong();
+	AtomicLong failed = new AtomicLong();
+	volatile boolean running;
+	Thread publisher;
+
+	@PostConstruct
+	private void postConstruct() {
+		queue = new ArrayBlockingQueue<PendingEvent>(Integer.getInteger(
+				"hypersocket.network.eventQueueSize", 10000));
+		overflowPolicy = OverflowPolicy.valueOf(System.getProperty(
+				"hypersocket.network.eventOverflow", OverflowPolicy.DROP.name())
+				.toUpperCase());
+
+		running = true;
+		publisher = new Thread(this, "NetworkResourceSessionEvents");
+		publisher.setDaemon(true);
+		publisher.start();
+	}
+
+	@PreDestroy
+	private void preDestroy() throws InterruptedException {
+		running = false;
+		publisher.interrupt();
+		publisher.join(5000);
+	}
+
+	public void sessionOpened(final Object source,
+			final NetworkResource resource, final Session session,
+			final Integer port, final ForwardingTransport transport) {
+		enqueue(new PendingEvent() {
+			@Override
+			SystemEvent create() {
+				return new NetworkResourceSessionOpened(source, true, resource,
+						session, port, resource.getNetworkProtocol(port,
+								transport));
+			}
+		});
+	}
+
+	public void sessionOpenFailed(final Object source, final Throwable cause,
+			final NetworkResource resource, final Session session,
+			final Integer port) {
+		enqueue(new PendingEvent() {
+			@Override
+			SystemEvent create() {
+				return new NetworkResourceSessionOpened(source, cause,
+						resource, session, port);
+			}
+		});
+	}
+
+	public void sessionClosed(final Object source,
+			final NetworkResource resource, final Session session,
+			final Integer port, final ForwardingTransport transport,
+			final long totalBytesIn, final long totalBytesOut) {
+		enqueue(new PendingEvent() {
+			@Override
+			SystemEvent create() {
+				return new NetworkResourceSessionClosed(source, resource,
+						resource.getNetworkProtocol(port, transport), session,
+						totalBytesIn, totalBytesOut, port);
+			}
+		});
+	}
+
+	public void sessionProgress(final Object source,
+			final NetworkResource resource, final Session session,
+			final Integer port, final ForwardingTransport transport,
+			final long totalBytesIn, final long totalBytesOut,
+			final long bytesInPerSecond, final long bytesOutPerSecond) {
+		enqueue(new PendingEvent() {
+			@Override
+			SystemEvent create() {
+				return new NetworkResourceSessionProgress(source, resource,
+						resource.getNetworkProtocol(port, transport), session,
+						totalBytesIn, totalBytesOut, bytesInPerSecond,
+						bytesOutPerSecond, port);
+			}
+		});
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getPublishedCount() {
+		return published.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	void enqueue(PendingEvent event) {
+		if (queue.offer(event)) {
+			return;
+		}
+		if (overflowPolicy == OverflowPolicy.DROP) {
+			long count = dropped.incrementAndGet();
+			if (log.isWarnEnabled() && (count == 1 || count % 1000 == 0)) {
+				log.warn("Network resource session event queue is full, "
+						+ count + " events dropped so far");
+			}
+			return;
+		}
+		try {
+			queue.put(event);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			dropped.incrementAndGet();
+			log.warn("Interrupted waiting for space on the network resource session event queue, event dropped");
+		}
+	}
+
+	@Override
+	public void run() {
+
+		final List<PendingEvent> batch = new ArrayList<PendingEvent>(MAX_BATCH);
+
+		while (running || !queue.isEmpty()) {
+			try {
+				PendingEvent first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH - 1);
+				publish(batch);
+			} catch (InterruptedException e) {
+				if (running) {
+					continue;
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Publish a drained batch. Events are only counted as published once the
+	 * transaction they were published in has committed.
+	 */
+	void publish(final List<PendingEvent> batch) {
+		if (batch.size() == 1) {
+			publishEvent(batch.get(0));
+			return;
+		}
+		try {
+			transactionService.doInTransaction(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus status) {
+					for (PendingEvent event : batch) {
+						eventService.publishEvent(event.create());
+					}
+					return null;
+				}
+			});
+			published.addAndGet(batch.size());
+		} catch (Throwable e) {
+			log.warn("Batch of " + batch.size()
+					+ " network resource session events rolled back, publishing them one at a time", e);
+			for (PendingEvent event : batch) {
+				publishEvent(event);
+			}
+		}
+	}
+
+	void publishEvent(final PendingEvent event) {
+		try {
+			transactionService.doInTransaction(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus status) {
+					eventService.publishEvent(event.create());
+					return null;
+				}
+			});
+			published.incrementAndGet();
+		} catch (Throwable e) {
+			failed.incrementAndGet();
+			log.error("Failed to publish network resource session event", e);
+		}
+	}
+
+	static abstract class PendingEvent {
+		abstract SystemEvent create();
+	}
+}
@@ -7,22 +7,30 @@
  ******************************************************************************/
 package com.hypersocket.network.handlers;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
 import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.hypersocket.events.EventService;
+import com.hypersocket.auth.json.UnauthorizedException;
+import com.hypersocket.network.ActiveTunnel;
 import com.hypersocket.network.NetworkResource;
 import com.hypersocket.network.NetworkResourceService;
-import com.hypersocket.network.events.NetworkResourceSessionClosed;
-import com.hypersocket.network.events.NetworkResourceSessionOpened;
+import com.hypersocket.network.NetworkTunnelMonitor;
+import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.server.HypersocketServer;
 import com.hypersocket.server.forward.AbstractForwardingHandler;
 import com.hypersocket.server.forward.ForwardingService;
 import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.server.websocket.WebsocketClientCallback;
 import com.hypersocket.session.Session;
 
 @Component
@@ -35,10 +43,24 @@ public class TCPForwardingHandler extends
 	NetworkResourceService networkService;
 
 	@Autowired
-	EventService eventService; 
+	NetworkResourceSessionEventPublisher eventPublisher;
+
+	@Autowired
+	NetworkTunnelMonitor tunnelMonitor;
+
+	@Autowired
+	MultiplexedForwardingHandler multiplexedHandler;
 	
 	@Autowired
 	HypersocketServer server;
+
+	/**
+	 * Tunnels of one connection per websocket are relayed by the framework,
+	 * which reports their open and close separately and only gives the totals
+	 * on close. Their monitor handles are kept here until then, keyed by
+	 * endpoint and closed oldest first.
+	 */
+	final Map<String, LinkedList<ActiveTunnel>> openTunnels = new HashMap<String, LinkedList<ActiveTunnel>>();
 	
 	public TCPForwardingHandler() {
 		super("tunnel");
@@ -49,6 +71,24 @@ public class TCPForwardingHandler extends
 		server.registerWebsocketpHandler(this);
 	}
 
+	/**
+	 * Clients that support it ask for a multiplexed tunnel with
+	 * <code>multiplex=true</code>. Older clients open one websocket per
+	 * connection and are relayed as before.
+	 */
+	@Override
+	public void acceptWebsocket(HttpServletRequest request,
+			HttpServletResponse response, WebsocketClientCallback callback,
+			HypersocketServer server) throws UnauthorizedException,
+			AccessDeniedException {
+		if ("true".equals(request.getParameter("multiplex"))) {
+			response.setHeader("X-Tunnel-Multiplex", "1");
+			multiplexedHandler.acceptWebsocket(request, callback);
+		} else {
+			super.acceptWebsocket(request, response, callback, server);
+		}
+	}
+
 	@Override
 	protected ForwardingService<NetworkResource> getService() {
 		return networkService;
@@ -57,28 +97,53 @@ public class TCPForwardingHandler extends
 	@Override
 	protected void fireResourceOpenSuccessEvent(Session session,
 			NetworkResource resource, String hostname, Integer port) {
-		eventService.publishEvent(new NetworkResourceSessionOpened(this, true,
-				resource, session, port, resource.getNetworkProtocol(port,
-						ForwardingTransport.TCP)));
+		ActiveTunnel tunnel = tunnelMonitor.open(session, resource, hostname,
+				port, ForwardingTransport.TCP, false);
+		String key = getTunnelKey(session, resource, hostname, port);
+		synchronized (openTunnels) {
+			LinkedList<ActiveTunnel> tunnels = openTunnels.get(key);
+			if (tunnels == null) {
+				tunnels = new LinkedList<ActiveTunnel>();
+				openTunnels.put(key, tunnels);
+			}
+			tunnels.add(tunnel);
+		}
+		eventPublisher.sessionOpened(this, resource, session, port,
+				ForwardingTransport.TCP);
 	}
 
 	@Override
 	protected void fireResourceSessionOpenFailedEvent(Throwable cause,
 			Session session, NetworkResource resource, String hostname,
 			Integer port) {
-		eventService.publishEvent(new NetworkResourceSessionOpened(this, cause,
-				resource, session, port));
-
+		eventPublisher.sessionOpenFailed(this, cause, resource, session, port);
 	}
 
 	@Override
 	protected void fireResourceSessionClosedEvent(NetworkResource resource,
 			Session session, String hostname, Integer port, long totalBytesIn,
 			long totalBytesOut) {
-		eventService.publishEvent(new NetworkResourceSessionClosed(this,
-				resource, resource.getNetworkProtocol(port,
-						ForwardingTransport.TCP), session, totalBytesIn,
-				totalBytesOut, port));
+		ActiveTunnel tunnel = null;
+		String key = getTunnelKey(session, resource, hostname, port);
+		synchronized (openTunnels) {
+			LinkedList<ActiveTunnel> tunnels = openTunnels.get(key);
+			if (tunnels != null) {
+				tunnel = tunnels.poll();
+				if (tunnels.isEmpty()) {
+					openTunnels.remove(key);
+				}
+			}
+		}
+		if (tunnel != null) {
+			tunnelMonitor.close(tunnel, totalBytesIn, totalBytesOut);
+		}
+		eventPublisher.sessionClosed(this, resource, session, port,
+				ForwardingTransport.TCP, totalBytesIn, totalBytesOut);
+	}
 
+	private String getTunnelKey(Session session, NetworkResource resource,
+			String hostname, Integer port) {
+		return session.getId() + "/" + resource.getId() + "/" + hostname + ":"
+				+ port;
 	}
 }
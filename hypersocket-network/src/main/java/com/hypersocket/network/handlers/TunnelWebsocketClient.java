@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.server.websocket.WebsocketClient;
+import com.hypersocket.server.websocket.WebsocketClientCallback;
+
+/**
+ * Connects an accepted websocket to a tunnel that is relayed by this module
+ * rather than by the server. Each binary frame received is handed to the
+ * {@link Receiver}; frames for the client are sent through the callback the
+ * websocket was accepted with. A receiver that fails a message drops the
+ * websocket.
+ */
+class TunnelWebsocketClient implements WebsocketClient {
+
+	static Logger log = LoggerFactory.getLogger(TunnelWebsocketClient.class);
+
+	interface Receiver {
+		void onMessage(ByteBuffer message) throws IOException;
+
+		void closed();
+	}
+
+	final WebsocketClientCallback callback;
+	Receiver receiver;
+	boolean closed;
+
+	TunnelWebsocketClient(WebsocketClientCallback callback) {
+		this.callback = callback;
+	}
+
+	void setReceiver(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	void send(ByteBuffer frame) throws IOException {
+		callback.send(frame);
+	}
+
+	@Override
+	public void open() {
+	}
+
+	@Override
+	public void frameReceived(ByteBuffer frame) {
+		try {
+			receiver.onMessage(frame);
+		} catch (IOException e) {
+			log.warn("Closing tunnel websocket after a bad message", e);
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		if (receiver != null) {
+			receiver.closed();
+		}
+		callback.websocketClosed(this);
+	}
+}
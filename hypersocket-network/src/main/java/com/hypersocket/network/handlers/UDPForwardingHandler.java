@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.handlers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.auth.json.UnauthorizedException;
+import com.hypersocket.network.ActiveTunnel;
+import com.hypersocket.network.NetworkResource;
+import com.hypersocket.network.NetworkResourceAuthorizationCache;
+import com.hypersocket.network.NetworkResourceService;
+import com.hypersocket.network.NetworkTunnelMonitor;
+import com.hypersocket.network.tunnel.UdpTunnel;
+import com.hypersocket.permissions.AccessDeniedException;
+import com.hypersocket.server.HypersocketServer;
+import com.hypersocket.server.forward.AbstractForwardingHandler;
+import com.hypersocket.server.forward.ForwardingService;
+import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.server.websocket.WebsocketClientCallback;
+import com.hypersocket.session.Session;
+import com.hypersocket.session.json.SessionTimeoutException;
+import com.hypersocket.session.json.SessionUtils;
+
+/**
+ * Opens UDP tunnels to network resources. Clients open the "udp" websocket
+ * with the <code>resourceId</code>, <code>hostname</code> and
+ * <code>port</code> of the forward. Each message received is handed to
+ * {@link UdpTunnel#onMessage(ByteBuffer)} and the batches of replies are sent
+ * back on the same websocket.
+ * <p>
+ * Flows are expired after <code>hypersocket.network.udpIdleTimeout</code>
+ * seconds of inactivity (default 60) and a tunnel carries at most
+ * <code>hypersocket.network.udpMaxFlows</code> flows (default 1024).
+ */
+@Component
+public class UDPForwardingHandler extends
+		AbstractForwardingHandler<NetworkResource> {
+
+	static Logger log = LoggerFactory.getLogger(UDPForwardingHandler.class);
+
+	@Autowired
+	NetworkResourceService networkService;
+
+	@Autowired
+	NetworkResourceAuthorizationCache authorizationCache;
+
+	@Autowired
+	NetworkResourceSessionEventPublisher eventPublisher;
+
+	@Autowired
+	NetworkTunnelMonitor tunnelMonitor;
+
+	@Autowired
+	SessionUtils sessionUtils;
+
+	@Autowired
+	HypersocketServer server;
+
+	long idleTimeout = TimeUnit.SECONDS.toMillis(Long.getLong(
+			"hypersocket.network.udpIdleTimeout", 60));
+	int maxFlows = Integer.getInteger("hypersocket.network.udpMaxFlows", 1024);
+
+	public UDPForwardingHandler() {
+		super("udp");
+	}
+
+	@PostConstruct
+	private void postConstruct() {
+		server.registerWebsocketpHandler(this);
+	}
+
+	/**
+	 * The server's forwarding client only relays TCP sockets, so the
+	 * websocket is connected to a {@link UdpTunnel} here instead.
+	 */
+	@Override
+	public void acceptWebsocket(HttpServletRequest request,
+			HttpServletResponse response, WebsocketClientCallback callback,
+			HypersocketServer server) throws UnauthorizedException,
+			AccessDeniedException {
+
+		Session session;
+		try {
+			session = sessionUtils.getSession(request);
+		} catch (SessionTimeoutException e) {
+			throw new UnauthorizedException();
+		}
+
+		Long resourceId;
+		int port;
+		try {
+			resourceId = Long.valueOf(request.getParameter("resourceId"));
+			port = Integer.parseInt(request.getParameter("port"));
+		} catch (NumberFormatException e) {
+			callback.websocketRejected(e, HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		NetworkResource resource = authorizationCache.getAuthorizedEndpoints(
+				session, networkService).getResource(resourceId);
+		if (resource == null) {
+			if (log.isInfoEnabled()) {
+				log.info("Session " + session.getId()
+						+ " is not authorized for resource " + resourceId);
+			}
+			callback.websocketRejected(new AccessDeniedException(
+					"Resource " + resourceId + " is not authorized"),
+					HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		String hostname = request.getParameter("hostname");
+		if (hostname == null) {
+			hostname = resource.getHostname();
+		}
+
+		final TunnelWebsocketClient client = new TunnelWebsocketClient(
+				callback);
+		final UdpTunnel tunnel;
+		try {
+			tunnel = openTunnel(session, resource, hostname, port,
+					new UdpTunnel.Sink() {
+						@Override
+						public void send(ByteBuffer message) throws IOException {
+							client.send(message);
+						}
+
+						@Override
+						public void closed(UdpTunnel tunnel) {
+							client.close();
+						}
+					});
+		} catch (IOException e) {
+			callback.websocketRejected(e,
+					HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		client.setReceiver(new TunnelWebsocketClient.Receiver() {
+			@Override
+			public void onMessage(ByteBuffer message) throws IOException {
+				tunnel.onMessage(message);
+			}
+
+			@Override
+			public void closed() {
+				tunnel.close();
+			}
+		});
+
+		callback.websocketAccepted(client);
+	}
+
+	public UdpTunnel openTunnel(final Session session,
+			final NetworkResource resource, final String hostname,
+			final int port, final UdpTunnel.Sink sink)
+			throws AccessDeniedException, IOException {
+
+		try {
+			networkService.verifyResourceSession(resource, hostname, port,
+					ForwardingTransport.UDP, session);
+		} catch (AccessDeniedException e) {
+			eventPublisher.sessionOpenFailed(this, e, resource, session, port);
+			throw e;
+		}
+
+		final ActiveTunnel activeTunnel = tunnelMonitor.open(session, resource,
+				hostname, port, ForwardingTransport.UDP);
+
+		UdpTunnel tunnel;
+		try {
+			tunnel = new UdpTunnel(new InetSocketAddress(
+					resource.resolveHostname(), port), new UdpTunnel.Sink() {
+
+				@Override
+				public void send(ByteBuffer message) throws IOException {
+					sink.send(message);
+				}
+
+				@Override
+				public void closed(UdpTunnel tunnel) {
+					tunnelMonitor.close(activeTunnel);
+					eventPublisher.sessionClosed(UDPForwardingHandler.this,
+							resource, session, port, ForwardingTransport.UDP,
+							tunnel.getTotalBytesIn(), tunnel.getTotalBytesOut());
+					sink.closed(tunnel);
+				}
+			}, idleTimeout, maxFlows, activeTunnel);
+		} catch (IOException e) {
+			tunnelMonitor.close(activeTunnel);
+			eventPublisher.sessionOpenFailed(this, e, resource, session, port);
+			throw e;
+		}
+
+		tunnel.start();
+
+		if (log.isInfoEnabled()) {
+			log.info("Opened UDP tunnel to " + tunnel.getDestination()
+					+ " for session " + session.getId());
+		}
+
+		eventPublisher.sessionOpened(this, resource, session, port,
+				ForwardingTransport.UDP);
+
+		return tunnel;
+	}
+
+	@Override
+	protected ForwardingService<NetworkResource> getService() {
+		return networkService;
+	}
+
+	@Override
+	protected void fireResourceOpenSuccessEvent(Session session,
+			NetworkResource resource, String hostname, Integer port) {
+		eventPublisher.sessionOpened(this, resource, session, port,
+				ForwardingTransport.UDP);
+	}
+
+	@Override
+	protected void fireResourceSessionOpenFailedEvent(Throwable cause,
+			Session session, NetworkResource resource, String hostname,
+			Integer port) {
+		eventPublisher.sessionOpenFailed(this, cause, resource, session, port);
+	}
+
+	@Override
+	protected void fireResourceSessionClosedEvent(NetworkResource resource,
+			Session session, String hostname, Integer port, long totalBytesIn,
+			long totalBytesOut) {
+		eventPublisher.sessionClosed(this, resource, session, port,
+				ForwardingTransport.UDP, totalBytesIn, totalBytesOut);
+	}
+}
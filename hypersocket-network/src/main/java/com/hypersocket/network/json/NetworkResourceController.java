@@ -7,6 +7,8 @@
  ******************************************************************************/
 package com.hypersocket.network.json;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -15,7 +17,6 @@ import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
@@ -26,6 +27,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.hypersocket.auth.json.AuthenticationRequired;
@@ -37,10 +39,18 @@ import com.hypersocket.json.ResourceList;
 import com.hypersocket.json.ResourceStatus;
 import com.hypersocket.launcher.ApplicationLauncherResource;
 import com.hypersocket.launcher.ApplicationLauncherResourceService;
+import com.hypersocket.launcher.LauncherScripts;
+import com.hypersocket.network.ActiveTunnel;
 import com.hypersocket.network.NetworkResource;
 import com.hypersocket.network.NetworkResourceColumns;
 import com.hypersocket.network.NetworkResourceService;
 import com.hypersocket.network.NetworkResourceServiceImpl;
+import com.hypersocket.network.PersonalNetworkResource;
+import com.hypersocket.network.ResourceChangeNotification;
+import com.hypersocket.network.ResourceChangeNotifier;
+import com.hypersocket.network.ResourceChanges;
+import com.hypersocket.network.ResourceFingerprints;
+import com.hypersocket.network.ResourceImportJob;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.Role;
 import com.hypersocket.properties.PropertyCategory;
@@ -56,7 +66,6 @@ import com.hypersocket.tables.BootstrapTableResult;
 import com.hypersocket.tables.Column;
 import com.hypersocket.tables.ColumnSort;
 import com.hypersocket.tables.json.BootstrapTablePageProcessor;
-import com.hypersocket.utils.HypersocketUtils;
 
 @Controller
 public class NetworkResourceController extends ResourceController {
@@ -70,10 +79,15 @@ public class NetworkResourceController extends ResourceController {
 	@Autowired
 	ApplicationLauncherResourceService launcherService;
 
+	@Autowired
+	ResourceChangeNotifier changeNotifier;
+
+	@Autowired
+	ResourceFingerprints fingerprints;
+
 	@AuthenticationRequired
 	@RequestMapping(value = "networkResources/personal", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
-	@ResponseStatus(value = HttpStatus.OK)
 	public ResourceList<NetworkResource> getResourcesByCurrentPrincipal(
 			HttpServletRequest request, HttpServletResponse response)
 			throws AccessDeniedException, UnauthorizedException,
@@ -82,6 +96,16 @@ public class NetworkResourceController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
+			/*
+			 * No @ResponseStatus here, it would replace the 304.
+			 */
+			String etag = networkService.getPersonalETag(sessionUtils
+					.getPrincipal(request));
+			response.setHeader("ETag", etag);
+			if (ResourceFingerprints.matches(request.getHeader("If-None-Match"), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return null;
+			}
 			return new ResourceList<NetworkResource>(
 					networkService.getResources(sessionUtils
 							.getPrincipal(request)));
@@ -90,6 +114,136 @@ public class NetworkResourceController extends ResourceController {
 		}
 	}
 
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/personal/changes", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceChanges<NetworkResource> getChangesByCurrentPrincipal(
+			HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false) String since)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return networkService.getPersonalChanges(
+					sessionUtils.getPrincipal(request), since);
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/personal/compact", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceList<PersonalNetworkResource> getCompactResourcesByCurrentPrincipal(
+			HttpServletRequest request, HttpServletResponse response)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return new ResourceList<PersonalNetworkResource>(
+					networkService.getPersonalResources(sessionUtils
+							.getPrincipal(request)));
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/personal/compact/changes", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceChanges<PersonalNetworkResource> getCompactChangesByCurrentPrincipal(
+			HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false) String since)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return networkService.getPersonalResourceChanges(
+					sessionUtils.getPrincipal(request), since);
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/personal/launcherScripts/{id}", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceStatus<LauncherScripts> getLauncherScripts(
+			HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("id") Long id) throws AccessDeniedException,
+			UnauthorizedException, SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return new ResourceStatus<LauncherScripts>(
+					networkService.getPersonalLauncherScripts(
+							sessionUtils.getPrincipal(request), id), "");
+		} catch (ResourceNotFoundException e) {
+			return new ResourceStatus<LauncherScripts>(false, e.getMessage());
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/push", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public DeferredResult<ResourceStatus<ResourceChangeNotification>> waitForChanges(
+			HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false) String since)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			/*
+			 * The request is answered from the notifier's thread, the servlet
+			 * thread is released as soon as this returns.
+			 */
+			final DeferredResult<ResourceStatus<ResourceChangeNotification>> result =
+					new DeferredResult<ResourceStatus<ResourceChangeNotification>>(
+					changeNotifier.getTimeout() + 30000L,
+					new ResourceStatus<ResourceChangeNotification>(false,
+							"Timed out waiting for changes"));
+			final ResourceChangeNotifier.Waiter waiter = changeNotifier.await(
+					sessionUtils.getPrincipal(request), since,
+					new ResourceChangeNotifier.Callback() {
+						@Override
+						public void changed(ResourceChangeNotification changes) {
+							result.setResult(new ResourceStatus<ResourceChangeNotification>(
+									changes, ""));
+						}
+					});
+			if (waiter == null) {
+				result.setResult(new ResourceStatus<ResourceChangeNotification>(
+						false, "Too many clients are waiting for changes"));
+			} else {
+				result.onCompletion(new Runnable() {
+					@Override
+					public void run() {
+						waiter.cancel();
+					}
+				});
+			}
+			return result;
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
 	@AuthenticationRequired
 	@RequestMapping(value = "networkResources/personalTable", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
@@ -116,6 +270,13 @@ public class NetworkResourceController extends ResourceController {
 								int start, int length, ColumnSort[] sorting)
 								throws UnauthorizedException,
 								AccessDeniedException {
+							String after = request.getParameter("after");
+							if (after != null) {
+								return networkService.seekPersonalResources(
+										sessionUtils.getPrincipal(request), searchColumn, searchPattern,
+										after.length() == 0 ? null : Long.valueOf(after),
+										length, sorting);
+							}
 							return networkService.searchPersonalResources(
 									sessionUtils.getPrincipal(request),
 									searchColumn, searchPattern, start, length, sorting);
@@ -155,6 +316,25 @@ public class NetworkResourceController extends ResourceController {
 		}
 	}
 
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/activeTunnels", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceList<ActiveTunnel> getActiveTunnels(
+			HttpServletRequest request, HttpServletResponse response)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return new ResourceList<ActiveTunnel>(
+					networkService.getActiveTunnels());
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
 	@AuthenticationRequired
 	@RequestMapping(value = "networkResources/table", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
@@ -181,6 +361,13 @@ public class NetworkResourceController extends ResourceController {
 								int length, ColumnSort[] sorting)
 								throws UnauthorizedException,
 								AccessDeniedException {
+							String after = request.getParameter("after");
+							if (after != null) {
+								return networkService.seekResources(
+										sessionUtils.getCurrentRealm(request), searchColumn, searchPattern,
+										after.length() == 0 ? null : Long.valueOf(after),
+										length, sorting);
+							}
 							return networkService.searchResources(
 									sessionUtils.getCurrentRealm(request),
 									searchColumn, searchPattern, start, length, sorting);
@@ -345,10 +532,6 @@ public class NetworkResourceController extends ResourceController {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ networkService.getResourceCategory() + "-"
@@ -362,23 +545,19 @@ public class NetworkResourceController extends ResourceController {
 
 	@AuthenticationRequired
 	@RequestMapping(value = "networkResources/export", method = RequestMethod.GET, produces = { "text/plain" })
-	@ResponseStatus(value = HttpStatus.OK)
-	@ResponseBody
-	public String exportAll(HttpServletRequest request,
+	public void exportAll(HttpServletRequest request,
 			HttpServletResponse response) throws AccessDeniedException,
 			UnauthorizedException, SessionTimeoutException,
-			ResourceNotFoundException, ResourceExportException {
+			ResourceNotFoundException, ResourceExportException, IOException {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ networkService.getResourceCategory() + ".json\"");
-			return networkService.exportAllResoures();
+			response.setContentType("text/plain; charset=UTF-8");
+			networkService.exportAllResources(getCurrentRealm(),
+					response.getOutputStream());
 		} finally {
 			clearAuthenticatedContext();
 		}
@@ -389,7 +568,7 @@ public class NetworkResourceController extends ResourceController {
 	@RequestMapping(value = "networkResources/import", method = { RequestMethod.POST }, produces = { "application/json" })
 	@ResponseBody
 	@ResponseStatus(value = HttpStatus.OK)
-	public ResourceStatus<NetworkResource> importAll(
+	public ResourceStatus<ResourceImportJob> importAll(
 			HttpServletRequest request, HttpServletResponse response,
 			@RequestParam(value = "file") MultipartFile jsonFile,
 			@RequestParam(required = false) boolean dropExisting)
@@ -398,26 +577,21 @@ public class NetworkResourceController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
-			Thread.sleep(2000);
-		} catch (Exception e) {
-		}
-		try {
-			String json = IOUtils.toString(jsonFile.getInputStream());
-			if (!HypersocketUtils.isValidJSON(json)) {
-				throw new ResourceException(
-						I18NServiceImpl.USER_INTERFACE_BUNDLE,
-						"error.incorrectJSON");
+			File file = File.createTempFile("import", ".json");
+			ResourceImportJob job;
+			try {
+				jsonFile.transferTo(file);
+				job = networkService.startImport(file, getCurrentRealm(),
+						dropExisting);
+			} catch (Exception e) {
+				file.delete();
+				throw e;
 			}
-			Collection<NetworkResource> collects = networkService
-					.importResources(json, getCurrentRealm(), dropExisting);
-			return new ResourceStatus<NetworkResource>(true, I18N.getResource(
+			return new ResourceStatus<ResourceImportJob>(job, I18N.getResource(
 					sessionUtils.getLocale(request),
-					I18NServiceImpl.USER_INTERFACE_BUNDLE,
-					"resource.import.success", collects.size()));
-		} catch (ResourceException e) {
-			return new ResourceStatus<NetworkResource>(false, e.getMessage());
+					NetworkResourceServiceImpl.RESOURCE_BUNDLE, "import.started"));
 		} catch (Exception e) {
-			return new ResourceStatus<NetworkResource>(false, I18N.getResource(
+			return new ResourceStatus<ResourceImportJob>(false, I18N.getResource(
 					sessionUtils.getLocale(request),
 					I18NServiceImpl.USER_INTERFACE_BUNDLE,
 					"resource.import.failure", e.getMessage()));
@@ -426,6 +600,29 @@ public class NetworkResourceController extends ResourceController {
 		}
 	}
 
+	@AuthenticationRequired
+	@RequestMapping(value = "networkResources/import/{id}", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceStatus<ResourceImportJob> getImportJob(
+			HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("id") String id) throws AccessDeniedException,
+			UnauthorizedException, SessionTimeoutException {
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			ResourceImportJob job = networkService.getImportJob(getCurrentRealm(), id);
+			if (job == null) {
+				return new ResourceStatus<ResourceImportJob>(false,
+						I18N.getResource(sessionUtils.getLocale(request),
+								NetworkResourceServiceImpl.RESOURCE_BUNDLE, "import.notFound", id));
+			}
+			return new ResourceStatus<ResourceImportJob>(job, "");
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
 	@AuthenticationRequired
 	@RequestMapping(value = "networkResources/fingerprint", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
@@ -437,7 +634,8 @@ public class NetworkResourceController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
-			return new ResourceStatus<String>(true, networkService.getFingerprint() + "-" + protocolService.getFingerprint() + "-" + launcherService.getFingerprint());
+			return new ResourceStatus<String>(true,
+					fingerprints.getFingerprint(sessionUtils.getCurrentRealm(request)));
 		} finally {
 			clearAuthenticatedContext();
 		}
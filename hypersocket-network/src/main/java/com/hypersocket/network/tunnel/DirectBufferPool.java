@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of equally sized direct buffers. Direct buffers are
+ * expensive to allocate and are only reclaimed by the GC, so relays borrow
+ * them from here and return them once the bytes have been written.
+ */
+public class DirectBufferPool {
+
+	final int bufferSize;
+	final int maxPooled;
+	final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	final AtomicInteger pooled = new AtomicInteger();
+	final AtomicLong allocated = new AtomicLong();
+
+	public DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public ByteBuffer acquire() {
+		ByteBuffer buf = buffers.poll();
+		if (buf == null) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		return buf;
+	}
+
+	public void release(ByteBuffer buf) {
+		if (!buf.isDirect() || buf.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buf.clear();
+		buffers.offer(buf);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getPooledCount() {
+		return pooled.get();
+	}
+
+	/**
+	 * Total number of direct buffers allocated since the pool was created.
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+}
@@ -0,0 +1,543 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.network.ActiveTunnel;
+import com.hypersocket.tunnel.MultiplexedTunnel;
+import com.hypersocket.tunnel.TunnelFrame;
+import com.hypersocket.tunnel.TunnelStream;
+
+/**
+ * Server side of a {@link MultiplexedTunnel}. Each stream the client opens is
+ * admitted by the {@link Handler} and connected, without blocking, to the
+ * destination it is given. The tunnel's own thread serves every destination
+ * socket. A destination is only read while its stream has room, so a client
+ * that stops reading one stream does not make the server buffer for it, and
+ * window is only returned to the client once its data has been written to
+ * the destination.
+ * <p>
+ * Destinations are read through a {@link TunnelRelay} in each endpoint's
+ * relay mode, straight into a buffer with room for the frame header. The
+ * stream takes that buffer as it is, and unless the client's window forces
+ * it to be split, the same buffer is handed to the {@link Sink} and then
+ * returned to the pool. Data from the client is written to the destination
+ * straight from the received message. Bytes are counted as they reach either side, on
+ * the endpoint and on its {@link ActiveTunnel}.
+ */
+public class TcpTunnel implements Runnable, MultiplexedTunnel.Listener {
+
+	static Logger log = LoggerFactory.getLogger(TcpTunnel.class);
+
+	public interface Sink {
+
+		/**
+		 * Send a frame to the client. The frame may be a pooled buffer that
+		 * is reused as soon as this returns, so it must have been written or
+		 * copied by then.
+		 */
+		void send(ByteBuffer frame) throws IOException;
+
+		void closed(TcpTunnel tunnel);
+	}
+
+	public interface Handler {
+
+		/**
+		 * Decide whether a stream may be opened.
+		 *
+		 * @return the endpoint to connect the stream to, or <code>null</code>
+		 *         to refuse it
+		 */
+		Endpoint admit(TunnelStream stream, TunnelFrame.OpenRequest request);
+
+		/**
+		 * Called once an endpoint is connected.
+		 *
+		 * @return live counters to update, or <code>null</code>
+		 */
+		ActiveTunnel opened(Endpoint endpoint);
+
+		void openFailed(Endpoint endpoint, IOException cause);
+
+		void closed(Endpoint endpoint);
+	}
+
+	final Sink sink;
+	final Handler handler;
+	final MultiplexedTunnel tunnel;
+	final TunnelRelay heapRelay;
+	final TunnelRelay directRelay;
+	final DirectBufferPool pool;
+	final Selector selector;
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	final Object sendLock = new Object();
+
+	volatile boolean open = true;
+	Thread thread;
+
+	public TcpTunnel(Sink sink, Handler handler, DirectBufferPool pool)
+			throws IOException {
+		this(sink, handler, pool, MultiplexedTunnel.DEFAULT_WINDOW);
+	}
+
+	public TcpTunnel(Sink sink, Handler handler, DirectBufferPool pool,
+			int initialWindow) throws IOException {
+		this.sink = sink;
+		this.handler = handler;
+		this.tunnel = new MultiplexedTunnel(this, false, initialWindow);
+		this.heapRelay = new TunnelRelay(TunnelRelayMode.HEAP, pool);
+		this.directRelay = new TunnelRelay(TunnelRelayMode.DIRECT, pool);
+		this.pool = pool;
+		this.selector = Selector.open();
+	}
+
+	public void start() {
+		thread = new Thread(this, "TcpTunnel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Process a frame received from the client.
+	 */
+	public void onMessage(ByteBuffer message) throws IOException {
+		tunnel.onMessage(message);
+	}
+
+	public void close() {
+		open = false;
+		selector.wakeup();
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public int getStreamCount() {
+		return tunnel.getStreamCount();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (open) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				selector.select(1000);
+
+				for (Iterator<SelectionKey> it = selector.selectedKeys()
+						.iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					Endpoint endpoint = (Endpoint) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							endpoint.connected();
+						}
+						if (key.isValid() && key.isWritable()) {
+							endpoint.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							endpoint.read();
+						}
+					} catch (IOException e) {
+						endpoint.failed(e);
+					}
+				}
+			}
+		} catch (Throwable e) {
+			if (open) {
+				log.error("TCP tunnel failed", e);
+			}
+		} finally {
+			open = false;
+			tunnel.closeAll();
+			List<Endpoint> endpoints = new ArrayList<Endpoint>();
+			for (SelectionKey key : selector.keys()) {
+				endpoints.add((Endpoint) key.attachment());
+			}
+			for (Endpoint endpoint : endpoints) {
+				endpoint.close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+			sink.closed(this);
+		}
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void onOpen(TunnelStream stream, TunnelFrame.OpenRequest request) {
+
+		final Endpoint endpoint = handler.admit(stream, request);
+		if (endpoint == null) {
+			stream.close();
+			return;
+		}
+
+		endpoint.tunnel = this;
+		endpoint.stream = stream;
+		endpoint.relay = endpoint.mode == TunnelRelayMode.DIRECT ? directRelay
+				: heapRelay;
+		stream.setAttachment(endpoint);
+		try {
+			endpoint.connect();
+		} catch (IOException e) {
+			endpoint.failed(e);
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				endpoint.register();
+			}
+		});
+	}
+
+	@Override
+	public void onData(TunnelStream stream, ByteBuffer data) {
+		Endpoint endpoint = (Endpoint) stream.getAttachment();
+		if (endpoint != null) {
+			endpoint.write(data);
+		}
+	}
+
+	@Override
+	public void onClose(TunnelStream stream) {
+		Endpoint endpoint = (Endpoint) stream.getAttachment();
+		if (endpoint != null) {
+			endpoint.close();
+		}
+	}
+
+	@Override
+	public void onWritable() {
+		/*
+		 * Frames are taken and sent under one lock so they reach the client
+		 * in the order the tunnel produced them.
+		 */
+		synchronized (sendLock) {
+			ByteBuffer frame;
+			while ((frame = tunnel.poll()) != null) {
+				try {
+					sink.send(frame);
+				} catch (IOException e) {
+					log.warn("Could not send to TCP tunnel", e);
+					close();
+					return;
+				} finally {
+					// Only pooled frames from a DIRECT relay go back
+					pool.release(frame);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onDrained(TunnelStream stream) {
+		final Endpoint endpoint = (Endpoint) stream.getAttachment();
+		if (endpoint != null) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					endpoint.resume();
+				}
+			});
+		}
+	}
+
+	/**
+	 * The destination socket of one stream. Socket state is guarded by the
+	 * endpoint's monitor, as data from the client is written from the
+	 * thread delivering the websocket message while the tunnel's thread reads
+	 * and flushes.
+	 */
+	public static class Endpoint {
+
+		final InetSocketAddress destination;
+		final TunnelRelayMode mode;
+		final Object attachment;
+		final LinkedList<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+		final AtomicLong bytesIn = new AtomicLong();
+		final AtomicLong bytesOut = new AtomicLong();
+
+		TcpTunnel tunnel;
+		TunnelStream stream;
+		TunnelRelay relay;
+		SocketChannel channel;
+		SelectionKey key;
+		volatile ActiveTunnel activeTunnel;
+		boolean connected;
+		boolean reading = true;
+		boolean closed;
+
+		/**
+		 * @param attachment
+		 *            the handler's own state for the endpoint
+		 */
+		public Endpoint(InetSocketAddress destination, TunnelRelayMode mode,
+				Object attachment) {
+			this.destination = destination;
+			this.mode = mode;
+			this.attachment = attachment;
+		}
+
+		public InetSocketAddress getDestination() {
+			return destination;
+		}
+
+		public TunnelRelayMode getMode() {
+			return mode;
+		}
+
+		public Object getAttachment() {
+			return attachment;
+		}
+
+		public ActiveTunnel getActiveTunnel() {
+			return activeTunnel;
+		}
+
+		public long getTotalBytesIn() {
+			return bytesIn.get();
+		}
+
+		public long getTotalBytesOut() {
+			return bytesOut.get();
+		}
+
+		synchronized void connect() throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(destination);
+		}
+
+		void register() {
+			try {
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+					if (channel.isConnectionPending()) {
+						key = channel.register(tunnel.selector,
+								SelectionKey.OP_CONNECT, this);
+						return;
+					}
+					key = channel.register(tunnel.selector, 0, this);
+				}
+				connected();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+
+		void connected() throws IOException {
+			synchronized (this) {
+				channel.finishConnect();
+				connected = true;
+			}
+			activeTunnel = tunnel.handler.opened(this);
+			flush();
+		}
+
+		/**
+		 * Write data received from the client. Whatever the destination does
+		 * not take now is kept until it is writable; the client's window
+		 * bounds how much that can be.
+		 */
+		void write(ByteBuffer data) {
+			int written = 0;
+			IOException error = null;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				try {
+					if (connected && pending.isEmpty()) {
+						written = channel.write(data);
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				if (error == null && data.hasRemaining()) {
+					ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+					copy.put(data);
+					copy.flip();
+					pending.add(copy);
+					updateInterest();
+				}
+			}
+			if (error != null) {
+				failed(error);
+			} else {
+				written(written);
+			}
+		}
+
+		void flush() throws IOException {
+			int written = 0;
+			synchronized (this) {
+				while (!pending.isEmpty()) {
+					ByteBuffer head = pending.getFirst();
+					written += channel.write(head);
+					if (head.hasRemaining()) {
+						break;
+					}
+					pending.removeFirst();
+				}
+				updateInterest();
+			}
+			written(written);
+		}
+
+		private void written(int written) {
+			if (written > 0) {
+				bytesIn.addAndGet(written);
+				ActiveTunnel counters = activeTunnel;
+				if (counters != null) {
+					counters.addBytesIn(written);
+				}
+				stream.consumed(written);
+			}
+		}
+
+		void read() throws IOException {
+			int room = stream.getWritable();
+			if (room <= 0) {
+				pause();
+				return;
+			}
+			ByteBuffer frame = relay.readFrame(channel, stream.getId(), room);
+			if (frame == null) {
+				stream.close();
+				close();
+				return;
+			}
+			if (!frame.hasRemaining()) {
+				return;
+			}
+			/*
+			 * The read was limited to the room the stream has, so the stream
+			 * takes the frame's payload whole and the buffer becomes its to
+			 * release. It is counted first, as the client may see it as soon
+			 * as it is written to the stream.
+			 */
+			int read = frame.remaining() - TunnelFrame.HEADER_LENGTH;
+			bytesOut.addAndGet(read);
+			ActiveTunnel counters = activeTunnel;
+			if (counters != null) {
+				counters.addBytesOut(read);
+			}
+			frame.position(TunnelFrame.HEADER_LENGTH);
+			boolean taken = false;
+			try {
+				taken = stream.writeFrame(frame);
+			} catch (IllegalStateException e) {
+				// Closed by the client while reading
+				close();
+			} finally {
+				if (!taken) {
+					relay.release(frame);
+				}
+			}
+		}
+
+		synchronized void pause() {
+			reading = false;
+			updateInterest();
+		}
+
+		synchronized void resume() {
+			reading = true;
+			updateInterest();
+		}
+
+		private void updateInterest() {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			int ops = SelectionKey.OP_CONNECT;
+			if (connected) {
+				ops = (reading ? SelectionKey.OP_READ : 0)
+						| (pending.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			}
+			key.interestOps(ops);
+			if (Thread.currentThread() != tunnel.thread) {
+				tunnel.selector.wakeup();
+			}
+		}
+
+		void failed(IOException e) {
+			boolean opened;
+			synchronized (this) {
+				opened = connected;
+			}
+			if (!opened) {
+				tunnel.handler.openFailed(this, e);
+			} else if (log.isDebugEnabled()) {
+				log.debug("Stream " + stream.getId() + " to " + destination
+						+ " failed", e);
+			}
+			stream.close();
+			close(opened);
+		}
+
+		void close() {
+			boolean opened;
+			synchronized (this) {
+				opened = connected;
+			}
+			close(opened);
+		}
+
+		private void close(boolean opened) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				pending.clear();
+				try {
+					if (channel != null) {
+						channel.close();
+					}
+				} catch (IOException e) {
+				}
+			}
+			if (opened) {
+				tunnel.handler.closed(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.hypersocket.tunnel.TunnelFrame;
+
+/**
+ * Moves bytes between tunnel frames and a destination channel.
+ * <p>
+ * Inbound frame payloads are written to the destination straight from the
+ * received message, without an intermediate array. Outbound, in
+ * {@link TunnelRelayMode#DIRECT} mode the destination is read into a pooled
+ * direct buffer just after a reserved frame header. The header is then filled
+ * in, so the frame is handed to the websocket without a copy. Frames returned
+ * by {@link #readFrame(ReadableByteChannel, int)} must be given back through
+ * {@link #release(ByteBuffer)} once written.
+ */
+public class TunnelRelay {
+
+	public static final int DEFAULT_BUFFER_SIZE = TunnelFrame.HEADER_LENGTH
+			+ TunnelFrame.MAX_PAYLOAD;
+
+	final TunnelRelayMode mode;
+	final DirectBufferPool pool;
+
+	public TunnelRelay(TunnelRelayMode mode, DirectBufferPool pool) {
+		this.mode = mode;
+		this.pool = pool;
+	}
+
+	public TunnelRelayMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Write the remaining bytes of a frame payload to the destination.
+	 */
+	public int writePayload(ByteBuffer payload, WritableByteChannel destination)
+			throws IOException {
+		int written = 0;
+		while (payload.hasRemaining()) {
+			written += destination.write(payload);
+		}
+		return written;
+	}
+
+	/**
+	 * Read from the destination into a complete DATA frame.
+	 * 
+	 * @return the frame, an empty buffer if nothing was available on a
+	 *         non-blocking channel, or <code>null</code> at end of stream
+	 */
+	public ByteBuffer readFrame(ReadableByteChannel destination, int streamId)
+			throws IOException {
+		return readFrame(destination, streamId, TunnelFrame.MAX_PAYLOAD);
+	}
+
+	/**
+	 * Read at most <code>max</code> bytes from the destination into a
+	 * complete DATA frame.
+	 * 
+	 * @see #readFrame(ReadableByteChannel, int)
+	 */
+	public ByteBuffer readFrame(ReadableByteChannel destination, int streamId,
+			int max) throws IOException {
+
+		ByteBuffer frame = mode == TunnelRelayMode.DIRECT ? pool.acquire()
+				: ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+		frame.clear();
+		frame.limit(Math.min(frame.capacity(), TunnelFrame.HEADER_LENGTH
+				+ Math.min(max, TunnelFrame.MAX_PAYLOAD)));
+		frame.position(TunnelFrame.HEADER_LENGTH);
+
+		int read;
+		try {
+			read = destination.read(frame);
+		} catch (IOException e) {
+			release(frame);
+			throw e;
+		}
+
+		if (read <= 0) {
+			release(frame);
+			return read < 0 ? null : ByteBuffer.allocate(0);
+		}
+
+		frame.put(0, TunnelFrame.DATA);
+		frame.putInt(1, streamId);
+		frame.putInt(5, read);
+		frame.flip();
+		return frame;
+	}
+
+	public void release(ByteBuffer frame) {
+		if (mode == TunnelRelayMode.DIRECT) {
+			pool.release(frame);
+		}
+	}
+}
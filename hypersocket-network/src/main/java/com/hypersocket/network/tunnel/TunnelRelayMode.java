@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+/**
+ * How relayed bytes are buffered between the websocket and the destination.
+ * The global default is taken from the
+ * <code>hypersocket.network.relayMode</code> system property and may be
+ * overridden per protocol.
+ */
+public enum TunnelRelayMode {
+
+	/**
+	 * Allocate a heap buffer per read.
+	 */
+	HEAP,
+
+	/**
+	 * Read into pooled direct buffers and build frames in place.
+	 */
+	DIRECT;
+
+	public static TunnelRelayMode getDefault() {
+		String mode = System.getProperty("hypersocket.network.relayMode");
+		if (mode != null) {
+			try {
+				return valueOf(mode.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		return HEAP;
+	}
+}
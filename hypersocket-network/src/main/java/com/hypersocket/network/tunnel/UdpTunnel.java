@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.network.ActiveTunnel;
+import com.hypersocket.tunnel.DatagramBatch;
+
+/**
+ * Server side of a UDP tunnel to one destination. Each flow id seen in the
+ * client's batches is mapped, NAT style, to its own connected
+ * {@link DatagramChannel} so that replies can be routed back to the right
+ * local socket on the client. Flows that see no traffic for the idle timeout
+ * are closed.
+ * <p>
+ * Datagrams from the client are written from the thread delivering the
+ * websocket message. Replies are read by the tunnel's own thread and sent
+ * back in {@link DatagramBatch}es, one per select. A flow is only closed while
+ * holding its lock, so a write never races with expiry; a datagram for a flow
+ * that has just expired opens a new flow.
+ */
+public class UdpTunnel implements Runnable {
+
+	static Logger log = LoggerFactory.getLogger(UdpTunnel.class);
+
+	public interface Sink {
+		void send(ByteBuffer message) throws IOException;
+
+		void closed(UdpTunnel tunnel);
+	}
+
+	final InetSocketAddress destination;
+	final Sink sink;
+	final long idleTimeout;
+	final int maxFlows;
+	final ActiveTunnel activeTunnel;
+
+	final Selector selector;
+	final ConcurrentMap<Integer, Flow> flows = new ConcurrentHashMap<Integer, Flow>();
+	final Queue<Flow> pending = new ConcurrentLinkedQueue<Flow>();
+	final DatagramBatch batch = new DatagramBatch();
+	final ByteBuffer readBuffer = ByteBuffer.allocate(DatagramBatch.MAX_DATAGRAM);
+
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong bytesOut = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+
+	volatile boolean open = true;
+	Thread thread;
+
+	/**
+	 * @param activeTunnel
+	 *            live counters to update, or <code>null</code>
+	 */
+	public UdpTunnel(InetSocketAddress destination, Sink sink,
+			long idleTimeout, int maxFlows, ActiveTunnel activeTunnel)
+			throws IOException {
+		this.destination = destination;
+		this.sink = sink;
+		this.idleTimeout = idleTimeout;
+		this.maxFlows = maxFlows;
+		this.activeTunnel = activeTunnel;
+		this.selector = Selector.open();
+	}
+
+	public void start() {
+		thread = new Thread(this, "UdpTunnel-" + destination);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Forward a batch of datagrams received from the client.
+	 */
+	public void onMessage(ByteBuffer message) throws IOException {
+		DatagramBatch.decode(message, new DatagramBatch.Handler() {
+			@Override
+			public void onDatagram(int flowId, ByteBuffer datagram)
+					throws IOException {
+				write(flowId, datagram);
+			}
+		});
+	}
+
+	void write(int flowId, ByteBuffer datagram) throws IOException {
+		int length = datagram.remaining();
+		while (true) {
+			Flow flow = getFlow(flowId);
+			if (flow == null) {
+				dropped.incrementAndGet();
+				return;
+			}
+			synchronized (flow) {
+				if (flow.closed) {
+					// Expired since it was looked up
+					flows.remove(flowId, flow);
+					continue;
+				}
+				try {
+					flow.channel.write(datagram);
+				} catch (PortUnreachableException e) {
+					dropped.incrementAndGet();
+					return;
+				} catch (ClosedChannelException e) {
+					// The tunnel is closing
+					dropped.incrementAndGet();
+					return;
+				}
+				flow.lastActivity = System.currentTimeMillis();
+			}
+			bytesIn.addAndGet(length);
+			if (activeTunnel != null) {
+				activeTunnel.addBytesIn(length);
+			}
+			return;
+		}
+	}
+
+	Flow getFlow(int flowId) throws IOException {
+		Flow flow = flows.get(flowId);
+		if (flow != null || !open) {
+			return flow;
+		}
+		if (flows.size() >= maxFlows) {
+			if (log.isDebugEnabled()) {
+				log.debug("Too many flows to " + destination + ", dropping flow "
+						+ flowId);
+			}
+			return null;
+		}
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(destination);
+		flow = new Flow(flowId, channel);
+		flows.put(flowId, flow);
+		if (!open) {
+			// Closed while the flow was opening, so nothing else will close it
+			synchronized (flow) {
+				flow.close();
+			}
+			return flow;
+		}
+		pending.add(flow);
+		selector.wakeup();
+		return flow;
+	}
+
+	@Override
+	public void run() {
+
+		long lastExpiry = System.currentTimeMillis();
+
+		try {
+			while (open) {
+				Flow flow;
+				while ((flow = pending.poll()) != null) {
+					flow.channel.register(selector, SelectionKey.OP_READ, flow);
+				}
+
+				selector.select(1000);
+
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it
+						.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isReadable()) {
+						read((Flow) key.attachment());
+					}
+				}
+				flush();
+
+				long now = System.currentTimeMillis();
+				if (now - lastExpiry >= 1000) {
+					expire(now);
+					lastExpiry = now;
+				}
+			}
+		} catch (IOException e) {
+			if (open) {
+				log.error("UDP tunnel to " + destination + " failed", e);
+			}
+		} finally {
+			open = false;
+			for (Flow flow : flows.values()) {
+				synchronized (flow) {
+					flow.close();
+				}
+			}
+			flows.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+			sink.closed(this);
+		}
+	}
+
+	void read(Flow flow) throws IOException {
+		while (true) {
+			readBuffer.clear();
+			int read;
+			try {
+				read = flow.channel.read(readBuffer);
+			} catch (PortUnreachableException e) {
+				return;
+			}
+			if (read <= 0) {
+				return;
+			}
+			readBuffer.flip();
+			if (!batch.add(flow.id, readBuffer)) {
+				flush();
+				batch.add(flow.id, readBuffer);
+			}
+			bytesOut.addAndGet(read);
+			if (activeTunnel != null) {
+				activeTunnel.addBytesOut(read);
+			}
+			flow.lastActivity = System.currentTimeMillis();
+		}
+	}
+
+	void flush() throws IOException {
+		if (!batch.isEmpty()) {
+			sink.send(batch.flush());
+		}
+	}
+
+	void expire(long now) {
+		for (Iterator<Flow> it = flows.values().iterator(); it.hasNext();) {
+			Flow flow = it.next();
+			synchronized (flow) {
+				if (now - flow.lastActivity < idleTimeout) {
+					continue;
+				}
+				it.remove();
+				flow.close();
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Expiring idle flow " + flow.id + " to " + destination);
+			}
+		}
+	}
+
+	public void close() {
+		open = false;
+		selector.wakeup();
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public InetSocketAddress getDestination() {
+		return destination;
+	}
+
+	public int getFlowCount() {
+		return flows.size();
+	}
+
+	public long getTotalBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getTotalBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	static class Flow {
+		final int id;
+		final DatagramChannel channel;
+		volatile long lastActivity = System.currentTimeMillis();
+		boolean closed;
+
+		Flow(int id, DatagramChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+
+		/**
+		 * Close the flow's channel. Callers hold the flow's lock.
+		 */
+		void close() {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -4,12 +4,18 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Index;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.hypersocket.network.tunnel.TunnelRelayMode;
 import com.hypersocket.resource.RealmResource;
 import com.hypersocket.server.forward.ForwardingTransport;
 
 @Entity
 @Table(name = "network_protocols")
+@org.hibernate.annotations.Table(appliesTo = "network_protocols", indexes = { @Index(name = "network_protocols_realm_name", columnNames = {
+		"realm_id", "deleted", "name" }) })
 @JsonDeserialize(using = NetworkProtocolDeserializer.class)
 public class NetworkProtocol extends RealmResource {
 
@@ -22,6 +28,9 @@ public class NetworkProtocol extends RealmResource {
 	@Column(name = "end_port", nullable = true)
 	Integer endPort;
 
+	@Column(name = "relay_mode", nullable = true)
+	TunnelRelayMode relayMode;
+
 	public ForwardingTransport getTransport() {
 		return transport;
 	}
@@ -53,4 +62,22 @@ public class NetworkProtocol extends RealmResource {
 	public void setEndPort(Integer endPort) {
 		this.endPort = endPort;
 	}
+
+	public TunnelRelayMode getRelayMode() {
+		return relayMode;
+	}
+
+	public void setRelayMode(TunnelRelayMode relayMode) {
+		this.relayMode = relayMode;
+	}
+
+	/**
+	 * Get the mode the protocol's streams are relayed in. Only streams of a
+	 * multiplexed tunnel use it; tunnels of one connection per websocket are
+	 * relayed by the forwarding framework.
+	 */
+	@JsonIgnore
+	public TunnelRelayMode resolveRelayMode() {
+		return relayMode == null ? TunnelRelayMode.getDefault() : relayMode;
+	}
 }
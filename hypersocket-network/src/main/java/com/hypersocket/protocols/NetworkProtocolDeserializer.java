@@ -10,6 +10,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.NullNode;
+import com.hypersocket.network.tunnel.TunnelRelayMode;
 import com.hypersocket.server.forward.ForwardingTransport;
 
 public class NetworkProtocolDeserializer extends
@@ -31,6 +32,10 @@ public class NetworkProtocolDeserializer extends
 		if (node.get("endPort") != NullNode.instance) {
 			protocol.setEndPort(((IntNode) node.get("endPort")).intValue());
 		}
+		if (node.hasNonNull("relayMode")) {
+			protocol.setRelayMode(TunnelRelayMode.valueOf(node.get("relayMode")
+					.asText()));
+		}
 		return protocol;
 	}
 
@@ -1,9 +1,23 @@
 package com.hypersocket.protocols;
 
+import java.util.Collection;
+import java.util.List;
+
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractResourceRepository;
+import com.hypersocket.tables.ColumnSort;
 
 
 public interface NetworkProtocolRepository extends
-		AbstractResourceRepository<NetworkProtocol> {
+		AbstractResourceRepository<NetworkProtocol>, ResourceSearchIndex.Source {
+
+	List<NetworkProtocol> seek(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting);
+
+	List<NetworkProtocol> getResourcesById(Collection<Long> ids);
+
+	void saveResources(Collection<NetworkProtocol> resources);
 
+	List<NetworkProtocol> getResourcesByName(Realm realm, Collection<String> names);
 }
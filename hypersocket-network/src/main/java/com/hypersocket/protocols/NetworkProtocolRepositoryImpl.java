@@ -1,14 +1,83 @@
 package com.hypersocket.protocols;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.hypersocket.network.KeysetCriteria;
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.repository.CriteriaConfiguration;
 import com.hypersocket.resource.AbstractResourceRepositoryImpl;
+import com.hypersocket.tables.ColumnSort;
 
 @Repository
 public class NetworkProtocolRepositoryImpl extends
 		AbstractResourceRepositoryImpl<NetworkProtocol> implements
 		NetworkProtocolRepository {
 
+	@Override
+	@Transactional(readOnly=true)
+	public List<NetworkProtocol> seek(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting) {
+		return super.search(realm, searchColumn, searchPattern, 0, length,
+				KeysetCriteria.UNSORTED, KeysetCriteria.after(
+						createCriteria(NetworkProtocol.class), after, sorting, null));
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<NetworkProtocol> getResourcesById(final Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(NetworkProtocol.class, new CriteriaConfiguration() {
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.in("id", ids));
+				criteria.add(Restrictions.eq("deleted", false));
+			}
+		});
+	}
+
+	@Override
+	@Transactional
+	public void saveResources(Collection<NetworkProtocol> resources) {
+		for (NetworkProtocol resource : resources) {
+			saveResource(resource, new HashMap<String, String>());
+		}
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<NetworkProtocol> getResourcesByName(final Realm realm,
+			final Collection<String> names) {
+		if (names.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(NetworkProtocol.class, new CriteriaConfiguration() {
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.eq("realm", realm));
+				criteria.add(Restrictions.in("name", names));
+				criteria.add(Restrictions.eq("deleted", false));
+			}
+		});
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ResourceSearchIndex.Entry> getSearchEntries(Realm realm) {
+		return ResourceSearchIndex.getEntries(
+				createCriteria(NetworkProtocol.class), realm);
+	}
+
 	@Override
 	protected Class<NetworkProtocol> getResourceClass() {
 		return NetworkProtocol.class;
@@ -1,11 +1,20 @@
 package com.hypersocket.protocols;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+
+import com.hypersocket.network.ResourceImportJob;
+import com.hypersocket.network.tunnel.TunnelRelayMode;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractResourceService;
 import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.tables.ColumnSort;
 
 public interface NetworkProtocolService extends
 		AbstractResourceService<NetworkProtocol> {
@@ -13,12 +22,28 @@ public interface NetworkProtocolService extends
 	String getFingerprint();
 
 	NetworkProtocol updateResource(NetworkProtocol resourceById, String name,
-			Integer startPort, Integer endPort, ForwardingTransport transport)
+			Integer startPort, Integer endPort, ForwardingTransport transport,
+			TunnelRelayMode relayMode)
 			throws ResourceChangeException, AccessDeniedException;
 
 	NetworkProtocol createResource(String name, Realm realm, Integer startPort,
-			Integer endPort, ForwardingTransport transport)
+			Integer endPort, ForwardingTransport transport,
+			TunnelRelayMode relayMode)
 			throws ResourceCreationException, AccessDeniedException;
 
+	List<NetworkProtocol> seekResources(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting)
+			throws AccessDeniedException;
+
+	void exportAllResources(Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException;
+
+	ResourceImportJob startImport(File file, Realm realm, boolean dropExisting)
+			throws AccessDeniedException;
+
+	ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException;
+
+	List<NetworkProtocol> getResourcesByName(Realm realm, Collection<String> names);
 
 }
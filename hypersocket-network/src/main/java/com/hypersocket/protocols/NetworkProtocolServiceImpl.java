@@ -1,6 +1,11 @@
 package com.hypersocket.protocols;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 import javax.annotation.PostConstruct;
 
@@ -13,7 +18,16 @@ import com.hypersocket.events.EventService;
 import com.hypersocket.i18n.I18NService;
 import com.hypersocket.menus.MenuRegistration;
 import com.hypersocket.menus.MenuService;
+import com.hypersocket.network.KeysetCriteria;
 import com.hypersocket.network.NetworkResourceServiceImpl;
+import com.hypersocket.network.ResourceCountCache;
+import com.hypersocket.network.ResourceExporter;
+import com.hypersocket.network.ResourceFingerprints;
+import com.hypersocket.network.ResourceImportJob;
+import com.hypersocket.network.ResourceImportJobs;
+import com.hypersocket.network.ResourceImporter;
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.network.tunnel.TunnelRelayMode;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.PermissionCategory;
 import com.hypersocket.permissions.PermissionService;
@@ -29,6 +43,7 @@ import com.hypersocket.resource.AbstractResourceServiceImpl;
 import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.server.forward.ForwardingTransport;
+import com.hypersocket.tables.ColumnSort;
 
 @Service
 public class NetworkProtocolServiceImpl extends
@@ -60,6 +75,18 @@ public class NetworkProtocolServiceImpl extends
 	@Autowired
 	RealmService realmService;
 
+	@Autowired
+	ResourceFingerprints fingerprints;
+
+	@Autowired
+	ResourceImportJobs importJobs;
+
+	ResourceFingerprints.Fingerprint fingerprint;
+
+	final ResourceCountCache counts = new ResourceCountCache();
+
+	final ResourceSearchIndex searchIndex = new ResourceSearchIndex();
+
 	public NetworkProtocolServiceImpl() {
 		super("networkProtocol");
 	}
@@ -69,6 +96,8 @@ public class NetworkProtocolServiceImpl extends
 
 		i18nService.registerBundle(RESOURCE_BUNDLE);
 
+		fingerprint = fingerprints.register("networkProtocols");
+
 		PermissionCategory cat = permissionService.registerPermissionCategory(
 				RESOURCE_BUNDLE, "category.websites");
 
@@ -177,8 +206,147 @@ public class NetworkProtocolServiceImpl extends
 		return NetworkProtocol.class;
 	}
 
+	@Override
+	public String getFingerprint() {
+		return fingerprint.getFingerprint(getCurrentRealm());
+	}
+
+	@Override
+	public List<NetworkProtocol> searchResources(Realm realm,
+			String searchColumn, String searchPattern, int start, int length,
+			ColumnSort[] sorting) throws AccessDeniedException {
+
+		assertPermission(NetworkProtocolPermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn,
+				searchPattern, sorting, repository);
+		if (ids == null) {
+			return super.searchResources(realm, searchColumn, searchPattern,
+					start, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.page(ids, start, length));
+	}
+
+	@Override
+	public List<NetworkProtocol> seekResources(Realm realm, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting)
+			throws AccessDeniedException {
+
+		assertPermission(NetworkProtocolPermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn,
+				searchPattern, sorting, repository);
+		if (ids == null) {
+			return repository.seek(realm, searchColumn, searchPattern, after,
+					length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.pageAfter(ids, after, length));
+	}
+
+	@Override
+	public void exportAllResources(final Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException {
+
+		assertPermission(NetworkProtocolPermission.READ);
+
+		ResourceExporter.export(out, new ResourceExporter.Source<NetworkProtocol>() {
+			@Override
+			public List<NetworkProtocol> getBatch(Long after, int size) {
+				return repository.seek(realm, "", "", after, size,
+						KeysetCriteria.UNSORTED);
+			}
+
+			@Override
+			public void prepare(NetworkProtocol resource) {
+				prepareExport(resource, true);
+			}
+		});
+	}
+
+	@Override
+	public ResourceImportJob startImport(File file, final Realm realm,
+			boolean dropExisting) throws AccessDeniedException {
+
+		assertPermission(NetworkProtocolPermission.CREATE);
+		if (dropExisting) {
+			assertPermission(NetworkProtocolPermission.DELETE);
+		}
+
+		return importJobs.submit(this, realm, getResourceCategory(), file,
+				dropExisting, new ResourceImporter<NetworkProtocol>(
+						NetworkProtocol.class, realm) {
+
+					@Override
+					protected void dropExisting() throws Exception {
+						for (NetworkProtocol resource : repository.getResources(realm)) {
+							deleteResource(resource);
+						}
+					}
+
+					@Override
+					protected Collection<String> getExistingNames() {
+						return ResourceSearchIndex.getNames(repository
+								.getSearchEntries(realm));
+					}
+
+					@Override
+					protected void save(List<NetworkProtocol> batch) {
+						repository.saveResources(batch);
+					}
+
+					@Override
+					protected void saved(NetworkProtocol resource) {
+						fireResourceCreationEvent(resource);
+					}
+				});
+	}
+
+	@Override
+	public ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException {
+
+		assertPermission(NetworkProtocolPermission.CREATE);
+
+		return importJobs.getJob(realm, getResourceCategory(), id);
+	}
+
+	@Override
+	public List<NetworkProtocol> getResourcesByName(Realm realm,
+			Collection<String> names) {
+		return repository.getResourcesByName(realm, names);
+	}
+
+	List<NetworkProtocol> loadPage(List<Long> ids) {
+		return ResourceSearchIndex.inOrder(ids,
+				repository.getResourcesById(ids));
+	}
+
+	@Override
+	public Long getResourceCount(Realm realm, String searchColumn,
+			String searchPattern) throws AccessDeniedException {
+
+		assertPermission(NetworkProtocolPermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn,
+				searchPattern, null, repository);
+		if (ids != null) {
+			return (long) ids.size();
+		}
+
+		String version = fingerprint.getFingerprint(realm);
+		Long count = counts.get(version, searchColumn, searchPattern);
+		if (count == null) {
+			count = super.getResourceCount(realm, searchColumn, searchPattern);
+			counts.put(version, searchColumn, searchPattern, count);
+		}
+		return count;
+	}
+
 	@Override
 	protected void fireResourceCreationEvent(NetworkProtocol resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(),
+				resource.getName());
 		eventService.publishEvent(new NetworkProtocolCreatedEvent(this,
 				getCurrentSession(), resource));
 	}
@@ -192,6 +360,9 @@ public class NetworkProtocolServiceImpl extends
 
 	@Override
 	protected void fireResourceUpdateEvent(NetworkProtocol resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(),
+				resource.getName());
 		eventService.publishEvent(new NetworkProtocolUpdatedEvent(this,
 				getCurrentSession(), resource));
 	}
@@ -204,6 +375,8 @@ public class NetworkProtocolServiceImpl extends
 
 	@Override
 	protected void fireResourceDeletionEvent(NetworkProtocol resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.remove(resource.getRealm(), resource.getId());
 		eventService.publishEvent(new NetworkProtocolDeletedEvent(this,
 				getCurrentSession(), resource));
 	}
@@ -218,13 +391,14 @@ public class NetworkProtocolServiceImpl extends
 	@Override
 	public NetworkProtocol updateResource(NetworkProtocol resource,
 			String name, Integer startPort, Integer endPort,
-			ForwardingTransport transport) throws ResourceChangeException,
-			AccessDeniedException {
+			ForwardingTransport transport, TunnelRelayMode relayMode)
+			throws ResourceChangeException, AccessDeniedException {
 
 		resource.setName(name);
 		resource.setStartPort(startPort);
 		resource.setEndPort(endPort);
 		resource.setTransport(transport);
+		resource.setRelayMode(relayMode);
 
 		updateResource(resource, new HashMap<String, String>());
 
@@ -233,7 +407,8 @@ public class NetworkProtocolServiceImpl extends
 
 	@Override
 	public NetworkProtocol createResource(String name, Realm realm,
-			Integer startPort, Integer endPort, ForwardingTransport transport)
+			Integer startPort, Integer endPort, ForwardingTransport transport,
+			TunnelRelayMode relayMode)
 			throws ResourceCreationException, AccessDeniedException {
 
 		NetworkProtocol resource = new NetworkProtocol();
@@ -241,6 +416,7 @@ public class NetworkProtocolServiceImpl extends
 		resource.setStartPort(startPort);
 		resource.setEndPort(endPort);
 		resource.setTransport(transport);
+		resource.setRelayMode(relayMode);
 		resource.setRealm(realm);
 
 		createResource(resource, new HashMap<String, String>());
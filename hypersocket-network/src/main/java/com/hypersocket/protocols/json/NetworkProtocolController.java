@@ -1,12 +1,13 @@
 package com.hypersocket.protocols.json;
 
-import java.util.Collection;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
@@ -26,6 +27,8 @@ import com.hypersocket.i18n.I18N;
 import com.hypersocket.i18n.I18NServiceImpl;
 import com.hypersocket.json.ResourceList;
 import com.hypersocket.json.ResourceStatus;
+import com.hypersocket.network.ResourceImportJob;
+import com.hypersocket.network.tunnel.TunnelRelayMode;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.properties.PropertyCategory;
 import com.hypersocket.protocols.NetworkProtocol;
@@ -42,7 +45,6 @@ import com.hypersocket.tables.Column;
 import com.hypersocket.tables.ColumnSort;
 import com.hypersocket.tables.BootstrapTableResult;
 import com.hypersocket.tables.json.BootstrapTablePageProcessor;
-import com.hypersocket.utils.HypersocketUtils;
 
 @Controller
 public class NetworkProtocolController extends ResourceController {
@@ -76,6 +78,13 @@ public class NetworkProtocolController extends ResourceController {
 								int length, ColumnSort[] sorting)
 								throws UnauthorizedException,
 								AccessDeniedException {
+							String after = request.getParameter("after");
+							if (after != null) {
+								return resourceService.seekResources(
+										sessionUtils.getCurrentRealm(request), searchColumn, searchPattern,
+										after.length() == 0 ? null : Long.valueOf(after),
+										length, sorting);
+							}
 							return resourceService.searchResources(
 									sessionUtils.getCurrentRealm(request),
 									searchColumn, searchPattern, start, length, sorting);
@@ -149,17 +158,23 @@ public class NetworkProtocolController extends ResourceController {
 
 			Realm realm = sessionUtils.getCurrentRealm(request);
 
+			TunnelRelayMode relayMode = StringUtils.isBlank(resource
+					.getRelayMode()) ? null : TunnelRelayMode.valueOf(resource
+					.getRelayMode());
+
 			if (resource.getId() != null) {
 				newResource = resourceService.updateResource(
 						resourceService.getResourceById(resource.getId()),
 						resource.getName(), resource.getStartPort(),
 						resource.getEndPort(),
-						ForwardingTransport.valueOf(resource.getTransport()));
+						ForwardingTransport.valueOf(resource.getTransport()),
+						relayMode);
 			} else {
 				newResource = resourceService.createResource(
 						resource.getName(), realm, resource.getStartPort(),
 						resource.getEndPort(),
-						ForwardingTransport.valueOf(resource.getTransport()));
+						ForwardingTransport.valueOf(resource.getTransport()),
+						relayMode);
 			}
 			return new ResourceStatus<NetworkProtocol>(newResource,
 					I18N.getResource(sessionUtils.getLocale(request),
@@ -244,10 +259,6 @@ public class NetworkProtocolController extends ResourceController {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ resourceService.getResourceCategory() + "-"
@@ -261,23 +272,19 @@ public class NetworkProtocolController extends ResourceController {
 
 	@AuthenticationRequired
 	@RequestMapping(value = "networkProtocols/export", method = RequestMethod.GET, produces = { "text/plain" })
-	@ResponseStatus(value = HttpStatus.OK)
-	@ResponseBody
-	public String exportAll(HttpServletRequest request,
+	public void exportAll(HttpServletRequest request,
 			HttpServletResponse response) throws AccessDeniedException,
 			UnauthorizedException, SessionTimeoutException,
-			ResourceNotFoundException, ResourceExportException {
+			ResourceNotFoundException, ResourceExportException, IOException {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ resourceService.getResourceCategory() + ".json\"");
-			return resourceService.exportAllResoures();
+			response.setContentType("text/plain; charset=UTF-8");
+			resourceService.exportAllResources(getCurrentRealm(),
+					response.getOutputStream());
 		} finally {
 			clearAuthenticatedContext();
 		}
@@ -289,7 +296,7 @@ public class NetworkProtocolController extends ResourceController {
 	@RequestMapping(value = "networkProtocols/import", method = { RequestMethod.POST }, produces = { "application/json" })
 	@ResponseBody
 	@ResponseStatus(value = HttpStatus.OK)
-	public ResourceStatus<NetworkProtocol> importAll(
+	public ResourceStatus<ResourceImportJob> importAll(
 			HttpServletRequest request, HttpServletResponse response,
 			@RequestParam(value = "file") MultipartFile jsonFile,
 			@RequestParam(required=false) boolean dropExisting)
@@ -298,28 +305,47 @@ public class NetworkProtocolController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
-			Thread.sleep(2000);
-		} catch (Exception e) {
-		}
-		try {
-			String json = IOUtils.toString(jsonFile.getInputStream());
-			if(!HypersocketUtils.isValidJSON(json)){
-				throw new ResourceException(I18NServiceImpl.USER_INTERFACE_BUNDLE,
-						"error.incorrectJSON");
+			File file = File.createTempFile("import", ".json");
+			ResourceImportJob job;
+			try {
+				jsonFile.transferTo(file);
+				job = resourceService.startImport(file, getCurrentRealm(),
+						dropExisting);
+			} catch (Exception e) {
+				file.delete();
+				throw e;
 			}
-			Collection<NetworkProtocol> collects = resourceService.importResources(json, getCurrentRealm(), dropExisting);
-			return new ResourceStatus<NetworkProtocol>(true, I18N.getResource(
+			return new ResourceStatus<ResourceImportJob>(job, I18N.getResource(
 					sessionUtils.getLocale(request),
-					I18NServiceImpl.USER_INTERFACE_BUNDLE,
-					"resource.import.success", collects.size()));
-		} catch (ResourceException e) {
-			return new ResourceStatus<NetworkProtocol>(false, e.getMessage());
+					NetworkProtocolServiceImpl.RESOURCE_BUNDLE, "import.started"));
 		} catch (Exception e) {
-			return new ResourceStatus<NetworkProtocol>(false, I18N.getResource(
+			return new ResourceStatus<ResourceImportJob>(false, I18N.getResource(
 					sessionUtils.getLocale(request),
 					I18NServiceImpl.USER_INTERFACE_BUNDLE,
-					"resource.import.failure",
-					e.getMessage()));
+					"resource.import.failure", e.getMessage()));
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "networkProtocols/import/{id}", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceStatus<ResourceImportJob> getImportJob(
+			HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("id") String id) throws AccessDeniedException,
+			UnauthorizedException, SessionTimeoutException {
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			ResourceImportJob job = resourceService.getImportJob(getCurrentRealm(), id);
+			if (job == null) {
+				return new ResourceStatus<ResourceImportJob>(false,
+						I18N.getResource(sessionUtils.getLocale(request),
+								NetworkProtocolServiceImpl.RESOURCE_BUNDLE, "import.notFound", id));
+			}
+			return new ResourceStatus<ResourceImportJob>(job, "");
 		} finally {
 			clearAuthenticatedContext();
 		}
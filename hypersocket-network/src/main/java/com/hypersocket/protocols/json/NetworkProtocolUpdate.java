@@ -10,6 +10,7 @@ public class NetworkProtocolUpdate {
 	String transport;
 	Integer startPort;
 	Integer endPort;
+	String relayMode;
 	
 	public Long getId() {
 		return id;
@@ -42,4 +43,10 @@ public class NetworkProtocolUpdate {
 		this.endPort = endPort;
 	}
 	
+	public String getRelayMode() {
+		return relayMode;
+	}
+	public void setRelayMode(String relayMode) {
+		this.relayMode = relayMode;
+	}
 }
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.hibernate.Criteria;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeysetCriteriaTests {
+
+	/**
+	 * Answers the anchor query with a fixed row, and counts the queries.
+	 */
+	static class AnchorCriteria implements InvocationHandler {
+
+		final Object[] row;
+		int queries;
+
+		AnchorCriteria(Object[] row) {
+			this.row = row;
+		}
+
+		Criteria proxy() {
+			return (Criteria) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { Criteria.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("uniqueResult")) {
+				queries++;
+				return row;
+			}
+			return proxy;
+		}
+	}
+
+	@Test
+	public void seeksFromTheAnchorValue() {
+		AnchorCriteria anchor = new AnchorCriteria(new Object[] { 7L, "beta" });
+		KeysetCriteria keyset = KeysetCriteria.after(anchor.proxy(), 7L,
+				ResourceSearchIndexTests.BY_NAME, null);
+		Assert.assertEquals("name", keyset.column);
+		Assert.assertEquals("beta", keyset.value);
+		Assert.assertEquals(Long.valueOf(7), keyset.id);
+	}
+
+	@Test
+	public void missingAnchorFails() {
+		AnchorCriteria anchor = new AnchorCriteria(null);
+		try {
+			KeysetCriteria.after(anchor.proxy(), 7L,
+					ResourceSearchIndexTests.BY_NAME, null);
+			Assert.fail("Paged from the start after a missing row");
+		} catch (PageAnchorNotFoundException e) {
+			Assert.assertEquals(Long.valueOf(7), e.getAnchor());
+		}
+	}
+
+	@Test
+	public void idOrderNeedsNoAnchor() {
+		AnchorCriteria anchor = new AnchorCriteria(null);
+		KeysetCriteria keyset = KeysetCriteria.after(anchor.proxy(), 7L,
+				KeysetCriteria.UNSORTED, null);
+		Assert.assertEquals(0, anchor.queries);
+		Assert.assertEquals("id", keyset.column);
+		Assert.assertEquals(Long.valueOf(7), keyset.id);
+	}
+}
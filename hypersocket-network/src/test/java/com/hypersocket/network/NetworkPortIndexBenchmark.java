@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.server.forward.ForwardingTransport;
+
+/**
+ * Compares the linear protocol scan previously used by
+ * {@link NetworkResource#getNetworkProtocol(Integer, ForwardingTransport)} with
+ * the compiled {@link NetworkPortIndex}. Run with
+ * <code>mvn test-compile exec:java</code> in this module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NetworkPortIndexBenchmark {
+
+	@Param({ "1", "20", "200" })
+	int protocolCount;
+
+	Set<NetworkProtocol> protocols;
+	NetworkPortIndex index;
+	int[] ports;
+	int next;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		protocols = new HashSet<NetworkProtocol>();
+		for (int i = 0; i < protocolCount; i++) {
+			NetworkProtocol protocol = new NetworkProtocol();
+			protocol.setId(Long.valueOf(i));
+			protocol.setName("Protocol " + i);
+			protocol.setTransport(i % 5 == 0 ? ForwardingTransport.BOTH
+					: ForwardingTransport.TCP);
+			int start = 1 + (i * 300);
+			protocol.setStartPort(start);
+			protocol.setEndPort(i % 3 == 0 ? start + random.nextInt(200) : null);
+			protocols.add(protocol);
+		}
+		index = NetworkPortIndex.compile(protocols);
+
+		ports = new int[1024];
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = 1 + random.nextInt(protocolCount * 300);
+		}
+	}
+
+	@Benchmark
+	public NetworkProtocol linearScan() {
+		Integer port = ports[next++ & 1023];
+		for (NetworkProtocol protocol : protocols) {
+			if (protocol.getTransport() == ForwardingTransport.TCP
+					|| protocol.getTransport() == ForwardingTransport.BOTH) {
+				if (protocol.getEndPort() != null) {
+					if (port.intValue() >= protocol.getStartPort().intValue()
+							&& port.intValue() <= protocol.getEndPort().intValue()) {
+						return protocol;
+					}
+				} else if (protocol.getStartPort().equals(port)) {
+					return protocol;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Benchmark
+	public NetworkProtocol portIndex() {
+		return index.getProtocol(ports[next++ & 1023], ForwardingTransport.TCP);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				NetworkPortIndexBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.server.forward.ForwardingTransport;
+
+public class NetworkPortIndexTests {
+
+	static NetworkProtocol protocol(long id, String name,
+			ForwardingTransport transport, Integer start, Integer end) {
+		NetworkProtocol protocol = new NetworkProtocol();
+		protocol.setId(id);
+		protocol.setName(name);
+		protocol.setTransport(transport);
+		protocol.setStartPort(start);
+		protocol.setEndPort(end);
+		return protocol;
+	}
+
+	@Test
+	public void emptyIndex() {
+		NetworkPortIndex index = NetworkPortIndex.compile(Collections
+				.<NetworkProtocol> emptyList());
+		Assert.assertTrue(index.isEmpty());
+		Assert.assertNull(index.getProtocol(22, ForwardingTransport.TCP));
+	}
+
+	@Test
+	public void rangeIsInclusive() {
+		NetworkProtocol vnc = protocol(1, "VNC", ForwardingTransport.TCP, 5900, 5910);
+		NetworkPortIndex index = NetworkPortIndex.compile(Arrays.asList(vnc));
+
+		Assert.assertNull(index.getProtocol(5899, ForwardingTransport.TCP));
+		Assert.assertSame(vnc, index.getProtocol(5900, ForwardingTransport.TCP));
+		Assert.assertSame(vnc, index.getProtocol(5905, ForwardingTransport.TCP));
+		Assert.assertSame(vnc, index.getProtocol(5910, ForwardingTransport.TCP));
+		Assert.assertNull(index.getProtocol(5911, ForwardingTransport.TCP));
+		Assert.assertNull(index.getProtocol(5905, ForwardingTransport.UDP));
+	}
+
+	@Test
+	public void bothIsMergedIntoEachTransport() {
+		NetworkProtocol ssh = protocol(1, "SSH", ForwardingTransport.TCP, 22, null);
+		NetworkProtocol ipp = protocol(2, "IPP", ForwardingTransport.BOTH, 631, null);
+		NetworkProtocol dns = protocol(3, "DNS", ForwardingTransport.UDP, 53, null);
+		NetworkPortIndex index = NetworkPortIndex.compile(Arrays.asList(ssh, ipp, dns));
+
+		Assert.assertSame(ssh, index.getProtocol(22, ForwardingTransport.TCP));
+		Assert.assertNull(index.getProtocol(22, ForwardingTransport.UDP));
+		Assert.assertSame(ipp, index.getProtocol(631, ForwardingTransport.TCP));
+		Assert.assertSame(ipp, index.getProtocol(631, ForwardingTransport.UDP));
+		Assert.assertSame(ipp, index.getProtocol(631, ForwardingTransport.BOTH));
+		Assert.assertSame(dns, index.getProtocol(53, ForwardingTransport.UDP));
+		Assert.assertNull(index.getProtocol(53, ForwardingTransport.TCP));
+	}
+
+	@Test
+	public void narrowestRangeWinsOverlap() {
+		NetworkProtocol vnc = protocol(1, "VNC", ForwardingTransport.TCP, 5900, 5910);
+		NetworkProtocol vnc1 = protocol(2, "VNC:1", ForwardingTransport.TCP, 5901, null);
+		NetworkPortIndex index = NetworkPortIndex.compile(Arrays.asList(vnc, vnc1));
+
+		Assert.assertSame(vnc, index.getProtocol(5900, ForwardingTransport.TCP));
+		Assert.assertSame(vnc1, index.getProtocol(5901, ForwardingTransport.TCP));
+		Assert.assertSame(vnc, index.getProtocol(5902, ForwardingTransport.TCP));
+		Assert.assertEquals(3, index.getIntervalCount(ForwardingTransport.TCP));
+	}
+
+	@Test
+	public void adjacentRangesOfOneProtocolAreMerged() {
+		NetworkProtocol ftp = protocol(1, "FTP (Data)", ForwardingTransport.BOTH, 20, null);
+		NetworkProtocol ftpc = protocol(2, "FTP (Control)", ForwardingTransport.TCP, 21, null);
+		NetworkProtocol passive = protocol(3, "FTP (Passive)", ForwardingTransport.TCP, 40000, 40100);
+		NetworkPortIndex index = NetworkPortIndex.compile(Arrays.asList(passive, ftpc, ftp));
+
+		Assert.assertEquals(3, index.getIntervalCount(ForwardingTransport.TCP));
+		Assert.assertEquals(1, index.getIntervalCount(ForwardingTransport.UDP));
+		Assert.assertSame(ftp, index.getProtocol(20, ForwardingTransport.TCP));
+		Assert.assertSame(ftpc, index.getProtocol(21, ForwardingTransport.TCP));
+		Assert.assertSame(passive, index.getProtocol(40050, ForwardingTransport.TCP));
+	}
+
+	@Test
+	public void missingOrReversedEndPortIsSinglePort() {
+		NetworkProtocol imported = protocol(1, "Imported", ForwardingTransport.TCP, 3389, 0);
+		NetworkPortIndex index = NetworkPortIndex.compile(Arrays.asList(imported));
+
+		Assert.assertSame(imported, index.getProtocol(3389, ForwardingTransport.TCP));
+		Assert.assertNull(index.getProtocol(3388, ForwardingTransport.TCP));
+		Assert.assertNull(index.getProtocol(0, ForwardingTransport.TCP));
+	}
+
+	@Test
+	public void protocolChangesReachTheIndex() {
+		NetworkProtocol ssh = protocol(1, "SSH", ForwardingTransport.TCP, 22, null);
+		NetworkProtocol rdp = protocol(2, "RDP", ForwardingTransport.TCP, 3389, null);
+		NetworkResource resource = new NetworkResource();
+		resource.setProtocols(new HashSet<NetworkProtocol>(Arrays.asList(ssh)));
+		Assert.assertSame(ssh, resource.getNetworkProtocol(22, ForwardingTransport.TCP));
+
+		resource.getProtocols().add(rdp);
+		Assert.assertSame(rdp, resource.getNetworkProtocol(3389, ForwardingTransport.TCP));
+
+		resource.setProtocols(new HashSet<NetworkProtocol>(Arrays.asList(rdp)));
+		Assert.assertNull(resource.getNetworkProtocol(22, ForwardingTransport.TCP));
+		Assert.assertSame(rdp, resource.getNetworkProtocol(3389, ForwardingTransport.TCP));
+	}
+}
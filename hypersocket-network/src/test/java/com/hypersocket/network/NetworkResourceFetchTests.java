@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.h2.Driver;
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.orm.hibernate4.LocalSessionFactoryBuilder;
+
+import com.hypersocket.launcher.ApplicationLauncherResource;
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.server.forward.ForwardingTransport;
+
+/**
+ * Counts the statements the fetch plans issue against an in-memory database
+ * mapped the same way as the server's.
+ */
+public class NetworkResourceFetchTests {
+
+	static final int RESOURCES = NetworkResourceFetch.BATCH_SIZE;
+
+	static SessionFactory sessionFactory;
+	static Statistics statistics;
+
+	@BeforeClass
+	public static void setUpDatabase() {
+
+		LocalSessionFactoryBuilder builder = new LocalSessionFactoryBuilder(
+				new SimpleDriverDataSource(new Driver(),
+						"jdbc:h2:mem:fetch;DB_CLOSE_DELAY=-1", "sa", ""));
+		builder.scanPackages("com.hypersocket");
+		builder.setProperty("hibernate.dialect", H2Dialect.class.getName());
+		builder.setProperty("hibernate.hbm2ddl.auto", "create");
+		builder.setProperty("hibernate.generate_statistics", "true");
+		sessionFactory = builder.buildSessionFactory();
+		statistics = sessionFactory.getStatistics();
+
+		Session session = sessionFactory.openSession();
+		Transaction transaction = session.beginTransaction();
+		try {
+			Realm realm = new Realm();
+			realm.setName("fetch");
+			session.save(realm);
+
+			Set<NetworkProtocol> protocols = new HashSet<NetworkProtocol>();
+			for (int port : new int[] { 22, 3389 }) {
+				NetworkProtocol protocol = new NetworkProtocol();
+				protocol.setName("port" + port);
+				protocol.setRealm(realm);
+				protocol.setTransport(ForwardingTransport.TCP);
+				protocol.setStartPort(port);
+				protocol.setEndPort(port);
+				session.save(protocol);
+				protocols.add(protocol);
+			}
+
+			ApplicationLauncherResource launcher = new ApplicationLauncherResource();
+			launcher.setName("ssh");
+			launcher.setRealm(realm);
+			launcher.setExe("ssh");
+			session.save(launcher);
+
+			for (int i = 0; i < RESOURCES; i++) {
+				NetworkResource resource = new NetworkResource();
+				resource.setName("host" + i);
+				resource.setRealm(realm);
+				resource.setHostname("host" + i + ".internal");
+				resource.setProtocols(new HashSet<NetworkProtocol>(protocols));
+				Set<ApplicationLauncherResource> launchers = new HashSet<ApplicationLauncherResource>();
+				launchers.add(launcher);
+				resource.setLaunchers(launchers);
+				session.save(resource);
+			}
+			transaction.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	@AfterClass
+	public static void tearDownDatabase() {
+		sessionFactory.close();
+	}
+
+	/**
+	 * Query resources with a fetch plan and read both collections of each,
+	 * returning the number of statements prepared.
+	 */
+	static long statements(NetworkResourceFetch fetch, int rows) {
+
+		Session session = sessionFactory.openSession();
+		try {
+			@SuppressWarnings("unchecked")
+			List<Long> ids = session.createQuery(
+					"select id from NetworkResource order by id")
+					.setMaxResults(rows).list();
+			statistics.clear();
+
+			Criteria criteria = session.createCriteria(NetworkResource.class);
+			fetch.configure(criteria);
+			criteria.addOrder(Order.asc("id"));
+			if (fetch == NetworkResourceFetch.TABLE) {
+				criteria.setMaxResults(rows);
+			} else {
+				// A joined collection cannot be paged, limit by id instead
+				criteria.add(Restrictions.in("id", ids));
+			}
+			@SuppressWarnings("unchecked")
+			List<NetworkResource> resources = criteria.list();
+			Assert.assertEquals(rows, resources.size());
+			for (NetworkResource resource : resources) {
+				Assert.assertEquals(2, resource.getProtocols().size());
+				Assert.assertEquals(1, resource.getLaunchers().size());
+			}
+			return statistics.getPrepareStatementCount();
+		} finally {
+			session.close();
+		}
+	}
+
+	static long fetches(String collection) {
+		return statistics.getCollectionStatistics(
+				NetworkResource.class.getName() + "." + collection)
+				.getFetchCount();
+	}
+
+	@Test
+	public void tablePageCostsTheSameWhateverItsSize() {
+
+		long small = statements(NetworkResourceFetch.TABLE, 10);
+		long large = statements(NetworkResourceFetch.TABLE, RESOURCES);
+		Assert.assertEquals(small, large);
+
+		// One batch for each collection
+		Assert.assertEquals(1, fetches("protocols"));
+		Assert.assertEquals(1, fetches("launchers"));
+	}
+
+	@Test
+	public void syncJoinsProtocolsAndBatchesLaunchers() {
+
+		long small = statements(NetworkResourceFetch.SYNC, 10);
+		long large = statements(NetworkResourceFetch.SYNC, RESOURCES);
+		Assert.assertEquals(small, large);
+
+		Assert.assertEquals(0, fetches("protocols"));
+		Assert.assertEquals(1, fetches("launchers"));
+	}
+
+	@Test
+	public void detailJoinsBothCollections() {
+
+		long small = statements(NetworkResourceFetch.DETAIL, 1);
+		long large = statements(NetworkResourceFetch.DETAIL, RESOURCES);
+		Assert.assertEquals(small, large);
+
+		Assert.assertEquals(0, fetches("protocols"));
+		Assert.assertEquals(0, fetches("launchers"));
+	}
+}
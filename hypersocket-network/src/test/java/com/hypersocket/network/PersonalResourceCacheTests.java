@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.events.SystemEvent;
+
+public class PersonalResourceCacheTests {
+
+	static PersonalResourceCache cache(int capacity) {
+		return new PersonalResourceCache(capacity) {
+			@Override
+			protected void onResourceEvent(SystemEvent event) {
+			}
+		};
+	}
+
+	static Set<Long> ids(Long... ids) {
+		return new HashSet<Long>(Arrays.asList(ids));
+	}
+
+	@Test
+	public void missThenHit() {
+		PersonalResourceCache cache = cache(10);
+		Assert.assertNull(cache.getResourceIds(10L));
+		cache.put(1L, 10L, ids(100L, 101L), 2, cache.getStamp());
+
+		Assert.assertEquals(ids(100L, 101L), cache.getResourceIds(10L));
+		Assert.assertEquals(Long.valueOf(2), cache.getResourceCount(10L));
+		Assert.assertEquals(1, cache.getMissCount());
+		Assert.assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void countDoesNotAnswerIds() {
+		PersonalResourceCache cache = cache(10);
+		cache.put(1L, 10L, null, 3, cache.getStamp());
+
+		Assert.assertEquals(Long.valueOf(3), cache.getResourceCount(10L));
+		Assert.assertNull(cache.getResourceIds(10L));
+
+		cache.put(1L, 10L, ids(100L), 1, cache.getStamp());
+		cache.put(1L, 10L, null, 5, cache.getStamp());
+		Assert.assertEquals(ids(100L), cache.getResourceIds(10L));
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		PersonalResourceCache cache = cache(2);
+		cache.put(1L, 10L, ids(), 0, cache.getStamp());
+		cache.put(1L, 11L, ids(), 0, cache.getStamp());
+		cache.getResourceIds(10L);
+		cache.put(1L, 12L, ids(), 0, cache.getStamp());
+
+		Assert.assertNotNull(cache.getResourceIds(10L));
+		Assert.assertNull(cache.getResourceIds(11L));
+		Assert.assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void realmInvalidationLeavesOtherRealms() {
+		PersonalResourceCache cache = cache(10);
+		cache.put(1L, 10L, ids(100L), 1, cache.getStamp());
+		cache.put(2L, 20L, ids(200L), 1, cache.getStamp());
+		cache.invalidateRealm(1L);
+
+		Assert.assertNull(cache.getResourceIds(10L));
+		Assert.assertEquals(ids(200L), cache.getResourceIds(20L));
+	}
+
+	@Test
+	public void removedResourceIsDroppedFromEntries() {
+		PersonalResourceCache cache = cache(10);
+		cache.put(1L, 10L, ids(100L, 101L), 2, cache.getStamp());
+		cache.put(1L, 11L, null, 1, cache.getStamp());
+		cache.removed(1L, 100L);
+
+		Assert.assertEquals(ids(101L), cache.getResourceIds(10L));
+		Assert.assertEquals(Long.valueOf(1), cache.getResourceCount(10L));
+		Assert.assertNull(cache.getResourceCount(11L));
+	}
+
+	@Test
+	public void resultResolvedDuringInvalidationIsNotStored() {
+		PersonalResourceCache cache = cache(10);
+		long stamp = cache.getStamp();
+		cache.invalidatePrincipal(10L);
+		cache.put(1L, 10L, ids(100L), 1, stamp);
+
+		Assert.assertNull(cache.getResourceIds(10L));
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.realm.Realm;
+
+public class ResourceChangeLogTests {
+
+	static ResourceChangeLog changeLog(int capacity) {
+		return new ResourceChangeLog(capacity) {
+			@Override
+			protected void onResourceEvent(SystemEvent event) {
+			}
+
+			@Override
+			protected String getResourceCategory() {
+				return "tests";
+			}
+		};
+	}
+
+	static Set<Long> ids(Long... ids) {
+		return new HashSet<Long>(Arrays.asList(ids));
+	}
+
+	@Test
+	public void noChangesSinceCurrentToken() {
+		ResourceChangeLog log = changeLog(10);
+		String token = log.getToken(1L);
+		Assert.assertEquals(ids(), log.getChanges(1L, token));
+	}
+
+	@Test
+	public void changesSinceTokenAreReturnedOnce() {
+		ResourceChangeLog log = changeLog(10);
+		log.changed(1L, 100L);
+		String token = log.getToken(1L);
+		log.changed(1L, 101L);
+		log.changed(1L, 102L);
+		log.changed(1L, 101L);
+
+		Assert.assertEquals(ids(101L, 102L), log.getChanges(1L, token));
+		Assert.assertEquals(ids(), log.getChanges(1L, log.getToken(1L)));
+	}
+
+	@Test
+	public void realmsAreSeparate() {
+		ResourceChangeLog log = changeLog(10);
+		String token1 = log.getToken(1L);
+		String token2 = log.getToken(2L);
+		log.changed(1L, 100L);
+
+		Assert.assertEquals(ids(100L), log.getChanges(1L, token1));
+		Assert.assertEquals(ids(), log.getChanges(2L, token2));
+	}
+
+	@Test
+	public void unknownTokenNeedsFullList() {
+		ResourceChangeLog log = changeLog(10);
+		Assert.assertNull(log.getChanges(1L, null));
+		Assert.assertNull(log.getChanges(1L, "garbage"));
+		Assert.assertNull(log.getChanges(1L, "0-0"));
+		Assert.assertNull(log.getChanges(1L, log.getToken(1L) + "1"));
+	}
+
+	@Test
+	public void tokenOlderThanLogNeedsFullList() {
+		ResourceChangeLog log = changeLog(2);
+		String token = log.getToken(1L);
+		log.changed(1L, 100L);
+		log.changed(1L, 101L);
+		Assert.assertEquals(ids(100L, 101L), log.getChanges(1L, token));
+
+		log.changed(1L, 102L);
+		Assert.assertNull(log.getChanges(1L, token));
+	}
+
+	@Test
+	public void resetInvalidatesIssuedTokens() {
+		ResourceChangeLog log = changeLog(10);
+		String token = log.getToken(1L);
+		log.reset();
+		Assert.assertNull(log.getChanges(1L, token));
+
+		token = log.getToken(1L);
+		log.changed(1L, 100L);
+		Assert.assertEquals(ids(100L), log.getChanges(1L, token));
+	}
+
+	@Test
+	public void changedAssignmentsNeedFullList() {
+		ResourceChangeLog log = changeLog(10);
+		Realm realm = new Realm();
+		realm.setId(1L);
+		String token = log.getToken(realm, "a");
+		log.changed(realm, 100L);
+
+		Assert.assertEquals(ids(100L), log.getChanges(realm, token, "a"));
+		Assert.assertNull(log.getChanges(realm, token, "b"));
+		Assert.assertNull(log.getChanges(realm, log.getToken(realm), "a"));
+	}
+}
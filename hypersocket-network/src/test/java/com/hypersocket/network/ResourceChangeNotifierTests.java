@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.realm.Principal;
+
+public class ResourceChangeNotifierTests {
+
+	static class Answers implements ResourceChangeNotifier.Callback {
+
+		BlockingQueue<ResourceChangeNotification> answers = new LinkedBlockingQueue<ResourceChangeNotification>();
+
+		@Override
+		public void changed(ResourceChangeNotification changes) {
+			answers.add(changes);
+		}
+
+		ResourceChangeNotification next() throws InterruptedException {
+			ResourceChangeNotification changes = answers.poll(5, TimeUnit.SECONDS);
+			Assert.assertNotNull(changes);
+			return changes;
+		}
+	}
+
+	static class Assigned implements ResourceChangeNotifier.Lookup {
+
+		Map<String, Set<Long>> ids = new HashMap<String, Set<Long>>();
+
+		Assigned(String category, Long... ids) {
+			this.ids.put(category, new HashSet<Long>(Arrays.asList(ids)));
+		}
+
+		@Override
+		public Set<Long> getResourceIds(String category) {
+			Set<Long> assigned = ids.get(category);
+			return assigned == null ? null : new HashSet<Long>(assigned);
+		}
+	}
+
+	ResourceChangeNotifier notifier;
+
+	@After
+	public void tearDown() {
+		notifier.close();
+	}
+
+	ResourceChangeNotification await(long realmId, String since) throws InterruptedException {
+		Answers answers = new Answers();
+		Assert.assertNotNull(notifier.await(realmId, since, answers));
+		return answers.next();
+	}
+
+	@Test
+	public void timesOutWithoutChanges() throws Exception {
+		notifier = new ResourceChangeNotifier(100, 10, 10);
+		String version = await(1L, null).getVersion();
+		ResourceChangeNotification changes = await(1L, version);
+		Assert.assertFalse(changes.isChanged());
+		Assert.assertEquals(version, changes.getVersion());
+		Assert.assertEquals(0, notifier.getWaiterCount());
+	}
+
+	@Test
+	public void changesAreCoalesced() throws Exception {
+		notifier = new ResourceChangeNotifier(10000, 200, 10, "e");
+		Answers waiting = new Answers();
+		notifier.await(1L, "e-0", waiting);
+		notifier.changed(1L, "networkResources", null);
+		notifier.changed(1L, "websites", null);
+		notifier.changed(1L, "networkResources", null);
+
+		ResourceChangeNotification changes = waiting.next();
+		Assert.assertTrue(changes.isChanged());
+		Assert.assertFalse(changes.isAll());
+		Assert.assertEquals("e-3", changes.getVersion());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList(
+				"networkResources", "websites")), changes.getCategories());
+		Assert.assertTrue(waiting.answers.isEmpty());
+	}
+
+	@Test
+	public void otherRealmsAreNotWoken() throws Exception {
+		notifier = new ResourceChangeNotifier(200, 10, 10, "e");
+		notifier.changed(2L, "websites", null);
+		Assert.assertFalse(await(1L, "e-0").isChanged());
+	}
+
+	@Test
+	public void missedChangesReportAll() throws Exception {
+		notifier = new ResourceChangeNotifier(100, 0, 10, "e");
+		for (int i = 0; i < ResourceChangeNotifier.HISTORY + 1; i++) {
+			notifier.changed(1L, "websites", null);
+		}
+		Assert.assertTrue(await(1L, "e-0").isAll());
+		Assert.assertTrue(await(1L, "e-1000").isAll());
+		Assert.assertFalse(await(1L, "e-1").isAll());
+	}
+
+	@Test
+	public void versionsFromAnotherEpochReportAll() throws Exception {
+		notifier = new ResourceChangeNotifier(10000, 0, 10, "after");
+		ResourceChangeNotification changes = await(1L, "before-0");
+		Assert.assertTrue(changes.isAll());
+		Assert.assertEquals("after-0", changes.getVersion());
+		Assert.assertTrue(await(1L, "garbage").isAll());
+	}
+
+	@Test
+	public void waitersAreLimitedAndCancelled() throws Exception {
+		notifier = new ResourceChangeNotifier(10000, 0, 1, "e");
+		Answers waiting = new Answers();
+		ResourceChangeNotifier.Waiter waiter = notifier.await(1L, "e-0", waiting);
+		Assert.assertNull(notifier.await(1L, "e-0", new Answers()));
+
+		waiter.cancel();
+		Assert.assertEquals(0, notifier.getWaiterCount());
+		Assert.assertTrue(notifier.channels.get(1L).waiting.isEmpty());
+
+		notifier.changed(1L, "websites", null);
+		Assert.assertTrue(await(1L, "e-0").isChanged());
+		Assert.assertTrue(waiting.answers.isEmpty());
+	}
+
+	ResourceChangeNotifier createAssigningNotifier() {
+		ResourceChangeNotifier notifier = new ResourceChangeNotifier(10000, 0, 10, "e");
+		notifier.registerAssignments("networkResources", new ResourceChangeNotifier.Assignments() {
+			@Override
+			public Set<Long> getResourceIds(Principal principal) {
+				return Collections.emptySet();
+			}
+		});
+		return notifier;
+	}
+
+	@Test
+	public void changesToOtherPrincipalsResourcesDoNotWake() throws Exception {
+		notifier = createAssigningNotifier();
+		Answers waiting = new Answers();
+		notifier.await(1L, new Assigned("networkResources", 100L), "e-0", waiting);
+
+		notifier.changed(1L, "networkResources", 200L);
+		Assert.assertNull(waiting.answers.poll(300, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, notifier.getWaiterCount());
+
+		notifier.changed(1L, "networkResources", 100L);
+		ResourceChangeNotification changes = waiting.next();
+		Assert.assertEquals("e-2", changes.getVersion());
+		Assert.assertEquals(Collections.singleton("networkResources"), changes.getCategories());
+		Assert.assertEquals(0, notifier.getWaiterCount());
+	}
+
+	@Test
+	public void newlyAssignedResourcesWake() throws Exception {
+		notifier = createAssigningNotifier();
+		Answers waiting = new Answers();
+		Assigned assigned = new Assigned("networkResources");
+		notifier.await(1L, assigned, "e-0", waiting);
+
+		assigned.ids.get("networkResources").add(300L);
+		notifier.changed(1L, "networkResources", 300L);
+		Assert.assertTrue(waiting.next().isChanged());
+	}
+
+	@Test
+	public void unattributedChangesWakeEveryone() throws Exception {
+		notifier = createAssigningNotifier();
+		Answers waiting = new Answers();
+		notifier.await(1L, new Assigned("networkResources"), "e-0", waiting);
+		notifier.changedAll("networkResources");
+		Assert.assertTrue(waiting.next().isChanged());
+
+		waiting = new Answers();
+		notifier.await(1L, new Assigned("networkResources"), "e-1", waiting);
+		notifier.changed(1L, "websites", 5L);
+		Assert.assertEquals(Collections.singleton("websites"), waiting.next().getCategories());
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourceCountCacheTests {
+
+	@Test
+	public void countIsKeptForTheSameFingerprint() {
+		ResourceCountCache counts = new ResourceCountCache(10);
+		Assert.assertNull(counts.get("a-1", "name", "foo"));
+		counts.put("a-1", "name", "foo", 42);
+
+		Assert.assertEquals(Long.valueOf(42), counts.get("a-1", "name", "foo"));
+		Assert.assertEquals(1, counts.getMissCount());
+		Assert.assertEquals(1, counts.getHitCount());
+	}
+
+	@Test
+	public void changedFingerprintIsCountedAgain() {
+		ResourceCountCache counts = new ResourceCountCache(10);
+		counts.put("a-1", "name", "foo", 42);
+
+		Assert.assertNull(counts.get("a-2", "name", "foo"));
+	}
+
+	@Test
+	public void searchesAreCountedSeparately() {
+		ResourceCountCache counts = new ResourceCountCache(10);
+		counts.put("a-1", "name", "", 100);
+		counts.put("a-1", "name", "foo", 42);
+		counts.put("a-1", null, null, 7);
+
+		Assert.assertEquals(Long.valueOf(100), counts.get("a-1", "name", ""));
+		Assert.assertEquals(Long.valueOf(42), counts.get("a-1", "name", "foo"));
+		Assert.assertEquals(Long.valueOf(7), counts.get("a-1", "", ""));
+		Assert.assertNull(counts.get("a-1", "namefoo", ""));
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		ResourceCountCache counts = new ResourceCountCache(2);
+		counts.put("a-1", "name", "x", 1);
+		counts.put("a-1", "name", "y", 2);
+		counts.get("a-1", "name", "x");
+		counts.put("a-1", "name", "z", 3);
+
+		Assert.assertEquals(2, counts.size());
+		Assert.assertEquals(Long.valueOf(1), counts.get("a-1", "name", "x"));
+		Assert.assertNull(counts.get("a-1", "name", "y"));
+	}
+}
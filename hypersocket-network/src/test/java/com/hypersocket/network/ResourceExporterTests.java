@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hypersocket.protocols.NetworkProtocol;
+
+public class ResourceExporterTests {
+
+	/**
+	 * Serves protocols with ids 1 to total, recording what it was asked for.
+	 */
+	static class Protocols implements ResourceExporter.Source<NetworkProtocol> {
+
+		final int total;
+		final List<Long> afters = new ArrayList<Long>();
+		int largestBatch;
+
+		Protocols(int total) {
+			this.total = total;
+		}
+
+		@Override
+		public List<NetworkProtocol> getBatch(Long after, int size) {
+			afters.add(after);
+			List<NetworkProtocol> batch = new ArrayList<NetworkProtocol>();
+			for (long id = after == null ? 1 : after + 1; id <= total
+					&& batch.size() < size; id++) {
+				NetworkProtocol protocol = new NetworkProtocol();
+				protocol.setId(id);
+				protocol.setName("Protocol " + id);
+				protocol.setStartPort((int) id);
+				batch.add(protocol);
+			}
+			largestBatch = Math.max(largestBatch, batch.size());
+			return batch;
+		}
+
+		@Override
+		public void prepare(NetworkProtocol resource) {
+			resource.setId(null);
+		}
+	}
+
+	/**
+	 * Serves protocols from a table by seeking past the last id, as the
+	 * repositories do, deleting the last row of each batch before the next is
+	 * read.
+	 */
+	static class DeletingAnchors implements ResourceExporter.Source<NetworkProtocol> {
+
+		final TreeMap<Long, String> table = new TreeMap<Long, String>();
+		final Set<Long> deleted = new HashSet<Long>();
+
+		DeletingAnchors(int total) {
+			for (long id = 1; id <= total; id++) {
+				table.put(id, "Protocol " + id);
+			}
+		}
+
+		@Override
+		public List<NetworkProtocol> getBatch(Long after, int size) {
+			if (after != null && table.remove(after) != null) {
+				deleted.add(after);
+			}
+			List<NetworkProtocol> batch = new ArrayList<NetworkProtocol>();
+			for (Long id : (after == null ? table : table.tailMap(after, false))
+					.keySet()) {
+				if (batch.size() == size) {
+					break;
+				}
+				NetworkProtocol protocol = new NetworkProtocol();
+				protocol.setId(id);
+				protocol.setName(table.get(id));
+				batch.add(protocol);
+			}
+			return batch;
+		}
+
+		@Override
+		public void prepare(NetworkProtocol resource) {
+		}
+	}
+
+	static JsonNode export(Protocols protocols) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int count = ResourceExporter.export(out, protocols);
+		JsonNode json = new ObjectMapper().readTree(out.toByteArray());
+		Assert.assertEquals(count, json.size());
+		return json;
+	}
+
+	@Test
+	public void writesEveryResourceInOrder() throws Exception {
+		Protocols protocols = new Protocols(250);
+		JsonNode json = export(protocols);
+
+		Assert.assertTrue(json.isArray());
+		Assert.assertEquals(250, json.size());
+		for (int i = 0; i < 250; i++) {
+			Assert.assertEquals("Protocol " + (i + 1), json.get(i).get("name")
+					.asText());
+		}
+	}
+
+	@Test
+	public void readsInBatches() throws Exception {
+		Protocols protocols = new Protocols(250);
+		export(protocols);
+
+		Assert.assertEquals(ResourceExporter.BATCH_SIZE, protocols.largestBatch);
+		Assert.assertEquals(3, protocols.afters.size());
+		Assert.assertNull(protocols.afters.get(0));
+		Assert.assertEquals(Long.valueOf(100), protocols.afters.get(1));
+		Assert.assertEquals(Long.valueOf(200), protocols.afters.get(2));
+	}
+
+	@Test
+	public void matchesSerializingTheList() throws Exception {
+		Protocols protocols = new Protocols(150);
+		Protocols unbatched = new Protocols(150);
+		List<NetworkProtocol> all = unbatched.getBatch(null, 150);
+		for (NetworkProtocol protocol : all) {
+			unbatched.prepare(protocol);
+		}
+
+		ObjectMapper mapper = new ObjectMapper();
+		Assert.assertEquals(mapper.readTree(mapper.writeValueAsString(all)),
+				export(protocols));
+	}
+
+	@Test
+	public void emptyExportIsAnEmptyArray() throws Exception {
+		Protocols protocols = new Protocols(0);
+		JsonNode json = export(protocols);
+
+		Assert.assertTrue(json.isArray());
+		Assert.assertEquals(0, json.size());
+		Assert.assertEquals(1, protocols.afters.size());
+	}
+
+	@Test
+	public void deletedAnchorRowsDoNotStopTheExport() throws Exception {
+		DeletingAnchors protocols = new DeletingAnchors(250);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(250, ResourceExporter.export(out, protocols));
+		Assert.assertEquals(2, protocols.deleted.size());
+
+		JsonNode json = new ObjectMapper().readTree(out.toByteArray());
+		Set<String> names = new HashSet<String>();
+		for (JsonNode protocol : json) {
+			Assert.assertTrue(names.add(protocol.get("name").asText()));
+		}
+		for (long id = 1; id <= 250; id++) {
+			Assert.assertTrue(names.contains("Protocol " + id));
+		}
+	}
+}
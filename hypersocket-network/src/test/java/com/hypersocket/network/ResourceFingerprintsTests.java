@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourceFingerprintsTests {
+
+	static final String ETAG = "\"abc-1-2\"";
+
+	@Test
+	public void aSingleTagMatches() {
+		Assert.assertTrue(ResourceFingerprints.matches("\"abc-1-2\"", ETAG));
+		Assert.assertFalse(ResourceFingerprints.matches("\"abc-1-3\"", ETAG));
+		Assert.assertFalse(ResourceFingerprints.matches(null, ETAG));
+	}
+
+	@Test
+	public void anyTagInAListMatches() {
+		Assert.assertTrue(ResourceFingerprints.matches("\"old\", \"abc-1-2\"", ETAG));
+		Assert.assertTrue(ResourceFingerprints.matches("\"a,b\",\"abc-1-2\"", ETAG));
+		Assert.assertFalse(ResourceFingerprints.matches("\"old\", \"abc-1-20\"", ETAG));
+	}
+
+	@Test
+	public void weakTagsAreComparedWeakly() {
+		Assert.assertTrue(ResourceFingerprints.matches("W/\"abc-1-2\"", ETAG));
+	}
+
+	@Test
+	public void anAsteriskMatchesAnyTag() {
+		Assert.assertTrue(ResourceFingerprints.matches("*", ETAG));
+		Assert.assertTrue(ResourceFingerprints.matches(" * ", ETAG));
+	}
+
+	@Test
+	public void malformedListsMatchNothing() {
+		Assert.assertFalse(ResourceFingerprints.matches("abc-1-2", ETAG));
+		Assert.assertFalse(ResourceFingerprints.matches("\"abc-1-2", ETAG));
+		Assert.assertFalse(ResourceFingerprints.matches("\"old\", abc", ETAG));
+	}
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hypersocket.protocols.NetworkProtocol;
+import com.hypersocket.realm.Realm;
+
+public class ResourceImporterTests {
+
+	/**
+	 * Records what an import did instead of saving anything.
+	 */
+	static class Protocols extends ResourceImporter<NetworkProtocol> {
+
+		final List<String> calls = new ArrayList<String>();
+		final List<Integer> batches = new ArrayList<Integer>();
+		final List<NetworkProtocol> saved = new ArrayList<NetworkProtocol>();
+		final List<String> events = new ArrayList<String>();
+		final Collection<String> existing;
+		boolean failBatches;
+		boolean failEvents;
+
+		Protocols(Realm realm, String... existing) {
+			super(NetworkProtocol.class, realm);
+			this.existing = Arrays.asList(existing);
+		}
+
+		@Override
+		protected void dropExisting() {
+			calls.add("drop");
+		}
+
+		@Override
+		protected Collection<String> getExistingNames() {
+			calls.add("names");
+			return existing;
+		}
+
+		@Override
+		protected void save(List<NetworkProtocol> batch) {
+			batches.add(batch.size());
+			if (failBatches && batch.size() > 1) {
+				throw new IllegalStateException("Batch failed");
+			}
+			for (NetworkProtocol resource : batch) {
+				if (resource.getName().equals("bad")) {
+					throw new IllegalStateException("Bad protocol");
+				}
+			}
+			saved.addAll(batch);
+		}
+
+		@Override
+		protected void saved(NetworkProtocol resource) {
+			events.add(resource.getName());
+			if (failEvents) {
+				throw new IllegalStateException("Event failed");
+			}
+		}
+	}
+
+	Realm realm;
+	File file;
+	ResourceImportJob job;
+
+	@Before
+	public void setUp() throws IOException {
+		realm = new Realm();
+		realm.setId(1L);
+		file = File.createTempFile("import", ".json");
+		job = new ResourceImportJob(realm, "networkProtocols");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	void write(String json) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(json.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	void writeProtocols(String... names) throws IOException {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"id\":").append(i + 1).append(",\"name\":\"")
+					.append(names[i]).append("\",\"startPort\":").append(i)
+					.append('}');
+		}
+		write(json.append(']').toString());
+	}
+
+	static String[] names(int count) {
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = "Protocol " + i;
+		}
+		return names;
+	}
+
+	@Test
+	public void savesInBatches() throws Exception {
+		writeProtocols(names(250));
+		Protocols importer = new Protocols(realm);
+
+		importer.importFile(file, false, job);
+
+		Assert.assertEquals(Arrays.asList(100, 100, 50), importer.batches);
+		Assert.assertEquals(250, importer.saved.size());
+		Assert.assertEquals(250, job.getTotal());
+		Assert.assertEquals(250, job.getRead());
+		Assert.assertEquals(250, job.getImported());
+		Assert.assertEquals(0, job.getFailed());
+		Assert.assertEquals(Arrays.asList("names"), importer.calls);
+
+		NetworkProtocol first = importer.saved.get(0);
+		Assert.assertEquals("Protocol 0", first.getName());
+		Assert.assertNull(first.getId());
+		Assert.assertSame(realm, first.getRealm());
+	}
+
+	@Test
+	public void skipsTakenAndMissingNames() throws Exception {
+		writeProtocols("SSH", "RDP", "RDP", "", "VNC");
+		Protocols importer = new Protocols(realm, "SSH");
+
+		importer.importFile(file, false, job);
+
+		Assert.assertEquals(2, job.getImported());
+		Assert.assertEquals(3, job.getFailed());
+		Assert.assertEquals(3, job.getErrors().size());
+		Assert.assertEquals("RDP", importer.saved.get(0).getName());
+		Assert.assertEquals("VNC", importer.saved.get(1).getName());
+	}
+
+	@Test
+	public void dropsBeforeReadingNames() throws Exception {
+		writeProtocols("SSH");
+		Protocols importer = new Protocols(realm);
+
+		importer.importFile(file, true, job);
+
+		Assert.assertEquals(Arrays.asList("drop", "names"), importer.calls);
+	}
+
+	@Test
+	public void failedBatchIsSavedOneAtATime() throws Exception {
+		writeProtocols("SSH", "bad", "RDP");
+		Protocols importer = new Protocols(realm);
+		importer.failBatches = true;
+
+		importer.importFile(file, false, job);
+
+		Assert.assertEquals(2, job.getImported());
+		Assert.assertEquals(1, job.getFailed());
+		Assert.assertEquals("bad: Bad protocol", job.getErrors().get(0));
+		Assert.assertEquals(Arrays.asList(3, 1, 1, 1), importer.batches);
+		Assert.assertEquals(Arrays.asList("SSH", "RDP"), importer.events);
+	}
+
+	@Test
+	public void failedEventsDoNotSaveAgain() throws Exception {
+		writeProtocols("SSH", "RDP", "VNC");
+		Protocols importer = new Protocols(realm);
+		importer.failEvents = true;
+
+		importer.importFile(file, false, job);
+
+		Assert.assertEquals(Arrays.asList(3), importer.batches);
+		Assert.assertEquals(3, importer.saved.size());
+		Assert.assertEquals(Arrays.asList("SSH", "RDP", "VNC"), importer.events);
+		Assert.assertEquals(3, job.getImported());
+		Assert.assertEquals(0, job.getFailed());
+	}
+
+	@Test
+	public void malformedFileChangesNothing() throws Exception {
+		for (String json : new String[] { "[{\"name\":\"SSH\"},", "{\"name\":\"SSH\"}",
+				"[{\"name\":\"SSH\"}, 1]", "[] []" }) {
+			write(json);
+			Protocols importer = new Protocols(realm);
+			try {
+				importer.importFile(file, true, job);
+				Assert.fail(json);
+			} catch (IOException e) {
+			}
+			Assert.assertTrue(json, importer.calls.isEmpty());
+			Assert.assertTrue(json, importer.batches.isEmpty());
+		}
+	}
+
+	@Test
+	public void keepsTheFirstErrors() throws Exception {
+		for (int i = 0; i < ResourceImportJob.MAX_ERRORS + 10; i++) {
+			job.failed("Protocol " + i, "Failed");
+		}
+		Assert.assertEquals(ResourceImportJob.MAX_ERRORS + 10, job.getFailed());
+		Assert.assertEquals(ResourceImportJob.MAX_ERRORS, job.getErrors().size());
+	}
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.realm.Realm;
+import com.hypersocket.tables.Column;
+import com.hypersocket.tables.ColumnSort;
+import com.hypersocket.tables.Sort;
+
+public class ResourceSearchIndexTests {
+
+	static final ColumnSort[] BY_NAME = sort("name", Sort.ASC);
+
+	static ColumnSort[] sort(final String column, Sort sort) {
+		return new ColumnSort[] { new ColumnSort(new Column() {
+			@Override
+			public String getColumnName() {
+				return column;
+			}
+		}, sort) };
+	}
+
+	static Realm realm(long id) {
+		Realm realm = new Realm();
+		realm.setId(id);
+		return realm;
+	}
+
+	static class Source implements ResourceSearchIndex.Source {
+
+		final List<ResourceSearchIndex.Entry> entries = new ArrayList<ResourceSearchIndex.Entry>();
+		int loads;
+
+		Source add(long id, String name, String... values) {
+			entries.add(new ResourceSearchIndex.Entry(id, name, values));
+			return this;
+		}
+
+		@Override
+		public List<ResourceSearchIndex.Entry> getSearchEntries(Realm realm) {
+			loads++;
+			return entries;
+		}
+	}
+
+	static List<Long> ids(Long... ids) {
+		return Arrays.asList(ids);
+	}
+
+	static Source endpoints() {
+		return new Source()
+				.add(1, "Mail server", "mail.example.com", "10.0.0.25")
+				.add(2, "Intranet", "www.example.com", null)
+				.add(3, "File server", "files.internal", "10.0.0.30")
+				.add(4, "build", "ci.example.org", null);
+	}
+
+	@Test
+	public void matchesTheSearchedColumn() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = endpoints();
+
+		Assert.assertEquals(ids(3L, 1L),
+				index.search(realm(1), "name", "server", BY_NAME, source));
+		Assert.assertEquals(ids(3L, 1L),
+				index.search(realm(1), null, "server", BY_NAME, source));
+		Assert.assertEquals(ids(),
+				index.search(realm(1), "name", "example", BY_NAME, source));
+		Assert.assertEquals(ids(4L, 2L, 1L),
+				index.search(realm(1), "hostname", "EXAMPLE", BY_NAME, source));
+		Assert.assertEquals(ids(),
+				index.search(realm(1), "hostname", "0.30", BY_NAME, source));
+		Assert.assertEquals(ids(3L),
+				index.search(realm(1), "address", "0.30", BY_NAME, source));
+		Assert.assertEquals(ids(),
+				index.search(realm(1), "name", "printer", BY_NAME, source));
+		Assert.assertEquals(1, source.loads);
+	}
+
+	@Test
+	public void wildcardsAreAnchored() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = endpoints();
+
+		Assert.assertEquals(ids(3L),
+				index.search(realm(1), "name", "fi*", BY_NAME, source));
+		Assert.assertEquals(ids(2L, 1L),
+				index.search(realm(1), "hostname", "%.com", BY_NAME, source));
+		Assert.assertEquals(ids(1L),
+				index.search(realm(1), "hostname", "mail%com", BY_NAME, source));
+		Assert.assertEquals(ids(),
+				index.search(realm(1), "name", "%mail", BY_NAME, source));
+	}
+
+	@Test
+	public void descendingReversesTheOrder() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+
+		Assert.assertEquals(ids(1L, 2L, 4L), index.search(realm(1), "hostname", "example",
+				sort("name", Sort.DESC), endpoints()));
+	}
+
+	@Test
+	public void answersOnlyIndexedSearches() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = endpoints();
+
+		Assert.assertNull(index.search(realm(1), "name", "", BY_NAME, source));
+		Assert.assertNull(index.search(realm(1), "name", "%", BY_NAME, source));
+		Assert.assertNull(index.search(realm(1), "name", "mail",
+				sort("hostname", Sort.ASC), source));
+		Assert.assertNull(index.search(realm(1), "description", "mail",
+				BY_NAME, source));
+		Assert.assertEquals(0, source.loads);
+	}
+
+	@Test
+	public void changesAreIndexed() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = endpoints();
+		index.search(realm(1), "name", "server", BY_NAME, source);
+
+		index.put(realm(1), 1L, "Mail relay", "mail.example.com", "10.0.0.25");
+		index.put(realm(1), 5L, "Print server", "print.internal", null);
+		index.remove(realm(1), 3L);
+
+		Assert.assertEquals(ids(5L),
+				index.search(realm(1), "name", "server", BY_NAME, source));
+		Assert.assertEquals(ids(1L),
+				index.search(realm(1), "name", "relay", BY_NAME, source));
+		Assert.assertEquals(ids(5L),
+				index.search(realm(1), "hostname", "print", BY_NAME, source));
+		Assert.assertEquals(1, source.loads);
+	}
+
+	@Test
+	public void realmsAreSeparate() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = endpoints();
+		index.search(realm(1), "name", "server", BY_NAME, source);
+
+		index.put(realm(2), 9L, "Other server");
+
+		Assert.assertEquals(ids(),
+				index.search(realm(2), "name", "other", BY_NAME, new Source()));
+		Assert.assertEquals(ids(),
+				index.search(realm(1), "name", "other", BY_NAME, source));
+	}
+
+	@Test
+	public void changeWhileLoadingIsNotKept() {
+		final ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = new Source() {
+			@Override
+			public List<ResourceSearchIndex.Entry> getSearchEntries(Realm realm) {
+				index.put(realm, 7L, "Added meanwhile");
+				return super.getSearchEntries(realm);
+			}
+		}.add(1, "Mail server");
+
+		Assert.assertEquals(ids(1L),
+				index.search(realm(1), "name", "server", BY_NAME, source));
+		Assert.assertFalse(index.isLoaded(realm(1)));
+	}
+
+	@Test
+	public void manyChangesAreCompacted() {
+		ResourceSearchIndex index = new ResourceSearchIndex("hostname", "address");
+		Source source = new Source().add(1, "Endpoint 1");
+		index.search(realm(1), "name", "endpoint", BY_NAME, source);
+
+		for (int i = 0; i < 5000; i++) {
+			index.put(realm(1), 1L, "Endpoint " + i);
+		}
+
+		ResourceSearchIndex.RealmIndex realmIndex = index.realms.get(1L);
+		Assert.assertTrue(realmIndex.entries.size() < 2000);
+		Assert.assertEquals(1, realmIndex.size());
+		Assert.assertEquals(ids(1L),
+				index.search(realm(1), "name", "point 4999", BY_NAME, source));
+	}
+
+	@Test
+	public void pages() {
+		List<Long> ids = ids(1L, 2L, 3L, 4L, 5L);
+
+		Assert.assertEquals(ids(3L, 4L), ResourceSearchIndex.page(ids, 2, 2));
+		Assert.assertEquals(ids(5L), ResourceSearchIndex.page(ids, 4, 2));
+		Assert.assertEquals(ids(), ResourceSearchIndex.page(ids, 6, 2));
+		Assert.assertEquals(ids(1L, 2L), ResourceSearchIndex.pageAfter(ids, null, 2));
+		Assert.assertEquals(ids(4L, 5L), ResourceSearchIndex.pageAfter(ids, 3L, 2));
+	}
+
+	@Test
+	public void pageAfterAMissingRowFails() {
+		try {
+			ResourceSearchIndex.pageAfter(ids(1L, 2L, 4L), 3L, 2);
+			Assert.fail("Paged from the start after a missing row");
+		} catch (PageAnchorNotFoundException e) {
+			Assert.assertEquals(Long.valueOf(3), e.getAnchor());
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hypersocket.network.ActiveTunnel;
+import com.hypersocket.tunnel.MultiplexedTunnel;
+import com.hypersocket.tunnel.TunnelFrame;
+import com.hypersocket.tunnel.TunnelStream;
+
+public class TcpTunnelTests {
+
+	static class RecordingSink implements TcpTunnel.Sink {
+
+		BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<ByteBuffer>();
+		CountDownLatch closed = new CountDownLatch(1);
+		int directFrames;
+
+		@Override
+		public void send(ByteBuffer frame) {
+			// Pooled frames are reused once this returns
+			if (frame.isDirect()) {
+				directFrames++;
+			}
+			ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+			copy.put(frame);
+			copy.flip();
+			frames.add(copy);
+		}
+
+		@Override
+		public void closed(TcpTunnel tunnel) {
+			closed.countDown();
+		}
+	}
+
+	static class RecordingHandler implements TcpTunnel.Handler {
+
+		final InetSocketAddress destination;
+		TcpTunnel.Endpoint endpoint;
+		CountDownLatch closed = new CountDownLatch(1);
+
+		RecordingHandler(InetSocketAddress destination) {
+			this.destination = destination;
+		}
+
+		@Override
+		public TcpTunnel.Endpoint admit(TunnelStream stream,
+				TunnelFrame.OpenRequest request) {
+			endpoint = new TcpTunnel.Endpoint(destination,
+					TunnelRelayMode.DIRECT, null);
+			return endpoint;
+		}
+
+		@Override
+		public ActiveTunnel opened(TcpTunnel.Endpoint endpoint) {
+			return null;
+		}
+
+		@Override
+		public void openFailed(TcpTunnel.Endpoint endpoint, IOException cause) {
+		}
+
+		@Override
+		public void closed(TcpTunnel.Endpoint endpoint) {
+			closed.countDown();
+		}
+	}
+
+	static class Receiver implements MultiplexedTunnel.Listener {
+
+		ByteBuffer data = ByteBuffer.allocate(65536);
+		int received;
+
+		@Override
+		public void onOpen(TunnelStream stream, TunnelFrame.OpenRequest request) {
+		}
+
+		@Override
+		public void onData(TunnelStream stream, ByteBuffer data) {
+			received += data.remaining();
+			this.data.put(data);
+		}
+
+		@Override
+		public void onClose(TunnelStream stream) {
+		}
+
+		@Override
+		public void onWritable() {
+		}
+
+		@Override
+		public void onDrained(TunnelStream stream) {
+		}
+	}
+
+	ServerSocket echo;
+	RecordingSink sink;
+	RecordingHandler handler;
+	DirectBufferPool pool;
+	TcpTunnel tunnel;
+	Receiver receiver;
+	MultiplexedTunnel client;
+
+	@Before
+	public void setUp() throws IOException {
+		echo = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread server = new Thread() {
+			public void run() {
+				try {
+					Socket socket = echo.accept();
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					byte[] buf = new byte[4096];
+					int read;
+					while ((read = in.read(buf)) > -1) {
+						out.write(buf, 0, read);
+					}
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+
+		sink = new RecordingSink();
+		handler = new RecordingHandler(new InetSocketAddress("127.0.0.1",
+				echo.getLocalPort()));
+		pool = new DirectBufferPool(TunnelRelay.DEFAULT_BUFFER_SIZE, 4);
+		tunnel = new TcpTunnel(sink, handler, pool);
+		tunnel.start();
+
+		receiver = new Receiver();
+		client = new MultiplexedTunnel(receiver, true);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		tunnel.close();
+		echo.close();
+	}
+
+	void send() throws IOException {
+		ByteBuffer frame;
+		while ((frame = client.poll()) != null) {
+			tunnel.onMessage(frame);
+		}
+	}
+
+	void receive(int bytes) throws Exception {
+		long timeout = System.currentTimeMillis() + 5000;
+		while (receiver.received < bytes
+				&& System.currentTimeMillis() < timeout) {
+			ByteBuffer frame = sink.frames.poll(100, TimeUnit.MILLISECONDS);
+			if (frame != null) {
+				client.onMessage(frame);
+			}
+		}
+	}
+
+	@Test
+	public void trafficIsRelayedAndCounted() throws Exception {
+
+		TunnelStream stream = client.openStream(1L, "echo.internal", 7);
+		stream.write(ByteBuffer.wrap("hello world".getBytes()));
+		send();
+		receive(11);
+
+		Assert.assertEquals(11, receiver.received);
+		Assert.assertEquals("hello world", new String(receiver.data.array(),
+				0, 11));
+		Assert.assertEquals(11, handler.endpoint.getTotalBytesIn());
+		Assert.assertEquals(11, handler.endpoint.getTotalBytesOut());
+	}
+
+	@Test
+	public void bulkTrafficIsCountedInBothDirections() throws Exception {
+
+		TunnelStream stream = client.openStream(1L, "echo.internal", 7);
+		ByteBuffer data = ByteBuffer.allocate(50000);
+		while (data.hasRemaining()) {
+			stream.write(data);
+			send();
+		}
+		receive(50000);
+
+		Assert.assertEquals(50000, receiver.received);
+		Assert.assertEquals(50000, handler.endpoint.getTotalBytesIn());
+		Assert.assertEquals(50000, handler.endpoint.getTotalBytesOut());
+
+		stream.close();
+		send();
+		Assert.assertTrue(handler.closed.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void directFramesAreSentFromThePool() throws Exception {
+
+		TunnelStream stream = client.openStream(1L, "echo.internal", 7);
+		ByteBuffer data = ByteBuffer.allocate(50000);
+		while (data.hasRemaining()) {
+			stream.write(data);
+			send();
+		}
+		receive(50000);
+
+		Assert.assertEquals(50000, receiver.received);
+		Assert.assertTrue("No frame was sent from its pooled buffer",
+				sink.directFrames > 0);
+		Assert.assertTrue("Pooled buffers were not given back",
+				pool.getPooledCount() > 0);
+	}
+}
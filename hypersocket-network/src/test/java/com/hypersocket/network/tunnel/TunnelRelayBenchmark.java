@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.hypersocket.tunnel.TunnelFrame;
+
+/**
+ * Relays 1 MB through a local echo server in each relay mode. Run with
+ * <code>-prof gc</code> to compare allocation rates as well as throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TunnelRelayBenchmark {
+
+	static final int TRANSFER_SIZE = 1024 * 1024;
+
+	@Param({ "HEAP", "DIRECT" })
+	TunnelRelayMode mode;
+
+	ServerSocketChannel server;
+	SocketChannel destination;
+	Thread echo;
+	TunnelRelay relay;
+	ByteBuffer message;
+
+	@Setup
+	public void setup() throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		echo = new Thread() {
+			public void run() {
+				ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+				try {
+					SocketChannel client = server.accept();
+					while (client.read(buf) >= 0) {
+						buf.flip();
+						while (buf.hasRemaining()) {
+							client.write(buf);
+						}
+						buf.clear();
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		echo.setDaemon(true);
+		echo.start();
+
+		destination = SocketChannel.open(server.getLocalAddress());
+		relay = new TunnelRelay(mode, new DirectBufferPool(
+				TunnelRelay.DEFAULT_BUFFER_SIZE, 64));
+
+		message = ByteBuffer.wrap(TunnelFrame.data(1,
+				ByteBuffer.allocate(TunnelFrame.MAX_PAYLOAD),
+				TunnelFrame.MAX_PAYLOAD).array());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		destination.close();
+		server.close();
+	}
+
+	@Benchmark
+	public long relay() throws IOException {
+		long received = 0;
+		for (int sent = 0; sent < TRANSFER_SIZE; sent += TunnelFrame.MAX_PAYLOAD) {
+			message.rewind();
+			TunnelFrame frame = TunnelFrame.decode(message);
+			relay.writePayload(frame.getPayload(), destination);
+			/*
+			 * Read each echo back before sending more so neither side blocks
+			 * on a full socket buffer.
+			 */
+			while (received < sent + TunnelFrame.MAX_PAYLOAD) {
+				ByteBuffer echoed = relay.readFrame(destination, 1);
+				if (echoed == null) {
+					throw new IOException("Echo server closed");
+				}
+				received += Math.max(0, echoed.remaining() - TunnelFrame.HEADER_LENGTH);
+				relay.release(echoed);
+			}
+		}
+		return received;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(TunnelRelayBenchmark.class.getSimpleName())
+				.addProfiler("gc").build()).run();
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.network.tunnel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.tunnel.DatagramBatch;
+
+public class UdpTunnelTests {
+
+	static class RecordingSink implements UdpTunnel.Sink {
+
+		BlockingQueue<ByteBuffer> messages = new LinkedBlockingQueue<ByteBuffer>();
+		CountDownLatch closed = new CountDownLatch(1);
+
+		@Override
+		public void send(ByteBuffer message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void closed(UdpTunnel tunnel) {
+			closed.countDown();
+		}
+	}
+
+	static ByteBuffer datagram(String text) {
+		return ByteBuffer.wrap(text.getBytes());
+	}
+
+	static Map<Integer, String> decode(ByteBuffer message) throws IOException {
+		final Map<Integer, String> datagrams = new HashMap<Integer, String>();
+		DatagramBatch.decode(message, new DatagramBatch.Handler() {
+			@Override
+			public void onDatagram(int flowId, ByteBuffer datagram) {
+				byte[] data = new byte[datagram.remaining()];
+				datagram.get(data);
+				datagrams.put(flowId, new String(data));
+			}
+		});
+		return datagrams;
+	}
+
+	@Test
+	public void testRepliesRoutedToFlow() throws Exception {
+
+		final DatagramSocket echo = new DatagramSocket(0,
+				InetAddress.getByName("127.0.0.1"));
+		Thread server = new Thread() {
+			public void run() {
+				byte[] buf = new byte[1024];
+				try {
+					while (true) {
+						DatagramPacket packet = new DatagramPacket(buf, buf.length);
+						echo.receive(packet);
+						echo.send(packet);
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+
+		RecordingSink sink = new RecordingSink();
+		UdpTunnel tunnel = new UdpTunnel(new InetSocketAddress("127.0.0.1",
+				echo.getLocalPort()), sink, 60000, 16, null);
+		tunnel.start();
+
+		try {
+			DatagramBatch batch = new DatagramBatch();
+			batch.add(7, datagram("seven"));
+			batch.add(9, datagram("nine"));
+			tunnel.onMessage(batch.flush());
+
+			Map<Integer, String> replies = new HashMap<Integer, String>();
+			while (replies.size() < 2) {
+				ByteBuffer message = sink.messages.poll(5, TimeUnit.SECONDS);
+				Assert.assertTrue(message != null);
+				replies.putAll(decode(message));
+			}
+
+			Assert.assertTrue(replies.get(7).equals("seven"));
+			Assert.assertTrue(replies.get(9).equals("nine"));
+			Assert.assertEquals(2, tunnel.getFlowCount());
+			Assert.assertEquals(9, tunnel.getTotalBytesIn());
+			Assert.assertEquals(9, tunnel.getTotalBytesOut());
+		} finally {
+			tunnel.close();
+			echo.close();
+		}
+
+		Assert.assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testIdleFlowsExpire() throws Exception {
+
+		RecordingSink sink = new RecordingSink();
+		UdpTunnel tunnel = new UdpTunnel(new InetSocketAddress("127.0.0.1", 9),
+				sink, 100, 16, null);
+		tunnel.start();
+
+		try {
+			DatagramBatch batch = new DatagramBatch();
+			batch.add(1, datagram("ping"));
+			tunnel.onMessage(batch.flush());
+			Assert.assertEquals(1, tunnel.getFlowCount());
+
+			long timeout = System.currentTimeMillis() + 5000;
+			while (tunnel.getFlowCount() > 0
+					&& System.currentTimeMillis() < timeout) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(0, tunnel.getFlowCount());
+		} finally {
+			tunnel.close();
+		}
+	}
+
+	@Test
+	public void testExpiryDoesNotBreakWrites() throws Exception {
+
+		RecordingSink sink = new RecordingSink();
+		final UdpTunnel tunnel = new UdpTunnel(new InetSocketAddress(
+				"127.0.0.1", 9), sink, 0, 16, null);
+
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread expiry = new Thread() {
+			public void run() {
+				while (done.getCount() > 0) {
+					tunnel.expire(System.currentTimeMillis());
+				}
+			}
+		};
+		expiry.setDaemon(true);
+		expiry.start();
+
+		try {
+			for (int i = 0; i < 2000; i++) {
+				DatagramBatch batch = new DatagramBatch();
+				batch.add(1, datagram("ping"));
+				tunnel.onMessage(batch.flush());
+			}
+		} finally {
+			done.countDown();
+			expiry.join();
+			tunnel.expire(System.currentTimeMillis());
+		}
+
+		Assert.assertEquals(2000 * 4, tunnel.getTotalBytesIn()
+				+ tunnel.getDroppedCount() * 4);
+		Assert.assertEquals(0, tunnel.getFlowCount());
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packs several datagrams into a single websocket message. Each record is the
+ * flow id (4 bytes), the datagram length (2 bytes, unsigned) and the datagram
+ * itself. The flow id identifies the local source of the datagram so replies
+ * can be returned to it.
+ * <p>
+ * Both the client's UDP forwarders and the server's UDP tunnels use this
+ * class, so the two ends always agree on the format.
+ */
+public class DatagramBatch {
+
+	public static final int RECORD_HEADER_LENGTH = 6;
+	public static final int MAX_DATAGRAM = 65507;
+	public static final int DEFAULT_BATCH_SIZE = 65536;
+
+	public interface Handler {
+		void onDatagram(int flowId, ByteBuffer datagram) throws IOException;
+	}
+
+	final ByteBuffer buffer;
+	int count;
+
+	public DatagramBatch() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	public DatagramBatch(int size) {
+		buffer = ByteBuffer.allocate(Math.max(size, RECORD_HEADER_LENGTH + MAX_DATAGRAM));
+	}
+
+	/**
+	 * Append a datagram to the batch.
+	 * 
+	 * @return <code>false</code> if the batch has no room left for it, in which
+	 *         case it should be flushed first
+	 */
+	public boolean add(int flowId, ByteBuffer datagram) {
+		int length = datagram.remaining();
+		if (length > MAX_DATAGRAM) {
+			throw new IllegalArgumentException("Datagram of " + length
+					+ " bytes is too large");
+		}
+		if (buffer.remaining() < RECORD_HEADER_LENGTH + length) {
+			return false;
+		}
+		buffer.putInt(flowId);
+		buffer.putShort((short) length);
+		buffer.put(datagram);
+		count++;
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Copy the batch into a new message and reset it for reuse.
+	 */
+	public ByteBuffer flush() {
+		buffer.flip();
+		ByteBuffer message = ByteBuffer.allocate(buffer.remaining());
+		message.put(buffer);
+		message.flip();
+		buffer.clear();
+		count = 0;
+		return message;
+	}
+
+	/**
+	 * Hand each datagram of a message to the handler. The datagram buffers are
+	 * views of the message and are only valid during the callback.
+	 * 
+	 * @return the number of datagrams in the message
+	 */
+	public static int decode(ByteBuffer message, Handler handler)
+			throws IOException {
+		int decoded = 0;
+		while (message.hasRemaining()) {
+			if (message.remaining() < RECORD_HEADER_LENGTH) {
+				throw new IOException("Truncated datagram record header");
+			}
+			int flowId = message.getInt();
+			int length = message.getShort() & 0xFFFF;
+			if (message.remaining() < length) {
+				throw new IOException("Truncated datagram for flow " + flowId);
+			}
+			ByteBuffer datagram = message.slice();
+			datagram.limit(length);
+			message.position(message.position() + length);
+			handler.onDatagram(flowId, datagram);
+			decoded++;
+		}
+		return decoded;
+	}
+}
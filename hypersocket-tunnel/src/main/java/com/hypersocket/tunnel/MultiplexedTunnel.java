@@ -0,0 +1,423 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries many forwarded connections over one websocket. Frames are produced
+ * by {@link #poll()} in round-robin order across streams, at most
+ * {@link TunnelFrame#MAX_PAYLOAD} bytes per stream per turn, so a bulk
+ * transfer cannot starve an interactive stream sharing the same socket.
+ * Control frames (open, window and close) are always sent ahead of data.
+ * <p>
+ * Each stream queues at most one window of outbound data; writers are told
+ * through {@link Listener#onDrained(TunnelStream)} when there is room again.
+ * Queued data keeps room for a frame header in front of it, so a payload the
+ * peer's window allows in full is framed in place and handed out by
+ * {@link #poll()} without a copy.
+ * A peer that sends more than it has been granted, grants an invalid window
+ * or opens a stream with one of our ids breaks the protocol, and
+ * {@link #onMessage(ByteBuffer)} fails so the owner can drop the websocket.
+ * The listener is never called while the tunnel's monitor is held.
+ */
+public class MultiplexedTunnel {
+
+	static Logger log = LoggerFactory.getLogger(MultiplexedTunnel.class);
+
+	public static final int DEFAULT_WINDOW = 262144;
+
+	/**
+	 * Receives streams and data from the peer.
+	 */
+	public interface Listener {
+
+		void onOpen(TunnelStream stream, TunnelFrame.OpenRequest request);
+
+		/**
+		 * Called with data received on a stream. The buffer is only valid
+		 * for the duration of the call.
+		 */
+		void onData(TunnelStream stream, ByteBuffer data);
+
+		void onClose(TunnelStream stream);
+
+		/**
+		 * Called when frames are waiting to be sent; the owner should call
+		 * {@link MultiplexedTunnel#poll()} until it returns <code>null</code>.
+		 */
+		void onWritable();
+
+		/**
+		 * Called when a stream that refused data has room again.
+		 */
+		void onDrained(TunnelStream stream);
+	}
+
+	final Listener listener;
+	final boolean client;
+	final int initialWindow;
+	final Map<Integer, TunnelStream> streams = new HashMap<Integer, TunnelStream>();
+	final LinkedList<ByteBuffer> control = new LinkedList<ByteBuffer>();
+	final LinkedList<TunnelStream> ready = new LinkedList<TunnelStream>();
+	int nextStreamId;
+	boolean writable;
+
+	public MultiplexedTunnel(Listener listener, boolean client) {
+		this(listener, client, DEFAULT_WINDOW);
+	}
+
+	public MultiplexedTunnel(Listener listener, boolean client, int initialWindow) {
+		this.listener = listener;
+		this.client = client;
+		this.initialWindow = initialWindow;
+		/*
+		 * Clients use odd stream ids and servers even ones so both sides can
+		 * open streams without coordinating.
+		 */
+		this.nextStreamId = client ? 1 : 2;
+	}
+
+	public TunnelStream openStream(Long resourceId, String hostname, int port) {
+		return openStream(resourceId, hostname, port, null);
+	}
+
+	/**
+	 * Open a stream with its attachment already set, so the listener can find
+	 * it for anything the peer sends back.
+	 */
+	public TunnelStream openStream(Long resourceId, String hostname, int port,
+			Object attachment) {
+		TunnelStream stream;
+		synchronized (this) {
+			stream = new TunnelStream(this, nextStreamId, initialWindow);
+			stream.setAttachment(attachment);
+			nextStreamId += 2;
+			streams.put(stream.getId(), stream);
+			control.add(TunnelFrame.open(stream.getId(), resourceId, hostname, port));
+			signal();
+		}
+		notifyWritable();
+		return stream;
+	}
+
+	public synchronized int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * Process a frame received from the peer.
+	 * 
+	 * @throws IOException
+	 *             if the frame is malformed or breaks the protocol
+	 */
+	public void onMessage(ByteBuffer message) throws IOException {
+
+		TunnelFrame frame = TunnelFrame.decode(message);
+		TunnelStream stream;
+		TunnelFrame.OpenRequest request = null;
+		boolean closed = false;
+
+		try {
+			synchronized (this) {
+				stream = streams.get(frame.getStreamId());
+				switch (frame.getType()) {
+				case TunnelFrame.OPEN:
+					if (stream != null) {
+						throw new IOException("Stream " + frame.getStreamId() + " is already open");
+					}
+					if (!isPeerStreamId(frame.getStreamId())) {
+						throw new IOException("Peer cannot open stream " + frame.getStreamId());
+					}
+					request = new TunnelFrame.OpenRequest(frame.getPayload());
+					stream = new TunnelStream(this, frame.getStreamId(), initialWindow);
+					streams.put(stream.getId(), stream);
+					break;
+				case TunnelFrame.DATA:
+					if (stream == null) {
+						break;
+					}
+					int length = frame.getPayload().remaining();
+					if (length > stream.receiveWindow) {
+						throw new IOException("Stream " + stream.getId() + " sent " + length
+								+ " bytes with a window of " + stream.receiveWindow);
+					}
+					stream.receiveWindow -= length;
+					break;
+				case TunnelFrame.WINDOW:
+					if (stream == null) {
+						break;
+					}
+					if (frame.getPayload().remaining() != 4) {
+						throw new IOException("Invalid window frame for stream " + stream.getId());
+					}
+					int increment = frame.getPayload().getInt();
+					if (increment <= 0 || (long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+						throw new IOException("Invalid window increment " + increment + " for stream "
+								+ stream.getId());
+					}
+					stream.sendWindow += increment;
+					schedule(stream);
+					break;
+				case TunnelFrame.CLOSE:
+					if (stream == null || stream.closed) {
+						break;
+					}
+					stream.closed = true;
+					stream.outbound.clear();
+					stream.queued = 0;
+					streams.remove(stream.getId());
+					if (!stream.closing) {
+						control.add(TunnelFrame.close(stream.getId()));
+						signal();
+					}
+					closed = true;
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			notifyWritable();
+		}
+
+		if (stream == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Ignoring frame " + frame.getType() + " for unknown stream " + frame.getStreamId());
+			}
+			return;
+		}
+
+		switch (frame.getType()) {
+		case TunnelFrame.OPEN:
+			listener.onOpen(stream, request);
+			break;
+		case TunnelFrame.DATA:
+			listener.onData(stream, frame.getPayload());
+			break;
+		case TunnelFrame.CLOSE:
+			if (closed) {
+				listener.onClose(stream);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Take the next frame to send to the peer, or <code>null</code> if
+	 * nothing can be sent until more window is granted.
+	 */
+	public ByteBuffer poll() {
+
+		ByteBuffer frame = null;
+		TunnelStream drained = null;
+
+		synchronized (this) {
+			if (!control.isEmpty()) {
+				return control.removeFirst();
+			}
+
+			while (!ready.isEmpty()) {
+				TunnelStream stream = ready.removeFirst();
+				stream.scheduled = false;
+				if (stream.closed || !stream.canSend()) {
+					continue;
+				}
+
+				ByteBuffer head = stream.outbound.getFirst();
+				int length = Math.min(head.remaining(),
+						Math.min(stream.sendWindow, TunnelFrame.MAX_PAYLOAD));
+				if (length == head.remaining()) {
+					stream.outbound.removeFirst();
+					frame = TunnelFrame.data(stream.getId(), head);
+				} else {
+					frame = TunnelFrame.data(stream.getId(), head, length);
+				}
+				stream.sendWindow -= length;
+				stream.queued -= length;
+
+				if (stream.full && stream.queued <= initialWindow / 2) {
+					stream.full = false;
+					drained = stream;
+				}
+
+				if (stream.outbound.isEmpty() && stream.closing) {
+					finishClose(stream);
+				} else {
+					schedule(stream);
+				}
+				break;
+			}
+		}
+
+		if (drained != null) {
+			listener.onDrained(drained);
+		}
+		return frame;
+	}
+
+	/**
+	 * Close every stream, for example when the websocket has gone away.
+	 */
+	public void closeAll() {
+		List<TunnelStream> closed;
+		synchronized (this) {
+			closed = new ArrayList<TunnelStream>(streams.values());
+			for (TunnelStream stream : closed) {
+				stream.closed = true;
+				stream.outbound.clear();
+				stream.queued = 0;
+			}
+			streams.clear();
+			ready.clear();
+			control.clear();
+		}
+		for (TunnelStream stream : closed) {
+			listener.onClose(stream);
+		}
+	}
+
+	int write(TunnelStream stream, ByteBuffer data) {
+		int length;
+		synchronized (this) {
+			if (stream.closed || stream.closing) {
+				throw new IllegalStateException("Stream " + stream.getId() + " is closed");
+			}
+			length = Math.min(data.remaining(), initialWindow - stream.queued);
+			if (length < data.remaining()) {
+				stream.full = true;
+			}
+			if (length <= 0) {
+				return 0;
+			}
+			for (int taken = 0; taken < length;) {
+				int chunk = Math.min(length - taken, TunnelFrame.MAX_PAYLOAD);
+				ByteBuffer copy = ByteBuffer.allocate(TunnelFrame.HEADER_LENGTH + chunk);
+				copy.position(TunnelFrame.HEADER_LENGTH);
+				ByteBuffer slice = data.duplicate();
+				slice.limit(slice.position() + chunk);
+				copy.put(slice);
+				copy.position(TunnelFrame.HEADER_LENGTH);
+				data.position(data.position() + chunk);
+				stream.outbound.add(copy);
+				taken += chunk;
+			}
+			stream.queued += length;
+			schedule(stream);
+		}
+		notifyWritable();
+		return length;
+	}
+
+	boolean writeFrame(TunnelStream stream, ByteBuffer payload) {
+		if (payload.position() < TunnelFrame.HEADER_LENGTH
+				|| payload.remaining() > TunnelFrame.MAX_PAYLOAD) {
+			throw new IllegalArgumentException("Payload of " + payload.remaining()
+					+ " bytes cannot be framed in place");
+		}
+		synchronized (this) {
+			if (stream.closed || stream.closing) {
+				throw new IllegalStateException("Stream " + stream.getId() + " is closed");
+			}
+			if (payload.remaining() > initialWindow - stream.queued) {
+				stream.full = true;
+				return false;
+			}
+			if (!payload.hasRemaining()) {
+				return false;
+			}
+			stream.outbound.add(payload);
+			stream.queued += payload.remaining();
+			schedule(stream);
+		}
+		notifyWritable();
+		return true;
+	}
+
+	synchronized int getWritable(TunnelStream stream) {
+		return stream.closed || stream.closing ? 0 : initialWindow - stream.queued;
+	}
+
+	void consumed(TunnelStream stream, int bytes) {
+		synchronized (this) {
+			if (stream.closed) {
+				return;
+			}
+			stream.unacknowledged += bytes;
+			if (stream.unacknowledged >= initialWindow / 2) {
+				control.add(TunnelFrame.window(stream.getId(), stream.unacknowledged));
+				stream.receiveWindow += stream.unacknowledged;
+				stream.unacknowledged = 0;
+				signal();
+			}
+		}
+		notifyWritable();
+	}
+
+	void closeStream(TunnelStream stream) {
+		synchronized (this) {
+			if (stream.closed || stream.closing) {
+				return;
+			}
+			stream.closing = true;
+			if (stream.outbound.isEmpty()) {
+				finishClose(stream);
+			}
+		}
+		notifyWritable();
+	}
+
+	boolean isPeerStreamId(int streamId) {
+		return streamId > 0 && (streamId % 2 == 0) == client;
+	}
+
+	private void finishClose(TunnelStream stream) {
+		stream.closed = true;
+		streams.remove(stream.getId());
+		control.add(TunnelFrame.close(stream.getId()));
+		signal();
+	}
+
+	private void schedule(TunnelStream stream) {
+		if (!stream.scheduled && stream.canSend()) {
+			stream.scheduled = true;
+			ready.add(stream);
+			signal();
+		}
+	}
+
+	/**
+	 * Note that frames are waiting. The listener is told by
+	 * {@link #notifyWritable()} once the monitor has been released.
+	 */
+	private void signal() {
+		writable = true;
+	}
+
+	private void notifyWritable() {
+		boolean notify;
+		synchronized (this) {
+			notify = writable;
+			writable = false;
+		}
+		if (notify) {
+			listener.onWritable();
+		}
+	}
+}
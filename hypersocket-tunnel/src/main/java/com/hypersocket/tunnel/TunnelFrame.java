@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A single frame of a multiplexed tunnel. Each websocket message carries
+ * exactly one frame laid out as
+ * 
+ * <pre>
+ * type (1) | stream id (4) | payload length (4) | payload
+ * </pre>
+ */
+public class TunnelFrame {
+
+	public static final byte OPEN = 1;
+	public static final byte DATA = 2;
+	public static final byte WINDOW = 3;
+	public static final byte CLOSE = 4;
+
+	public static final int HEADER_LENGTH = 9;
+	public static final int MAX_PAYLOAD = 16384;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final byte type;
+	final int streamId;
+	final ByteBuffer payload;
+
+	TunnelFrame(byte type, int streamId, ByteBuffer payload) {
+		this.type = type;
+		this.streamId = streamId;
+		this.payload = payload;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	public static ByteBuffer open(int streamId, Long resourceId,
+			String hostname, int port) {
+		byte[] host = hostname.getBytes(UTF8);
+		ByteBuffer buf = header(OPEN, streamId, 12 + host.length);
+		buf.putLong(resourceId);
+		buf.putInt(port);
+		buf.put(host);
+		buf.flip();
+		return buf;
+	}
+
+	public static ByteBuffer data(int streamId, ByteBuffer data, int length) {
+		ByteBuffer buf = header(DATA, streamId, length);
+		ByteBuffer slice = data.duplicate();
+		slice.limit(slice.position() + length);
+		buf.put(slice);
+		data.position(data.position() + length);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Make a DATA frame of a payload in place, without copying it. The header
+	 * is written into the {@link #HEADER_LENGTH} bytes in front of the
+	 * payload, which the caller must have reserved, and the position is moved
+	 * back to the start of the header.
+	 */
+	public static ByteBuffer data(int streamId, ByteBuffer payload) {
+		int start = payload.position() - HEADER_LENGTH;
+		if (start < 0) {
+			throw new IllegalArgumentException("No room for a frame header before the payload");
+		}
+		payload.put(start, DATA);
+		payload.putInt(start + 1, streamId);
+		payload.putInt(start + 5, payload.remaining());
+		payload.position(start);
+		return payload;
+	}
+
+	public static ByteBuffer window(int streamId, int increment) {
+		ByteBuffer buf = header(WINDOW, streamId, 4);
+		buf.putInt(increment);
+		buf.flip();
+		return buf;
+	}
+
+	public static ByteBuffer close(int streamId) {
+		ByteBuffer buf = header(CLOSE, streamId, 0);
+		buf.flip();
+		return buf;
+	}
+
+	static ByteBuffer header(byte type, int streamId, int length) {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + length);
+		buf.put(type);
+		buf.putInt(streamId);
+		buf.putInt(length);
+		return buf;
+	}
+
+	public static TunnelFrame decode(ByteBuffer message) throws IOException {
+		if (message.remaining() < HEADER_LENGTH) {
+			throw new IOException("Truncated tunnel frame");
+		}
+		byte type = message.get();
+		int streamId = message.getInt();
+		int length = message.getInt();
+		if (type < OPEN || type > CLOSE) {
+			throw new IOException("Unknown tunnel frame type " + type);
+		}
+		if (length < 0 || length > message.remaining()) {
+			throw new IOException("Invalid tunnel frame length " + length);
+		}
+		ByteBuffer payload = message.slice();
+		payload.limit(length);
+		message.position(message.position() + length);
+		return new TunnelFrame(type, streamId, payload);
+	}
+
+	/**
+	 * Decoded payload of an {@link #OPEN} frame.
+	 */
+	public static class OpenRequest {
+		final Long resourceId;
+		final int port;
+		final String hostname;
+
+		public OpenRequest(ByteBuffer payload) throws IOException {
+			if (payload.remaining() < 12) {
+				throw new IOException("Truncated open request");
+			}
+			resourceId = payload.getLong();
+			port = payload.getInt();
+			byte[] host = new byte[payload.remaining()];
+			payload.get(host);
+			hostname = new String(host, UTF8);
+		}
+
+		public Long getResourceId() {
+			return resourceId;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getHostname() {
+			return hostname;
+		}
+	}
+}
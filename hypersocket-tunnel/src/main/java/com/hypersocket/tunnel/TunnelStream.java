@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * One forwarded connection carried by a {@link MultiplexedTunnel}. The stream
+ * may only send as many bytes as the peer has granted through WINDOW frames,
+ * so a peer that stops reading one stream does not block the others.
+ */
+public class TunnelStream {
+
+	final int id;
+	final MultiplexedTunnel tunnel;
+	final LinkedList<ByteBuffer> outbound = new LinkedList<ByteBuffer>();
+
+	int sendWindow;
+	int receiveWindow;
+	int unacknowledged;
+	int queued;
+	boolean full;
+	boolean closing;
+	boolean closed;
+	boolean scheduled;
+	Object attachment;
+
+	TunnelStream(MultiplexedTunnel tunnel, int id, int initialWindow) {
+		this.tunnel = tunnel;
+		this.id = id;
+		this.sendWindow = initialWindow;
+		this.receiveWindow = initialWindow;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Queue data to be sent to the peer on this stream. The bytes are copied,
+	 * so the caller may reuse the buffer once this returns. At most
+	 * {@link #getWritable()} bytes are taken; when fewer than the remaining
+	 * bytes are taken, the tunnel's listener is told through
+	 * {@link MultiplexedTunnel.Listener#onDrained(TunnelStream)} once there is
+	 * room again.
+	 * 
+	 * @return the number of bytes taken from the buffer
+	 */
+	public int write(ByteBuffer data) {
+		return tunnel.write(this, data);
+	}
+
+	/**
+	 * Queue a payload without copying it. The payload must be preceded by
+	 * {@link TunnelFrame#HEADER_LENGTH} bytes of room for the frame header and
+	 * be no longer than {@link TunnelFrame#MAX_PAYLOAD}. If taken, the buffer
+	 * belongs to the tunnel, and unless the peer's window forces it to be
+	 * split it is handed out by {@link MultiplexedTunnel#poll()} itself.
+	 * 
+	 * @return <code>false</code> if the payload was not taken, because it is
+	 *         empty or there is no room for all of it, in which case the
+	 *         buffer still belongs to the caller
+	 */
+	public boolean writeFrame(ByteBuffer payload) {
+		return tunnel.writeFrame(this, payload);
+	}
+
+	/**
+	 * Get how many more bytes {@link #write(ByteBuffer)} will take.
+	 */
+	public int getWritable() {
+		return tunnel.getWritable(this);
+	}
+
+	/**
+	 * Report that the application has consumed data received on this stream,
+	 * returning credit to the peer.
+	 */
+	public void consumed(int bytes) {
+		tunnel.consumed(this, bytes);
+	}
+
+	/**
+	 * Close the stream once any queued data has been sent.
+	 */
+	public void close() {
+		tunnel.closeStream(this);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	boolean canSend() {
+		return !outbound.isEmpty() && sendWindow > 0;
+	}
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DatagramBatchTests {
+
+	static ByteBuffer datagram(String text) {
+		return ByteBuffer.wrap(text.getBytes());
+	}
+
+	static Map<Integer, String> decode(ByteBuffer message) throws IOException {
+		final Map<Integer, String> datagrams = new HashMap<Integer, String>();
+		DatagramBatch.decode(message, new DatagramBatch.Handler() {
+			@Override
+			public void onDatagram(int flowId, ByteBuffer datagram) {
+				byte[] data = new byte[datagram.remaining()];
+				datagram.get(data);
+				datagrams.put(flowId, new String(data));
+			}
+		});
+		return datagrams;
+	}
+
+	@Test
+	public void testBatchRoundTrip() throws IOException {
+
+		DatagramBatch batch = new DatagramBatch();
+		Assert.assertTrue(batch.add(1, datagram("one")));
+		Assert.assertTrue(batch.add(2, datagram("two")));
+		Assert.assertEquals(2, batch.getCount());
+
+		Map<Integer, String> datagrams = decode(batch.flush());
+		Assert.assertEquals(2, datagrams.size());
+		Assert.assertTrue(datagrams.get(1).equals("one"));
+		Assert.assertTrue(datagrams.get(2).equals("two"));
+		Assert.assertTrue(batch.isEmpty());
+	}
+
+	@Test
+	public void testBatchFull() {
+
+		DatagramBatch batch = new DatagramBatch(0);
+		ByteBuffer large = ByteBuffer.allocate(DatagramBatch.MAX_DATAGRAM);
+		Assert.assertTrue(batch.add(1, large));
+		Assert.assertTrue(!batch.add(2, datagram("x")));
+	}
+
+	@Test
+	public void testTruncatedBatchIsRejected() {
+
+		DatagramBatch batch = new DatagramBatch();
+		batch.add(1, datagram("truncated"));
+		ByteBuffer message = batch.flush();
+		message.limit(message.limit() - 1);
+		try {
+			decode(message);
+			Assert.fail("A truncated datagram was decoded");
+		} catch (IOException e) {
+		}
+	}
+}
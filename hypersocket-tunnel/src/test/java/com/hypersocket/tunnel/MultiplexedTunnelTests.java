@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultiplexedTunnelTests {
+
+	static class RecordingListener implements MultiplexedTunnel.Listener {
+
+		List<TunnelStream> opened = new ArrayList<TunnelStream>();
+		List<TunnelStream> closed = new ArrayList<TunnelStream>();
+		List<TunnelStream> drained = new ArrayList<TunnelStream>();
+		List<Integer> dataStreams = new ArrayList<Integer>();
+		MultiplexedTunnel tunnel;
+		boolean calledWhileLocked;
+		int received;
+
+		@Override
+		public void onOpen(TunnelStream stream, TunnelFrame.OpenRequest request) {
+			opened.add(stream);
+		}
+
+		@Override
+		public void onData(TunnelStream stream, ByteBuffer data) {
+			dataStreams.add(stream.getId());
+			received += data.remaining();
+		}
+
+		@Override
+		public void onClose(TunnelStream stream) {
+			closed.add(stream);
+		}
+
+		@Override
+		public void onWritable() {
+			calledWhileLocked |= tunnel != null && Thread.holdsLock(tunnel);
+		}
+
+		@Override
+		public void onDrained(TunnelStream stream) {
+			calledWhileLocked |= tunnel != null && Thread.holdsLock(tunnel);
+			drained.add(stream);
+		}
+	}
+
+	static int transfer(MultiplexedTunnel from, MultiplexedTunnel to) throws IOException {
+		int frames = 0;
+		ByteBuffer frame;
+		while ((frame = from.poll()) != null) {
+			to.onMessage(frame);
+			frames++;
+		}
+		return frames;
+	}
+
+	@Test
+	public void openCarriesDestination() throws IOException {
+		RecordingListener serverListener = new RecordingListener();
+		MultiplexedTunnel client = new MultiplexedTunnel(new RecordingListener(), true);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false);
+
+		TunnelStream stream = client.openStream(42L, "rdp.internal", 3389);
+		transfer(client, server);
+
+		Assert.assertEquals(1, serverListener.opened.size());
+		Assert.assertEquals(stream.getId(), serverListener.opened.get(0).getId());
+	}
+
+	@Test
+	public void bulkStreamDoesNotStarveInteractiveStream() throws IOException {
+		RecordingListener serverListener = new RecordingListener();
+		MultiplexedTunnel client = new MultiplexedTunnel(new RecordingListener(), true);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false);
+
+		TunnelStream bulk = client.openStream(1L, "ftp.internal", 20);
+		TunnelStream interactive = client.openStream(1L, "ssh.internal", 22);
+		transfer(client, server);
+
+		bulk.write(ByteBuffer.allocate(TunnelFrame.MAX_PAYLOAD * 8));
+		interactive.write(ByteBuffer.wrap("ls\n".getBytes()));
+		transfer(client, server);
+
+		Assert.assertEquals(Integer.valueOf(bulk.getId()), serverListener.dataStreams.get(0));
+		Assert.assertEquals(Integer.valueOf(interactive.getId()), serverListener.dataStreams.get(1));
+	}
+
+	@Test
+	public void sendingStopsWhenWindowIsExhausted() throws IOException {
+		RecordingListener clientListener = new RecordingListener();
+		RecordingListener serverListener = new RecordingListener();
+		MultiplexedTunnel client = new MultiplexedTunnel(clientListener, true, 32768);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false, 32768);
+
+		TunnelStream stream = client.openStream(1L, "ftp.internal", 20);
+		transfer(client, server);
+
+		ByteBuffer data = ByteBuffer.allocate(100000);
+		Assert.assertEquals(32768, stream.write(data));
+		Assert.assertEquals(0, stream.getWritable());
+		transfer(client, server);
+		Assert.assertEquals(32768, serverListener.received);
+		Assert.assertEquals(1, clientListener.drained.size());
+
+		Assert.assertEquals(32768, stream.write(data));
+		transfer(client, server);
+		Assert.assertEquals(32768, serverListener.received);
+
+		serverListener.opened.get(0).consumed(32768);
+		transfer(server, client);
+		transfer(client, server);
+		Assert.assertEquals(65536, serverListener.received);
+	}
+
+	@Test
+	public void writeCopiesTheCallersBuffer() throws IOException {
+		final List<Byte> first = new ArrayList<Byte>();
+		RecordingListener serverListener = new RecordingListener() {
+			@Override
+			public void onData(TunnelStream stream, ByteBuffer data) {
+				first.add(data.get(data.position()));
+			}
+		};
+		MultiplexedTunnel client = new MultiplexedTunnel(new RecordingListener(), true);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false);
+
+		TunnelStream stream = client.openStream(1L, "ssh.internal", 22);
+		ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+		stream.write(buf);
+		buf.clear();
+		buf.put(0, (byte) 9);
+		transfer(client, server);
+
+		Assert.assertEquals(Byte.valueOf((byte) 1), first.get(0));
+	}
+
+	@Test
+	public void dataBeyondTheGrantedWindowIsRejected() throws IOException {
+		MultiplexedTunnel server = new MultiplexedTunnel(new RecordingListener(), false, 32768);
+		server.onMessage(TunnelFrame.open(1, 1L, "ftp.internal", 20));
+		server.onMessage(TunnelFrame.data(1, ByteBuffer.allocate(16384), 16384));
+		server.onMessage(TunnelFrame.data(1, ByteBuffer.allocate(16384), 16384));
+		try {
+			server.onMessage(TunnelFrame.data(1, ByteBuffer.allocate(1), 1));
+			Assert.fail("Data beyond the window was accepted");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void invalidWindowIncrementsAreRejected() throws IOException {
+		MultiplexedTunnel server = new MultiplexedTunnel(new RecordingListener(), false);
+		server.onMessage(TunnelFrame.open(1, 1L, "ftp.internal", 20));
+		try {
+			server.onMessage(TunnelFrame.window(1, -1));
+			Assert.fail("A negative window increment was accepted");
+		} catch (IOException e) {
+		}
+		try {
+			server.onMessage(TunnelFrame.window(1, Integer.MAX_VALUE));
+			Assert.fail("An overflowing window increment was accepted");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void peerCannotOpenStreamsWithOurIds() throws IOException {
+		MultiplexedTunnel server = new MultiplexedTunnel(new RecordingListener(), false);
+		try {
+			server.onMessage(TunnelFrame.open(2, 1L, "ftp.internal", 20));
+			Assert.fail("The client opened a server stream id");
+		} catch (IOException e) {
+		}
+		Assert.assertEquals(0, server.getStreamCount());
+	}
+
+	@Test
+	public void listenerIsNotCalledWhileLocked() throws IOException {
+		RecordingListener clientListener = new RecordingListener();
+		RecordingListener serverListener = new RecordingListener();
+		MultiplexedTunnel client = new MultiplexedTunnel(clientListener, true, 32768);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false, 32768);
+		clientListener.tunnel = client;
+		serverListener.tunnel = server;
+
+		TunnelStream stream = client.openStream(1L, "ftp.internal", 20);
+		stream.write(ByteBuffer.allocate(65536));
+		transfer(client, server);
+		serverListener.opened.get(0).consumed(32768);
+		transfer(server, client);
+		stream.close();
+		transfer(client, server);
+
+		Assert.assertEquals(1, clientListener.drained.size());
+		Assert.assertFalse(clientListener.calledWhileLocked);
+		Assert.assertFalse(serverListener.calledWhileLocked);
+	}
+
+	@Test
+	public void closeIsAcknowledged() throws IOException {
+		RecordingListener clientListener = new RecordingListener();
+		RecordingListener serverListener = new RecordingListener();
+		MultiplexedTunnel client = new MultiplexedTunnel(clientListener, true);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false);
+
+		TunnelStream stream = client.openStream(1L, "ssh.internal", 22);
+		stream.write(ByteBuffer.wrap("exit\n".getBytes()));
+		stream.close();
+		transfer(client, server);
+
+		Assert.assertEquals(5, serverListener.received);
+		Assert.assertEquals(1, serverListener.closed.size());
+		Assert.assertEquals(0, server.getStreamCount());
+
+		transfer(server, client);
+		Assert.assertEquals(0, client.getStreamCount());
+	}
+
+	static ByteBuffer framed(int length) {
+		ByteBuffer buf = ByteBuffer.allocate(TunnelFrame.HEADER_LENGTH + length);
+		buf.position(TunnelFrame.HEADER_LENGTH);
+		return buf;
+	}
+
+	@Test
+	public void framedPayloadsAreSentWithoutACopy() throws IOException {
+		RecordingListener serverListener = new RecordingListener();
+		MultiplexedTunnel client = new MultiplexedTunnel(new RecordingListener(), true, 8192);
+		MultiplexedTunnel server = new MultiplexedTunnel(serverListener, false, 8192);
+
+		TunnelStream stream = client.openStream(1L, "rdp.internal", 3389);
+		server.onMessage(client.poll());
+
+		ByteBuffer whole = framed(4096);
+		Assert.assertTrue(stream.writeFrame(whole));
+		Assert.assertSame(whole, client.poll());
+		server.onMessage(whole);
+		Assert.assertEquals(4096, serverListener.received);
+
+		// Only 4096 bytes of window are left, so this one has to be split
+		ByteBuffer split = framed(6000);
+		Assert.assertTrue(stream.writeFrame(split));
+		ByteBuffer frame = client.poll();
+		Assert.assertNotSame(split, frame);
+		server.onMessage(frame);
+		Assert.assertEquals(8192, serverListener.received);
+		Assert.assertNull(client.poll());
+
+		Assert.assertFalse(stream.writeFrame(framed(8192)));
+	}
+}
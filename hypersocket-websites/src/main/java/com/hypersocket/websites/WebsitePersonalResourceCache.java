@@ -0,0 +1,22 @@
+package com.hypersocket.websites;
+
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.network.PersonalResourceCache;
+import com.hypersocket.websites.events.WebsiteResourceDeletedEvent;
+import com.hypersocket.websites.events.WebsiteResourceEvent;
+
+@Component
+public class WebsitePersonalResourceCache extends PersonalResourceCache {
+
+	@Override
+	protected void onResourceEvent(SystemEvent event) {
+
+		if (event instanceof WebsiteResourceDeletedEvent) {
+			removed(((WebsiteResourceEvent) event).getWebsiteResource());
+		} else if (event instanceof WebsiteResourceEvent) {
+			changed(((WebsiteResourceEvent) event).getWebsiteResource());
+		}
+	}
+}
@@ -10,12 +10,15 @@ import javax.persistence.Entity;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.annotations.Index;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.hypersocket.server.forward.url.URLForwardingResource;
 
 @Entity
 @Table(name="websites")
+@org.hibernate.annotations.Table(appliesTo="websites", indexes={ @Index(name="websites_realm_name", columnNames={
+		"realm_id", "deleted", "name" }) })
 public class WebsiteResource extends URLForwardingResource {
 
 	@Column(name="launch_url", length=1024)
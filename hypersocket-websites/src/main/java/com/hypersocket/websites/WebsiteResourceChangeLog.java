@@ -0,0 +1,29 @@
+package com.hypersocket.websites;
+
+import org.springframework.stereotype.Component;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.network.ResourceChangeLog;
+import com.hypersocket.role.events.RoleEvent;
+import com.hypersocket.websites.events.WebsiteResourceEvent;
+
+@Component
+public class WebsiteResourceChangeLog extends ResourceChangeLog {
+
+	@Override
+	protected void onResourceEvent(SystemEvent event) {
+
+		if (event instanceof WebsiteResourceEvent) {
+			WebsiteResource resource = ((WebsiteResourceEvent) event)
+					.getWebsiteResource();
+			changed(resource.getRealm(), resource.getId());
+		} else if (event instanceof RoleEvent) {
+			reset();
+		}
+	}
+
+	@Override
+	protected String getResourceCategory() {
+		return "websites";
+	}
+}
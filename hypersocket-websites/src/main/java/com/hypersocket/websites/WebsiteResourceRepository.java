@@ -1,8 +1,20 @@
 package com.hypersocket.websites;
 
+import java.util.Collection;
+import java.util.List;
+
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractAssignableResourceRepository;
+import com.hypersocket.tables.ColumnSort;
 
 public interface WebsiteResourceRepository extends
-		AbstractAssignableResourceRepository<WebsiteResource> {
+		AbstractAssignableResourceRepository<WebsiteResource>, ResourceSearchIndex.Source {
+
+	List<WebsiteResource> getResourcesById(Collection<Long> ids);
+
+	void saveResources(Collection<WebsiteResource> resources);
 
+	List<WebsiteResource> seek(Realm realm, Collection<Long> ids, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting);
 }
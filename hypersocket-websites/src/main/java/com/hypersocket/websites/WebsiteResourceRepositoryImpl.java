@@ -1,11 +1,62 @@
 package com.hypersocket.websites;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Restrictions;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.hypersocket.network.KeysetCriteria;
+import com.hypersocket.network.ResourceSearchIndex;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.repository.CriteriaConfiguration;
 import com.hypersocket.resource.AbstractAssignableResourceRepositoryImpl;
+import com.hypersocket.tables.ColumnSort;
 
 public class WebsiteResourceRepositoryImpl extends
 		AbstractAssignableResourceRepositoryImpl<WebsiteResource> implements
 		WebsiteResourceRepository {
 
+	@Override
+	@Transactional(readOnly=true)
+	public List<WebsiteResource> getResourcesById(final Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return allEntities(WebsiteResource.class, new CriteriaConfiguration() {
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.in("id", ids));
+				criteria.add(Restrictions.eq("deleted", false));
+			}
+		});
+	}
+
+	@Override
+	@Transactional
+	public void saveResources(Collection<WebsiteResource> resources) {
+		for (WebsiteResource resource : resources) {
+			saveResource(resource, new HashMap<String, String>());
+		}
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<WebsiteResource> seek(Realm realm, Collection<Long> ids, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting) {
+		return super.search(realm, searchColumn, searchPattern, 0, length, KeysetCriteria.UNSORTED,
+				KeysetCriteria.after(createCriteria(WebsiteResource.class), after, sorting, ids));
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<ResourceSearchIndex.Entry> getSearchEntries(Realm realm) {
+		return ResourceSearchIndex.getEntries(createCriteria(WebsiteResource.class), realm, "launchUrl");
+	}
+
 	@Override
 	protected Class<WebsiteResource> getResourceClass() {
 		return WebsiteResource.class;
@@ -1,14 +1,23 @@
 package com.hypersocket.websites;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Set;
 
+import com.hypersocket.network.ResourceChanges;
+import com.hypersocket.network.ResourceImportJob;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.Role;
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.Realm;
 import com.hypersocket.resource.AbstractAssignableResourceService;
 import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.resource.ResourceNotFoundException;
 import com.hypersocket.server.forward.ForwardingService;
+import com.hypersocket.tables.ColumnSort;
 
 public interface WebsiteResourceService extends
 		AbstractAssignableResourceService<WebsiteResource>, ForwardingService<WebsiteResource> {
@@ -23,4 +32,24 @@ public interface WebsiteResourceService extends
 	
 	WebsiteResource getResourceById(Long id) throws ResourceNotFoundException, AccessDeniedException;
 
+	ResourceChanges<WebsiteResource> getPersonalChanges(Principal principal, String token)
+			throws AccessDeniedException;
+
+	String getPersonalETag(Principal principal);
+
+	List<WebsiteResource> seekResources(Realm realm, String searchColumn, String searchPattern,
+			Long after, int length, ColumnSort[] sorting) throws AccessDeniedException;
+
+	void exportAllResources(Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException;
+
+	ResourceImportJob startImport(File file, Realm realm, boolean dropExisting)
+			throws AccessDeniedException;
+
+	ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException;
+
+	List<WebsiteResource> seekPersonalResources(Principal principal, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting);
+
 }
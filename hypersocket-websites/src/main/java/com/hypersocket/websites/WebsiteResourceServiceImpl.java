@@ -1,7 +1,14 @@
 package com.hypersocket.websites;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -13,10 +20,22 @@ import com.hypersocket.i18n.I18N;
 import com.hypersocket.i18n.I18NService;
 import com.hypersocket.menus.MenuRegistration;
 import com.hypersocket.menus.MenuService;
+import com.hypersocket.network.KeysetCriteria;
+import com.hypersocket.network.ResourceChangeNotifier;
+import com.hypersocket.network.ResourceChanges;
+import com.hypersocket.network.ResourceCountCache;
+import com.hypersocket.network.ResourceExporter;
+import com.hypersocket.network.ResourceFingerprints;
+import com.hypersocket.network.ResourceImportJob;
+import com.hypersocket.network.ResourceImportJobs;
+import com.hypersocket.network.ResourceImporter;
+import com.hypersocket.network.ResourceSearchIndex;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.PermissionCategory;
 import com.hypersocket.permissions.PermissionService;
 import com.hypersocket.permissions.Role;
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.Realm;
 import com.hypersocket.realm.RealmService;
 import com.hypersocket.resource.AbstractAssignableResourceRepository;
 import com.hypersocket.resource.AbstractAssignableResourceServiceImpl;
@@ -24,6 +43,7 @@ import com.hypersocket.resource.ResourceChangeException;
 import com.hypersocket.resource.ResourceCreationException;
 import com.hypersocket.server.forward.ForwardingTransport;
 import com.hypersocket.session.Session;
+import com.hypersocket.tables.ColumnSort;
 import com.hypersocket.ui.IndexPageFilter;
 import com.hypersocket.websites.events.WebsiteResourceCreatedEvent;
 import com.hypersocket.websites.events.WebsiteResourceDeletedEvent;
@@ -56,6 +76,27 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 	@Autowired
 	IndexPageFilter indexPageFilter;
 
+	@Autowired
+	WebsiteResourceChangeLog changeLog;
+
+	@Autowired
+	ResourceFingerprints fingerprints;
+
+	@Autowired
+	WebsitePersonalResourceCache personalCache;
+
+	@Autowired
+	ResourceChangeNotifier changeNotifier;
+
+	@Autowired
+	ResourceImportJobs importJobs;
+
+	ResourceFingerprints.Fingerprint fingerprint;
+
+	final ResourceCountCache counts = new ResourceCountCache();
+
+	final ResourceSearchIndex searchIndex = new ResourceSearchIndex("launchUrl");
+
 	public WebsiteResourceServiceImpl() {
 		super("website");
 	}
@@ -65,6 +106,15 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 
 		i18nService.registerBundle(RESOURCE_BUNDLE);
 
+		fingerprint = fingerprints.register("websites");
+
+		changeNotifier.registerAssignments("websites", new ResourceChangeNotifier.Assignments() {
+			@Override
+			public Set<Long> getResourceIds(Principal principal) {
+				return getPersonalResourceIds(principal);
+			}
+		});
+
 		PermissionCategory cat = permissionService.registerPermissionCategory(RESOURCE_BUNDLE, "category.websites");
 
 		for (WebsitePermission p : WebsitePermission.values()) {
@@ -79,8 +129,7 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 
 		menuService.registerMenu(new MenuRegistration(RESOURCE_BUNDLE, "myWebsites", "fa-globe", "myWebsites", 200) {
 			public boolean canRead() {
-				return websiteRepository
-						.getAssignableResourceCount(realmService.getAssociatedPrincipals(getCurrentPrincipal())) > 0;
+				return getPersonalResourceCount(getCurrentPrincipal()) > 0;
 			}
 		}, MenuService.MENU_MY_RESOURCES);
 
@@ -92,6 +141,246 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 		indexPageFilter.addStyleSheet("${uiPath}/css/websites.css");
 	}
 
+	@Override
+	public ResourceChanges<WebsiteResource> getPersonalChanges(Principal principal, String token)
+			throws AccessDeniedException {
+
+		String assignments = fingerprints.getAssignmentHash(realmService.getAssociatedPrincipals(principal));
+		String next = changeLog.getToken(principal.getRealm(), assignments);
+		Set<Long> changed = changeLog.getChanges(principal.getRealm(), token, assignments);
+		if (changed != null && changed.isEmpty()) {
+			return ResourceChanges.of(next, Collections.<WebsiteResource> emptyList(), changed);
+		}
+		if (changed != null) {
+			Set<Long> ids = personalCache.getResourceIds(principal);
+			if (ids != null) {
+				ids.retainAll(changed);
+				return ResourceChanges.of(next, websiteRepository.getResourcesById(ids), changed);
+			}
+			return ResourceChanges.of(next, loadResources(principal), changed);
+		}
+		return ResourceChanges.of(next, getResources(principal), changed);
+	}
+
+	@Override
+	public Collection<WebsiteResource> getResources(Principal principal) {
+
+		Set<Long> ids = personalCache.getResourceIds(principal);
+		if (ids != null) {
+			return websiteRepository.getResourcesById(ids);
+		}
+		return loadResources(principal);
+	}
+
+	Collection<WebsiteResource> loadResources(Principal principal) {
+
+		long stamp = personalCache.getStamp();
+		Collection<WebsiteResource> resources = super.getResources(principal);
+		personalCache.put(principal, resources, stamp);
+		return resources;
+	}
+
+	Set<Long> getPersonalResourceIds(Principal principal) {
+
+		Set<Long> ids = personalCache.getResourceIds(principal);
+		if (ids == null) {
+			ids = new HashSet<Long>();
+			for (WebsiteResource resource : loadResources(principal)) {
+				ids.add(resource.getId());
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public List<WebsiteResource> searchResources(Realm realm, String searchColumn, String searchPattern, int start,
+			int length, ColumnSort[] sorting) throws AccessDeniedException {
+
+		assertPermission(WebsitePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn, searchPattern, sorting, websiteRepository);
+		if (ids == null) {
+			return super.searchResources(realm, searchColumn, searchPattern, start, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.page(ids, start, length));
+	}
+
+	@Override
+	public Collection<WebsiteResource> searchPersonalResources(Principal principal, String searchColumn,
+			String searchPattern, int start, int length, ColumnSort[] sorting) {
+
+		List<Long> ids = searchPersonalIndex(principal, searchColumn, searchPattern, sorting);
+		if (ids == null) {
+			return super.searchPersonalResources(principal, searchColumn, searchPattern, start, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.page(ids, start, length));
+	}
+
+	@Override
+	public List<WebsiteResource> seekResources(Realm realm, String searchColumn, String searchPattern, Long after,
+			int length, ColumnSort[] sorting) throws AccessDeniedException {
+
+		assertPermission(WebsitePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn, searchPattern, sorting, websiteRepository);
+		if (ids == null) {
+			return websiteRepository.seek(realm, null, searchColumn, searchPattern, after, length, sorting);
+		}
+		return loadPage(ResourceSearchIndex.pageAfter(ids, after, length));
+	}
+
+	@Override
+	public void exportAllResources(final Realm realm, OutputStream out)
+			throws AccessDeniedException, IOException {
+
+		assertPermission(WebsitePermission.READ);
+
+		ResourceExporter.export(out, new ResourceExporter.Source<WebsiteResource>() {
+			@Override
+			public List<WebsiteResource> getBatch(Long after, int size) {
+				return websiteRepository.seek(realm, null, "", "", after, size,
+						KeysetCriteria.UNSORTED);
+			}
+
+			@Override
+			public void prepare(WebsiteResource resource) {
+				prepareExport(resource, true);
+			}
+		});
+	}
+
+	@Override
+	public ResourceImportJob startImport(File file, final Realm realm,
+			boolean dropExisting) throws AccessDeniedException {
+
+		assertPermission(WebsitePermission.CREATE);
+		if (dropExisting) {
+			assertPermission(WebsitePermission.DELETE);
+		}
+
+		return importJobs.submit(this, realm, getResourceCategory(), file,
+				dropExisting, new ResourceImporter<WebsiteResource>(
+						WebsiteResource.class, realm) {
+
+					@Override
+					protected void dropExisting() throws Exception {
+						for (WebsiteResource resource : websiteRepository.getResources(realm)) {
+							deleteResource(resource);
+						}
+					}
+
+					@Override
+					protected Collection<String> getExistingNames() {
+						return ResourceSearchIndex.getNames(websiteRepository
+								.getSearchEntries(realm));
+					}
+
+					@Override
+					protected void save(List<WebsiteResource> batch) {
+						websiteRepository.saveResources(batch);
+					}
+
+					@Override
+					protected void saved(WebsiteResource resource) {
+						fireResourceCreationEvent(resource);
+					}
+				});
+	}
+
+	@Override
+	public ResourceImportJob getImportJob(Realm realm, String id)
+			throws AccessDeniedException {
+
+		assertPermission(WebsitePermission.CREATE);
+
+		return importJobs.getJob(realm, getResourceCategory(), id);
+	}
+
+	@Override
+	public List<WebsiteResource> seekPersonalResources(Principal principal, String searchColumn,
+			String searchPattern, Long after, int length, ColumnSort[] sorting) {
+
+		List<Long> matches = searchPersonalIndex(principal, searchColumn, searchPattern, sorting);
+		if (matches != null) {
+			return loadPage(ResourceSearchIndex.pageAfter(matches, after, length));
+		}
+		Set<Long> ids = getPersonalResourceIds(principal);
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return websiteRepository.seek(principal.getRealm(), ids, searchColumn, searchPattern, after, length,
+				sorting);
+	}
+
+	List<Long> searchPersonalIndex(Principal principal, String searchColumn, String searchPattern,
+			ColumnSort[] sorting) {
+
+		List<Long> ids = searchIndex.search(principal.getRealm(), searchColumn, searchPattern, sorting,
+				websiteRepository);
+		if (ids != null) {
+			ids.retainAll(getPersonalResourceIds(principal));
+		}
+		return ids;
+	}
+
+	List<WebsiteResource> loadPage(List<Long> ids) {
+		return ResourceSearchIndex.inOrder(ids, websiteRepository.getResourcesById(ids));
+	}
+
+	@Override
+	public Long getResourceCount(Realm realm, String searchColumn, String searchPattern)
+			throws AccessDeniedException {
+
+		assertPermission(WebsitePermission.READ);
+
+		List<Long> ids = searchIndex.search(realm, searchColumn, searchPattern, null, websiteRepository);
+		if (ids != null) {
+			return (long) ids.size();
+		}
+
+		String version = fingerprint.getFingerprint(realm);
+		Long count = counts.get(version, searchColumn, searchPattern);
+		if (count == null) {
+			count = super.getResourceCount(realm, searchColumn, searchPattern);
+			counts.put(version, searchColumn, searchPattern, count);
+		}
+		return count;
+	}
+
+	@Override
+	public Long getPersonalResourceCount(Principal principal, String searchColumn, String searchPattern) {
+
+		List<Long> ids = searchPersonalIndex(principal, searchColumn, searchPattern, null);
+		if (ids != null) {
+			return (long) ids.size();
+		}
+
+		String version = fingerprint.getFingerprint(principal.getRealm()) + "-" + principal.getId() + "-"
+				+ fingerprints.getAssignmentHash(realmService.getAssociatedPrincipals(principal));
+		Long count = counts.get(version, searchColumn, searchPattern);
+		if (count == null) {
+			count = super.getPersonalResourceCount(principal, searchColumn, searchPattern);
+			counts.put(version, searchColumn, searchPattern, count);
+		}
+		return count;
+	}
+
+	long getPersonalResourceCount(Principal principal) {
+
+		Long count = personalCache.getResourceCount(principal);
+		if (count == null) {
+			long stamp = personalCache.getStamp();
+			count = websiteRepository.getAssignableResourceCount(realmService.getAssociatedPrincipals(principal));
+			personalCache.putCount(principal, count, stamp);
+		}
+		return count;
+	}
+
+	@Override
+	public String getPersonalETag(Principal principal) {
+		return fingerprints.getETag(principal.getRealm(), realmService.getAssociatedPrincipals(principal));
+	}
+
 	@Override
 	protected AbstractAssignableResourceRepository<WebsiteResource> getRepository() {
 		return websiteRepository;
@@ -107,8 +396,15 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 		return WebsitePermission.class;
 	}
 
+	@Override
+	public String getFingerprint() {
+		return fingerprint.getFingerprint(getCurrentRealm());
+	}
+
 	@Override
 	protected void fireResourceCreationEvent(WebsiteResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(), resource.getName(), resource.getLaunchUrl());
 		eventService.publishEvent(new WebsiteResourceCreatedEvent(this, getCurrentSession(), resource));
 
 	}
@@ -120,6 +416,8 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 
 	@Override
 	protected void fireResourceUpdateEvent(WebsiteResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.put(resource.getRealm(), resource.getId(), resource.getName(), resource.getLaunchUrl());
 		eventService.publishEvent(new WebsiteResourceUpdatedEvent(this, getCurrentSession(), resource));
 	}
 
@@ -130,6 +428,8 @@ public class WebsiteResourceServiceImpl extends AbstractAssignableResourceServic
 
 	@Override
 	protected void fireResourceDeletionEvent(WebsiteResource resource) {
+		fingerprint.changed(resource.getRealm());
+		searchIndex.remove(resource.getRealm(), resource.getId());
 		eventService.publishEvent(new WebsiteResourceDeletedEvent(this, getCurrentSession(), resource));
 	}
 
@@ -15,18 +15,26 @@ public class WebsiteResourceEvent extends AssignableResourceEvent {
 	
 	private static final long serialVersionUID = 9037257765175335624L;
 
+	WebsiteResource resource;
+
 	public WebsiteResourceEvent(Object source, String resourceKey,
 			Session session, WebsiteResource resource) {
 		super(source, resourceKey, true, session, resource);
+		this.resource = resource;
 		addAttributes(resource);
 	}
 
 	public WebsiteResourceEvent(Object source, String resourceKey,
 			WebsiteResource resource, Throwable e, Session session) {
 		super(source, resourceKey, resource, e, session);
+		this.resource = resource;
 		addAttributes(resource);
 	}
 	
+	public WebsiteResource getWebsiteResource() {
+		return resource;
+	}
+
 	private void addAttributes(WebsiteResource resource) {
 		addAttribute(ATTR_LAUNCH_URL, resource.getLaunchUrl());
 		addAttribute(ATTR_ADDITIONAL_URLS, resource.getAdditionalUrls().replace("]|[", "\r\n"));
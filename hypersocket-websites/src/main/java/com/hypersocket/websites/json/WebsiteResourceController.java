@@ -1,5 +1,7 @@
 package com.hypersocket.websites.json;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -8,7 +10,6 @@ import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
@@ -28,6 +29,9 @@ import com.hypersocket.i18n.I18N;
 import com.hypersocket.i18n.I18NServiceImpl;
 import com.hypersocket.json.ResourceList;
 import com.hypersocket.json.ResourceStatus;
+import com.hypersocket.network.ResourceChanges;
+import com.hypersocket.network.ResourceFingerprints;
+import com.hypersocket.network.ResourceImportJob;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.Role;
 import com.hypersocket.properties.PropertyCategory;
@@ -40,7 +44,6 @@ import com.hypersocket.tables.BootstrapTableResult;
 import com.hypersocket.tables.Column;
 import com.hypersocket.tables.ColumnSort;
 import com.hypersocket.tables.json.BootstrapTablePageProcessor;
-import com.hypersocket.utils.HypersocketUtils;
 import com.hypersocket.websites.WebsiteResource;
 import com.hypersocket.websites.WebsiteResourceColumns;
 import com.hypersocket.websites.WebsiteResourceService;
@@ -72,7 +75,6 @@ public class WebsiteResourceController extends ResourceController {
 	@AuthenticationRequired
 	@RequestMapping(value = "websites/myWebsites", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
-	@ResponseStatus(value = HttpStatus.OK)
 	public ResourceList<WebsiteResource> getResourcesByCurrentPrincipal(
 			HttpServletRequest request, HttpServletResponse response)
 			throws AccessDeniedException, UnauthorizedException,
@@ -81,6 +83,14 @@ public class WebsiteResourceController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
+			String etag = websiteService.getPersonalETag(sessionUtils
+					.getPrincipal(request));
+			response.setHeader("ETag", etag);
+			if (ResourceFingerprints.matches(
+					request.getHeader("If-None-Match"), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return null;
+			}
 			return new ResourceList<WebsiteResource>(
 					websiteService.getResources(sessionUtils
 							.getPrincipal(request)));
@@ -89,6 +99,26 @@ public class WebsiteResourceController extends ResourceController {
 		}
 	}
 
+	@AuthenticationRequired
+	@RequestMapping(value = "websites/myWebsites/changes", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceChanges<WebsiteResource> getChangesByCurrentPrincipal(
+			HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false) String since)
+			throws AccessDeniedException, UnauthorizedException,
+			SessionTimeoutException {
+
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
+		try {
+			return websiteService.getPersonalChanges(
+					sessionUtils.getPrincipal(request), since);
+		} finally {
+			clearAuthenticatedContext();
+		}
+	}
+
 	@AuthenticationRequired
 	@RequestMapping(value = "websites/personal", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
@@ -114,6 +144,13 @@ public class WebsiteResourceController extends ResourceController {
 								int start, int length, ColumnSort[] sorting)
 								throws UnauthorizedException,
 								AccessDeniedException {
+							String after = request.getParameter("after");
+							if (after != null) {
+								return websiteService.seekPersonalResources(
+										sessionUtils.getPrincipal(request), searchColumn, searchPattern,
+										after.length() == 0 ? null : Long.valueOf(after),
+										length, sorting);
+							}
 							return websiteService.searchPersonalResources(
 									sessionUtils.getPrincipal(request),
 									searchColumn, searchPattern, start, length, sorting);
@@ -159,6 +196,13 @@ public class WebsiteResourceController extends ResourceController {
 								int length, ColumnSort[] sorting)
 								throws UnauthorizedException,
 								AccessDeniedException {
+							String after = request.getParameter("after");
+							if (after != null) {
+								return websiteService.seekResources(
+										sessionUtils.getCurrentRealm(request), searchColumn, searchPattern,
+										after.length() == 0 ? null : Long.valueOf(after),
+										length, sorting);
+							}
 							return websiteService.searchResources(
 									sessionUtils.getCurrentRealm(request),
 									searchColumn, searchPattern, start, length, sorting);
@@ -309,10 +353,6 @@ public class WebsiteResourceController extends ResourceController {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ websiteService.getResourceCategory() + "-"
@@ -325,24 +365,20 @@ public class WebsiteResourceController extends ResourceController {
 	
 	@AuthenticationRequired
 	@RequestMapping(value = "websites/export", method = RequestMethod.GET, produces = { "text/plain" })
-	@ResponseStatus(value = HttpStatus.OK)
-	@ResponseBody
-	public String exportAll(HttpServletRequest request,
+	public void exportAll(HttpServletRequest request,
 			HttpServletResponse response)
 			throws AccessDeniedException, UnauthorizedException,
 			SessionTimeoutException, ResourceNotFoundException,
-			ResourceExportException {
+			ResourceExportException, IOException {
 
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
-		try {
-			Thread.sleep(1000);
-		} catch (Exception e) {
-		}
 		try {
 			response.setHeader("Content-Disposition", "attachment; filename=\""
 					+ websiteService.getResourceCategory() + "-all" + ".json\"");
-			return websiteService.exportResources(websiteService.allResources(), true);
+			response.setContentType("text/plain; charset=UTF-8");
+			websiteService.exportAllResources(getCurrentRealm(),
+					response.getOutputStream());
 		} finally {
 			clearAuthenticatedContext();
 		}
@@ -352,7 +388,7 @@ public class WebsiteResourceController extends ResourceController {
 	@RequestMapping(value = "websites/import", method = { RequestMethod.POST }, produces = { "application/json" })
 	@ResponseBody
 	@ResponseStatus(value = HttpStatus.OK)
-	public ResourceStatus<WebsiteResource> importLaunchers(
+	public ResourceStatus<ResourceImportJob> importLaunchers(
 			HttpServletRequest request, HttpServletResponse response,
 			@RequestParam(value = "file") MultipartFile jsonFile,
 			@RequestParam(required=false) boolean dropExisting)
@@ -361,33 +397,47 @@ public class WebsiteResourceController extends ResourceController {
 		setupAuthenticatedContext(sessionUtils.getSession(request),
 				sessionUtils.getLocale(request));
 		try {
-			Thread.sleep(2000);
+			File file = File.createTempFile("import", ".json");
+			ResourceImportJob job;
+			try {
+				jsonFile.transferTo(file);
+				job = websiteService.startImport(file, getCurrentRealm(),
+						dropExisting);
+			} catch (Exception e) {
+				file.delete();
+				throw e;
+			}
+			return new ResourceStatus<ResourceImportJob>(job, I18N.getResource(
+					sessionUtils.getLocale(request),
+					WebsiteResourceServiceImpl.RESOURCE_BUNDLE, "import.started"));
 		} catch (Exception e) {
+			return new ResourceStatus<ResourceImportJob>(false, I18N.getResource(
+					sessionUtils.getLocale(request),
+					I18NServiceImpl.USER_INTERFACE_BUNDLE,
+					"resource.import.failure", e.getMessage()));
+		} finally {
+			clearAuthenticatedContext();
 		}
+	}
+
+	@AuthenticationRequired
+	@RequestMapping(value = "websites/import/{id}", method = RequestMethod.GET, produces = { "application/json" })
+	@ResponseBody
+	@ResponseStatus(value = HttpStatus.OK)
+	public ResourceStatus<ResourceImportJob> getImportJob(
+			HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("id") String id) throws AccessDeniedException,
+			UnauthorizedException, SessionTimeoutException {
+		setupAuthenticatedContext(sessionUtils.getSession(request),
+				sessionUtils.getLocale(request));
 		try {
-			String json = IOUtils.toString(jsonFile.getInputStream());
-			if (!HypersocketUtils.isValidJSON(json)) {
-				throw new ResourceException(I18NServiceImpl.USER_INTERFACE_BUNDLE,
-						"error.incorrectJSON");
+			ResourceImportJob job = websiteService.getImportJob(getCurrentRealm(), id);
+			if (job == null) {
+				return new ResourceStatus<ResourceImportJob>(false,
+						I18N.getResource(sessionUtils.getLocale(request),
+								WebsiteResourceServiceImpl.RESOURCE_BUNDLE, "import.notFound", id));
 			}
-			Collection<WebsiteResource> collects = websiteService
-					.importResources(json, getCurrentRealm(), dropExisting);
-			return new ResourceStatus<WebsiteResource>(
-					true,
-					I18N.getResource(
-							sessionUtils.getLocale(request),
-							I18NServiceImpl.USER_INTERFACE_BUNDLE,
-							"resource.import.success", collects.size()));
-		} catch (ResourceException e) {
-			return new ResourceStatus<WebsiteResource>(false, e.getMessage());
-		} catch (Exception e) {
-			return new ResourceStatus<WebsiteResource>(
-					false,
-					I18N.getResource(
-							sessionUtils.getLocale(request),
-							I18NServiceImpl.USER_INTERFACE_BUNDLE,
-							"resource.import.failure",
-							e.getMessage()));
+			return new ResourceStatus<ResourceImportJob>(job, "");
 		} finally {
 			clearAuthenticatedContext();
 		}